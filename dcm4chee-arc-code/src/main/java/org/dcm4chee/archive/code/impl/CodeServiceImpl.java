@@ -38,56 +38,131 @@
 
 package org.dcm4chee.archive.code.impl;
 
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 import javax.persistence.EntityManager;
-import javax.persistence.EntityManagerFactory;
-import javax.persistence.NoResultException;
+import javax.persistence.PersistenceException;
 import javax.persistence.TypedQuery;
-import javax.transaction.UserTransaction;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
 
 import org.dcm4chee.archive.code.CodeService;
 import org.dcm4chee.archive.entity.Code;
 
 /**
+ * Primary keys of resolved codes are cached, after the transaction which
+ * resolved them was committed, to skip the lookup for subsequent calls.
+ * 
+ * New codes are inserted by {@link CodeCreator} in a separate transaction.
+ * If the same code was inserted concurrently by another thread or node,
+ * the unique key of the code rejects the insert and the code inserted by
+ * the other thread or node is selected.
+ * 
  * @author Gunter Zeilinger <gunterze@gmail.com>
  *
  */
 public class CodeServiceImpl implements CodeService {
 
+    private static final int DEFAULT_MAX_CACHE_SIZE = 1000;
+
     private EntityManager em;
+    private TransactionSynchronizationRegistry tsr;
+    private CodeCreator codeCreator;
+    private Map<String, Long> cache = createCache(DEFAULT_MAX_CACHE_SIZE);
 
     public void setEntityManager(EntityManager em) {
         this.em = em;
     }
 
+    public void setTransactionSynchronizationRegistry(
+            TransactionSynchronizationRegistry tsr) {
+        this.tsr = tsr;
+    }
+
+    public void setCodeCreator(CodeCreator codeCreator) {
+        this.codeCreator = codeCreator;
+    }
+
+    public void setMaxCacheSize(int maxCacheSize) {
+        this.cache = createCache(maxCacheSize);
+    }
+
+    private static Map<String, Long> createCache(final int maxSize) {
+        return Collections.synchronizedMap(
+                new LinkedHashMap<String, Long>(16, 0.75f, true) {
+
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    protected boolean removeEldestEntry(
+                            Map.Entry<String, Long> eldest) {
+                        return size() > maxSize;
+                    }
+                });
+    }
+
     @Override
     public Code findOrCreate(Code code) {
         try {
+            String key = Code.keyOf(code);
+            Long pk = cache.get(key);
+            if (pk != null)
+                return em.getReference(Code.class, pk);
+
             Code result = findOrCreate(em, code);
+            cacheOnCommit(key, result.getPk());
             return result;
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
+    private void cacheOnCommit(final String key, final long pk) {
+        tsr.registerInterposedSynchronization(new Synchronization() {
+
+            @Override
+            public void beforeCompletion() {
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                if (status == Status.STATUS_COMMITTED)
+                    cache.put(key, pk);
+            }
+        });
+    }
+
     private Code findOrCreate(EntityManager em, Code code) {
-        try {
-            String codingSchemeVersion = code.getCodingSchemeVersion();
-            TypedQuery<Code> query = em.createNamedQuery(
-                    codingSchemeVersion == null
-                            ? Code.FIND_BY_CODE_VALUE_WITHOUT_SCHEME_VERSION
-                            : Code.FIND_BY_CODE_VALUE_WITH_SCHEME_VERSION,
-                        Code.class)
-                    .setParameter(1, code.getCodeValue())
-                    .setParameter(2, code.getCodingSchemeDesignator());
-            if (codingSchemeVersion != null)
-                query.setParameter(3, codingSchemeVersion);
-            return query.getSingleResult();
-        } catch (NoResultException e) {
-            em.persist(code);
-            em.flush();
-            em.refresh(code);
-            return code;
+        String codingSchemeVersion = code.getCodingSchemeVersion();
+        TypedQuery<Code> query = em.createNamedQuery(
+                codingSchemeVersion == null
+                        ? Code.FIND_BY_CODE_VALUE_WITHOUT_SCHEME_VERSION
+                        : Code.FIND_BY_CODE_VALUE_WITH_SCHEME_VERSION,
+                    Code.class)
+                .setParameter(1, code.getCodeValue())
+                .setParameter(2, code.getCodingSchemeDesignator());
+        if (codingSchemeVersion != null)
+            query.setParameter(3, codingSchemeVersion);
+        List<Code> list = query.getResultList();
+        if (list.isEmpty()) {
+            try {
+                return em.find(Code.class, codeCreator.createCode(code));
+            } catch (PersistenceException e) {
+                // inserted concurrently - select the code of the winner
+                list = query.getResultList();
+                if (list.isEmpty())
+                    throw e;
+            }
         }
+        Code result = list.get(0);
+        for (Code other : list)
+            if (other.getPk() < result.getPk())
+                result = other;
+        return result;
     }
 
 }
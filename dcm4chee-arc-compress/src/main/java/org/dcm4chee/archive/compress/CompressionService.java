@@ -41,6 +41,7 @@ package org.dcm4chee.archive.compress;
 import java.io.File;
 import java.io.IOException;
 import java.security.MessageDigest;
+import java.util.List;
 
 import org.dcm4che.data.Attributes;
 import org.dcm4che.imageio.codec.CompressionRule;
@@ -50,7 +51,41 @@ import org.dcm4che.imageio.codec.CompressionRule;
  *
  */
 public interface CompressionService {
+
+    /**
+     * Compresses {@code src} to {@code dest}, waiting until the number of
+     * concurrent compressions falls below the configured maximum.
+     */
     void compress(CompressionRule rule, File src,
             File dest, MessageDigest digest, Attributes fmi,
             Attributes attrs) throws IOException;
+
+    /**
+     * Compresses {@code src} to {@code dest}, unless the maximal number of
+     * concurrent and of waiting compressions is reached.
+     * 
+     * @return {@code false} if {@code src} was not compressed
+     */
+    boolean tryCompress(CompressionRule rule, File src,
+            File dest, MessageDigest digest, Attributes fmi,
+            Attributes attrs) throws IOException;
+
+    /**
+     * Sets the maximal number of concurrent compressions;
+     * {@code 0} = number of available processors.
+     */
+    void setMaxConcurrentCompressions(int maxConcurrentCompressions);
+
+    int getMaxConcurrentCompressions();
+
+    /**
+     * Sets the maximal number of compressions waiting for one of the
+     * concurrent compressions to complete, before {@link #tryCompress}
+     * fails.
+     */
+    void setMaxWaitingCompressions(int maxWaitingCompressions);
+
+    int getMaxWaitingCompressions();
+
+    List<CompressionStatistics> getStatistics();
 }
@@ -42,8 +42,12 @@ import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.security.DigestOutputStream;
 import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 
 import org.dcm4che.data.Attributes;
 import org.dcm4che.data.Tag;
@@ -53,27 +57,150 @@ import org.dcm4che.imageio.codec.CompressionRule;
 import org.dcm4che.imageio.codec.Compressor;
 import org.dcm4che.io.DicomOutputStream;
 import org.dcm4chee.archive.compress.CompressionService;
+import org.dcm4chee.archive.compress.CompressionStatistics;
 
 /**
+ * Compressions are executed by the calling threads, limited to a maximal
+ * number of concurrent compressions, so burst load does not over-subscribe
+ * the available processors.
+ * 
  * @author Gunter Zeilinger <gunterze@gmail.com>
  *
  */
 public class CompressionServiceImpl implements CompressionService {
 
+    private final HashMap<String, CompressionStatistics> statistics =
+            new HashMap<String, CompressionStatistics>();
+    private int maxConcurrentCompressions;
+    private int maxWaitingCompressions;
+    private int concurrentCompressions;
+    private int waitingCompressions;
+
+    @Override
+    public synchronized void setMaxConcurrentCompressions(
+            int maxConcurrentCompressions) {
+        if (maxConcurrentCompressions < 0)
+            throw new IllegalArgumentException(
+                    "maxConcurrentCompressions: " + maxConcurrentCompressions);
+        this.maxConcurrentCompressions = maxConcurrentCompressions;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized int getMaxConcurrentCompressions() {
+        return maxConcurrentCompressions;
+    }
+
+    @Override
+    public synchronized void setMaxWaitingCompressions(
+            int maxWaitingCompressions) {
+        if (maxWaitingCompressions < 0)
+            throw new IllegalArgumentException(
+                    "maxWaitingCompressions: " + maxWaitingCompressions);
+        this.maxWaitingCompressions = maxWaitingCompressions;
+    }
+
+    @Override
+    public synchronized int getMaxWaitingCompressions() {
+        return maxWaitingCompressions;
+    }
+
+    @Override
+    public List<CompressionStatistics> getStatistics() {
+        synchronized (statistics) {
+            ArrayList<CompressionStatistics> list =
+                    new ArrayList<CompressionStatistics>(statistics.size());
+            for (CompressionStatistics stat : statistics.values())
+                list.add(new CompressionStatistics(stat));
+            return list;
+        }
+    }
+
     @Override
     public void compress(CompressionRule rule, File src, File dest,
             MessageDigest digest, Attributes fmi, Attributes attrs)
             throws IOException {
+        try {
+            acquire(true);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        try {
+            doCompress(rule, src, dest, digest, fmi, attrs);
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    public boolean tryCompress(CompressionRule rule, File src, File dest,
+            MessageDigest digest, Attributes fmi, Attributes attrs)
+            throws IOException {
+        try {
+            if (!acquire(false))
+                return false;
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        try {
+            doCompress(rule, src, dest, digest, fmi, attrs);
+            return true;
+        } finally {
+            release();
+        }
+    }
+
+    private int maxConcurrentCompressions() {
+        return maxConcurrentCompressions > 0
+                ? maxConcurrentCompressions
+                : Runtime.getRuntime().availableProcessors();
+    }
+
+    private synchronized boolean acquire(boolean wait)
+            throws InterruptedException {
+        if (concurrentCompressions >= maxConcurrentCompressions()) {
+            if (!wait && waitingCompressions >= maxWaitingCompressions)
+                return false;
+
+            waitingCompressions++;
+            try {
+                do
+                    wait();
+                while (concurrentCompressions >= maxConcurrentCompressions());
+            } finally {
+                waitingCompressions--;
+            }
+        }
+        concurrentCompressions++;
+        return true;
+    }
+
+    private synchronized void release() {
+        concurrentCompressions--;
+        notify();
+    }
+
+    private void doCompress(CompressionRule rule, File src, File dest,
+            MessageDigest digest, Attributes fmi, Attributes attrs)
+            throws IOException {
+        long start = System.nanoTime();
+        String ts = rule.getTransferSyntax();
         try (  Compressor compressor = new Compressor(attrs,
                         fmi.getString(Tag.TransferSyntaxUID));
                DicomOutputStream out = dicomOutputStream(dest, digest)
             ) {
 
-            String ts = rule.getTransferSyntax();
             compressor.compress(ts, rule.getImageWriteParams());
             fmi.setString(Tag.TransferSyntaxUID, VR.UI, ts);
             out.writeDataset(fmi, attrs);
         }
+        long nanos = System.nanoTime() - start;
+        synchronized (statistics) {
+            CompressionStatistics stat = statistics.get(ts);
+            if (stat == null)
+                statistics.put(ts, stat = new CompressionStatistics(ts));
+            stat.add(src.length(), dest.length(), nanos);
+        }
     }
 
     private DicomOutputStream dicomOutputStream(File dest, MessageDigest digest)
@@ -70,7 +70,9 @@ import org.dcm4chee.archive.conf.ArchiveAEExtension;
 import org.dcm4chee.archive.conf.ArchiveDeviceExtension;
 import org.dcm4chee.archive.conf.ArchiveHL7ApplicationExtension;
 import org.dcm4chee.archive.conf.AttributeFilter;
+import org.dcm4chee.archive.conf.CompressionSaturationPolicy;
 import org.dcm4chee.archive.conf.Entity;
+import org.dcm4chee.archive.conf.FileSystemSelectionPolicy;
 import org.dcm4chee.archive.conf.StoreDuplicate;
 import org.dcm4chee.archive.conf.StoreDuplicate.Condition;
 
@@ -104,6 +106,32 @@ public class LdapArchiveConfiguration extends LdapDicomConfigurationExtension
                 arcDev.getConfigurationStaleTimeout(), 0);
         LdapUtils.storeNotDef(attrs, "dcmWadoAttributesStaleTimeout",
                 arcDev.getWadoAttributesStaleTimeout(), 0);
+        LdapUtils.storeNotDef(attrs, "dcmBackgroundCompressionWorkers",
+                arcDev.getBackgroundCompressionWorkers(), 1);
+        LdapUtils.storeNotDef(attrs, "dcmMaxConcurrentCompressions",
+                arcDev.getMaxConcurrentCompressions(), 0);
+        LdapUtils.storeNotDef(attrs, "dcmMaxWaitingCompressions",
+                arcDev.getMaxWaitingCompressions(), 0);
+        LdapUtils.storeNotDef(attrs, "dcmFileSystemCheckInterval",
+                arcDev.getFileSystemCheckInterval(), 60);
+        LdapUtils.storeNotDef(attrs, "dcmNumberOfInstancesReconciliationInterval",
+                arcDev.getNumberOfInstancesReconciliationInterval(), 86400);
+        LdapUtils.storeNotDef(attrs, "dcmMaxStoreAssociationsPerDestination",
+                arcDev.getMaxStoreAssociationsPerDestination(), 0);
+        LdapUtils.storeNotDef(attrs, "dcmRetrievePrefetchMemory",
+                arcDev.getRetrievePrefetchMemory(), 67108864);
+        LdapUtils.storeNotDef(attrs, "dcmAssociationPoolIdleTimeout",
+                arcDev.getAssociationPoolIdleTimeout(), 0);
+        LdapUtils.storeNotDef(attrs, "dcmAssociationPoolMaxPerDestination",
+                arcDev.getAssociationPoolMaxPerDestination(), 0);
+        LdapUtils.storeNotNull(attrs, "dcmTranscodeCacheDirectory",
+                arcDev.getTranscodeCacheDirectory());
+        LdapUtils.storeNotDef(attrs, "dcmTranscodeCacheMaxSize",
+                arcDev.getTranscodeCacheMaxSize(), 1024);
+        LdapUtils.storeNotDef(attrs, "dcmEncodedAttributesMigrationInterval",
+                arcDev.getEncodedAttributesMigrationInterval(), 0);
+        LdapUtils.storeNotDef(attrs, "dcmUncompressedFileDeletionDelay",
+                arcDev.getUncompressedFileDeletionDelay(), 60);
     }
 
     @Override
@@ -153,6 +181,8 @@ public class LdapArchiveConfiguration extends LdapDicomConfigurationExtension
         LdapUtils.storeNotNull(attrs, "dcmCustomAttribute1", filter.getCustomAttribute1());
         LdapUtils.storeNotNull(attrs, "dcmCustomAttribute2", filter.getCustomAttribute2());
         LdapUtils.storeNotNull(attrs, "dcmCustomAttribute3", filter.getCustomAttribute3());
+        LdapUtils.storeNotDef(attrs, "dcmCompressEncodedAttributes",
+                filter.isCompressEncodedAttributes(), false);
         return attrs;
     }
 
@@ -205,6 +235,15 @@ public class LdapArchiveConfiguration extends LdapDicomConfigurationExtension
         LdapUtils.storeNotNull(attrs, "hl7PIXConsumerApplication", arcAE.getLocalPIXConsumerApplication());
         LdapUtils.storeNotNull(attrs, "hl7PIXManagerApplication", arcAE.getRemotePIXManagerApplication());
         LdapUtils.storeNotDef(attrs, "dcmQidoMaxNumberOfResults", arcAE.getQIDOMaxNumberOfResults(), 0);
+        LdapUtils.storeNotDef(attrs, "dcmStoreBatchSize", arcAE.getStoreBatchSize(), 0);
+        LdapUtils.storeNotDef(attrs, "dcmStoreBatchDelay", arcAE.getStoreBatchDelay(), 0);
+        LdapUtils.storeNotDef(attrs, "dcmBackgroundCompression", arcAE.isBackgroundCompression(), false);
+        LdapUtils.storeNotNull(attrs, "dcmCompressionSaturationPolicy", arcAE.getCompressionSaturationPolicy());
+        LdapUtils.storeNotNull(attrs, "dcmFileSystemSelectionPolicy", arcAE.getFileSystemSelectionPolicy());
+        LdapUtils.storeNotDef(attrs, "dcmFileSystemHighWaterMark", arcAE.getFileSystemHighWaterMark(), 0);
+        LdapUtils.storeNotDef(attrs, "dcmMoveStoreAssociations", arcAE.getMoveStoreAssociations(), 1);
+        LdapUtils.storeNotDef(attrs, "dcmRetrievePrefetchDepth", arcAE.getRetrievePrefetchDepth(), 0);
+        LdapUtils.storeNotDef(attrs, "dcmMoveMaxOpsInvoked", arcAE.getMoveMaxOpsInvoked(), 1);
     }
 
     @Override
@@ -241,6 +280,32 @@ public class LdapArchiveConfiguration extends LdapDicomConfigurationExtension
                 LdapUtils.intValue(attrs.get("dcmConfigurationStaleTimeout"), 0));
         arcdev.setWadoAttributesStaleTimeout(
                 LdapUtils.intValue(attrs.get("dcmWadoAttributesStaleTimeout"), 0));
+        arcdev.setBackgroundCompressionWorkers(
+                LdapUtils.intValue(attrs.get("dcmBackgroundCompressionWorkers"), 1));
+        arcdev.setMaxConcurrentCompressions(
+                LdapUtils.intValue(attrs.get("dcmMaxConcurrentCompressions"), 0));
+        arcdev.setMaxWaitingCompressions(
+                LdapUtils.intValue(attrs.get("dcmMaxWaitingCompressions"), 0));
+        arcdev.setFileSystemCheckInterval(
+                LdapUtils.intValue(attrs.get("dcmFileSystemCheckInterval"), 60));
+        arcdev.setNumberOfInstancesReconciliationInterval(
+                LdapUtils.intValue(attrs.get("dcmNumberOfInstancesReconciliationInterval"), 86400));
+        arcdev.setMaxStoreAssociationsPerDestination(
+                LdapUtils.intValue(attrs.get("dcmMaxStoreAssociationsPerDestination"), 0));
+        arcdev.setRetrievePrefetchMemory(
+                LdapUtils.intValue(attrs.get("dcmRetrievePrefetchMemory"), 67108864));
+        arcdev.setAssociationPoolIdleTimeout(
+                LdapUtils.intValue(attrs.get("dcmAssociationPoolIdleTimeout"), 0));
+        arcdev.setAssociationPoolMaxPerDestination(
+                LdapUtils.intValue(attrs.get("dcmAssociationPoolMaxPerDestination"), 0));
+        arcdev.setTranscodeCacheDirectory(
+                LdapUtils.stringValue(attrs.get("dcmTranscodeCacheDirectory"), null));
+        arcdev.setTranscodeCacheMaxSize(
+                LdapUtils.intValue(attrs.get("dcmTranscodeCacheMaxSize"), 1024));
+        arcdev.setEncodedAttributesMigrationInterval(
+                LdapUtils.intValue(attrs.get("dcmEncodedAttributesMigrationInterval"), 0));
+        arcdev.setUncompressedFileDeletionDelay(
+                LdapUtils.intValue(attrs.get("dcmUncompressedFileDeletionDelay"), 60));
     }
 
     @Override
@@ -266,6 +331,8 @@ public class LdapArchiveConfiguration extends LdapDicomConfigurationExtension
                 filter.setCustomAttribute1(valueSelector(attrs.get("dcmCustomAttribute1")));
                 filter.setCustomAttribute2(valueSelector(attrs.get("dcmCustomAttribute2")));
                 filter.setCustomAttribute3(valueSelector(attrs.get("dcmCustomAttribute3")));
+                filter.setCompressEncodedAttributes(LdapUtils.booleanValue(
+                        attrs.get("dcmCompressEncodedAttributes"), false));
                 device.setAttributeFilter(
                         Entity.valueOf(LdapUtils.stringValue(attrs.get("dcmEntity"), null)), filter);
             }
@@ -335,6 +402,21 @@ public class LdapArchiveConfiguration extends LdapDicomConfigurationExtension
        arcae.setLocalPIXConsumerApplication(LdapUtils.stringValue(attrs.get("hl7PIXConsumerApplication"), null));
        arcae.setRemotePIXManagerApplication(LdapUtils.stringValue(attrs.get("hl7PIXManagerApplication"), null));
        arcae.setQIDOMaxNumberOfResults(LdapUtils.intValue(attrs.get("dcmQidoMaxNumberOfResults"), 0));
+       arcae.setStoreBatchSize(LdapUtils.intValue(attrs.get("dcmStoreBatchSize"), 0));
+       arcae.setStoreBatchDelay(LdapUtils.intValue(attrs.get("dcmStoreBatchDelay"), 0));
+       arcae.setBackgroundCompression(
+               LdapUtils.booleanValue(attrs.get("dcmBackgroundCompression"), false));
+       arcae.setCompressionSaturationPolicy(CompressionSaturationPolicy.valueOf(
+               LdapUtils.stringValue(attrs.get("dcmCompressionSaturationPolicy"),
+                       CompressionSaturationPolicy.BLOCK.name())));
+       arcae.setFileSystemSelectionPolicy(FileSystemSelectionPolicy.valueOf(
+               LdapUtils.stringValue(attrs.get("dcmFileSystemSelectionPolicy"),
+                       FileSystemSelectionPolicy.ROUND_ROBIN.name())));
+       arcae.setFileSystemHighWaterMark(
+               LdapUtils.intValue(attrs.get("dcmFileSystemHighWaterMark"), 0));
+       arcae.setMoveStoreAssociations(LdapUtils.intValue(attrs.get("dcmMoveStoreAssociations"), 1));
+       arcae.setRetrievePrefetchDepth(LdapUtils.intValue(attrs.get("dcmRetrievePrefetchDepth"), 0));
+       arcae.setMoveMaxOpsInvoked(LdapUtils.intValue(attrs.get("dcmMoveMaxOpsInvoked"), 1));
     }
 
     @Override
@@ -413,6 +495,57 @@ public class LdapArchiveConfiguration extends LdapDicomConfigurationExtension
                 aa.getWadoAttributesStaleTimeout(),
                 bb.getWadoAttributesStaleTimeout(),
                 0);
+        LdapUtils.storeDiff(mods, "dcmBackgroundCompressionWorkers",
+                aa.getBackgroundCompressionWorkers(),
+                bb.getBackgroundCompressionWorkers(),
+                1);
+        LdapUtils.storeDiff(mods, "dcmMaxConcurrentCompressions",
+                aa.getMaxConcurrentCompressions(),
+                bb.getMaxConcurrentCompressions(),
+                0);
+        LdapUtils.storeDiff(mods, "dcmMaxWaitingCompressions",
+                aa.getMaxWaitingCompressions(),
+                bb.getMaxWaitingCompressions(),
+                0);
+        LdapUtils.storeDiff(mods, "dcmFileSystemCheckInterval",
+                aa.getFileSystemCheckInterval(),
+                bb.getFileSystemCheckInterval(),
+                60);
+        LdapUtils.storeDiff(mods, "dcmNumberOfInstancesReconciliationInterval",
+                aa.getNumberOfInstancesReconciliationInterval(),
+                bb.getNumberOfInstancesReconciliationInterval(),
+                86400);
+        LdapUtils.storeDiff(mods, "dcmMaxStoreAssociationsPerDestination",
+                aa.getMaxStoreAssociationsPerDestination(),
+                bb.getMaxStoreAssociationsPerDestination(),
+                0);
+        LdapUtils.storeDiff(mods, "dcmRetrievePrefetchMemory",
+                aa.getRetrievePrefetchMemory(),
+                bb.getRetrievePrefetchMemory(),
+                67108864);
+        LdapUtils.storeDiff(mods, "dcmAssociationPoolIdleTimeout",
+                aa.getAssociationPoolIdleTimeout(),
+                bb.getAssociationPoolIdleTimeout(),
+                0);
+        LdapUtils.storeDiff(mods, "dcmAssociationPoolMaxPerDestination",
+                aa.getAssociationPoolMaxPerDestination(),
+                bb.getAssociationPoolMaxPerDestination(),
+                0);
+        LdapUtils.storeDiff(mods, "dcmTranscodeCacheDirectory",
+                aa.getTranscodeCacheDirectory(),
+                bb.getTranscodeCacheDirectory());
+        LdapUtils.storeDiff(mods, "dcmTranscodeCacheMaxSize",
+                aa.getTranscodeCacheMaxSize(),
+                bb.getTranscodeCacheMaxSize(),
+                1024);
+        LdapUtils.storeDiff(mods, "dcmEncodedAttributesMigrationInterval",
+                aa.getEncodedAttributesMigrationInterval(),
+                bb.getEncodedAttributesMigrationInterval(),
+                0);
+        LdapUtils.storeDiff(mods, "dcmUncompressedFileDeletionDelay",
+                aa.getUncompressedFileDeletionDelay(),
+                bb.getUncompressedFileDeletionDelay(),
+                60);
     }
 
     @Override
@@ -527,6 +660,40 @@ public class LdapArchiveConfiguration extends LdapDicomConfigurationExtension
                 aa.getQIDOMaxNumberOfResults(),
                 bb.getQIDOMaxNumberOfResults(),
                 0);
+        LdapUtils.storeDiff(mods, "dcmStoreBatchSize",
+                aa.getStoreBatchSize(),
+                bb.getStoreBatchSize(),
+                0);
+        LdapUtils.storeDiff(mods, "dcmStoreBatchDelay",
+                aa.getStoreBatchDelay(),
+                bb.getStoreBatchDelay(),
+                0);
+        LdapUtils.storeDiff(mods, "dcmBackgroundCompression",
+                aa.isBackgroundCompression(),
+                bb.isBackgroundCompression(),
+                false);
+        LdapUtils.storeDiff(mods, "dcmCompressionSaturationPolicy",
+                aa.getCompressionSaturationPolicy(),
+                bb.getCompressionSaturationPolicy());
+        LdapUtils.storeDiff(mods, "dcmFileSystemSelectionPolicy",
+                aa.getFileSystemSelectionPolicy(),
+                bb.getFileSystemSelectionPolicy());
+        LdapUtils.storeDiff(mods, "dcmFileSystemHighWaterMark",
+                aa.getFileSystemHighWaterMark(),
+                bb.getFileSystemHighWaterMark(),
+                0);
+        LdapUtils.storeDiff(mods, "dcmMoveStoreAssociations",
+                aa.getMoveStoreAssociations(),
+                bb.getMoveStoreAssociations(),
+                1);
+        LdapUtils.storeDiff(mods, "dcmRetrievePrefetchDepth",
+                aa.getRetrievePrefetchDepth(),
+                bb.getRetrievePrefetchDepth(),
+                0);
+        LdapUtils.storeDiff(mods, "dcmMoveMaxOpsInvoked",
+                aa.getMoveMaxOpsInvoked(),
+                bb.getMoveMaxOpsInvoked(),
+                1);
     }
 
     @Override
@@ -619,6 +786,10 @@ public class LdapArchiveConfiguration extends LdapDicomConfigurationExtension
         LdapUtils.storeDiff(mods, "dcmCustomAttribute3",
                 prev.getCustomAttribute3(),
                 filter.getCustomAttribute3());
+        LdapUtils.storeDiff(mods, "dcmCompressEncodedAttributes",
+                prev.isCompressEncodedAttributes(),
+                filter.isCompressEncodedAttributes(),
+                false);
         return mods;
     }
 
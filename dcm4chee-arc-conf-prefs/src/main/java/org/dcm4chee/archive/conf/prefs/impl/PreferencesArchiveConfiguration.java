@@ -61,7 +61,9 @@ import org.dcm4chee.archive.conf.ArchiveAEExtension;
 import org.dcm4chee.archive.conf.ArchiveDeviceExtension;
 import org.dcm4chee.archive.conf.ArchiveHL7ApplicationExtension;
 import org.dcm4chee.archive.conf.AttributeFilter;
+import org.dcm4chee.archive.conf.CompressionSaturationPolicy;
 import org.dcm4chee.archive.conf.Entity;
+import org.dcm4chee.archive.conf.FileSystemSelectionPolicy;
 import org.dcm4chee.archive.conf.StoreDuplicate;
 
 /**
@@ -96,6 +98,32 @@ public class PreferencesArchiveConfiguration
                 arcDev.getConfigurationStaleTimeout(), 0);
         PreferencesUtils.storeNotDef(prefs, "dcmWadoAttributesStaleTimeout",
                 arcDev.getWadoAttributesStaleTimeout(), 0);
+        PreferencesUtils.storeNotDef(prefs, "dcmBackgroundCompressionWorkers",
+                arcDev.getBackgroundCompressionWorkers(), 1);
+        PreferencesUtils.storeNotDef(prefs, "dcmMaxConcurrentCompressions",
+                arcDev.getMaxConcurrentCompressions(), 0);
+        PreferencesUtils.storeNotDef(prefs, "dcmMaxWaitingCompressions",
+                arcDev.getMaxWaitingCompressions(), 0);
+        PreferencesUtils.storeNotDef(prefs, "dcmFileSystemCheckInterval",
+                arcDev.getFileSystemCheckInterval(), 60);
+        PreferencesUtils.storeNotDef(prefs, "dcmNumberOfInstancesReconciliationInterval",
+                arcDev.getNumberOfInstancesReconciliationInterval(), 86400);
+        PreferencesUtils.storeNotDef(prefs, "dcmMaxStoreAssociationsPerDestination",
+                arcDev.getMaxStoreAssociationsPerDestination(), 0);
+        PreferencesUtils.storeNotDef(prefs, "dcmRetrievePrefetchMemory",
+                arcDev.getRetrievePrefetchMemory(), 67108864);
+        PreferencesUtils.storeNotDef(prefs, "dcmAssociationPoolIdleTimeout",
+                arcDev.getAssociationPoolIdleTimeout(), 0);
+        PreferencesUtils.storeNotDef(prefs, "dcmAssociationPoolMaxPerDestination",
+                arcDev.getAssociationPoolMaxPerDestination(), 0);
+        PreferencesUtils.storeNotNull(prefs, "dcmTranscodeCacheDirectory",
+                arcDev.getTranscodeCacheDirectory());
+        PreferencesUtils.storeNotDef(prefs, "dcmTranscodeCacheMaxSize",
+                arcDev.getTranscodeCacheMaxSize(), 1024);
+        PreferencesUtils.storeNotDef(prefs, "dcmEncodedAttributesMigrationInterval",
+                arcDev.getEncodedAttributesMigrationInterval(), 0);
+        PreferencesUtils.storeNotDef(prefs, "dcmUncompressedFileDeletionDelay",
+                arcDev.getUncompressedFileDeletionDelay(), 60);
     }
 
     @Override
@@ -139,6 +167,8 @@ public class PreferencesArchiveConfiguration
         PreferencesUtils.storeNotNull(prefs, "dcmCustomAttribute1", filter.getCustomAttribute1());
         PreferencesUtils.storeNotNull(prefs, "dcmCustomAttribute2", filter.getCustomAttribute2());
         PreferencesUtils.storeNotNull(prefs, "dcmCustomAttribute3", filter.getCustomAttribute3());
+        PreferencesUtils.storeNotDef(prefs, "dcmCompressEncodedAttributes",
+                filter.isCompressEncodedAttributes(), false);
     }
 
     private static void storeTags(Preferences prefs, String key, int[] tags) {
@@ -192,6 +222,15 @@ public class PreferencesArchiveConfiguration
         PreferencesUtils.storeNotNull(prefs, "hl7PIXConsumerApplication", arcAE.getLocalPIXConsumerApplication());
         PreferencesUtils.storeNotNull(prefs, "hl7PIXManagerApplication", arcAE.getRemotePIXManagerApplication());
         PreferencesUtils.storeNotDef(prefs, "dcmQidoMaxNumberOfResults", arcAE.getQIDOMaxNumberOfResults(), 0);
+        PreferencesUtils.storeNotDef(prefs, "dcmStoreBatchSize", arcAE.getStoreBatchSize(), 0);
+        PreferencesUtils.storeNotDef(prefs, "dcmStoreBatchDelay", arcAE.getStoreBatchDelay(), 0);
+        PreferencesUtils.storeNotDef(prefs, "dcmBackgroundCompression", arcAE.isBackgroundCompression(), false);
+        PreferencesUtils.storeNotNull(prefs, "dcmCompressionSaturationPolicy", arcAE.getCompressionSaturationPolicy());
+        PreferencesUtils.storeNotNull(prefs, "dcmFileSystemSelectionPolicy", arcAE.getFileSystemSelectionPolicy());
+        PreferencesUtils.storeNotDef(prefs, "dcmFileSystemHighWaterMark", arcAE.getFileSystemHighWaterMark(), 0);
+        PreferencesUtils.storeNotDef(prefs, "dcmMoveStoreAssociations", arcAE.getMoveStoreAssociations(), 1);
+        PreferencesUtils.storeNotDef(prefs, "dcmRetrievePrefetchDepth", arcAE.getRetrievePrefetchDepth(), 0);
+        PreferencesUtils.storeNotDef(prefs, "dcmMoveMaxOpsInvoked", arcAE.getMoveMaxOpsInvoked(), 1);
     }
 
     @Override
@@ -229,6 +268,32 @@ public class PreferencesArchiveConfiguration
                 prefs.getInt("dcmConfigurationStaleTimeout", 0));
         arcdev.setWadoAttributesStaleTimeout(
                 prefs.getInt("dcmWadoAttributesStaleTimeout", 0));
+        arcdev.setBackgroundCompressionWorkers(
+                prefs.getInt("dcmBackgroundCompressionWorkers", 1));
+        arcdev.setMaxConcurrentCompressions(
+                prefs.getInt("dcmMaxConcurrentCompressions", 0));
+        arcdev.setMaxWaitingCompressions(
+                prefs.getInt("dcmMaxWaitingCompressions", 0));
+        arcdev.setFileSystemCheckInterval(
+                prefs.getInt("dcmFileSystemCheckInterval", 60));
+        arcdev.setNumberOfInstancesReconciliationInterval(
+                prefs.getInt("dcmNumberOfInstancesReconciliationInterval", 86400));
+        arcdev.setMaxStoreAssociationsPerDestination(
+                prefs.getInt("dcmMaxStoreAssociationsPerDestination", 0));
+        arcdev.setRetrievePrefetchMemory(
+                prefs.getInt("dcmRetrievePrefetchMemory", 67108864));
+        arcdev.setAssociationPoolIdleTimeout(
+                prefs.getInt("dcmAssociationPoolIdleTimeout", 0));
+        arcdev.setAssociationPoolMaxPerDestination(
+                prefs.getInt("dcmAssociationPoolMaxPerDestination", 0));
+        arcdev.setTranscodeCacheDirectory(
+                prefs.get("dcmTranscodeCacheDirectory", null));
+        arcdev.setTranscodeCacheMaxSize(
+                prefs.getInt("dcmTranscodeCacheMaxSize", 1024));
+        arcdev.setEncodedAttributesMigrationInterval(
+                prefs.getInt("dcmEncodedAttributesMigrationInterval", 0));
+        arcdev.setUncompressedFileDeletionDelay(
+                prefs.getInt("dcmUncompressedFileDeletionDelay", 60));
     }
 
     @Override
@@ -289,6 +354,19 @@ public class PreferencesArchiveConfiguration
         arcae.setLocalPIXConsumerApplication(prefs.get("hl7PIXConsumerApplication", null));
         arcae.setRemotePIXManagerApplication(prefs.get("hl7PIXManagerApplication", null));
         arcae.setQIDOMaxNumberOfResults(prefs.getInt("dcmQidoMaxNumberOfResults", 0));
+        arcae.setStoreBatchSize(prefs.getInt("dcmStoreBatchSize", 0));
+        arcae.setStoreBatchDelay(prefs.getInt("dcmStoreBatchDelay", 0));
+        arcae.setBackgroundCompression(prefs.getBoolean("dcmBackgroundCompression", false));
+        arcae.setCompressionSaturationPolicy(CompressionSaturationPolicy.valueOf(
+                prefs.get("dcmCompressionSaturationPolicy",
+                        CompressionSaturationPolicy.BLOCK.name())));
+        arcae.setFileSystemSelectionPolicy(FileSystemSelectionPolicy.valueOf(
+                prefs.get("dcmFileSystemSelectionPolicy",
+                        FileSystemSelectionPolicy.ROUND_ROBIN.name())));
+        arcae.setFileSystemHighWaterMark(prefs.getInt("dcmFileSystemHighWaterMark", 0));
+        arcae.setMoveStoreAssociations(prefs.getInt("dcmMoveStoreAssociations", 1));
+        arcae.setRetrievePrefetchDepth(prefs.getInt("dcmRetrievePrefetchDepth", 0));
+        arcae.setMoveMaxOpsInvoked(prefs.getInt("dcmMoveMaxOpsInvoked", 1));
     }
 
     @Override
@@ -340,6 +418,8 @@ public class PreferencesArchiveConfiguration
                     ValueSelector.valueOf(acNode.get("dcmCustomAttribute2", null)));
             filter.setCustomAttribute3(
                     ValueSelector.valueOf(acNode.get("dcmCustomAttribute3", null)));
+            filter.setCompressEncodedAttributes(
+                    acNode.getBoolean("dcmCompressEncodedAttributes", false));
             device.setAttributeFilter(
                     Entity.valueOf(entity), filter);
         }
@@ -386,6 +466,57 @@ public class PreferencesArchiveConfiguration
                 aa.getWadoAttributesStaleTimeout(),
                 bb.getWadoAttributesStaleTimeout(),
                 0);
+        PreferencesUtils.storeDiff(prefs, "dcmBackgroundCompressionWorkers",
+                aa.getBackgroundCompressionWorkers(),
+                bb.getBackgroundCompressionWorkers(),
+                1);
+        PreferencesUtils.storeDiff(prefs, "dcmMaxConcurrentCompressions",
+                aa.getMaxConcurrentCompressions(),
+                bb.getMaxConcurrentCompressions(),
+                0);
+        PreferencesUtils.storeDiff(prefs, "dcmMaxWaitingCompressions",
+                aa.getMaxWaitingCompressions(),
+                bb.getMaxWaitingCompressions(),
+                0);
+        PreferencesUtils.storeDiff(prefs, "dcmFileSystemCheckInterval",
+                aa.getFileSystemCheckInterval(),
+                bb.getFileSystemCheckInterval(),
+                60);
+        PreferencesUtils.storeDiff(prefs, "dcmNumberOfInstancesReconciliationInterval",
+                aa.getNumberOfInstancesReconciliationInterval(),
+                bb.getNumberOfInstancesReconciliationInterval(),
+                86400);
+        PreferencesUtils.storeDiff(prefs, "dcmMaxStoreAssociationsPerDestination",
+                aa.getMaxStoreAssociationsPerDestination(),
+                bb.getMaxStoreAssociationsPerDestination(),
+                0);
+        PreferencesUtils.storeDiff(prefs, "dcmRetrievePrefetchMemory",
+                aa.getRetrievePrefetchMemory(),
+                bb.getRetrievePrefetchMemory(),
+                67108864);
+        PreferencesUtils.storeDiff(prefs, "dcmAssociationPoolIdleTimeout",
+                aa.getAssociationPoolIdleTimeout(),
+                bb.getAssociationPoolIdleTimeout(),
+                0);
+        PreferencesUtils.storeDiff(prefs, "dcmAssociationPoolMaxPerDestination",
+                aa.getAssociationPoolMaxPerDestination(),
+                bb.getAssociationPoolMaxPerDestination(),
+                0);
+        PreferencesUtils.storeDiff(prefs, "dcmTranscodeCacheDirectory",
+                aa.getTranscodeCacheDirectory(),
+                bb.getTranscodeCacheDirectory());
+        PreferencesUtils.storeDiff(prefs, "dcmTranscodeCacheMaxSize",
+                aa.getTranscodeCacheMaxSize(),
+                bb.getTranscodeCacheMaxSize(),
+                1024);
+        PreferencesUtils.storeDiff(prefs, "dcmEncodedAttributesMigrationInterval",
+                aa.getEncodedAttributesMigrationInterval(),
+                bb.getEncodedAttributesMigrationInterval(),
+                0);
+        PreferencesUtils.storeDiff(prefs, "dcmUncompressedFileDeletionDelay",
+                aa.getUncompressedFileDeletionDelay(),
+                bb.getUncompressedFileDeletionDelay(),
+                60);
     }
 
     @Override
@@ -500,6 +631,40 @@ public class PreferencesArchiveConfiguration
                  aa.getQIDOMaxNumberOfResults(),
                  bb.getQIDOMaxNumberOfResults(),
                  0);
+         PreferencesUtils.storeDiff(prefs, "dcmStoreBatchSize",
+                 aa.getStoreBatchSize(),
+                 bb.getStoreBatchSize(),
+                 0);
+         PreferencesUtils.storeDiff(prefs, "dcmStoreBatchDelay",
+                 aa.getStoreBatchDelay(),
+                 bb.getStoreBatchDelay(),
+                 0);
+         PreferencesUtils.storeDiff(prefs, "dcmBackgroundCompression",
+                 aa.isBackgroundCompression(),
+                 bb.isBackgroundCompression(),
+                 false);
+         PreferencesUtils.storeDiff(prefs, "dcmCompressionSaturationPolicy",
+                 aa.getCompressionSaturationPolicy(),
+                 bb.getCompressionSaturationPolicy());
+         PreferencesUtils.storeDiff(prefs, "dcmFileSystemSelectionPolicy",
+                 aa.getFileSystemSelectionPolicy(),
+                 bb.getFileSystemSelectionPolicy());
+         PreferencesUtils.storeDiff(prefs, "dcmFileSystemHighWaterMark",
+                 aa.getFileSystemHighWaterMark(),
+                 bb.getFileSystemHighWaterMark(),
+                 0);
+         PreferencesUtils.storeDiff(prefs, "dcmMoveStoreAssociations",
+                 aa.getMoveStoreAssociations(),
+                 bb.getMoveStoreAssociations(),
+                 1);
+         PreferencesUtils.storeDiff(prefs, "dcmRetrievePrefetchDepth",
+                 aa.getRetrievePrefetchDepth(),
+                 bb.getRetrievePrefetchDepth(),
+                 0);
+         PreferencesUtils.storeDiff(prefs, "dcmMoveMaxOpsInvoked",
+                 aa.getMoveMaxOpsInvoked(),
+                 bb.getMoveMaxOpsInvoked(),
+                 1);
     }
 
     @Override
@@ -546,6 +711,10 @@ public class PreferencesArchiveConfiguration
         PreferencesUtils.storeDiff(prefs, "dcmCustomAttribute3",
                 prev.getCustomAttribute3(),
                 filter.getCustomAttribute3());
+        PreferencesUtils.storeDiff(prefs, "dcmCompressEncodedAttributes",
+                prev.isCompressEncodedAttributes(),
+                filter.isCompressEncodedAttributes(),
+                false);
     }
 
     private void storeDiffTags(Preferences prefs, String key, int[] prevs, int[] vals) {
@@ -101,6 +101,17 @@ public class ArchiveAEExtension extends AEExtension {
     private String pixManagerApplication;
     private String pixConsumerApplication;
     private int qidoMaxNumberOfResults;
+    private int storeBatchSize;
+    private int storeBatchDelay;
+    private boolean backgroundCompression;
+    private FileSystemSelectionPolicy fileSystemSelectionPolicy =
+            FileSystemSelectionPolicy.ROUND_ROBIN;
+    private int fileSystemHighWaterMark;
+    private int moveStoreAssociations = 1;
+    private int retrievePrefetchDepth;
+    private int moveMaxOpsInvoked = 1;
+    private CompressionSaturationPolicy compressionSaturationPolicy =
+            CompressionSaturationPolicy.BLOCK;
 
     public AttributeCoercion getAttributeCoercion(String sopClass,
             Dimse dimse, Role role, String aeTitle) {
@@ -411,6 +422,80 @@ public class ArchiveAEExtension extends AEExtension {
         this.qidoMaxNumberOfResults = qidoMaxNumberOfResults;
     }
 
+    public int getStoreBatchSize() {
+        return storeBatchSize;
+    }
+
+    public void setStoreBatchSize(int storeBatchSize) {
+        this.storeBatchSize = storeBatchSize;
+    }
+
+    public int getStoreBatchDelay() {
+        return storeBatchDelay;
+    }
+
+    public void setStoreBatchDelay(int storeBatchDelay) {
+        this.storeBatchDelay = storeBatchDelay;
+    }
+
+    public boolean isBackgroundCompression() {
+        return backgroundCompression;
+    }
+
+    public void setBackgroundCompression(boolean backgroundCompression) {
+        this.backgroundCompression = backgroundCompression;
+    }
+
+    public CompressionSaturationPolicy getCompressionSaturationPolicy() {
+        return compressionSaturationPolicy;
+    }
+
+    public void setCompressionSaturationPolicy(
+            CompressionSaturationPolicy compressionSaturationPolicy) {
+        this.compressionSaturationPolicy = compressionSaturationPolicy;
+    }
+
+    public FileSystemSelectionPolicy getFileSystemSelectionPolicy() {
+        return fileSystemSelectionPolicy;
+    }
+
+    public void setFileSystemSelectionPolicy(
+            FileSystemSelectionPolicy fileSystemSelectionPolicy) {
+        this.fileSystemSelectionPolicy = fileSystemSelectionPolicy;
+    }
+
+    public int getFileSystemHighWaterMark() {
+        return fileSystemHighWaterMark;
+    }
+
+    public void setFileSystemHighWaterMark(int fileSystemHighWaterMark) {
+        this.fileSystemHighWaterMark = fileSystemHighWaterMark;
+    }
+
+    public int getMoveStoreAssociations() {
+        return moveStoreAssociations;
+    }
+
+    public void setMoveStoreAssociations(int moveStoreAssociations) {
+        this.moveStoreAssociations = moveStoreAssociations;
+    }
+
+    public int getRetrievePrefetchDepth() {
+        return retrievePrefetchDepth;
+    }
+
+    public void setRetrievePrefetchDepth(int retrievePrefetchDepth) {
+        this.retrievePrefetchDepth = retrievePrefetchDepth;
+    }
+
+    public int getMoveMaxOpsInvoked() {
+        return moveMaxOpsInvoked;
+    }
+
+    public void setMoveMaxOpsInvoked(int moveMaxOpsInvoked) {
+        this.moveMaxOpsInvoked = moveMaxOpsInvoked;
+    }
+
     @Override
     public void reconfigure(AEExtension from) {
         ArchiveAEExtension arcae = (ArchiveAEExtension) from;
@@ -443,6 +528,15 @@ public class ArchiveAEExtension extends AEExtension {
         setRemotePIXManagerApplication(arcae.pixManagerApplication);
         setLocalPIXConsumerApplication(arcae.pixConsumerApplication);
         setQIDOMaxNumberOfResults(arcae.qidoMaxNumberOfResults);
+        setStoreBatchSize(arcae.storeBatchSize);
+        setStoreBatchDelay(arcae.storeBatchDelay);
+        setBackgroundCompression(arcae.backgroundCompression);
+        setCompressionSaturationPolicy(arcae.compressionSaturationPolicy);
+        setFileSystemSelectionPolicy(arcae.fileSystemSelectionPolicy);
+        setFileSystemHighWaterMark(arcae.fileSystemHighWaterMark);
+        setMoveStoreAssociations(arcae.moveStoreAssociations);
+        setRetrievePrefetchDepth(arcae.retrievePrefetchDepth);
+        setMoveMaxOpsInvoked(arcae.moveMaxOpsInvoked);
         setStoreDuplicates(arcae.getStoreDuplicates());
         setAttributeCoercions(arcae.getAttributeCoercions());
         setCompressionRules(arcae.getCompressionRules());
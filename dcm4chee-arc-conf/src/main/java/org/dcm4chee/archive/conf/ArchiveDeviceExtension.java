@@ -65,6 +65,19 @@ public class ArchiveDeviceExtension extends DeviceExtension {
             new AttributeFilter[Entity.values().length];
     private int configurationStaleTimeout;
     private int wadoAttributesStaleTimeout;
+    private int backgroundCompressionWorkers = 1;
+    private int maxConcurrentCompressions;
+    private int maxWaitingCompressions;
+    private int fileSystemCheckInterval = 60;
+    private int numberOfInstancesReconciliationInterval = 86400;
+    private int maxStoreAssociationsPerDestination;
+    private int retrievePrefetchMemory = 67108864;
+    private int associationPoolIdleTimeout;
+    private int associationPoolMaxPerDestination;
+    private String transcodeCacheDirectory;
+    private int transcodeCacheMaxSize = 1024;
+    private int encodedAttributesMigrationInterval;
+    private int uncompressedFileDeletionDelay = 60;
 
     private transient FuzzyStr fuzzyStr;
     private transient TemplatesCache templatesCache;
@@ -177,6 +190,115 @@ public class ArchiveDeviceExtension extends DeviceExtension {
         return attributeFilters;
     }
 
+    public int getBackgroundCompressionWorkers() {
+        return backgroundCompressionWorkers;
+    }
+
+    public void setBackgroundCompressionWorkers(int backgroundCompressionWorkers) {
+        this.backgroundCompressionWorkers = backgroundCompressionWorkers;
+    }
+
+    public int getMaxConcurrentCompressions() {
+        return maxConcurrentCompressions;
+    }
+
+    public void setMaxConcurrentCompressions(int maxConcurrentCompressions) {
+        this.maxConcurrentCompressions = maxConcurrentCompressions;
+    }
+
+    public int getMaxWaitingCompressions() {
+        return maxWaitingCompressions;
+    }
+
+    public void setMaxWaitingCompressions(int maxWaitingCompressions) {
+        this.maxWaitingCompressions = maxWaitingCompressions;
+    }
+
+    public int getFileSystemCheckInterval() {
+        return fileSystemCheckInterval;
+    }
+
+    public void setFileSystemCheckInterval(int fileSystemCheckInterval) {
+        this.fileSystemCheckInterval = fileSystemCheckInterval;
+    }
+
+    public int getNumberOfInstancesReconciliationInterval() {
+        return numberOfInstancesReconciliationInterval;
+    }
+
+    public void setNumberOfInstancesReconciliationInterval(
+            int numberOfInstancesReconciliationInterval) {
+        this.numberOfInstancesReconciliationInterval =
+                numberOfInstancesReconciliationInterval;
+    }
+
+    public int getMaxStoreAssociationsPerDestination() {
+        return maxStoreAssociationsPerDestination;
+    }
+
+    public void setMaxStoreAssociationsPerDestination(
+            int maxStoreAssociationsPerDestination) {
+        this.maxStoreAssociationsPerDestination = maxStoreAssociationsPerDestination;
+    }
+
+    public int getRetrievePrefetchMemory() {
+        return retrievePrefetchMemory;
+    }
+
+    public void setRetrievePrefetchMemory(int retrievePrefetchMemory) {
+        this.retrievePrefetchMemory = retrievePrefetchMemory;
+    }
+
+    public int getAssociationPoolIdleTimeout() {
+        return associationPoolIdleTimeout;
+    }
+
+    public void setAssociationPoolIdleTimeout(
+            int associationPoolIdleTimeout) {
+        this.associationPoolIdleTimeout = associationPoolIdleTimeout;
+    }
+
+    public int getAssociationPoolMaxPerDestination() {
+        return associationPoolMaxPerDestination;
+    }
+
+    public void setAssociationPoolMaxPerDestination(
+            int associationPoolMaxPerDestination) {
+        this.associationPoolMaxPerDestination = associationPoolMaxPerDestination;
+    }
+
+    public String getTranscodeCacheDirectory() {
+        return transcodeCacheDirectory;
+    }
+
+    public void setTranscodeCacheDirectory(String transcodeCacheDirectory) {
+        this.transcodeCacheDirectory = transcodeCacheDirectory;
+    }
+
+    public int getTranscodeCacheMaxSize() {
+        return transcodeCacheMaxSize;
+    }
+
+    public void setTranscodeCacheMaxSize(int transcodeCacheMaxSize) {
+        this.transcodeCacheMaxSize = transcodeCacheMaxSize;
+    }
+
+    public int getEncodedAttributesMigrationInterval() {
+        return encodedAttributesMigrationInterval;
+    }
+
+    public void setEncodedAttributesMigrationInterval(int encodedAttributesMigrationInterval) {
+        this.encodedAttributesMigrationInterval = encodedAttributesMigrationInterval;
+    }
+
+    public int getUncompressedFileDeletionDelay() {
+        return uncompressedFileDeletionDelay;
+    }
+
+    public void setUncompressedFileDeletionDelay(int uncompressedFileDeletionDelay) {
+        this.uncompressedFileDeletionDelay = uncompressedFileDeletionDelay;
+    }
+
     @Override
     public void reconfigure(DeviceExtension from) {
         ArchiveDeviceExtension arcdev = (ArchiveDeviceExtension) from;
@@ -187,6 +309,19 @@ public class ArchiveDeviceExtension extends DeviceExtension {
         setDataRetentionPeriodExpiredCode(arcdev.getDataRetentionPeriodExpiredCode());
         setFuzzyAlgorithmClass(arcdev.fuzzyAlgorithmClass);
         setConfigurationStaleTimeout(arcdev.configurationStaleTimeout);
+        setBackgroundCompressionWorkers(arcdev.backgroundCompressionWorkers);
+        setMaxConcurrentCompressions(arcdev.maxConcurrentCompressions);
+        setMaxWaitingCompressions(arcdev.maxWaitingCompressions);
+        setFileSystemCheckInterval(arcdev.fileSystemCheckInterval);
+        setNumberOfInstancesReconciliationInterval(arcdev.numberOfInstancesReconciliationInterval);
+        setMaxStoreAssociationsPerDestination(arcdev.maxStoreAssociationsPerDestination);
+        setRetrievePrefetchMemory(arcdev.retrievePrefetchMemory);
+        setAssociationPoolIdleTimeout(arcdev.associationPoolIdleTimeout);
+        setAssociationPoolMaxPerDestination(arcdev.associationPoolMaxPerDestination);
+        setTranscodeCacheDirectory(arcdev.transcodeCacheDirectory);
+        setTranscodeCacheMaxSize(arcdev.transcodeCacheMaxSize);
+        setEncodedAttributesMigrationInterval(arcdev.encodedAttributesMigrationInterval);
+        setUncompressedFileDeletionDelay(arcdev.uncompressedFileDeletionDelay);
         System.arraycopy(arcdev.attributeFilters, 0,
                 attributeFilters, 0, attributeFilters.length);
     }
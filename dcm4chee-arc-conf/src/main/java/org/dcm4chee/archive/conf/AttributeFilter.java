@@ -55,6 +55,7 @@ public class AttributeFilter implements Serializable {
     private ValueSelector customAttribute1;
     private ValueSelector customAttribute2;
     private ValueSelector customAttribute3;
+    private boolean compressEncodedAttributes;
 
     public AttributeFilter(int... selection) {
         Arrays.sort(this.selection = selection);
@@ -93,4 +94,12 @@ public class AttributeFilter implements Serializable {
         return customAttribute3;
     }
 
+    public boolean isCompressEncodedAttributes() {
+        return compressEncodedAttributes;
+    }
+
+    public void setCompressEncodedAttributes(boolean compressEncodedAttributes) {
+        this.compressEncodedAttributes = compressEncodedAttributes;
+    }
+
 }
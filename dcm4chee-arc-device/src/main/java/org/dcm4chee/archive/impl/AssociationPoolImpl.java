@@ -0,0 +1,397 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2013
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.archive.impl;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.dcm4che.net.ApplicationEntity;
+import org.dcm4che.net.Association;
+import org.dcm4che.net.Device;
+import org.dcm4che.net.IncompatibleConnectionException;
+import org.dcm4che.net.pdu.AAssociateRQ;
+import org.dcm4che.net.pdu.PresentationContext;
+import org.dcm4che.net.pdu.RoleSelection;
+import org.dcm4chee.archive.ArchiveService;
+import org.dcm4chee.archive.AssociationPool;
+import org.dcm4chee.archive.AssociationPoolStatistics;
+import org.dcm4chee.archive.conf.ArchiveDeviceExtension;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Idle Associations are kept for the configured idle timeout and checked
+ * to be still ready for data transfer, before they are reused. Associations
+ * are never released or aborted while holding the lock of the pool.
+ * 
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ *
+ */
+public class AssociationPoolImpl implements AssociationPool {
+
+    private static final Logger LOG =
+            LoggerFactory.getLogger(AssociationPoolImpl.class);
+
+    private static final long DEFAULT_MAX_WAIT = 30000L;
+
+    private static final class Idle {
+        final Association as;
+        final String remoteAET;
+        final long since;
+
+        Idle(Association as, String remoteAET, long since) {
+            this.as = as;
+            this.remoteAET = remoteAET;
+            this.since = since;
+        }
+    }
+
+    private static final class Entry {
+        final String key;
+        final String remoteAET;
+
+        Entry(String key, String remoteAET) {
+            this.key = key;
+            this.remoteAET = remoteAET;
+        }
+    }
+
+    private ArchiveService archiveService;
+    private long maxWait = DEFAULT_MAX_WAIT;
+    private final HashMap<String, ArrayDeque<Idle>> idle =
+            new HashMap<String, ArrayDeque<Idle>>();
+    private final IdentityHashMap<Association, Entry> entries =
+            new IdentityHashMap<Association, Entry>();
+    private final HashMap<String, Integer> openByRemoteAET =
+            new HashMap<String, Integer>();
+    private ScheduledFuture<?> purge;
+    private int numIdle;
+    private long opened;
+    private long reused;
+    private long closed;
+    private long unhealthy;
+    private long waits;
+
+    public void setArchiveService(ArchiveService archiveService) {
+        this.archiveService = archiveService;
+    }
+
+    /**
+     * @param maxWait maximal time in ms to wait for an Association, if the
+     *        maximal number of Associations to the remote AE is reached
+     */
+    public void setMaxWait(long maxWait) {
+        this.maxWait = maxWait;
+    }
+
+    public void destroy() {
+        List<Association> toClose;
+        synchronized (this) {
+            toClose = removeIdle(Long.MAX_VALUE);
+            if (purge != null) {
+                purge.cancel(false);
+                purge = null;
+            }
+        }
+        close(toClose);
+    }
+
+    @Override
+    public Association acquire(ApplicationEntity localAE,
+            ApplicationEntity remoteAE, AAssociateRQ rq) throws IOException,
+            InterruptedException, IncompatibleConnectionException,
+            GeneralSecurityException {
+        String key = key(localAE, remoteAE, rq);
+        String remoteAET = remoteAE.getAETitle();
+        List<Association> toClose = new ArrayList<Association>();
+        try {
+            synchronized (this) {
+                Association as;
+                while ((as = pollIdle(key)) != null) {
+                    if (as.isReadyForDataTransfer()) {
+                        entries.put(as, new Entry(key, remoteAET));
+                        reused++;
+                        return as;
+                    }
+                    unhealthy++;
+                    decrement(remoteAET);
+                    toClose.add(as);
+                }
+                waitForCapacity(remoteAET, toClose);
+                increment(remoteAET);
+            }
+        } finally {
+            close(toClose);
+        }
+        Association as = null;
+        try {
+            as = localAE.connect(remoteAE, rq);
+        } finally {
+            synchronized (this) {
+                if (as != null) {
+                    entries.put(as, new Entry(key, remoteAET));
+                    opened++;
+                } else {
+                    decrement(remoteAET);
+                    notifyAll();
+                }
+            }
+        }
+        return as;
+    }
+
+    private void waitForCapacity(String remoteAET, List<Association> toClose)
+            throws InterruptedException, IOException {
+        int max = config().getAssociationPoolMaxPerDestination();
+        if (max <= 0 || count(remoteAET) < max)
+            return;
+
+        waits++;
+        long deadline = System.currentTimeMillis() + maxWait;
+        while (count(remoteAET) >= max) {
+            Association as = pollIdleTo(remoteAET);
+            if (as != null) {
+                decrement(remoteAET);
+                toClose.add(as);
+                continue;
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0)
+                throw new IOException("Maximal number of Associations to "
+                        + remoteAET + " reached");
+            wait(remaining);
+        }
+    }
+
+    @Override
+    public void release(Association as) {
+        int idleTimeout = config().getAssociationPoolIdleTimeout();
+        synchronized (this) {
+            Entry entry = entries.remove(as);
+            if (entry != null) {
+                if (idleTimeout > 0 && as.isReadyForDataTransfer()) {
+                    ArrayDeque<Idle> deque = idle.get(entry.key);
+                    if (deque == null)
+                        idle.put(entry.key, deque = new ArrayDeque<Idle>());
+                    deque.addFirst(new Idle(as, entry.remoteAET,
+                            System.currentTimeMillis()));
+                    numIdle++;
+                    schedulePurge(idleTimeout);
+                    notifyAll();
+                    return;
+                }
+                decrement(entry.remoteAET);
+                notifyAll();
+            }
+        }
+        close(Collections.singletonList(as));
+    }
+
+    @Override
+    public void discard(Association as) {
+        synchronized (this) {
+            Entry entry = entries.remove(as);
+            if (entry != null) {
+                unhealthy++;
+                decrement(entry.remoteAET);
+                notifyAll();
+            }
+        }
+        as.abort();
+    }
+
+    @Override
+    public synchronized AssociationPoolStatistics getStatistics() {
+        return new AssociationPoolStatistics(entries.size(), numIdle,
+                opened, reused, closed, unhealthy, waits);
+    }
+
+    private Association pollIdle(String key) {
+        ArrayDeque<Idle> deque = idle.get(key);
+        if (deque == null)
+            return null;
+
+        Idle first = deque.pollFirst();
+        if (deque.isEmpty())
+            idle.remove(key);
+        if (first == null)
+            return null;
+
+        numIdle--;
+        return first.as;
+    }
+
+    private Association pollIdleTo(String remoteAET) {
+        for (Map.Entry<String, ArrayDeque<Idle>> e : idle.entrySet()) {
+            Idle last = e.getValue().peekLast();
+            if (last.remoteAET.equals(remoteAET))
+                return pollLast(e.getKey());
+        }
+        return null;
+    }
+
+    private Association pollLast(String key) {
+        ArrayDeque<Idle> deque = idle.get(key);
+        Idle last = deque.pollLast();
+        if (deque.isEmpty())
+            idle.remove(key);
+        numIdle--;
+        return last.as;
+    }
+
+    /**
+     * Removes idle Associations, which are idle since {@code before}, and
+     * decrements the number of open Associations to their remote AEs.
+     */
+    private List<Association> removeIdle(long before) {
+        List<Association> removed = new ArrayList<Association>();
+        for (Iterator<ArrayDeque<Idle>> it = idle.values().iterator();
+                it.hasNext();) {
+            ArrayDeque<Idle> deque = it.next();
+            Idle last;
+            while ((last = deque.peekLast()) != null && last.since < before) {
+                deque.pollLast();
+                numIdle--;
+                decrement(last.remoteAET);
+                removed.add(last.as);
+            }
+            if (deque.isEmpty())
+                it.remove();
+        }
+        if (!removed.isEmpty())
+            notifyAll();
+        return removed;
+    }
+
+    private void schedulePurge(final int idleTimeout) {
+        if (purge != null)
+            return;
+
+        purge = device().schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                List<Association> expired;
+                synchronized (AssociationPoolImpl.this) {
+                    purge = null;
+                    expired = removeIdle(
+                            System.currentTimeMillis() - idleTimeout * 1000L);
+                    if (numIdle > 0)
+                        schedulePurge(idleTimeout);
+                }
+                close(expired);
+            }
+        }, idleTimeout, TimeUnit.SECONDS);
+    }
+
+    private void close(List<Association> list) {
+        for (Association as : list) {
+            synchronized (this) {
+                closed++;
+            }
+            if (!as.isReadyForDataTransfer())
+                continue;
+
+            try {
+                as.release();
+            } catch (IOException e) {
+                LOG.info("{}: Failed to release association to {}",
+                        as, as.getRemoteAET());
+            }
+        }
+    }
+
+    private int count(String remoteAET) {
+        Integer n = openByRemoteAET.get(remoteAET);
+        return n != null ? n.intValue() : 0;
+    }
+
+    private void increment(String remoteAET) {
+        openByRemoteAET.put(remoteAET, count(remoteAET) + 1);
+    }
+
+    private void decrement(String remoteAET) {
+        int n = count(remoteAET) - 1;
+        if (n > 0)
+            openByRemoteAET.put(remoteAET, n);
+        else
+            openByRemoteAET.remove(remoteAET);
+    }
+
+    private Device device() {
+        return archiveService.getDevice();
+    }
+
+    private ArchiveDeviceExtension config() {
+        return device().getDeviceExtension(ArchiveDeviceExtension.class);
+    }
+
+    static String key(ApplicationEntity localAE,
+            ApplicationEntity remoteAE, AAssociateRQ rq) {
+        List<String> pcs = new ArrayList<String>();
+        for (PresentationContext pc : rq.getPresentationContexts()) {
+            StringBuilder sb = new StringBuilder(pc.getAbstractSyntax());
+            for (String ts : pc.getTransferSyntaxes())
+                sb.append(':').append(ts);
+            RoleSelection rs = rq.getRoleSelectionFor(pc.getAbstractSyntax());
+            if (rs != null)
+                sb.append(rs.isSCU() ? ":SCU" : "").append(rs.isSCP() ? ":SCP" : "");
+            pcs.add(sb.toString());
+        }
+        Collections.sort(pcs);
+        StringBuilder sb = new StringBuilder();
+        sb.append(localAE.getAETitle())
+          .append('\\').append(remoteAE.getAETitle())
+          .append('\\').append(rq.getMaxOpsInvoked());
+        for (String pc : pcs)
+            sb.append('\\').append(pc);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,164 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2013
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.dcm4che.data.UID;
+import org.dcm4che.net.ApplicationEntity;
+import org.dcm4che.net.Device;
+import org.dcm4che.net.pdu.AAssociateRQ;
+import org.dcm4che.net.pdu.PresentationContext;
+import org.dcm4che.net.pdu.RoleSelection;
+import org.dcm4chee.archive.ArchiveService;
+import org.dcm4chee.archive.AssociationPoolStatistics;
+import org.dcm4chee.archive.conf.ArchiveDeviceExtension;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ *
+ */
+public class AssociationPoolImplTest {
+
+    private ApplicationEntity localAE;
+    private ApplicationEntity remoteAE;
+    private AssociationPoolImpl pool;
+
+    @Before
+    public void setUp() {
+        final Device device = new Device("archive");
+        ArchiveDeviceExtension arcDev = new ArchiveDeviceExtension();
+        arcDev.setAssociationPoolIdleTimeout(60);
+        arcDev.setAssociationPoolMaxPerDestination(1);
+        device.addDeviceExtension(arcDev);
+        localAE = new ApplicationEntity("ARCHIVE");
+        device.addApplicationEntity(localAE);
+        remoteAE = new ApplicationEntity("REMOTE");
+        pool = new AssociationPoolImpl();
+        pool.setMaxWait(0L);
+        pool.setArchiveService((ArchiveService) Proxy.newProxyInstance(
+                ArchiveService.class.getClassLoader(),
+                new Class<?>[] { ArchiveService.class },
+                new InvocationHandler() {
+
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) {
+                        if (method.getName().equals("getDevice"))
+                            return device;
+                        throw new UnsupportedOperationException(
+                                method.getName());
+                    }
+                }));
+    }
+
+    @Test
+    public void testKeyIgnoresOrderOfPresentationContexts() {
+        AAssociateRQ rq1 = new AAssociateRQ();
+        rq1.addPresentationContext(new PresentationContext(1,
+                UID.InstanceAvailabilityNotificationSOPClass,
+                UID.ImplicitVRLittleEndian));
+        rq1.addPresentationContext(new PresentationContext(3,
+                UID.ModalityPerformedProcedureStepSOPClass,
+                UID.ImplicitVRLittleEndian));
+        AAssociateRQ rq2 = new AAssociateRQ();
+        rq2.addPresentationContext(new PresentationContext(1,
+                UID.ModalityPerformedProcedureStepSOPClass,
+                UID.ImplicitVRLittleEndian));
+        rq2.addPresentationContext(new PresentationContext(3,
+                UID.InstanceAvailabilityNotificationSOPClass,
+                UID.ImplicitVRLittleEndian));
+        assertEquals(AssociationPoolImpl.key(localAE, remoteAE, rq1),
+                AssociationPoolImpl.key(localAE, remoteAE, rq2));
+    }
+
+    @Test
+    public void testKeyDistinguishesNegotiation() {
+        AAssociateRQ rq = stgcmtRQ();
+        String key = AssociationPoolImpl.key(localAE, remoteAE, rq);
+
+        AAssociateRQ withRole = stgcmtRQ();
+        withRole.addRoleSelection(new RoleSelection(
+                UID.StorageCommitmentPushModelSOPClass, false, true));
+        assertNotEquals(key,
+                AssociationPoolImpl.key(localAE, remoteAE, withRole));
+
+        AAssociateRQ async = stgcmtRQ();
+        async.setMaxOpsInvoked(0);
+        assertNotEquals(key,
+                AssociationPoolImpl.key(localAE, remoteAE, async));
+
+        assertNotEquals(key, AssociationPoolImpl.key(localAE,
+                new ApplicationEntity("OTHER"), rq));
+    }
+
+    @Test
+    public void testFailedConnectDoesNotCountAsOpen() {
+        // maximal 1 Association to REMOTE without waiting: a leaked count
+        // would fail the second acquire by the limit
+        for (int i = 0; i < 2; i++)
+            try {
+                pool.acquire(localAE, remoteAE, stgcmtRQ());
+            } catch (Exception e) {
+                assertFalse(String.valueOf(e.getMessage())
+                        .startsWith("Maximal number of Associations"));
+            }
+        AssociationPoolStatistics stats = pool.getStatistics();
+        assertEquals(0, stats.getActive());
+        assertEquals(0, stats.getIdle());
+        assertEquals(0L, stats.getOpened());
+        assertEquals(0L, stats.getWaits());
+    }
+
+    private static AAssociateRQ stgcmtRQ() {
+        AAssociateRQ rq = new AAssociateRQ();
+        rq.addPresentationContext(new PresentationContext(1,
+                UID.StorageCommitmentPushModelSOPClass,
+                UID.ImplicitVRLittleEndian));
+        return rq;
+    }
+}
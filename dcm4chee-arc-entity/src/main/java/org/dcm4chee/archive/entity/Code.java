@@ -45,6 +45,7 @@ import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.NamedQueries;
 import javax.persistence.NamedQuery;
+import javax.persistence.PrePersist;
 import javax.persistence.Table;
 
 import org.dcm4che.data.Attributes;
@@ -85,6 +86,18 @@ public class Code extends org.dcm4che.data.Code {
     @Column(name = "pk")
     private long pk;
 
+    /**
+     * Code Value, Coding Scheme Designator and Coding Scheme Version in one
+     * column, so the database also rejects duplicates of Codes without
+     * Coding Scheme Version.
+     * 
+     * Nullable, because Codes stored before the column was introduced
+     * have no key; they are still found by the lookup preceding the
+     * insert of a new one.
+     */
+    @Column(name = "code_key", unique = true, updatable = false)
+    private String key;
+
     public Code() {}
 
     public Code(org.dcm4che.data.Code code) {
@@ -104,4 +117,19 @@ public class Code extends org.dcm4che.data.Code {
     public long getPk() {
         return pk;
     }
+
+    @PrePersist
+    public void onPrePersist() {
+        key = keyOf(this);
+    }
+
+    public static String keyOf(org.dcm4che.data.Code code) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(code.getCodeValue()).append('\\')
+          .append(code.getCodingSchemeDesignator());
+        String codingSchemeVersion = code.getCodingSchemeVersion();
+        if (codingSchemeVersion != null)
+            sb.append('\\').append(codingSchemeVersion);
+        return sb.toString();
+    }
 }
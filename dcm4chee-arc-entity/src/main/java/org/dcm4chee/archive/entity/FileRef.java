@@ -50,6 +50,8 @@ import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
 import javax.persistence.PrePersist;
 import javax.persistence.Table;
 
@@ -58,12 +60,26 @@ import javax.persistence.Table;
  * @author Justin Falk <jfalkmu@gmail.com>
  * @author Gunter Zeilinger <gunterze@gmail.com>
  */
+@NamedQueries({
+@NamedQuery(
+    name="FileRef.replaceFile",
+    query="UPDATE FileRef f "
+        + "SET f.filePath = ?1, "
+            + "f.transferSyntaxUID = ?2, "
+            + "f.fileSize = ?3, "
+            + "f.digest = ?4, "
+            + "f.pixelDataOffset = ?7, "
+            + "f.pixelDataIndex = ?8 "
+        + "WHERE f.pk = ?5 AND f.filePath = ?6")
+})
 @Entity
 @Table(name = "file_ref")
 public class FileRef implements Serializable {
 
     private static final long serialVersionUID = 1735835006678974580L;
 
+    public static final String REPLACE_FILE = "FileRef.replaceFile";
+
     @Id
     @GeneratedValue(strategy=GenerationType.IDENTITY)
     @Column(name = "pk")
@@ -89,6 +105,14 @@ public class FileRef implements Serializable {
     @Column(name = "file_digest", updatable = false)
     private String digest;
 
+    @Basic(optional = true)
+    @Column(name = "pixeldata_offset")
+    private Long pixelDataOffset;
+
+    @Basic(optional = true)
+    @Column(name = "pixeldata_index")
+    private byte[] pixelDataIndex;
+
     @ManyToOne(fetch=FetchType.LAZY)
     @JoinColumn(name = "instance_fk", updatable = false)
     private Instance instance;
@@ -138,6 +162,25 @@ public class FileRef implements Serializable {
         return digest;
     }
 
+    /**
+     * Returns the position of the Pixel Data element in the file or
+     * {@code null}, if unknown or the file does not contain Pixel Data.
+     */
+    public Long getPixelDataOffset() {
+        return pixelDataOffset;
+    }
+
+    public PixelDataIndex getPixelDataIndex() {
+        return PixelDataIndex.decode(pixelDataIndex);
+    }
+
+    public void setPixelDataIndex(PixelDataIndex index) {
+        this.pixelDataOffset = index != null
+                ? index.getPixelDataPosition()
+                : null;
+        this.pixelDataIndex = index != null ? index.encode() : null;
+    }
+
     public Instance getInstance() {
         return instance;
     }
@@ -156,7 +156,20 @@ import org.dcm4chee.archive.conf.AttributeFilter;
     name="Instance.numberOfSeriesRelatedInstances",
     query="SELECT COUNT(i) FROM Instance i "
             + "WHERE i.series.pk = ?1 "
-            + "AND i.replaced = FALSE AND i.availability <= ?2")})
+            + "AND i.replaced = FALSE AND i.availability <= ?2"),
+@NamedQuery(
+    name="Instance.encodedAttributes",
+    query="SELECT i.pk, i.updatedTime, i.encodedAttributes "
+        + "FROM Instance i WHERE i.pk > ?1 "
+        + "AND (i.encodedAttributesFormat IS NULL "
+            + "OR i.encodedAttributesFormat <> ?2) "
+        + "ORDER BY i.pk"),
+@NamedQuery(
+    name="Instance.updateEncodedAttributes",
+    query="UPDATE Instance i SET i.encodedAttributes = ?1, "
+            + "i.encodedAttributesFormat = ?4 "
+        + "WHERE i.pk = ?2 AND i.updatedTime = ?3")
+})
 @Entity
 @Table(name = "instance")
 public class Instance implements Serializable {
@@ -181,6 +194,10 @@ public class Instance implements Serializable {
             "Instance.numberOfStudyRelatedInstances";
     public static final String NUMBER_OF_SERIES_RELATED_INSTANCES =
             "Instance.numberOfSeriesRelatedInstances";
+    public static final String ENCODED_ATTRIBUTES =
+            "Instance.encodedAttributes";
+    public static final String UPDATE_ENCODED_ATTRIBUTES =
+            "Instance.updateEncodedAttributes";
 
     @Id
     @GeneratedValue(strategy=GenerationType.IDENTITY)
@@ -257,6 +274,10 @@ public class Instance implements Serializable {
     @Column(name = "inst_attrs")
     private byte[] encodedAttributes;
 
+    @Basic(optional = true)
+    @Column(name = "inst_attrs_format")
+    private Integer encodedAttributesFormat;
+
     @ManyToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "srcode_fk")
     private Code conceptNameCode;
@@ -474,6 +495,8 @@ public class Instance implements Serializable {
                 AttributeFilter.selectStringValue(attrs, filter.getCustomAttribute3(), "*");
 
         encodedAttributes = Utils.encodeAttributes(
-                cachedAttributes = new Attributes(attrs, filter.getSelection()));
+                cachedAttributes = new Attributes(attrs, filter.getSelection()),
+                filter.isCompressEncodedAttributes());
+        encodedAttributesFormat = Utils.formatOf(encodedAttributes);
     }
 }
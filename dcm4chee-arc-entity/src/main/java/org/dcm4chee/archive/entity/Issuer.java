@@ -45,6 +45,7 @@ import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.NamedQueries;
 import javax.persistence.NamedQuery;
+import javax.persistence.PrePersist;
 import javax.persistence.Table;
 
 import org.dcm4che.data.Attributes;
@@ -85,6 +86,18 @@ public class Issuer extends org.dcm4che.data.Issuer {
     @Column(name = "pk")
     private long pk;
 
+    /**
+     * Local Namespace Entity ID, Universal Entity ID and its type in one
+     * column, so the database also rejects duplicates of Issuers with only
+     * some of the identifiers.
+     * 
+     * Nullable, because Issuers stored before the column was introduced
+     * have no key; they are still found by the lookup preceding the
+     * insert of a new one.
+     */
+    @Column(name = "issuer_key", unique = true, updatable = false)
+    private String key;
+
     public Issuer() {}
 
     public Issuer(String entityID, String entityUID, String entityUIDType) {
@@ -106,4 +119,21 @@ public class Issuer extends org.dcm4che.data.Issuer {
     public long getPk() {
         return pk;
     }
+
+    @PrePersist
+    public void onPrePersist() {
+        key = keyOf(this);
+    }
+
+    public static String keyOf(org.dcm4che.data.Issuer issuer) {
+        StringBuilder sb = new StringBuilder();
+        String entityID = issuer.getLocalNamespaceEntityID();
+        String entityUID = issuer.getUniversalEntityID();
+        if (entityID != null)
+            sb.append(entityID);
+        if (entityUID != null)
+            sb.append('\\').append(entityUID)
+              .append('\\').append(issuer.getUniversalEntityIDType());
+        return sb.toString();
+    }
 }
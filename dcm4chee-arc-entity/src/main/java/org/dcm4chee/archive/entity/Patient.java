@@ -41,6 +41,7 @@ package org.dcm4chee.archive.entity;
 import java.io.Serializable;
 import java.util.Collection;
 import java.util.Date;
+import java.util.UUID;
 
 import javax.persistence.Basic;
 import javax.persistence.Column;
@@ -75,7 +76,39 @@ import org.dcm4chee.archive.conf.AttributeFilter;
 @NamedQuery(
     name="Patient.findByPatientID",
     query="SELECT p FROM Patient p LEFT JOIN FETCH p.issuerOfPatientID " +
-          "WHERE p.patientID = ?1" )
+          "WHERE p.patientID = ?1" ),
+@NamedQuery(
+    name="Patient.findByPatientIDWithIssuerEntityID",
+    query="SELECT p FROM Patient p LEFT JOIN FETCH p.issuerOfPatientID i " +
+          "WHERE p.patientID = ?1 AND (i IS NULL " +
+          "OR i.localNamespaceEntityID = ?2)" ),
+@NamedQuery(
+    name="Patient.findByPatientIDWithIssuerEntityUID",
+    query="SELECT p FROM Patient p LEFT JOIN FETCH p.issuerOfPatientID i " +
+          "WHERE p.patientID = ?1 AND (i IS NULL " +
+          "OR (i.universalEntityID = ?2 AND i.universalEntityIDType = ?3))" ),
+@NamedQuery(
+    name="Patient.findByPatientIDWithIssuerEntityIDorUID",
+    query="SELECT p FROM Patient p LEFT JOIN FETCH p.issuerOfPatientID i " +
+          "WHERE p.patientID = ?1 AND (i IS NULL " +
+          "OR i.localNamespaceEntityID = ?2 " +
+          "OR (i.universalEntityID = ?3 AND i.universalEntityIDType = ?4))" ),
+@NamedQuery(
+    name="Patient.encodedAttributes",
+    query="SELECT p.pk, p.updatedTime, p.encodedAttributes "
+        + "FROM Patient p WHERE p.pk > ?1 "
+        + "AND (p.encodedAttributesFormat IS NULL "
+            + "OR p.encodedAttributesFormat <> ?2) "
+        + "ORDER BY p.pk"),
+@NamedQuery(
+    name="Patient.updateEncodedAttributes",
+    query="UPDATE Patient p SET p.encodedAttributes = ?1, "
+            + "p.encodedAttributesFormat = ?4 "
+        + "WHERE p.pk = ?2 AND p.updatedTime = ?3"),
+@NamedQuery(
+    name="Patient.deleteWithoutStudies",
+    query="DELETE FROM Patient p WHERE p.pk = ?1 "
+        + "AND NOT EXISTS (SELECT s FROM Study s WHERE s.patient.pk = ?1)")
 })
 @Entity
 @Table(name = "patient")
@@ -86,6 +119,24 @@ public class Patient implements Serializable {
     public static final String FIND_BY_PATIENT_ID =
             "Patient.findByPatientID";
 
+    public static final String FIND_BY_PATIENT_ID_WITH_ISSUER_ENTITY_ID =
+            "Patient.findByPatientIDWithIssuerEntityID";
+
+    public static final String FIND_BY_PATIENT_ID_WITH_ISSUER_ENTITY_UID =
+            "Patient.findByPatientIDWithIssuerEntityUID";
+
+    public static final String FIND_BY_PATIENT_ID_WITH_ISSUER_ENTITY_ID_OR_UID =
+            "Patient.findByPatientIDWithIssuerEntityIDorUID";
+
+    public static final String ENCODED_ATTRIBUTES =
+            "Patient.encodedAttributes";
+
+    public static final String UPDATE_ENCODED_ATTRIBUTES =
+            "Patient.updateEncodedAttributes";
+
+    public static final String DELETE_WITHOUT_STUDIES =
+            "Patient.deleteWithoutStudies";
+
     @Id
     @GeneratedValue(strategy=GenerationType.IDENTITY)
     @Column(name = "pk")
@@ -107,6 +158,20 @@ public class Patient implements Serializable {
     @JoinColumn(name = "pat_id_issuer_fk")
     private Issuer issuerOfPatientID;
 
+    /**
+     * Patient ID - and only if another Patient with the same Patient ID but
+     * a different Issuer already exists, also the primary key of its Issuer
+     * - in one column, so the database rejects concurrent inserts of the
+     * same Patient, also without Issuer, see {@link #keyOf(String)}.
+     * Patients not identified uniquely by their Patient ID get a random key.
+     * 
+     * Nullable, because Patients stored before the column was introduced
+     * have no key; they are still found by the lookup preceding the insert
+     * of a new Patient.
+     */
+    @Column(name = "pat_key", unique = true, updatable = false)
+    private String patientKey;
+
     @Basic(optional = false)
     @Column(name = "pat_name")
     private String patientName;
@@ -151,6 +216,10 @@ public class Patient implements Serializable {
     @Column(name = "pat_attrs")
     private byte[] encodedAttributes;
 
+    @Basic(optional = true)
+    @Column(name = "pat_attrs_format")
+    private Integer encodedAttributesFormat;
+
     @Transient
     private Attributes cachedAttributes;
 
@@ -186,6 +255,8 @@ public class Patient implements Serializable {
         Date now = new Date();
         createdTime = now;
         updatedTime = now;
+        if (patientKey == null)
+            patientKey = UUID.randomUUID().toString();
     }
 
     @PreUpdate
@@ -193,6 +264,33 @@ public class Patient implements Serializable {
         updatedTime = new Date();
     }
 
+    /**
+     * Returns the key of a Patient identified by its Patient ID, which
+     * conflicts with the key of any other Patient with the same Patient
+     * ID - with or without Issuer - as the lookup by Patient ID and Issuer
+     * also matches Patients without Issuer.
+     */
+    public static String keyOf(String patientID) {
+        return patientID;
+    }
+
+    /**
+     * Returns the key of a Patient identified by its Patient ID and Issuer,
+     * if the key returned by {@link #keyOf(String)} is already held by a
+     * Patient with the same Patient ID but a different Issuer.
+     */
+    public static String keyOf(String patientID, Issuer issuer) {
+        return patientID + '\\' + issuer.getPk();
+    }
+
+    public String getPatientKey() {
+        return patientKey;
+    }
+
+    public void setPatientKey(String patientKey) {
+        this.patientKey = patientKey;
+    }
+
     public long getPk() {
         return pk;
     }
@@ -315,6 +413,8 @@ public class Patient implements Serializable {
             AttributeFilter.selectStringValue(attrs, filter.getCustomAttribute3(), "*");
 
         encodedAttributes = Utils.encodeAttributes(
-                cachedAttributes = new Attributes(attrs, filter.getSelection()));
+                cachedAttributes = new Attributes(attrs, filter.getSelection()),
+                filter.isCompressEncodedAttributes());
+        encodedAttributesFormat = Utils.formatOf(encodedAttributes);
     }
 }
@@ -46,19 +46,41 @@ import org.dcm4che.data.Attributes;
  */
 public class PatientStudySeriesAttributes {
     
+    private final long studyPk;
+    private final long patientPk;
     private final byte[] seriesAttrs;
     private final byte[] studyAttrs;
     private final byte[] patientAttrs;
 
     public PatientStudySeriesAttributes(
+            long studyPk,
+            long patientPk,
             byte[] seriesAttributes,
             byte[] studyAttributes,
             byte[] patientAttributes) {
+        this.studyPk = studyPk;
+        this.patientPk = patientPk;
         this.seriesAttrs = seriesAttributes;
         this.studyAttrs = studyAttributes;
         this.patientAttrs = patientAttributes;
     }
 
+    public long getStudyPk() {
+        return studyPk;
+    }
+
+    public long getPatientPk() {
+        return patientPk;
+    }
+
+    public int getEncodedLength() {
+        return length(seriesAttrs) + length(studyAttrs) + length(patientAttrs);
+    }
+
+    private static int length(byte[] b) {
+        return b != null ? b.length : 0;
+    }
+
     public Attributes getAttributes() {
         Attributes attrs = new Attributes();
         Utils.decodeAttributes(attrs, patientAttrs);
@@ -172,7 +172,8 @@ public class PerformedProcedureStep implements Serializable {
         if (s != null)
             status = Status.valueOf(s.replace(' ', '_'));
         encodedAttributes = Utils.encodeAttributes(
-                cachedAttributes = new Attributes(attrs, filter.getSelection()));
+                cachedAttributes = new Attributes(attrs, filter.getSelection()),
+                filter.isCompressEncodedAttributes());
     }
 
 }
@@ -0,0 +1,337 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2013
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.entity;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.dcm4che.data.Attributes;
+import org.dcm4che.data.Tag;
+import org.dcm4che.data.UID;
+import org.dcm4che.io.DicomInputStream;
+import org.dcm4che.util.ByteUtils;
+import org.dcm4che.util.SafeClose;
+import org.dcm4che.util.StreamUtils;
+
+/**
+ * Position of the Pixel Data element in a stored file and, for encapsulated
+ * Pixel Data, positions and lengths of the values of its items and the index
+ * of the first fragment of each frame. Allows to read the attributes
+ * preceding the Pixel Data or single frames without parsing the file.
+ * 
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ */
+public class PixelDataIndex {
+
+    private final long pixelDataPosition;
+    private final long valuePosition;
+    private final int valueLength;
+    private final int numberOfFrames;
+    private final long[] itemPositions;
+    private final int[] itemLengths;
+    private final int[] frameItems;
+
+    private PixelDataIndex(long pixelDataPosition, long valuePosition,
+            int valueLength, int numberOfFrames, long[] itemPositions,
+            int[] itemLengths, int[] frameItems) {
+        this.pixelDataPosition = pixelDataPosition;
+        this.valuePosition = valuePosition;
+        this.valueLength = valueLength;
+        this.numberOfFrames = numberOfFrames;
+        this.itemPositions = itemPositions;
+        this.itemLengths = itemLengths;
+        this.frameItems = frameItems;
+    }
+
+    /**
+     * Returns the index of the Pixel Data of the specified file or
+     * {@code null}, if the file does not contain Pixel Data or is encoded
+     * with Deflated Explicit VR Little Endian Transfer Syntax, for which
+     * positions in the inflated data set do not correspond to positions in
+     * the file.
+     */
+    public static PixelDataIndex scan(File file) throws IOException {
+        DicomInputStream in = new DicomInputStream(file);
+        try {
+            in.readFileMetaInformation();
+            if (UID.DeflatedExplicitVRLittleEndian.equals(
+                    in.getTransferSyntax()))
+                return null;
+
+            Attributes attrs = in.readDataset(-1, Tag.PixelData);
+            if (in.tag() != Tag.PixelData)
+                return null;
+
+            long pixelDataPosition = in.getTagPosition();
+            long valuePosition = in.getPosition();
+            int valueLength = in.length();
+            int numberOfFrames = attrs.getInt(Tag.NumberOfFrames, 1);
+            if (valueLength != -1)
+                return new PixelDataIndex(pixelDataPosition, valuePosition,
+                        valueLength, numberOfFrames, null, null, null);
+
+            long[] itemPositions = new long[numberOfFrames + 1];
+            int[] itemLengths = new int[numberOfFrames + 1];
+            int numberOfItems = 0;
+            byte[] offsetTable = null;
+            while (in.readHeader() && in.tag() == Tag.Item) {
+                if (numberOfItems == itemPositions.length) {
+                    itemPositions = Arrays.copyOf(itemPositions,
+                            numberOfItems << 1);
+                    itemLengths = Arrays.copyOf(itemLengths,
+                            numberOfItems << 1);
+                }
+                int length = in.length();
+                itemPositions[numberOfItems] = in.getPosition();
+                itemLengths[numberOfItems] = length;
+                if (numberOfItems++ == 0) {
+                    offsetTable = new byte[length];
+                    StreamUtils.readFully(in, offsetTable, 0, length);
+                } else {
+                    StreamUtils.skipFully(in, length);
+                }
+            }
+            if (numberOfItems == 0)
+                return null;
+
+            itemPositions = Arrays.copyOf(itemPositions, numberOfItems);
+            itemLengths = Arrays.copyOf(itemLengths, numberOfItems);
+            return new PixelDataIndex(pixelDataPosition, valuePosition,
+                    valueLength, numberOfFrames, itemPositions, itemLengths,
+                    frameItems(numberOfFrames, itemPositions, offsetTable));
+        } finally {
+            SafeClose.close(in);
+        }
+    }
+
+    /**
+     * Maps frames to their first fragment. Returns {@code null}, if the
+     * fragments of a frame cannot be determined without decoding them.
+     */
+    private static int[] frameItems(int numberOfFrames, long[] itemPositions,
+            byte[] offsetTable) {
+        int numberOfFragments = itemPositions.length - 1;
+        if (numberOfFragments == 0)
+            return null;
+
+        int[] frameItems = new int[numberOfFrames];
+        if (numberOfFrames == 1 || numberOfFrames == numberOfFragments) {
+            for (int i = 0; i < numberOfFrames; i++)
+                frameItems[i] = i + 1;
+            return frameItems;
+        }
+        if (offsetTable.length != numberOfFrames * 4)
+            return null;
+
+        // offsets in the Basic Offset Table are relative to the first byte
+        // of the Item Tag of the first fragment
+        long first = itemPositions[1] - 8;
+        int item = 1;
+        for (int i = 0; i < numberOfFrames; i++) {
+            long offset = ByteUtils.bytesToIntLE(offsetTable, i * 4)
+                    & 0xffffffffL;
+            while (item <= numberOfFragments
+                    && itemPositions[item] - 8 - first < offset)
+                item++;
+            if (item > numberOfFragments
+                    || itemPositions[item] - 8 - first != offset)
+                return null;
+            frameItems[i] = item;
+        }
+        return frameItems;
+    }
+
+    public static PixelDataIndex decode(byte[] b) {
+        if (b == null || b.length == 0)
+            return null;
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(b));
+        try {
+            long pixelDataPosition = in.readLong();
+            long valuePosition = in.readLong();
+            int valueLength = in.readInt();
+            int numberOfFrames = in.readInt();
+            long[] itemPositions = null;
+            int[] itemLengths = null;
+            int[] frameItems = null;
+            if (valueLength == -1) {
+                int numberOfItems = in.readInt();
+                itemPositions = new long[numberOfItems];
+                itemLengths = new int[numberOfItems];
+                for (int i = 0; i < numberOfItems; i++) {
+                    itemPositions[i] = in.readLong();
+                    itemLengths[i] = in.readInt();
+                }
+                if (in.readBoolean()) {
+                    frameItems = new int[numberOfFrames];
+                    for (int i = 0; i < numberOfFrames; i++)
+                        frameItems[i] = in.readInt();
+                }
+            }
+            return new PixelDataIndex(pixelDataPosition, valuePosition,
+                    valueLength, numberOfFrames, itemPositions, itemLengths,
+                    frameItems);
+        } catch (IOException e) {
+            throw new BlobCorruptedException(e);
+        }
+    }
+
+    public byte[] encode() {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(
+                isEncapsulated() ? 29 + itemPositions.length * 12
+                        + (frameItems != null ? frameItems.length * 4 : 0)
+                        : 24);
+        DataOutputStream out = new DataOutputStream(bout);
+        try {
+            out.writeLong(pixelDataPosition);
+            out.writeLong(valuePosition);
+            out.writeInt(valueLength);
+            out.writeInt(numberOfFrames);
+            if (isEncapsulated()) {
+                out.writeInt(itemPositions.length);
+                for (int i = 0; i < itemPositions.length; i++) {
+                    out.writeLong(itemPositions[i]);
+                    out.writeInt(itemLengths[i]);
+                }
+                out.writeBoolean(frameItems != null);
+                if (frameItems != null)
+                    for (int item : frameItems)
+                        out.writeInt(item);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return bout.toByteArray();
+    }
+
+    /**
+     * Position of the Pixel Data element in the file, which is also the
+     * number of bytes to read for all attributes preceding the Pixel Data.
+     */
+    public long getPixelDataPosition() {
+        return pixelDataPosition;
+    }
+
+    public long getValuePosition() {
+        return valuePosition;
+    }
+
+    public int getValueLength() {
+        return valueLength;
+    }
+
+    public int getNumberOfFrames() {
+        return numberOfFrames;
+    }
+
+    public boolean isEncapsulated() {
+        return valueLength == -1;
+    }
+
+    /**
+     * Returns the number of items of encapsulated Pixel Data, including the
+     * Basic Offset Table, or 0 for native Pixel Data.
+     */
+    public int getNumberOfItems() {
+        return itemPositions != null ? itemPositions.length : 0;
+    }
+
+    public long getItemPosition(int index) {
+        return itemPositions[index];
+    }
+
+    public int getItemLength(int index) {
+        return itemLengths[index];
+    }
+
+    /**
+     * Returns if the position of each frame is known. For native Pixel Data,
+     * the value length has to be a multiple of the number of frames.
+     */
+    public boolean isFrameIndexed() {
+        return isEncapsulated()
+                ? frameItems != null
+                : numberOfFrames > 0 && valueLength % numberOfFrames == 0;
+    }
+
+    /**
+     * Returns the index of the first item of the specified frame of
+     * encapsulated Pixel Data.
+     */
+    public int getFirstItemOfFrame(int frame) {
+        return frameItems[frame];
+    }
+
+    /**
+     * Returns the index following the last item of the specified frame of
+     * encapsulated Pixel Data.
+     */
+    public int getEndItemOfFrame(int frame) {
+        return frame + 1 < frameItems.length
+                ? frameItems[frame + 1]
+                : itemPositions.length;
+    }
+
+    /**
+     * Returns the length of one frame of native Pixel Data.
+     */
+    public int getFrameLength() {
+        return valueLength / numberOfFrames;
+    }
+
+    /**
+     * Returns the position of the specified frame of native Pixel Data.
+     */
+    public long getFramePosition(int frame) {
+        return valuePosition + (long) frame * getFrameLength();
+    }
+
+    @Override
+    public String toString() {
+        return "PixelDataIndex[pos=" + pixelDataPosition
+                + ", frames=" + numberOfFrames
+                + ", items=" + getNumberOfItems()
+                + "]";
+    }
+}
@@ -46,7 +46,6 @@ import org.dcm4che.data.Attributes;
  */
 public class QueryPatientStudySeriesAttributes extends PatientStudySeriesAttributes {
     
-    private final Long studyPk;
     private int numberOfStudyRelatedSeries;
     private int numberOfStudyRelatedSeriesA;
     private int numberOfStudyRelatedInstances;
@@ -56,7 +55,8 @@ public class QueryPatientStudySeriesAttributes extends PatientStudySeriesAttribu
     private String modalitiesInStudy;
     private String sopClassesInStudy;
 
-    public QueryPatientStudySeriesAttributes(Long studyPk,
+    public QueryPatientStudySeriesAttributes(long studyPk,
+            long patientPk,
             int numberOfStudyRelatedSeries,
             int numberOfStudyRelatedSeriesA,
             int numberOfStudyRelatedInstances,
@@ -68,8 +68,8 @@ public class QueryPatientStudySeriesAttributes extends PatientStudySeriesAttribu
             byte[] seriesAttributes,
             byte[] studyAttributes,
             byte[] patientAttributes) {
-        super(seriesAttributes, studyAttributes, patientAttributes);
-        this.studyPk = studyPk;
+        super(studyPk, patientPk,
+                seriesAttributes, studyAttributes, patientAttributes);
         this.numberOfStudyRelatedSeries = numberOfStudyRelatedSeries;
         this.numberOfStudyRelatedSeriesA = numberOfStudyRelatedSeriesA;
         this.numberOfStudyRelatedInstances = numberOfStudyRelatedInstances;
@@ -80,8 +80,30 @@ public class QueryPatientStudySeriesAttributes extends PatientStudySeriesAttribu
         this.sopClassesInStudy = sopClassesInStudy;
     }
 
-    public final Long getStudyPk() {
-        return studyPk;
+    /**
+     * Used by {@link Series#QUERY_ATTRIBUTES}, if the decoded Attributes of
+     * the Patient, Study and Series are already available.
+     */
+    public QueryPatientStudySeriesAttributes(long studyPk,
+            long patientPk,
+            int numberOfStudyRelatedSeries,
+            int numberOfStudyRelatedSeriesA,
+            int numberOfStudyRelatedInstances,
+            int numberOfStudyRelatedInstancesA,
+            int numberOfSeriesRelatedInstances,
+            int numberOfSeriesRelatedInstancesA,
+            String modalitiesInStudy,
+            String sopClassesInStudy) {
+        this(studyPk, patientPk,
+                numberOfStudyRelatedSeries,
+                numberOfStudyRelatedSeriesA,
+                numberOfStudyRelatedInstances,
+                numberOfStudyRelatedInstancesA,
+                numberOfSeriesRelatedInstances,
+                numberOfSeriesRelatedInstancesA,
+                modalitiesInStudy,
+                sopClassesInStudy,
+                null, null, null);
     }
 
     public boolean isNumberOfStudyRelatedInstancesInitialized() {
@@ -168,7 +168,8 @@ public class RequestedProcedure implements Serializable {
         studyInstanceUID = attrs.getString(Tag.StudyInstanceUID);
 
         encodedAttributes = Utils.encodeAttributes(
-                cachedAttributes = new Attributes(attrs, filter.getSelection()));
+                cachedAttributes = new Attributes(attrs, filter.getSelection()),
+                filter.isCompressEncodedAttributes());
     }
 
 }
@@ -278,7 +278,8 @@ public class ScheduledProcedureStep implements Serializable {
         status = attrs.getString(Tag.ScheduledProcedureStepStatus, "*");
 
         encodedAttributes = Utils.encodeAttributes(
-                cachedAttributes = new Attributes(attrs, filter.getSelection()));
+                cachedAttributes = new Attributes(attrs, filter.getSelection()),
+                filter.isCompressEncodedAttributes());
     }
 
 }
@@ -83,6 +83,8 @@ import org.dcm4chee.archive.conf.AttributeFilter;
 @NamedQuery(
     name="Series.patientStudySeriesAttributes",
     query="SELECT NEW org.dcm4chee.archive.entity.PatientStudySeriesAttributes("
+            + "s.study.pk, "
+            + "s.study.patient.pk, "
             + "s.encodedAttributes, "
             + "s.study.encodedAttributes, "
             + "s.study.patient.encodedAttributes) "
@@ -91,6 +93,7 @@ import org.dcm4chee.archive.conf.AttributeFilter;
     name="Series.queryPatientStudySeriesAttributes",
     query="SELECT NEW org.dcm4chee.archive.entity.QueryPatientStudySeriesAttributes("
             + "s.study.pk, "
+            + "s.study.patient.pk, "
             + "s.study.numberOfSeries, "
             + "s.study.numberOfSeriesA, "
             + "s.study.numberOfInstances, "
@@ -103,6 +106,20 @@ import org.dcm4chee.archive.conf.AttributeFilter;
             + "s.study.encodedAttributes, "
             + "s.study.patient.encodedAttributes) "
             + "FROM Series s WHERE s.pk = ?1"),
+@NamedQuery(
+    name="Series.queryAttributes",
+    query="SELECT NEW org.dcm4chee.archive.entity.QueryPatientStudySeriesAttributes("
+            + "s.study.pk, "
+            + "s.study.patient.pk, "
+            + "s.study.numberOfSeries, "
+            + "s.study.numberOfSeriesA, "
+            + "s.study.numberOfInstances, "
+            + "s.study.numberOfInstancesA, "
+            + "s.numberOfInstances, "
+            + "s.numberOfInstancesA, "
+            + "s.study.modalitiesInStudy, "
+            + "s.study.sopClassesInStudy) "
+            + "FROM Series s WHERE s.pk = ?1"),
 @NamedQuery(
     name="Series.numberOfSeries",
     query="SELECT COUNT(s) FROM Series s WHERE s.study.pk = ?1 AND EXISTS ("
@@ -113,7 +130,47 @@ import org.dcm4chee.archive.conf.AttributeFilter;
     query="UPDATE Series s "
             + "SET s.numberOfInstances = ?1, "
                 + "s.numberOfInstancesA = ?2 "
-            + "WHERE s.pk = ?3")
+            + "WHERE s.pk = ?3 "
+            + "AND s.numberOfInstances = ?4 "
+            + "AND s.numberOfInstancesA = ?5"),
+@NamedQuery(
+    name="Series.incrementNumberOfInstances",
+    query="UPDATE Series s "
+            + "SET s.numberOfInstances = s.numberOfInstances + ?1, "
+                + "s.numberOfInstancesA = s.numberOfInstancesA + ?2 "
+            + "WHERE s.pk = ?3 "
+            + "AND s.numberOfInstances >= 0 "
+            + "AND s.numberOfInstancesA >= 0"),
+@NamedQuery(
+    name="Series.numberOfInstances",
+    query="SELECT s.numberOfInstances, s.numberOfInstancesA "
+            + "FROM Series s WHERE s.pk = ?1"),
+@NamedQuery(
+    name="Series.updatedTimes",
+    query="SELECT s.updatedTime, s.study.updatedTime, "
+            + "s.study.patient.updatedTime "
+            + "FROM Series s WHERE s.pk = ?1"),
+@NamedQuery(
+    name="Series.pks",
+    query="SELECT s.pk FROM Series s WHERE s.pk > ?1 ORDER BY s.pk"),
+@NamedQuery(
+    name="Series.pksToReconcile",
+    query="SELECT s.pk FROM Series s WHERE s.pk > ?1 "
+        + "AND (s.numberOfInstances < 0 OR s.numberOfInstancesA < 0 "
+            + "OR s.updatedTime >= ?2) "
+        + "ORDER BY s.pk"),
+@NamedQuery(
+    name="Series.encodedAttributes",
+    query="SELECT s.pk, s.updatedTime, s.encodedAttributes "
+        + "FROM Series s WHERE s.pk > ?1 "
+        + "AND (s.encodedAttributesFormat IS NULL "
+            + "OR s.encodedAttributesFormat <> ?2) "
+        + "ORDER BY s.pk"),
+@NamedQuery(
+    name="Series.updateEncodedAttributes",
+    query="UPDATE Series s SET s.encodedAttributes = ?1, "
+            + "s.encodedAttributesFormat = ?4 "
+        + "WHERE s.pk = ?2 AND s.updatedTime = ?3")
 })
 @Entity
 @Table(name = "series")
@@ -124,8 +181,16 @@ public class Series implements Serializable {
     public static final String FIND_BY_SERIES_INSTANCE_UID = "Series.findBySeriesInstanceUID";
     public static final String PATIENT_STUDY_SERIES_ATTRIBUTES = "Series.patientStudySeriesAttributes";
     public static final String QUERY_PATIENT_STUDY_SERIES_ATTRIBUTES = "Series.queryPatientStudySeriesAttributes";
+    public static final String QUERY_ATTRIBUTES = "Series.queryAttributes";
     public static final String NUMBER_OF_SERIES = "Series.numberOfSeries";
     public static final String UPDATE_NUMBER_OF_INSTANCES = "Series.updateNumberOfInstances";
+    public static final String INCREMENT_NUMBER_OF_INSTANCES = "Series.incrementNumberOfInstances";
+    public static final String NUMBER_OF_INSTANCES = "Series.numberOfInstances";
+    public static final String UPDATED_TIMES = "Series.updatedTimes";
+    public static final String PKS = "Series.pks";
+    public static final String PKS_TO_RECONCILE = "Series.pksToReconcile";
+    public static final String ENCODED_ATTRIBUTES = "Series.encodedAttributes";
+    public static final String UPDATE_ENCODED_ATTRIBUTES = "Series.updateEncodedAttributes";
 
     @Id
     @GeneratedValue(strategy=GenerationType.IDENTITY)
@@ -225,12 +290,12 @@ public class Series implements Serializable {
     private String seriesCustomAttribute3;
 
     @Basic(optional = false)
-    @Column(name = "num_instances")
-    private int numberOfInstances = -1;
+    @Column(name = "num_instances", updatable = false)
+    private int numberOfInstances;
 
     @Basic(optional = false)
-    @Column(name = "num_instances_a")
-    private int numberOfInstancesA = -1;
+    @Column(name = "num_instances_a", updatable = false)
+    private int numberOfInstancesA;
 
     @Column(name = "src_aet")
     private String sourceAET;
@@ -249,6 +314,10 @@ public class Series implements Serializable {
     @Column(name = "series_attrs")
     private byte[] encodedAttributes;
 
+    @Basic(optional = true)
+    @Column(name = "series_attrs_format")
+    private Integer encodedAttributesFormat;
+
     @Transient
     private Attributes cachedAttributes;
 
@@ -398,23 +467,10 @@ public class Series implements Serializable {
         return numberOfInstances;
     }
 
-    public void setNumberOfInstances(int numberOfInstances) {
-        this.numberOfInstances = numberOfInstances;
-    }
-
     public int getNumberOfInstancesA() {
         return numberOfInstancesA;
     }
 
-    public void setNumberOfInstancesA(int numberOfInstancesA) {
-        this.numberOfInstancesA = numberOfInstancesA;
-    }
-
-    public void resetNumberOfInstances() {
-        this.numberOfInstances = -1;
-        this.numberOfInstancesA = -1;
-    }
-
     public String getSourceAET() {
         return sourceAET;
     }
@@ -553,7 +609,9 @@ public class Series implements Serializable {
             AttributeFilter.selectStringValue(attrs, filter.getCustomAttribute3(), "*");
 
         encodedAttributes = Utils.encodeAttributes(
-                cachedAttributes = new Attributes(attrs, filter.getSelection()));
+                cachedAttributes = new Attributes(attrs, filter.getSelection()),
+                filter.isCompressEncodedAttributes());
+        encodedAttributesFormat = Utils.formatOf(encodedAttributes);
         
     }
 }
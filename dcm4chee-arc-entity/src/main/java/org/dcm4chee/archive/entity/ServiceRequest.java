@@ -226,6 +226,7 @@ public class ServiceRequest implements Serializable {
                 pn.get(PersonName.Component.GivenName));
 
         encodedAttributes = Utils.encodeAttributes(
-                cachedAttributes = new Attributes(attrs, filter.getSelection()));
+                cachedAttributes = new Attributes(attrs, filter.getSelection()),
+                filter.isCompressEncodedAttributes());
     }
 }
@@ -88,7 +88,50 @@ import org.dcm4chee.archive.conf.AttributeFilter;
             + "s.numberOfSeriesA = ?2, "
             + "s.numberOfInstances = ?3, "
             + "s.numberOfInstancesA = ?4 "
-        + "WHERE s.pk = ?5")
+        + "WHERE s.pk = ?5 "
+        + "AND s.numberOfSeries = ?6 "
+        + "AND s.numberOfSeriesA = ?7 "
+        + "AND s.numberOfInstances = ?8 "
+        + "AND s.numberOfInstancesA = ?9"),
+@NamedQuery(
+    name="Study.incrementNumberOfInstances",
+    query="UPDATE Study s "
+        + "SET s.numberOfSeries = s.numberOfSeries + ?1, "
+            + "s.numberOfSeriesA = s.numberOfSeriesA + ?2, "
+            + "s.numberOfInstances = s.numberOfInstances + ?3, "
+            + "s.numberOfInstancesA = s.numberOfInstancesA + ?4 "
+        + "WHERE s.pk = ?5 "
+        + "AND s.numberOfSeries >= 0 "
+        + "AND s.numberOfSeriesA >= 0 "
+        + "AND s.numberOfInstances >= 0 "
+        + "AND s.numberOfInstancesA >= 0"),
+@NamedQuery(
+    name="Study.numberOfInstances",
+    query="SELECT s.numberOfSeries, s.numberOfSeriesA, "
+            + "s.numberOfInstances, s.numberOfInstancesA "
+        + "FROM Study s WHERE s.pk = ?1"),
+@NamedQuery(
+    name="Study.pks",
+    query="SELECT s.pk FROM Study s WHERE s.pk > ?1 ORDER BY s.pk"),
+@NamedQuery(
+    name="Study.pksToReconcile",
+    query="SELECT s.pk FROM Study s WHERE s.pk > ?1 "
+        + "AND (s.numberOfSeries < 0 OR s.numberOfSeriesA < 0 "
+            + "OR s.numberOfInstances < 0 OR s.numberOfInstancesA < 0 "
+            + "OR s.updatedTime >= ?2) "
+        + "ORDER BY s.pk"),
+@NamedQuery(
+    name="Study.encodedAttributes",
+    query="SELECT s.pk, s.updatedTime, s.encodedAttributes "
+        + "FROM Study s WHERE s.pk > ?1 "
+        + "AND (s.encodedAttributesFormat IS NULL "
+            + "OR s.encodedAttributesFormat <> ?2) "
+        + "ORDER BY s.pk"),
+@NamedQuery(
+    name="Study.updateEncodedAttributes",
+    query="UPDATE Study s SET s.encodedAttributes = ?1, "
+            + "s.encodedAttributesFormat = ?4 "
+        + "WHERE s.pk = ?2 AND s.updatedTime = ?3")
 })
 @Entity
 @Table(name = "study")
@@ -98,6 +141,12 @@ public class Study implements Serializable {
 
     public static final String FIND_BY_STUDY_INSTANCE_UID = "Study.findByStudyInstanceUID";
     public static final String UPDATE_NUMBER_OF_INSTANCES = "Study.updateNumberOfInstances";
+    public static final String INCREMENT_NUMBER_OF_INSTANCES = "Study.incrementNumberOfInstances";
+    public static final String NUMBER_OF_INSTANCES = "Study.numberOfInstances";
+    public static final String PKS = "Study.pks";
+    public static final String PKS_TO_RECONCILE = "Study.pksToReconcile";
+    public static final String ENCODED_ATTRIBUTES = "Study.encodedAttributes";
+    public static final String UPDATE_ENCODED_ATTRIBUTES = "Study.updateEncodedAttributes";
 
     @Id
     @GeneratedValue(strategy=GenerationType.IDENTITY)
@@ -176,20 +225,20 @@ public class Study implements Serializable {
     private String accessControlID;
 
     @Basic(optional = false)
-    @Column(name = "num_series")
-    private int numberOfSeries = -1;
+    @Column(name = "num_series", updatable = false)
+    private int numberOfSeries;
 
     @Basic(optional = false)
-    @Column(name = "num_series_a")
-    private int numberOfSeriesA = -1;
+    @Column(name = "num_series_a", updatable = false)
+    private int numberOfSeriesA;
 
     @Basic(optional = false)
-    @Column(name = "num_instances")
-    private int numberOfInstances = -1;
+    @Column(name = "num_instances", updatable = false)
+    private int numberOfInstances;
 
     @Basic(optional = false)
-    @Column(name = "num_instances_a")
-    private int numberOfInstancesA = -1;
+    @Column(name = "num_instances_a", updatable = false)
+    private int numberOfInstancesA;
 
     @Column(name = "mods_in_study")
     private String modalitiesInStudy;
@@ -211,6 +260,10 @@ public class Study implements Serializable {
     @Column(name = "study_attrs")
     private byte[] encodedAttributes;
 
+    @Basic(optional = true)
+    @Column(name = "study_attrs_format")
+    private Integer encodedAttributesFormat;
+
     @Transient
     private Attributes cachedAttributes;
 
@@ -338,41 +391,18 @@ public class Study implements Serializable {
         return numberOfSeries;
     }
 
-    public void setNumberOfSeries(int numberOfSeries) {
-        this.numberOfSeries = numberOfSeries;
-    }
-
     public int getNumberOfSeriesA() {
         return numberOfSeriesA;
     }
 
-    public void setNumberOfSeriesA(int numberOfSeriesA) {
-        this.numberOfSeriesA = numberOfSeriesA;
-    }
-
     public int getNumberOfInstances() {
         return numberOfInstances;
     }
 
-    public void setNumberOfInstances(int numberOfInstances) {
-        this.numberOfInstances = numberOfInstances;
-    }
-
     public int getNumberOfInstancesA() {
         return numberOfInstancesA;
     }
 
-    public void setNumberOfInstancesA(int numberOfInstancesA) {
-        this.numberOfInstancesA = numberOfInstancesA;
-    }
-
-    public void resetNumberOfInstances() {
-        this.numberOfSeries = -1;
-        this.numberOfSeriesA = -1;
-        this.numberOfInstances = -1;
-        this.numberOfInstancesA = -1;
-    }
-
     public String[] getModalitiesInStudy() {
         return StringUtils.split(modalitiesInStudy, '\\');
     }
@@ -506,6 +536,8 @@ public class Study implements Serializable {
             AttributeFilter.selectStringValue(attrs, filter.getCustomAttribute3(), "*");
 
         encodedAttributes = Utils.encodeAttributes(
-                cachedAttributes = new Attributes(attrs, filter.getSelection()));
+                cachedAttributes = new Attributes(attrs, filter.getSelection()),
+                filter.isCompressEncodedAttributes());
+        encodedAttributesFormat = Utils.formatOf(encodedAttributes);
     }
 }
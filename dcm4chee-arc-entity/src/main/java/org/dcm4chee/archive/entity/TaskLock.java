@@ -0,0 +1,117 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.entity;
+
+import java.io.Serializable;
+import java.util.Date;
+
+import javax.persistence.Basic;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import javax.persistence.Table;
+
+/**
+ * Lock of a background task, which shall only run on one node of a
+ * cluster. The lock is held by the owner until it expires or is released,
+ * so a node failing to release it only blocks the task until expiration.
+ * 
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ */
+@NamedQueries({
+@NamedQuery(
+    name="TaskLock.claim",
+    query="UPDATE TaskLock l "
+        + "SET l.owner = ?2, l.expirationTime = ?3 "
+        + "WHERE l.name = ?1 "
+        + "AND (l.owner IS NULL OR l.owner = ?2 OR l.expirationTime < ?4)"),
+@NamedQuery(
+    name="TaskLock.release",
+    query="UPDATE TaskLock l SET l.owner = NULL "
+        + "WHERE l.name = ?1 AND l.owner = ?2")
+})
+@Entity
+@Table(name = "task_lock")
+public class TaskLock implements Serializable {
+
+    private static final long serialVersionUID = 2706386412540958361L;
+
+    public static final String CLAIM = "TaskLock.claim";
+    public static final String RELEASE = "TaskLock.release";
+
+    @Id
+    @Column(name = "task_name")
+    private String name;
+
+    @Basic(optional = true)
+    @Column(name = "lock_owner")
+    private String owner;
+
+    @Basic(optional = true)
+    @Column(name = "lock_expiration")
+    private Date expirationTime;
+
+    public TaskLock() {}
+
+    public TaskLock(String name, String owner, Date expirationTime) {
+        this.name = name;
+        this.owner = owner;
+        this.expirationTime = expirationTime;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public Date getExpirationTime() {
+        return expirationTime;
+    }
+
+    @Override
+    public String toString() {
+        return "TaskLock[" + name + ", owner=" + owner
+                + ", expires=" + expirationTime + "]";
+    }
+}
@@ -42,14 +42,22 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import org.dcm4che.data.Attributes;
+import org.dcm4che.data.Fragments;
+import org.dcm4che.data.Sequence;
 import org.dcm4che.data.Tag;
 import org.dcm4che.data.UID;
 import org.dcm4che.data.VR;
+import org.dcm4che.io.DicomInputHandler;
 import org.dcm4che.io.DicomInputStream;
 import org.dcm4che.io.DicomOutputStream;
 import org.dcm4che.soundex.FuzzyStr;
+import org.dcm4che.util.StreamUtils;
 import org.dcm4che.util.StringUtils;
 
 /**
@@ -57,43 +65,203 @@ import org.dcm4che.util.StringUtils;
  */
 public class Utils {
 
+    /**
+     * Leading bytes of encoded attributes in a versioned format, followed by
+     * the format version. Legacy encoded attributes start with the tag of the
+     * first attribute and never with a tag of group {@code FFFFH}.
+     */
+    private static final byte MARKER = (byte) 0xFF;
+
+    private static final int HEADER_LENGTH = 3;
+
+    /**
+     * Encoded attributes without header, in Explicit VR Little Endian.
+     */
+    public static final int LEGACY_FORMAT = 0;
+
+    /**
+     * Encoded attributes in Explicit VR Little Endian.
+     */
+    public static final int EXPLICIT_VR_LE_FORMAT = 1;
+
+    /**
+     * Encoded attributes in Explicit VR Little Endian, compressed by
+     * Deflate with the fastest compression level.
+     */
+    public static final int DEFLATED_EXPLICIT_VR_LE_FORMAT = 2;
+
     public static byte[] encodeAttributes(Attributes attrs) {
+        return encodeAttributes(attrs, false);
+    }
+
+    public static byte[] encodeAttributes(Attributes attrs, boolean compress) {
         ByteArrayOutputStream out = new ByteArrayOutputStream(512);
+        out.write(MARKER);
+        out.write(MARKER);
+        out.write(compress
+                ? DEFLATED_EXPLICIT_VR_LE_FORMAT
+                : EXPLICIT_VR_LE_FORMAT);
+        Deflater deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
         try {
-            @SuppressWarnings("resource")
-            DicomOutputStream dos = new DicomOutputStream(out,
+            DicomOutputStream dos = new DicomOutputStream(compress
+                    ? new DeflaterOutputStream(out, deflater)
+                    : out,
                     UID.ExplicitVRLittleEndian);
             dos.writeDataset(null, attrs);
+            dos.close();
         } catch (IOException e) {
             throw new RuntimeException(e);
+        } finally {
+            if (deflater != null)
+                deflater.end();
         }
         return out.toByteArray();
     }
 
+    /**
+     * Returns the format of the encoded attributes.
+     * 
+     * @see #LEGACY_FORMAT
+     * @see #EXPLICIT_VR_LE_FORMAT
+     * @see #DEFLATED_EXPLICIT_VR_LE_FORMAT
+     */
+    public static int formatOf(byte[] b) {
+        return b.length >= HEADER_LENGTH && b[0] == MARKER && b[1] == MARKER
+                ? b[2]
+                : LEGACY_FORMAT;
+    }
+
+    /**
+     * Returns the encoded attributes in the specified format or {@code null},
+     * if they are already in that format.
+     */
+    public static byte[] reencodeAttributes(byte[] b, boolean compress) {
+        if (b == null || b.length == 0 || formatOf(b) == (compress
+                ? DEFLATED_EXPLICIT_VR_LE_FORMAT
+                : EXPLICIT_VR_LE_FORMAT))
+            return null;
+
+        return encodeAttributes(decodeAttributes(b), compress);
+    }
+
     public static Attributes decodeAttributes(byte[] b) {
-        if (b == null || b.length == 0)
-            return new Attributes(0);
-        ByteArrayInputStream is = new ByteArrayInputStream(b);
-        try {
-            @SuppressWarnings("resource")
-            DicomInputStream dis = new DicomInputStream(is);
-            return dis.readDataset(-1, -1);
-        } catch (IOException e) {
-            throw new BlobCorruptedException(e);
-        }
+        Attributes attrs = new Attributes();
+        decodeAttributes(attrs, b, null);
+        return attrs;
     }
 
     public static void decodeAttributes(Attributes attrs, byte[] b) {
+        decodeAttributes(attrs, b, null);
+    }
+
+    /**
+     * Decodes only the top level attributes with the specified tags - and
+     * always the Specific Character Set - from the encoded attributes.
+     * Values of other attributes are skipped by their length, without
+     * materializing them. Items of selected sequences are decoded completely.
+     * 
+     * @param selection sorted tags of attributes to decode or {@code null}
+     *                  to decode all attributes
+     */
+    public static void decodeAttributes(Attributes attrs, byte[] b,
+            int[] selection) {
         if (b == null || b.length == 0)
             return;
-        ByteArrayInputStream is = new ByteArrayInputStream(b);
+        Inflater inflater = null;
         try {
             @SuppressWarnings("resource")
-            DicomInputStream dis = new DicomInputStream(is);
-            dis.readFileMetaInformation();
+            DicomInputStream dis;
+            int format = formatOf(b);
+            switch (format) {
+            case LEGACY_FORMAT:
+                dis = new DicomInputStream(new ByteArrayInputStream(b));
+                dis.readFileMetaInformation();
+                break;
+            case EXPLICIT_VR_LE_FORMAT:
+                dis = new DicomInputStream(
+                        new ByteArrayInputStream(b, HEADER_LENGTH,
+                                b.length - HEADER_LENGTH),
+                        UID.ExplicitVRLittleEndian);
+                break;
+            case DEFLATED_EXPLICIT_VR_LE_FORMAT:
+                dis = new DicomInputStream(
+                        new InflaterInputStream(
+                                new ByteArrayInputStream(b, HEADER_LENGTH,
+                                        b.length - HEADER_LENGTH),
+                                inflater = new Inflater()),
+                        UID.ExplicitVRLittleEndian);
+                break;
+            default:
+                throw new IOException(
+                        "Unsupported format of encoded attributes: " + format);
+            }
+            if (selection != null)
+                dis.setDicomInputHandler(
+                        new SelectiveInputHandler(attrs, selection));
             dis.readAttributes(attrs, -1, -1);
         } catch (IOException e) {
             throw new BlobCorruptedException(e);
+        } finally {
+            if (inflater != null)
+                inflater.end();
+        }
+    }
+
+    private static class SelectiveInputHandler implements DicomInputHandler {
+
+        private final Attributes root;
+        private final int[] selection;
+        private boolean skip;
+
+        SelectiveInputHandler(Attributes root, int[] selection) {
+            this.root = root;
+            this.selection = selection;
+        }
+
+        @Override
+        public void readValue(DicomInputStream dis, Attributes attrs)
+                throws IOException {
+            if (attrs == root ? isSelected(dis.tag()) : !skip) {
+                dis.readValue(dis, attrs);
+            } else if (dis.length() != -1) {
+                StreamUtils.skipFully(dis, dis.length());
+            } else {
+                // undefined length - parse items, but skip their elements
+                boolean skip0 = skip;
+                skip = true;
+                try {
+                    dis.readValue(dis, new Attributes(1));
+                } finally {
+                    skip = skip0;
+                }
+            }
+        }
+
+        private boolean isSelected(int tag) {
+            return tag == Tag.SpecificCharacterSet
+                    || Arrays.binarySearch(selection, tag) >= 0;
+        }
+
+        @Override
+        public void readValue(DicomInputStream dis, Sequence seq)
+                throws IOException {
+            dis.readValue(dis, seq);
+        }
+
+        @Override
+        public void readValue(DicomInputStream dis, Fragments frags)
+                throws IOException {
+            dis.readValue(dis, frags);
+        }
+
+        @Override
+        public void startDataset(DicomInputStream dis) throws IOException {
+            dis.startDataset(dis);
+        }
+
+        @Override
+        public void endDataset(DicomInputStream dis) throws IOException {
+            dis.endDataset(dis);
         }
     }
 
@@ -102,10 +270,12 @@ public class Utils {
             int numberOfStudyRelatedInstances,
             String modalitiesInStudy,
             String sopClassesInStudy) {
-        attrs.setInt(Tag.NumberOfStudyRelatedSeries, VR.IS,
-                numberOfStudyRelatedSeries);
-        attrs.setInt(Tag.NumberOfStudyRelatedInstances, VR.IS,
-                numberOfStudyRelatedInstances);
+        if (numberOfStudyRelatedSeries >= 0)
+            attrs.setInt(Tag.NumberOfStudyRelatedSeries, VR.IS,
+                    numberOfStudyRelatedSeries);
+        if (numberOfStudyRelatedInstances >= 0)
+            attrs.setInt(Tag.NumberOfStudyRelatedInstances, VR.IS,
+                    numberOfStudyRelatedInstances);
         attrs.setString(Tag.ModalitiesInStudy, VR.CS,
                 StringUtils.split(modalitiesInStudy, '\\'));
         attrs.setString(Tag.SOPClassesInStudy, VR.CS,
@@ -114,8 +284,9 @@ public class Utils {
 
     public static void setSeriesQueryAttributes(Attributes attrs,
             int numberOfSeriesRelatedInstances) {
-        attrs.setInt(Tag.NumberOfSeriesRelatedInstances, VR.IS,
-                numberOfSeriesRelatedInstances);
+        if (numberOfSeriesRelatedInstances >= 0)
+            attrs.setInt(Tag.NumberOfSeriesRelatedInstances, VR.IS,
+                    numberOfSeriesRelatedInstances);
     }
 
     public static void setRetrieveAET(Attributes attrs, String retrieveAETs,
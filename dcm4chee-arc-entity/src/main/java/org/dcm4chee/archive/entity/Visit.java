@@ -163,6 +163,7 @@ public class Visit implements Serializable {
         admissionID = attrs.getString(Tag.AdmissionID, "*");
 
         encodedAttributes = Utils.encodeAttributes(
-                cachedAttributes = new Attributes(attrs, filter.getSelection()));
+                cachedAttributes = new Attributes(attrs, filter.getSelection()),
+                filter.isCompressEncodedAttributes());
     }
 }
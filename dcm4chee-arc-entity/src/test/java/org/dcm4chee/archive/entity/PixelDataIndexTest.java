@@ -0,0 +1,244 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2013
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.entity;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.dcm4che.data.Attributes;
+import org.dcm4che.data.Fragments;
+import org.dcm4che.data.Tag;
+import org.dcm4che.data.UID;
+import org.dcm4che.data.VR;
+import org.dcm4che.io.DicomOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ *
+ */
+public class PixelDataIndexTest {
+
+    private static final byte[] FRAG1 = { 1, 1, 1, 1 };
+    private static final byte[] FRAG2 = { 2, 2, 2, 2, 2, 2 };
+    private static final byte[] FRAG3 = { 3, 3 };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testScanNative() throws IOException {
+        byte[] pixelData = { 1, 2, 3, 4, 5, 6, 7, 8 };
+        Attributes attrs = image(2);
+        attrs.setBytes(Tag.PixelData, VR.OB, pixelData);
+        File file = write(attrs, UID.ExplicitVRLittleEndian);
+
+        PixelDataIndex index = PixelDataIndex.scan(file);
+        assertNotNull(index);
+        assertFalse(index.isEncapsulated());
+        assertTrue(index.isFrameIndexed());
+        assertEquals(2, index.getNumberOfFrames());
+        assertEquals(0, index.getNumberOfItems());
+        assertEquals(pixelData.length, index.getValueLength());
+        assertEquals(4, index.getFrameLength());
+        byte[] b = Files.readAllBytes(file.toPath());
+        assertArrayEquals(pixelData,
+                copyOf(b, index.getValuePosition(), pixelData.length));
+        assertEquals(index.getValuePosition() + 4, index.getFramePosition(1));
+        assertEquals(Tag.PixelData,
+                tagAt(b, index.getPixelDataPosition()));
+    }
+
+    @Test
+    public void testScanEncapsulatedFragmentPerFrame() throws IOException {
+        Attributes attrs = image(2);
+        Fragments frags = attrs.newFragments(Tag.PixelData, VR.OB, 3);
+        frags.add(new byte[0]);
+        frags.add(FRAG1);
+        frags.add(FRAG2);
+        File file = write(attrs, UID.JPEGBaseline1);
+
+        PixelDataIndex index = PixelDataIndex.scan(file);
+        assertNotNull(index);
+        assertTrue(index.isEncapsulated());
+        assertTrue(index.isFrameIndexed());
+        assertEquals(3, index.getNumberOfItems());
+        assertEquals(1, index.getFirstItemOfFrame(0));
+        assertEquals(2, index.getEndItemOfFrame(0));
+        assertEquals(2, index.getFirstItemOfFrame(1));
+        assertEquals(3, index.getEndItemOfFrame(1));
+        byte[] b = Files.readAllBytes(file.toPath());
+        assertArrayEquals(FRAG1, item(b, index, 1));
+        assertArrayEquals(FRAG2, item(b, index, 2));
+    }
+
+    @Test
+    public void testScanEncapsulatedWithOffsetTable() throws IOException {
+        Attributes attrs = image(2);
+        Fragments frags = attrs.newFragments(Tag.PixelData, VR.OB, 4);
+        // frame 1 = FRAG1 + FRAG2, frame 2 = FRAG3
+        frags.add(offsetTable(0, 8 + FRAG1.length + 8 + FRAG2.length));
+        frags.add(FRAG1);
+        frags.add(FRAG2);
+        frags.add(FRAG3);
+        File file = write(attrs, UID.JPEGBaseline1);
+
+        PixelDataIndex index = PixelDataIndex.scan(file);
+        assertNotNull(index);
+        assertTrue(index.isFrameIndexed());
+        assertEquals(4, index.getNumberOfItems());
+        assertEquals(1, index.getFirstItemOfFrame(0));
+        assertEquals(3, index.getEndItemOfFrame(0));
+        assertEquals(3, index.getFirstItemOfFrame(1));
+        assertEquals(4, index.getEndItemOfFrame(1));
+        byte[] b = Files.readAllBytes(file.toPath());
+        assertArrayEquals(FRAG3, item(b, index, 3));
+    }
+
+    @Test
+    public void testScanEncapsulatedWithoutOffsetTable() throws IOException {
+        Attributes attrs = image(2);
+        Fragments frags = attrs.newFragments(Tag.PixelData, VR.OB, 4);
+        frags.add(new byte[0]);
+        frags.add(FRAG1);
+        frags.add(FRAG2);
+        frags.add(FRAG3);
+        File file = write(attrs, UID.JPEGBaseline1);
+
+        PixelDataIndex index = PixelDataIndex.scan(file);
+        assertNotNull(index);
+        assertEquals(4, index.getNumberOfItems());
+        assertFalse(index.isFrameIndexed());
+    }
+
+    @Test
+    public void testScanWithoutPixelData() throws IOException {
+        File file = write(image(1), UID.ExplicitVRLittleEndian);
+        assertNull(PixelDataIndex.scan(file));
+    }
+
+    @Test
+    public void testScanDeflated() throws IOException {
+        Attributes attrs = image(1);
+        attrs.setBytes(Tag.PixelData, VR.OB, new byte[] { 1, 2, 3, 4 });
+        File file = write(attrs, UID.DeflatedExplicitVRLittleEndian);
+        assertNull(PixelDataIndex.scan(file));
+    }
+
+    @Test
+    public void testEncodeDecode() throws IOException {
+        Attributes attrs = image(2);
+        Fragments frags = attrs.newFragments(Tag.PixelData, VR.OB, 3);
+        frags.add(new byte[0]);
+        frags.add(FRAG1);
+        frags.add(FRAG2);
+        PixelDataIndex index =
+                PixelDataIndex.scan(write(attrs, UID.JPEGBaseline1));
+
+        PixelDataIndex decoded = PixelDataIndex.decode(index.encode());
+        assertEquals(index.getPixelDataPosition(),
+                decoded.getPixelDataPosition());
+        assertEquals(index.getValuePosition(), decoded.getValuePosition());
+        assertEquals(index.getNumberOfFrames(), decoded.getNumberOfFrames());
+        assertEquals(index.getNumberOfItems(), decoded.getNumberOfItems());
+        for (int i = 0; i < index.getNumberOfItems(); i++) {
+            assertEquals(index.getItemPosition(i), decoded.getItemPosition(i));
+            assertEquals(index.getItemLength(i), decoded.getItemLength(i));
+        }
+        assertTrue(decoded.isFrameIndexed());
+        assertEquals(2, decoded.getFirstItemOfFrame(1));
+        assertNull(PixelDataIndex.decode(null));
+    }
+
+    private static Attributes image(int numberOfFrames) {
+        Attributes attrs = new Attributes();
+        attrs.setString(Tag.SOPClassUID, VR.UI, UID.CTImageStorage);
+        attrs.setString(Tag.SOPInstanceUID, VR.UI, "1.2.3.4");
+        attrs.setInt(Tag.NumberOfFrames, VR.IS, numberOfFrames);
+        return attrs;
+    }
+
+    private File write(Attributes attrs, String tsuid) throws IOException {
+        File file = folder.newFile();
+        DicomOutputStream out = new DicomOutputStream(file);
+        try {
+            out.writeDataset(attrs.createFileMetaInformation(tsuid), attrs);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static byte[] offsetTable(int... offsets) {
+        byte[] b = new byte[offsets.length * 4];
+        for (int i = 0; i < offsets.length; i++) {
+            b[i * 4] = (byte) offsets[i];
+            b[i * 4 + 1] = (byte) (offsets[i] >> 8);
+            b[i * 4 + 2] = (byte) (offsets[i] >> 16);
+            b[i * 4 + 3] = (byte) (offsets[i] >> 24);
+        }
+        return b;
+    }
+
+    private static byte[] item(byte[] b, PixelDataIndex index, int item) {
+        return copyOf(b, index.getItemPosition(item),
+                index.getItemLength(item));
+    }
+
+    private static byte[] copyOf(byte[] b, long pos, int length) {
+        return Arrays.copyOfRange(b, (int) pos, (int) pos + length);
+    }
+
+    private static int tagAt(byte[] b, long pos) {
+        int i = (int) pos;
+        return ((b[i + 1] & 0xff) << 24) | ((b[i] & 0xff) << 16)
+                | ((b[i + 3] & 0xff) << 8) | (b[i + 2] & 0xff);
+    }
+}
@@ -0,0 +1,218 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.entity;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.dcm4che.data.Attributes;
+import org.dcm4che.data.Sequence;
+import org.dcm4che.data.Tag;
+import org.dcm4che.data.UID;
+import org.dcm4che.data.VR;
+import org.dcm4che.io.DicomOutputStream;
+import org.junit.Test;
+
+/**
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ *
+ */
+public class UtilsTest {
+
+    private static final int[] SELECTION = {
+        Tag.PatientID,
+        Tag.OtherPatientIDsSequence
+    };
+
+    @Test
+    public void testFormatOf() throws IOException {
+        Attributes attrs = attrs();
+        assertEquals(Utils.LEGACY_FORMAT, Utils.formatOf(legacy(attrs)));
+        assertEquals(Utils.EXPLICIT_VR_LE_FORMAT,
+                Utils.formatOf(Utils.encodeAttributes(attrs)));
+        assertEquals(Utils.EXPLICIT_VR_LE_FORMAT,
+                Utils.formatOf(Utils.encodeAttributes(attrs, false)));
+        assertEquals(Utils.DEFLATED_EXPLICIT_VR_LE_FORMAT,
+                Utils.formatOf(Utils.encodeAttributes(attrs, true)));
+        assertEquals(Utils.LEGACY_FORMAT, Utils.formatOf(new byte[0]));
+    }
+
+    @Test
+    public void testDecodeLegacy() throws IOException {
+        Attributes attrs = attrs();
+        assertEquals(attrs, Utils.decodeAttributes(legacy(attrs)));
+    }
+
+    @Test
+    public void testDecode() {
+        Attributes attrs = attrs();
+        assertEquals(attrs,
+                Utils.decodeAttributes(Utils.encodeAttributes(attrs, false)));
+    }
+
+    @Test
+    public void testDecodeDeflated() {
+        Attributes attrs = attrs();
+        byte[] deflated = Utils.encodeAttributes(attrs, true);
+        assertEquals(attrs, Utils.decodeAttributes(deflated));
+    }
+
+    @Test
+    public void testDecodeInto() {
+        Attributes attrs = attrs();
+        Attributes decoded = new Attributes();
+        decoded.setString(Tag.StudyInstanceUID, VR.UI, "1.2.3");
+        Utils.decodeAttributes(decoded, Utils.encodeAttributes(attrs));
+        assertEquals("1.2.3", decoded.getString(Tag.StudyInstanceUID));
+        assertEquals("PID", decoded.getString(Tag.PatientID));
+    }
+
+    @Test
+    public void testDecodeSelectedLegacy() throws IOException {
+        assertSelected(decodeSelected(legacy(attrs())));
+    }
+
+    @Test
+    public void testDecodeSelected() {
+        assertSelected(decodeSelected(Utils.encodeAttributes(attrs(), false)));
+    }
+
+    @Test
+    public void testDecodeSelectedDeflated() {
+        assertSelected(decodeSelected(Utils.encodeAttributes(attrs(), true)));
+    }
+
+    @Test
+    public void testDecodeNullOrEmpty() {
+        Attributes attrs = new Attributes();
+        Utils.decodeAttributes(attrs, null, SELECTION);
+        Utils.decodeAttributes(attrs, new byte[0], SELECTION);
+        assertTrue(attrs.isEmpty());
+    }
+
+    @Test(expected = BlobCorruptedException.class)
+    public void testDecodeUnsupportedFormat() {
+        Utils.decodeAttributes(new byte[] { (byte) 0xFF, (byte) 0xFF, 9 });
+    }
+
+    @Test
+    public void testReencodeAttributes() throws IOException {
+        Attributes attrs = attrs();
+        byte[] legacy = legacy(attrs);
+        byte[] plain = Utils.reencodeAttributes(legacy, false);
+        assertEquals(Utils.EXPLICIT_VR_LE_FORMAT, Utils.formatOf(plain));
+        assertEquals(attrs, Utils.decodeAttributes(plain));
+        assertNull(Utils.reencodeAttributes(plain, false));
+
+        byte[] deflated = Utils.reencodeAttributes(plain, true);
+        assertEquals(Utils.DEFLATED_EXPLICIT_VR_LE_FORMAT,
+                Utils.formatOf(deflated));
+        assertEquals(attrs, Utils.decodeAttributes(deflated));
+        assertNull(Utils.reencodeAttributes(deflated, true));
+
+        assertArrayEquals(plain, Utils.reencodeAttributes(deflated, false));
+        assertNull(Utils.reencodeAttributes(null, true));
+        assertNull(Utils.reencodeAttributes(new byte[0], true));
+    }
+
+    private static Attributes attrs() {
+        Attributes attrs = new Attributes();
+        attrs.setString(Tag.SpecificCharacterSet, VR.CS, "ISO_IR 100");
+        attrs.setString(Tag.PatientName, VR.PN, "Doe^John");
+        attrs.setString(Tag.PatientID, VR.LO, "PID");
+        attrs.setString(Tag.PatientBirthDate, VR.DA, "19700101");
+        Sequence otherPIDs = attrs.newSequence(Tag.OtherPatientIDsSequence, 2);
+        otherPIDs.add(otherPID("PID2"));
+        otherPIDs.add(otherPID("PID3"));
+        Attributes refStudy = new Attributes();
+        refStudy.setString(Tag.ReferencedSOPClassUID, VR.UI, UID.CTImageStorage);
+        refStudy.setString(Tag.ReferencedSOPInstanceUID, VR.UI, "1.2.3.4");
+        refStudy.newSequence(Tag.PurposeOfReferenceCodeSequence, 1)
+                .add(new Attributes());
+        attrs.newSequence(Tag.ReferencedStudySequence, 1).add(refStudy);
+        attrs.setString(Tag.StudyDescription, VR.LO, "Description");
+        return attrs;
+    }
+
+    private static Attributes otherPID(String pid) {
+        Attributes item = new Attributes();
+        item.setString(Tag.PatientID, VR.LO, pid);
+        item.setString(Tag.IssuerOfPatientID, VR.LO, "ISSUER");
+        return item;
+    }
+
+    /**
+     * Encodes attributes as before the introduction of the header.
+     */
+    private static byte[] legacy(Attributes attrs) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DicomOutputStream dos =
+                new DicomOutputStream(out, UID.ExplicitVRLittleEndian);
+        dos.writeDataset(null, attrs);
+        dos.close();
+        return out.toByteArray();
+    }
+
+    private static Attributes decodeSelected(byte[] b) {
+        Attributes attrs = new Attributes();
+        Utils.decodeAttributes(attrs, b, SELECTION);
+        return attrs;
+    }
+
+    private static void assertSelected(Attributes decoded) {
+        assertEquals(3, decoded.size());
+        assertEquals("ISO_IR 100", decoded.getString(Tag.SpecificCharacterSet));
+        assertEquals("PID", decoded.getString(Tag.PatientID));
+        Sequence otherPIDs = decoded.getSequence(Tag.OtherPatientIDsSequence);
+        assertNotNull(otherPIDs);
+        assertEquals(2, otherPIDs.size());
+        assertEquals(otherPID("PID2"), otherPIDs.get(0));
+        assertEquals(otherPID("PID3"), otherPIDs.get(1));
+        assertFalse(decoded.contains(Tag.PatientName));
+        assertFalse(decoded.contains(Tag.ReferencedStudySequence));
+        assertFalse(decoded.contains(Tag.StudyDescription));
+    }
+}
@@ -38,8 +38,6 @@
 
 package org.dcm4chee.archive.ian.scu.impl;
 
-import java.io.IOException;
-
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageListener;
@@ -57,6 +55,7 @@ import org.dcm4che.net.pdu.AAssociateRQ;
 import org.dcm4che.net.pdu.PresentationContext;
 import org.dcm4che.util.UIDUtils;
 import org.dcm4chee.archive.ArchiveService;
+import org.dcm4chee.archive.AssociationPool;
 import org.dcm4chee.archive.conf.ArchiveAEExtension;
 import org.dcm4chee.archive.ian.scu.IANSCU;
 import org.dcm4chee.archive.jms.JmsService;
@@ -73,6 +72,7 @@ public class IANSCUImpl implements IANSCU, MessageListener {
     public static final Logger LOG = LoggerFactory.getLogger(IANSCUImpl.class);
 
     private ArchiveService archiveService; 
+    private AssociationPool associationPool;
 
     private JmsService jmsService; 
 
@@ -84,6 +84,10 @@ public class IANSCUImpl implements IANSCU, MessageListener {
         this.archiveService = archiveService;
     }
 
+    public void setAssociationPool(AssociationPool associationPool) {
+        this.associationPool = associationPool;
+    }
+
     public void setJmsService(JmsService jmsService) {
         this.jmsService = jmsService;
     }
@@ -162,15 +166,16 @@ public class IANSCUImpl implements IANSCU, MessageListener {
         try {
             ApplicationEntity remoteAE = archiveService
                     .findApplicationEntity(remoteAET);
-            Association as = localAE.connect(remoteAE, aarq);
-            DimseRSP rsp = as.ncreate(UID.InstanceAvailabilityNotificationSOPClass, 
-                    UIDUtils.createUID(), ian, null);
-            rsp.next();
+            Association as = associationPool.acquire(localAE, remoteAE, aarq);
             try {
-                as.release();
-            } catch (IOException e) {
-                LOG.info("{}: Failed to release association to {}", as, remoteAET);
+                DimseRSP rsp = as.ncreate(UID.InstanceAvailabilityNotificationSOPClass, 
+                        UIDUtils.createUID(), ian, null);
+                rsp.next();
+            } catch (Exception e) {
+                associationPool.discard(as);
+                throw e;
             }
+            associationPool.release(as);
         } catch (Exception e) {
             ArchiveAEExtension aeExt = localAE.getAEExtension(ArchiveAEExtension.class);
             if (aeExt != null && retries < aeExt.getIANMaxRetries()) {
@@ -38,61 +38,142 @@
 
 package org.dcm4chee.archive.issuer.impl;
 
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 import javax.persistence.EntityManager;
-import javax.persistence.NoResultException;
+import javax.persistence.PersistenceException;
 import javax.persistence.TypedQuery;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
 
 import org.dcm4chee.archive.entity.Issuer;
 import org.dcm4chee.archive.issuer.IssuerService;
 
 /**
+ * Primary keys of resolved issuers are cached, after the transaction
+ * which resolved them was committed, to skip the lookup for subsequent
+ * calls.
+ * 
+ * New issuers are inserted by {@link IssuerCreator} in a separate
+ * transaction. If the same issuer was inserted concurrently by another
+ * thread or node, the unique key of the issuer rejects the insert and the
+ * issuer inserted by the other thread or node is selected. Issuers
+ * inserted concurrently with only some equal identifiers resolve to the
+ * issuer with the lowest primary key.
+ * 
  * @author Gunter Zeilinger <gunterze@gmail.com>
  *
  */
 public class IssuerServiceImpl implements IssuerService {
 
+    private static final int DEFAULT_MAX_CACHE_SIZE = 1000;
+
     private EntityManager em;
+    private TransactionSynchronizationRegistry tsr;
+    private IssuerCreator issuerCreator;
+    private Map<String, Long> cache = createCache(DEFAULT_MAX_CACHE_SIZE);
 
     public void setEntityManager(EntityManager em) {
         this.em = em;
     }
 
+    public void setTransactionSynchronizationRegistry(
+            TransactionSynchronizationRegistry tsr) {
+        this.tsr = tsr;
+    }
+
+    public void setIssuerCreator(IssuerCreator issuerCreator) {
+        this.issuerCreator = issuerCreator;
+    }
+
+    public void setMaxCacheSize(int maxCacheSize) {
+        this.cache = createCache(maxCacheSize);
+    }
+
+    private static Map<String, Long> createCache(final int maxSize) {
+        return Collections.synchronizedMap(
+                new LinkedHashMap<String, Long>(16, 0.75f, true) {
+
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    protected boolean removeEldestEntry(
+                            Map.Entry<String, Long> eldest) {
+                        return size() > maxSize;
+                    }
+                });
+    }
+
     @Override
     public Issuer findOrCreate(Issuer issuer) {
         
         try {
+            String key = Issuer.keyOf(issuer);
+            Long pk = cache.get(key);
+            if (pk != null)
+                return em.getReference(Issuer.class, pk);
+
             Issuer result = findOrCreate(em, issuer);
+            cacheOnCommit(key, result.getPk());
             return result;
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
+    private void cacheOnCommit(final String key, final long pk) {
+        tsr.registerInterposedSynchronization(new Synchronization() {
+
+            @Override
+            public void beforeCompletion() {
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                if (status == Status.STATUS_COMMITTED)
+                    cache.put(key, pk);
+            }
+        });
+    }
+
     private Issuer findOrCreate(EntityManager em, Issuer issuer) {
-        try {
-            String entityID = issuer.getLocalNamespaceEntityID();
-            String entityUID = issuer.getUniversalEntityID();
-            String entityUIDType = issuer.getUniversalEntityIDType();
-            TypedQuery<Issuer> query;
-            if (entityID == null) {
-                query = em.createNamedQuery(Issuer.FIND_BY_ENTITY_UID, Issuer.class)
-                    .setParameter(1, entityUID)
-                    .setParameter(2, entityUIDType);
-            } else if (entityUID == null) {
-                query = em.createNamedQuery(Issuer.FIND_BY_ENTITY_ID, Issuer.class)
-                    .setParameter(1, entityID);
-            } else {
-                query = em.createNamedQuery(Issuer.FIND_BY_ENTITY_ID_OR_UID, Issuer.class)
-                    .setParameter(1, entityID)
-                    .setParameter(2, entityUID)
-                    .setParameter(3, entityUIDType);
+        String entityID = issuer.getLocalNamespaceEntityID();
+        String entityUID = issuer.getUniversalEntityID();
+        String entityUIDType = issuer.getUniversalEntityIDType();
+        TypedQuery<Issuer> query;
+        if (entityID == null) {
+            query = em.createNamedQuery(Issuer.FIND_BY_ENTITY_UID, Issuer.class)
+                .setParameter(1, entityUID)
+                .setParameter(2, entityUIDType);
+        } else if (entityUID == null) {
+            query = em.createNamedQuery(Issuer.FIND_BY_ENTITY_ID, Issuer.class)
+                .setParameter(1, entityID);
+        } else {
+            query = em.createNamedQuery(Issuer.FIND_BY_ENTITY_ID_OR_UID, Issuer.class)
+                .setParameter(1, entityID)
+                .setParameter(2, entityUID)
+                .setParameter(3, entityUIDType);
+        }
+        List<Issuer> list = query.getResultList();
+        if (list.isEmpty()) {
+            try {
+                return em.find(Issuer.class,
+                        issuerCreator.createIssuer(issuer));
+            } catch (PersistenceException e) {
+                // inserted concurrently - select the issuer of the winner
+                list = query.getResultList();
+                if (list.isEmpty())
+                    throw e;
             }
-            return query.getSingleResult();
-        } catch (NoResultException e) {
-            em.persist(issuer);
-            em.flush();
-            em.refresh(issuer);
-            return issuer;
         }
+        Issuer result = list.get(0);
+        for (Issuer other : list)
+            if (other.getPk() < result.getPk())
+                result = other;
+        return result;
     }
 }
@@ -38,8 +38,6 @@
 
 package org.dcm4chee.archive.mpps.scu.impl;
 
-import java.io.IOException;
-
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageListener;
@@ -60,6 +58,7 @@ import org.dcm4che.net.pdu.AAssociateRQ;
 import org.dcm4che.net.pdu.PresentationContext;
 import org.dcm4che.net.service.DicomServiceException;
 import org.dcm4chee.archive.ArchiveService;
+import org.dcm4chee.archive.AssociationPool;
 import org.dcm4chee.archive.conf.ArchiveAEExtension;
 import org.dcm4chee.archive.jms.JmsService;
 import org.dcm4chee.archive.jms.MessageCreator;
@@ -76,6 +75,7 @@ public class MPPSSCUImpl implements MPPSSCU, MessageListener {
     public static final Logger LOG = LoggerFactory.getLogger(MPPSSCUImpl.class);
 
     private ArchiveService archiveService; 
+    private AssociationPool associationPool;
 
     private JmsService jmsService; 
 
@@ -87,6 +87,10 @@ public class MPPSSCUImpl implements MPPSSCU, MessageListener {
         this.archiveService = archiveService;
     }
 
+    public void setAssociationPool(AssociationPool associationPool) {
+        this.associationPool = associationPool;
+    }
+
     public void setJmsService(JmsService jmsService) {
         this.jmsService = jmsService;
     }
@@ -179,17 +183,19 @@ public class MPPSSCUImpl implements MPPSSCU, MessageListener {
         try {
             ApplicationEntity remoteAE = archiveService
                     .findApplicationEntity(remoteAET);
-            Association as = localAE.connect(remoteAE, aarq);
+            Association as = associationPool.acquire(localAE, remoteAE, aarq);
             boolean ncreate = dimse == Dimse.N_CREATE_RQ;
-            DimseRSP rsp = ncreate 
-                    ? as.ncreate(UID.ModalityPerformedProcedureStepSOPClass, iuid, rqAttrs, null)
-                    : as.nset(UID.ModalityPerformedProcedureStepSOPClass, iuid, rqAttrs, null);
-            rsp.next();
+            DimseRSP rsp;
             try {
-                as.release();
-            } catch (IOException e) {
-                LOG.info("{}: Failed to release association to {}: {}", as, remoteAET);
+                rsp = ncreate 
+                        ? as.ncreate(UID.ModalityPerformedProcedureStepSOPClass, iuid, rqAttrs, null)
+                        : as.nset(UID.ModalityPerformedProcedureStepSOPClass, iuid, rqAttrs, null);
+                rsp.next();
+            } catch (Exception e) {
+                associationPool.discard(as);
+                throw e;
             }
+            associationPool.release(as);
             if (!ncreate && rsp.getCommand().getInt(Tag.Status, -1 ) == Status.NoSuchObjectInstance) {
                 throw new DicomServiceException(Status.NoSuchObjectInstance);
             }
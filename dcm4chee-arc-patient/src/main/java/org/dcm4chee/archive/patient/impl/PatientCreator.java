@@ -0,0 +1,117 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2013
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.patient.impl;
+
+import javax.persistence.EntityManager;
+
+import org.dcm4che.data.Attributes;
+import org.dcm4che.data.IDWithIssuer;
+import org.dcm4che.soundex.FuzzyStr;
+import org.dcm4chee.archive.conf.AttributeFilter;
+import org.dcm4chee.archive.entity.Issuer;
+import org.dcm4chee.archive.entity.Patient;
+import org.dcm4chee.archive.issuer.IssuerService;
+
+/**
+ * Inserts new Patients in a separate transaction, so a Patient inserted
+ * concurrently by another thread or node only fails the insert, but not
+ * the transaction of the caller, which may look up the Patient again.
+ * 
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ *
+ */
+public class PatientCreator {
+
+    private EntityManager em;
+    private IssuerService issuerService;
+
+    public void setEntityManager(EntityManager em) {
+        this.em = em;
+    }
+
+    public void setIssuerService(IssuerService issuerService) {
+        this.issuerService = issuerService;
+    }
+
+    /**
+     * Inserts a new Patient.
+     * 
+     * If {@code unique}, the Patient is keyed by the Patient ID of
+     * {@code pid} - or if {@code withIssuer}, by the Patient ID and the
+     * primary key of its Issuer - so the unique key of the Patient rejects
+     * the insert, if a Patient with the same key was inserted concurrently.
+     * The caller shall look up that Patient again.
+     * 
+     * @return primary key of the inserted Patient
+     * @throws javax.persistence.PersistenceException
+     *         if the same Patient was inserted concurrently
+     */
+    public long createPatient(AttributeFilter filter, FuzzyStr fuzzyStr,
+            Attributes attrs, IDWithIssuer pid, boolean unique,
+            boolean withIssuer) {
+        Patient patient = new Patient();
+        Issuer issuer = pid.getIssuer() != null
+                ? issuerService.findOrCreate(new Issuer(pid.getIssuer()))
+                : null;
+        patient.setIssuerOfPatientID(issuer);
+        patient.setAttributes(attrs, filter, fuzzyStr);
+        if (unique)
+            patient.setPatientKey(withIssuer && issuer != null
+                    ? Patient.keyOf(pid.getID(), issuer)
+                    : Patient.keyOf(pid.getID()));
+        em.persist(patient);
+        em.flush();
+        return patient.getPk();
+    }
+
+    /**
+     * Deletes a Patient inserted by {@link #createPatient} for a transaction
+     * which was rolled back afterwards, unless a Study of the Patient was
+     * committed meanwhile.
+     * 
+     * @return {@code true} if the Patient was deleted
+     * @throws javax.persistence.PersistenceException
+     *         if the Patient is still referenced by other entities
+     */
+    public boolean deletePatient(long pk) {
+        return em.createNamedQuery(Patient.DELETE_WITHOUT_STUDIES)
+                .setParameter(1, pk)
+                .executeUpdate() > 0;
+    }
+}
@@ -41,12 +41,18 @@ package org.dcm4chee.archive.patient.impl;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.persistence.EntityManager;
 import javax.persistence.NoResultException;
 import javax.persistence.NonUniqueResultException;
+import javax.persistence.PersistenceException;
 import javax.persistence.TypedQuery;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
 
 import org.dcm4che.data.Attributes;
 import org.dcm4che.data.IDWithIssuer;
@@ -58,22 +64,55 @@ import org.dcm4chee.archive.issuer.IssuerService;
 import org.dcm4chee.archive.patient.PatientCircularMergedException;
 import org.dcm4chee.archive.patient.PatientMergedException;
 import org.dcm4chee.archive.patient.PatientService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
+ * Primary keys of patients resolved by Patient ID and Issuer are cached
+ * for a short time, after the transaction which resolved them was committed.
+ * Entries referring to a patient, whose attributes are updated, are evicted.
+ * 
+ * New patients are inserted in a separate transaction by
+ * {@link PatientCreator}; if the transaction for which a patient was
+ * inserted is rolled back, the patient is deleted again, unless a Study
+ * of the patient was committed meanwhile.
+ * 
  * @author Gunter Zeilinger <gunterze@gmail.com>
  *
  */
 public class PatientServiceImpl implements PatientService {
 
+    private static final Logger LOG =
+            LoggerFactory.getLogger(PatientServiceImpl.class);
+
     private static final String NULL_MERGE_FK = "update Patient p set p.mergedWith=NULL "
             + "where p.patientID like 'PATIENT_SERVICE_TEST-%'";
     private static final String CLEAR_PATIENTS = "delete from Patient p "
             + "where p.patientID like 'PATIENT_SERVICE_TEST-%'";
     private static final String CLEAR_ISSUERS = "delete from Issuer i "
             + "where i.localNamespaceEntityID like 'PATIENT_SERVICE_TEST-%'";
-    
+
+    private static final int DEFAULT_MAX_CACHE_SIZE = 1000;
+    private static final int DEFAULT_CACHE_TIME_TO_LIVE = 60;
+    private static final int DEFAULT_MAX_CREATE_RETRIES = 3;
+
     private EntityManager em;
     private IssuerService issuerService;
+    private PatientCreator patientCreator;
+    private int maxCreateRetries = DEFAULT_MAX_CREATE_RETRIES;
+    private TransactionSynchronizationRegistry tsr;
+    private Map<String, CacheEntry> cache = createCache(DEFAULT_MAX_CACHE_SIZE);
+    private long cacheTimeToLive = DEFAULT_CACHE_TIME_TO_LIVE * 1000L;
+
+    private static final class CacheEntry {
+        final long pk;
+        final long expires;
+
+        CacheEntry(long pk, long expires) {
+            this.pk = pk;
+            this.expires = expires;
+        }
+    }
 
     public void setEntityManager(EntityManager em) {
         this.em = em;
@@ -83,6 +122,45 @@ public class PatientServiceImpl implements PatientService {
         this.issuerService = issuerService;
     }
 
+    public void setPatientCreator(PatientCreator patientCreator) {
+        this.patientCreator = patientCreator;
+    }
+
+    public void setMaxCreateRetries(int maxCreateRetries) {
+        this.maxCreateRetries = maxCreateRetries;
+    }
+
+    public void setTransactionSynchronizationRegistry(
+            TransactionSynchronizationRegistry tsr) {
+        this.tsr = tsr;
+    }
+
+    public void setMaxCacheSize(int maxCacheSize) {
+        this.cache = createCache(maxCacheSize);
+    }
+
+    /**
+     * @param cacheTimeToLive time to live of cache entries in seconds,
+     *        0 disables the cache
+     */
+    public void setCacheTimeToLive(int cacheTimeToLive) {
+        this.cacheTimeToLive = cacheTimeToLive * 1000L;
+    }
+
+    private static Map<String, CacheEntry> createCache(final int maxSize) {
+        return Collections.synchronizedMap(
+                new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    protected boolean removeEldestEntry(
+                            Map.Entry<String, CacheEntry> eldest) {
+                        return size() > maxSize;
+                    }
+                });
+    }
+
     @Override
     public Patient findUniqueOrCreatePatient(
             AttributeFilter filter, FuzzyStr fuzzyStr,
@@ -104,8 +182,32 @@ public class PatientServiceImpl implements PatientService {
             return createNewPatient(em, filter, fuzzyStr, data, null);
 
         Patient patient;
+        boolean withIssuer = false;
+        int retries = maxCreateRetries;
+        while ((patient = findOrCreatePatient(em, filter, fuzzyStr, data, pid,
+                followMergedWith, mergeAttributes, withIssuer)) == null) {
+            if (--retries < 0)
+                throw new IllegalStateException(
+                        "Failed to create Patient " + pid);
+            // if the Patient is still not found, its key may be held by a
+            // Patient with the same Patient ID, but with another Issuer
+            withIssuer = pid.getIssuer() != null;
+        }
+        return patient;
+    }
+
+    /**
+     * Returns {@code null}, if the Patient was not found and a concurrent
+     * insert of the same Patient prevented its creation, so the lookup shall
+     * be retried.
+     */
+    private Patient findOrCreatePatient(EntityManager em,
+            AttributeFilter filter, FuzzyStr fuzzyStr, Attributes data,
+            IDWithIssuer pid, boolean followMergedWith,
+            boolean mergeAttributes, boolean withIssuer) {
+        Patient patient;
         try {
-            patient = findPatient(em, pid);
+            patient = findPatientCached(em, pid);
             Patient mergedWith = patient.getMergedWith();
             if (mergedWith != null)
                 if (followMergedWith)
@@ -116,14 +218,114 @@ public class PatientServiceImpl implements PatientService {
             if (mergeAttributes)
                 mergeAttributes(filter, fuzzyStr, patient, data, pid);
         } catch (NonUniqueResultException e) {
-            patient = createNewPatient(em, filter, fuzzyStr, data, pid);
+            patient = createNewPatient(em, filter, fuzzyStr, data, pid,
+                    false, false);
         } catch (NoResultException e) {
-            patient = createNewPatient(em, filter, fuzzyStr, data, pid);
-            // TO DO check if patient was inserted concurrently
+            patient = createNewPatient(em, filter, fuzzyStr, data, pid,
+                    true, withIssuer);
+            if (patient != null)
+                cacheOnCommit(pid.toString(), patient.getPk());
         }
         return patient;
     }
 
+    private Patient createNewPatient(EntityManager em,
+            AttributeFilter filter, FuzzyStr fuzzyStr, Attributes attrs,
+            IDWithIssuer pid, boolean unique, boolean withIssuer) {
+        long pk;
+        try {
+            pk = patientCreator.createPatient(
+                    filter, fuzzyStr, attrs, pid, unique, withIssuer);
+        } catch (PersistenceException e) {
+            return null;
+        }
+        deleteOnRollback(pk);
+        return em.find(Patient.class, pk);
+    }
+
+    private void deleteOnRollback(final long pk) {
+        tsr.registerInterposedSynchronization(new Synchronization() {
+
+            @Override
+            public void beforeCompletion() {
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                if (status == Status.STATUS_COMMITTED)
+                    return;
+
+                try {
+                    if (patientCreator.deletePatient(pk))
+                        LOG.info("Deleted Patient[pk={}] created for rolled "
+                                + "back transaction", pk);
+                } catch (Exception e) {
+                    LOG.info("Failed to delete Patient[pk={}] created for "
+                            + "rolled back transaction: {}", pk, e);
+                }
+            }
+        });
+    }
+
+    private Patient findPatientCached(EntityManager em, IDWithIssuer pid) {
+        String key = pid.toString();
+        CacheEntry entry = cache.get(key);
+        if (entry != null) {
+            if (entry.expires > System.currentTimeMillis()) {
+                Patient patient = em.find(Patient.class, entry.pk);
+                if (patient != null)
+                    return patient;
+            }
+            cache.remove(key);
+        }
+        Patient patient = findPatient(em, pid);
+        cacheOnCommit(key, patient.getPk());
+        return patient;
+    }
+
+    private void cacheOnCommit(final String key, final long pk) {
+        if (cacheTimeToLive <= 0)
+            return;
+
+        tsr.registerInterposedSynchronization(new Synchronization() {
+
+            @Override
+            public void beforeCompletion() {
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                if (status == Status.STATUS_COMMITTED)
+                    cache.put(key, new CacheEntry(pk,
+                            System.currentTimeMillis() + cacheTimeToLive));
+            }
+        });
+    }
+
+    private void evictOnCompletion(final long pk) {
+        evict(pk);
+        tsr.registerInterposedSynchronization(new Synchronization() {
+
+            @Override
+            public void beforeCompletion() {
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                evict(pk);
+            }
+        });
+    }
+
+    private void evict(long pk) {
+        synchronized (cache) {
+            for (Iterator<CacheEntry> it = cache.values().iterator();
+                    it.hasNext();)
+                if (it.next().pk == pk)
+                    it.remove();
+        }
+    }
+
     private Patient followMergedWith(Patient patient) {
         ArrayList<Patient> mergedPatients = new ArrayList<Patient>();
         Patient mergedWith;
@@ -153,6 +355,7 @@ public class PatientServiceImpl implements PatientService {
                 patient.setIssuerOfPatientID(findOrCreateIssuer(pid));
             }
             patient.setAttributes(patientAttrs, filter, fuzzyStr);
+            evictOnCompletion(patient.getPk());
         }
     }
 
@@ -166,14 +369,11 @@ public class PatientServiceImpl implements PatientService {
         return patient;
     }
 
-    private List<Patient> findPatients(EntityManager em, IDWithIssuer pid) {
+    static List<Patient> findPatients(EntityManager em, IDWithIssuer pid) {
         if (pid.getID() == null)
             throw new IllegalArgumentException("Missing pid");
 
-        TypedQuery<Patient> query = em.createNamedQuery(
-                    Patient.FIND_BY_PATIENT_ID, Patient.class)
-                .setParameter(1, pid.getID());
-        List<Patient> list = query.getResultList();
+        List<Patient> list = createQuery(em, pid).getResultList();
         if (pid.getIssuer() != null) {
             for (Iterator<Patient> it = list.iterator(); it.hasNext();) {
                 Patient pat = (Patient) it.next();
@@ -189,6 +389,39 @@ public class PatientServiceImpl implements PatientService {
         return list;
     }
 
+    private static TypedQuery<Patient> createQuery(EntityManager em,
+            IDWithIssuer pid) {
+        org.dcm4che.data.Issuer issuer = pid.getIssuer();
+        String entityID = issuer != null
+                ? issuer.getLocalNamespaceEntityID() : null;
+        String entityUID = issuer != null
+                ? issuer.getUniversalEntityID() : null;
+        if (entityID == null && entityUID == null)
+            return em.createNamedQuery(
+                        Patient.FIND_BY_PATIENT_ID, Patient.class)
+                    .setParameter(1, pid.getID());
+        if (entityUID == null)
+            return em.createNamedQuery(
+                        Patient.FIND_BY_PATIENT_ID_WITH_ISSUER_ENTITY_ID,
+                        Patient.class)
+                    .setParameter(1, pid.getID())
+                    .setParameter(2, entityID);
+        if (entityID == null)
+            return em.createNamedQuery(
+                        Patient.FIND_BY_PATIENT_ID_WITH_ISSUER_ENTITY_UID,
+                        Patient.class)
+                    .setParameter(1, pid.getID())
+                    .setParameter(2, entityUID)
+                    .setParameter(3, issuer.getUniversalEntityIDType());
+        return em.createNamedQuery(
+                    Patient.FIND_BY_PATIENT_ID_WITH_ISSUER_ENTITY_ID_OR_UID,
+                    Patient.class)
+                .setParameter(1, pid.getID())
+                .setParameter(2, entityID)
+                .setParameter(3, entityUID)
+                .setParameter(4, issuer.getUniversalEntityIDType());
+    }
+
     private Patient findPatient(EntityManager em, IDWithIssuer pid) {
         List<Patient> list = findPatients(em, pid);
         if (list.isEmpty())
@@ -203,6 +436,7 @@ public class PatientServiceImpl implements PatientService {
             em.createQuery(NULL_MERGE_FK).executeUpdate();
             em.createQuery(CLEAR_PATIENTS).executeUpdate();
             em.createQuery(CLEAR_ISSUERS).executeUpdate();
+            cache.clear();
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
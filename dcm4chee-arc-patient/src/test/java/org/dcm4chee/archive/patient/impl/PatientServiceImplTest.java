@@ -0,0 +1,230 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2013
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.patient.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceException;
+import javax.persistence.TypedQuery;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.dcm4che.data.Attributes;
+import org.dcm4che.data.IDWithIssuer;
+import org.dcm4che.data.Tag;
+import org.dcm4che.data.VR;
+import org.dcm4che.soundex.FuzzyStr;
+import org.dcm4chee.archive.conf.AttributeFilter;
+import org.dcm4chee.archive.entity.Patient;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ *
+ */
+public class PatientServiceImplTest {
+
+    private final Map<Long, Patient> patients = new HashMap<Long, Patient>();
+    private final List<Synchronization> syncs =
+            new ArrayList<Synchronization>();
+    private final List<Boolean> created = new ArrayList<Boolean>();
+    private final List<Long> deleted = new ArrayList<Long>();
+    private PatientServiceImpl service;
+    private int concurrentInserts;
+    private int conflictingInserts;
+
+    @Before
+    public void setUp() {
+        service = new PatientServiceImpl();
+        service.setCacheTimeToLive(0);
+        service.setEntityManager(proxy(EntityManager.class,
+                new InvocationHandler() {
+
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) {
+                        String name = method.getName();
+                        if (name.equals("createNamedQuery"))
+                            return query();
+                        if (name.equals("find"))
+                            return patients.get(args[1]);
+                        throw new UnsupportedOperationException(name);
+                    }
+                }));
+        service.setTransactionSynchronizationRegistry(
+                proxy(TransactionSynchronizationRegistry.class,
+                        new InvocationHandler() {
+
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) {
+                        if (method.getName().equals(
+                                "registerInterposedSynchronization")) {
+                            syncs.add((Synchronization) args[0]);
+                            return null;
+                        }
+                        throw new UnsupportedOperationException(
+                                method.getName());
+                    }
+                }));
+        service.setPatientCreator(new PatientCreator() {
+
+            @Override
+            public long createPatient(AttributeFilter filter,
+                    FuzzyStr fuzzyStr, Attributes attrs, IDWithIssuer pid,
+                    boolean unique, boolean withIssuer) {
+                created.add(withIssuer);
+                if (concurrentInserts > 0) {
+                    concurrentInserts--;
+                    insert();
+                    throw new PersistenceException("Duplicate key");
+                }
+                if (conflictingInserts > 0) {
+                    conflictingInserts--;
+                    throw new PersistenceException("Duplicate key");
+                }
+                return insert();
+            }
+
+            @Override
+            public boolean deletePatient(long pk) {
+                deleted.add(pk);
+                return patients.remove(pk) != null;
+            }
+        });
+    }
+
+    @Test
+    public void testLooksUpPatientInsertedConcurrently() {
+        concurrentInserts = 1;
+        Patient patient = findUniqueOrCreatePatient(null);
+        assertEquals(1, created.size());
+        assertEquals(1, patients.size());
+        assertSame(patients.values().iterator().next(), patient);
+    }
+
+    @Test
+    public void testRetriesWithIssuerOnConflictWithOtherIssuer() {
+        conflictingInserts = 1;
+        findUniqueOrCreatePatient("ISSUER_X");
+        assertEquals(2, created.size());
+        assertEquals(Boolean.FALSE, created.get(0));
+        assertEquals(Boolean.TRUE, created.get(1));
+    }
+
+    @Test
+    public void testRetriesWithoutIssuerOnConflict() {
+        conflictingInserts = 1;
+        findUniqueOrCreatePatient(null);
+        assertEquals(2, created.size());
+        assertEquals(Boolean.FALSE, created.get(1));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testFailsAfterMaxRetries() {
+        service.setMaxCreateRetries(2);
+        conflictingInserts = 3;
+        findUniqueOrCreatePatient(null);
+    }
+
+    @Test
+    public void testDeletesPatientOnRollback() {
+        findUniqueOrCreatePatient(null);
+        assertEquals(1, syncs.size());
+        syncs.get(0).afterCompletion(Status.STATUS_ROLLEDBACK);
+        assertEquals(1, deleted.size());
+        assertTrue(patients.isEmpty());
+    }
+
+    @Test
+    public void testKeepsPatientOnCommit() {
+        findUniqueOrCreatePatient(null);
+        syncs.get(0).afterCompletion(Status.STATUS_COMMITTED);
+        assertTrue(deleted.isEmpty());
+        assertEquals(1, patients.size());
+    }
+
+    private Patient findUniqueOrCreatePatient(String issuer) {
+        Attributes attrs = new Attributes();
+        attrs.setString(Tag.PatientID, VR.LO, "PID-1234");
+        if (issuer != null)
+            attrs.setString(Tag.IssuerOfPatientID, VR.LO, issuer);
+        return service.findUniqueOrCreatePatient(null, null, attrs,
+                true, false);
+    }
+
+    private long insert() {
+        long pk = patients.size() + 1;
+        patients.put(pk, new Patient());
+        return pk;
+    }
+
+    private TypedQuery<?> query() {
+        return proxy(TypedQuery.class, new InvocationHandler() {
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("setParameter"))
+                    return proxy;
+                if (method.getName().equals("getResultList"))
+                    return new ArrayList<Patient>(patients.values());
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(
+                PatientServiceImplTest.class.getClassLoader(),
+                new Class<?>[] { type }, handler));
+    }
+}
@@ -38,6 +38,7 @@
 
 package org.dcm4chee.archive.query.common;
 
+import java.util.Arrays;
 import java.util.List;
 
 import org.dcm4che.data.Attributes;
@@ -82,6 +83,12 @@ import com.mysema.query.types.path.StringPath;
  */
 public abstract class QueryBuilder {
 
+    /**
+     * Maximal length of IN lists padded by {@link #padInList(String[])};
+     * longer lists are used as they are.
+     */
+    static final int MAX_PADDED_IN_LIST = 256;
+
     public static StringPath stringPathOf(int tag, QueryRetrieveLevel qrLevel) {
         switch (qrLevel) {
             case FRAME:
@@ -243,7 +250,7 @@ public abstract class QueryBuilder {
                 ? QStudy.study.accessControlID.isNull()
                 : ExpressionUtils.or(
                         QStudy.study.accessControlID.isNull(),
-                        QStudy.study.accessControlID.in(accessControlIDs));
+                        QStudy.study.accessControlID.in(padInList(accessControlIDs)));
     }
 
     public static void addSeriesLevelPredicates(BooleanBuilder builder, Attributes keys,
@@ -427,11 +434,31 @@ public abstract class QueryBuilder {
             return null;
 
         return matchUnknown(
-                path.in(values),
+                path.in(padInList(values)),
                 path,
                 matchUnknown);
     }
 
+    /**
+     * Pads the values of an IN list to the next power of 2 by repeating the
+     * last value. Values are bound as parameters, so the query string - and
+     * the query plans cached for it by Hibernate and by the database - only
+     * depends on which keys are specified and how they are matched, except on
+     * the number of values of IN lists. Padding limits the number of query
+     * strings for IN lists of up to {@link #MAX_PADDED_IN_LIST} values to 9.
+     */
+    static String[] padInList(String[] values) {
+        int n = values.length;
+        int padded = Integer.highestOneBit(n);
+        if (padded == n || n > MAX_PADDED_IN_LIST)
+            return values;
+
+        padded <<= 1;
+        String[] result = Arrays.copyOf(values, padded);
+        Arrays.fill(result, n, padded, values[n - 1]);
+        return result;
+    }
+
     static Predicate modalitiesInStudy(String modality, boolean matchUnknown) {
         if (modality.equals("*"))
             return null;
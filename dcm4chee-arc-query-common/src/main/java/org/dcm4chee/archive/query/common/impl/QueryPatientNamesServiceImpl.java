@@ -43,6 +43,7 @@ import java.util.List;
 
 import javax.persistence.EntityManager;
 
+import org.dcm4che.data.Attributes;
 import org.dcm4che.data.IDWithIssuer;
 import org.dcm4che.data.Tag;
 import org.dcm4chee.archive.entity.Utils;
@@ -61,6 +62,8 @@ import com.mysema.query.jpa.hibernate.HibernateQuery;
  */
 public class QueryPatientNamesServiceImpl implements QueryPatientNamesService {
 
+    private static final int[] PATIENT_NAME = { Tag.PatientName };
+
     private Session session;
 
     public void setEntityManager(EntityManager em) {
@@ -79,9 +82,12 @@ public class QueryPatientNamesServiceImpl implements QueryPatientNamesService {
             .list(
                 QPatient.patient.pk,
                 QPatient.patient.encodedAttributes);
-        for (Tuple tuple : tuples)
-            c.add(Utils.decodeAttributes(tuple.get(1, byte[].class))
-                    .getString(Tag.PatientName));
+        for (Tuple tuple : tuples) {
+            Attributes attrs = new Attributes(2);
+            Utils.decodeAttributes(attrs, tuple.get(1, byte[].class),
+                    PATIENT_NAME);
+            c.add(attrs.getString(Tag.PatientName));
+        }
         c.remove(null);
         return c.toArray(new String[c.size()]);
     }
@@ -0,0 +1,101 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.query.common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ *
+ */
+public class QueryBuilderTest {
+
+    @Test
+    public void testPadInList() {
+        assertArrayEquals(new String[] { "A", "B", "C", "C" },
+                QueryBuilder.padInList(new String[] { "A", "B", "C" }));
+        assertArrayEquals(new String[] { "A", "B", "C", "D", "E", "E", "E", "E" },
+                QueryBuilder.padInList(
+                        new String[] { "A", "B", "C", "D", "E" }));
+    }
+
+    @Test
+    public void testPadInListOfPowerOf2() {
+        String[] one = { "A" };
+        assertSame(one, QueryBuilder.padInList(one));
+        String[] two = { "A", "B" };
+        assertSame(two, QueryBuilder.padInList(two));
+        String[] max = values(QueryBuilder.MAX_PADDED_IN_LIST);
+        assertSame(max, QueryBuilder.padInList(max));
+    }
+
+    @Test
+    public void testPadInListOfEmptyList() {
+        String[] empty = {};
+        assertSame(empty, QueryBuilder.padInList(empty));
+    }
+
+    @Test
+    public void testPadInListExceedingMax() {
+        String[] values = values(QueryBuilder.MAX_PADDED_IN_LIST + 1);
+        assertSame(values, QueryBuilder.padInList(values));
+    }
+
+    @Test
+    public void testPadInListUpToMax() {
+        String[] values = values(QueryBuilder.MAX_PADDED_IN_LIST - 1);
+        String[] padded = QueryBuilder.padInList(values);
+        assertEquals(QueryBuilder.MAX_PADDED_IN_LIST, padded.length);
+        assertArrayEquals(values, Arrays.copyOf(padded, values.length));
+        assertEquals(values[values.length - 1], padded[padded.length - 1]);
+    }
+
+    private static String[] values(int n) {
+        String[] values = new String[n];
+        for (int i = 0; i < n; i++)
+            values[i] = "V" + i;
+        return values;
+    }
+}
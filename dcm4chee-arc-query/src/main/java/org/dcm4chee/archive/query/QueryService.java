@@ -64,4 +64,20 @@ public interface QueryService {
     Query createInstanceQuery(IDWithIssuer[] pids, Attributes keys,
             QueryParam queryParam) throws Exception;
 
+    /**
+     * Evicts cached query results, which may be affected by storing an
+     * object with the specified attributes by the current transaction.
+     */
+    void invalidateStudyQueryResults(Attributes data);
+
+    /**
+     * Evicts cached query results, which may be affected by the modification
+     * of the Patient with the specified attributes by the current transaction.
+     */
+    void invalidatePatientQueryResults(Attributes patientAttrs);
+
+    QueryResultCacheStatistics getQueryResultCacheStatistics();
+
+    void clearQueryResultCache();
+
 }
@@ -39,11 +39,19 @@
 package org.dcm4chee.archive.query.impl;
 
 import java.sql.SQLException;
+import java.util.Arrays;
 import java.util.NoSuchElementException;
 
 import org.dcm4che.data.Attributes;
 import org.dcm4che.data.IDWithIssuer;
+import org.dcm4che.data.Issuer;
+import org.dcm4che.data.Tag;
+import org.dcm4che.data.VR;
+import org.dcm4che.util.TagUtils;
+import org.dcm4chee.archive.conf.AttributeFilter;
+import org.dcm4chee.archive.conf.Entity;
 import org.dcm4chee.archive.conf.QueryParam;
+import org.dcm4chee.archive.entity.query.types.QIssuer;
 import org.dcm4chee.archive.query.Query;
 import org.hibernate.ScrollMode;
 import org.hibernate.ScrollableResults;
@@ -58,6 +66,29 @@ import com.mysema.query.types.OrderSpecifier;
  */
 public abstract class AbstractQuery implements Query {
 
+    /**
+     * Alias of the Issuer of Patient ID, which is left joined, if the
+     * matches are built from mapped columns.
+     */
+    protected static final QIssuer ISSUER_OF_PATIENT_ID =
+            new QIssuer("issuerOfPatientID");
+
+    /**
+     * Attributes decoded in addition to the keys, because they are used to
+     * adjust the matches before they are filtered by the keys, or to
+     * invalidate cached matches.
+     */
+    private static final int[] ADDITIONAL_TAGS = {
+        Tag.SpecificCharacterSet,
+        Tag.AccessionNumber,
+        Tag.PatientName,
+        Tag.PatientID,
+        Tag.IssuerOfPatientID,
+        Tag.StudyInstanceUID,
+        Tag.IssuerOfPatientIDQualifiersSequence,
+        Tag.IssuerOfAccessionNumberSequence
+    };
+
     protected final QueryServiceImpl service;
 
     protected StatelessSession session;
@@ -72,6 +103,10 @@ public abstract class AbstractQuery implements Query {
 
     private boolean optionalKeyNotSupported;
 
+    protected boolean columnsOnly;
+
+    protected int[] selection;
+
     public AbstractQuery(QueryServiceImpl service) {
         this.service = service;
     }
@@ -79,12 +114,112 @@ public abstract class AbstractQuery implements Query {
     Query init(IDWithIssuer[] pids, Attributes keys, QueryParam queryParam)
             throws SQLException {
         this.queryParam = queryParam;
+        this.columnsOnly = keys != null && selectColumnsOnly(keys);
+        this.selection = keys != null && !columnsOnly
+                ? decodeSelection(keys) : null;
 //        connection = service.getConnection();
         session = service.openStatelessSession();
         query = createQuery(pids, keys);
         return this;
     }
 
+    /**
+     * Returns {@code true}, if the matches can be built from mapped columns,
+     * without selecting and decoding the encoded attributes.
+     */
+    protected boolean selectColumnsOnly(Attributes keys) {
+        return false;
+    }
+
+    /**
+     * Indicates if the matches are built from mapped columns only, in which
+     * case they only contain the attributes which are provided by columns.
+     */
+    public boolean isColumnsOnly() {
+        return columnsOnly;
+    }
+
+    /**
+     * Returns the sorted tags of the attributes which are decoded from the
+     * encoded attributes or {@code null}, if all attributes are decoded.
+     */
+    public int[] getSelection() {
+        return selection;
+    }
+
+    /**
+     * Returns the tags of the keys and of the additional attributes needed
+     * for the matches, or {@code null}, if the keys contain private attributes,
+     * whose tags may differ from the stored ones by the private creator block.
+     */
+    private static int[] decodeSelection(Attributes keys) {
+        int[] tags = keys.tags();
+        for (int tag : tags)
+            if (TagUtils.isPrivateGroup(tag))
+                return null;
+
+        int[] selection = Arrays.copyOf(tags,
+                tags.length + ADDITIONAL_TAGS.length);
+        System.arraycopy(ADDITIONAL_TAGS, 0, selection, tags.length,
+                ADDITIONAL_TAGS.length);
+        Arrays.sort(selection);
+        return selection;
+    }
+
+    /**
+     * Returns {@code true}, if none of the keys is stored in the encoded
+     * attributes of the specified entities, except the keys whose values are
+     * provided by mapped columns.
+     * 
+     * @param columnTags sorted tags of attributes provided by mapped columns
+     */
+    protected boolean coveredByColumns(Attributes keys, int[] columnTags,
+            Entity... entities) {
+        AttributeFilter[] filters = queryParam.getAttributeFilters();
+        for (int tag : keys.tags()) {
+            if (TagUtils.isPrivateGroup(tag))
+                return false;
+            if (Arrays.binarySearch(columnTags, tag) >= 0)
+                continue;
+            for (Entity entity : entities)
+                if (Arrays.binarySearch(
+                        filters[entity.ordinal()].getSelection(), tag) >= 0)
+                    return false;
+        }
+        return true;
+    }
+
+    protected static void setPatientIDWithIssuer(Attributes attrs,
+            ScrollableResults results, int index) {
+        String patientID = results.getString(index);
+        if (patientID.equals("*"))
+            return;
+
+        attrs.setString(Tag.PatientID, VR.LO, patientID);
+        String localNamespaceEntityID = results.getString(index + 1);
+        String universalEntityID = results.getString(index + 2);
+        if (localNamespaceEntityID != null || universalEntityID != null)
+            new Issuer(localNamespaceEntityID, universalEntityID,
+                    results.getString(index + 3))
+                .toIssuerOfPatientID(attrs);
+        if (!isASCII(patientID) || !isASCII(localNamespaceEntityID))
+            attrs.setString(Tag.SpecificCharacterSet, VR.CS, "ISO_IR 192");
+    }
+
+    protected static void setString(Attributes attrs, int tag, VR vr,
+            String value) {
+        if (!value.equals("*"))
+            attrs.setString(tag, vr, value);
+    }
+
+    private static boolean isASCII(String s) {
+        if (s != null)
+            for (int i = 0, n = s.length(); i < n; i++)
+                if (s.charAt(i) > 127)
+                    return false;
+        return true;
+    }
+
     protected abstract Expression<?>[] select();
 
     protected abstract HibernateQuery createQuery(IDWithIssuer[] pids, Attributes keys);
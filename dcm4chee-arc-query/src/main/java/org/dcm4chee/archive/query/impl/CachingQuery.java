@@ -0,0 +1,152 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2013
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.query.impl;
+
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.dcm4che.data.Attributes;
+import org.dcm4chee.archive.query.Query;
+
+import com.mysema.query.types.OrderSpecifier;
+
+/**
+ * Returns the matches of the wrapped query from the {@link QueryResultCache},
+ * or adds them to the cache on completion of the query. Queries with
+ * specified limit, offset or order are not cached.
+ * 
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ *
+ */
+class CachingQuery implements Query {
+
+    private final Query query;
+    private final QueryResultCache cache;
+    private final QueryResultCache.Key key;
+    private boolean cacheable = true;
+    private Iterator<Attributes> cached;
+    private QueryResultCache.Entry loading;
+
+    public CachingQuery(Query query, QueryResultCache cache,
+            QueryResultCache.Key key) {
+        this.query = query;
+        this.cache = cache;
+        this.key = key;
+    }
+
+    @Override
+    public void executeQuery() {
+        if (cacheable) {
+            QueryResultCache.Entry entry = cache.get(key);
+            if (entry != null) {
+                cached = entry.getMatches().iterator();
+                return;
+            }
+            loading = cache.load(key);
+        }
+        query.executeQuery();
+    }
+
+    @Override
+    public long count() {
+        return query.count();
+    }
+
+    @Override
+    public void limit(long limit) {
+        cacheable = false;
+        query.limit(limit);
+    }
+
+    @Override
+    public void offset(long offset) {
+        cacheable = false;
+        query.offset(offset);
+    }
+
+    @Override
+    public void orderBy(OrderSpecifier<?>... orderSpecifiers) {
+        cacheable = false;
+        query.orderBy(orderSpecifiers);
+    }
+
+    @Override
+    public boolean optionalKeyNotSupported() {
+        return cached == null && query.optionalKeyNotSupported();
+    }
+
+    @Override
+    public boolean hasMoreMatches() {
+        if (cached != null)
+            return cached.hasNext();
+
+        boolean hasMoreMatches = query.hasMoreMatches();
+        if (!hasMoreMatches && loading != null) {
+            cache.loaded(loading, true);
+            loading = null;
+        }
+        return hasMoreMatches;
+    }
+
+    @Override
+    public Attributes nextMatch() {
+        if (cached != null) {
+            if (!cached.hasNext())
+                throw new NoSuchElementException();
+            return new Attributes(cached.next());
+        }
+
+        Attributes match = query.nextMatch();
+        if (match != null && loading != null
+                && !cache.addMatch(loading, match))
+            loading = null;
+        return match;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        if (loading != null) {
+            cache.loaded(loading, false);
+            loading = null;
+        }
+        query.close();
+    }
+
+}
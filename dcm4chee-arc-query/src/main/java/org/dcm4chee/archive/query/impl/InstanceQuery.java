@@ -40,6 +40,9 @@ package org.dcm4chee.archive.query.impl;
 
 import org.dcm4che.data.Attributes;
 import org.dcm4che.data.IDWithIssuer;
+import org.dcm4che.data.Tag;
+import org.dcm4che.data.VR;
+import org.dcm4chee.archive.conf.Entity;
 import org.dcm4chee.archive.entity.Availability;
 import org.dcm4chee.archive.entity.query.types.QInstance;
 import org.dcm4chee.archive.entity.query.types.QPatient;
@@ -66,6 +69,28 @@ class InstanceQuery extends AbstractQuery {
         QInstance.instance.encodedAttributes
     };
 
+    private static final Expression<?>[] SELECT_COLUMNS = {
+        QSeries.series.pk,
+        QInstance.instance.retrieveAETs,
+        QInstance.instance.externalRetrieveAET,
+        QInstance.instance.availability,
+        QInstance.instance.sopInstanceUID,
+        QInstance.instance.sopClassUID,
+        QInstance.instance.instanceNumber
+    };
+
+    /**
+     * Attributes of Instances, which are provided by {@link #SELECT_COLUMNS}.
+     * Patient, Study and Series attributes are always provided by
+     * {@link org.dcm4chee.archive.series.SeriesService}.
+     */
+    static final int[] COLUMN_TAGS = {
+        Tag.SpecificCharacterSet,
+        Tag.SOPClassUID,
+        Tag.SOPInstanceUID,
+        Tag.InstanceNumber
+    };
+
     private Long seriesPk;
     private Attributes seriesAttrs;
 
@@ -73,9 +98,14 @@ class InstanceQuery extends AbstractQuery {
         super(qsf);
     }
 
+    @Override
+    protected boolean selectColumnsOnly(Attributes keys) {
+        return coveredByColumns(keys, COLUMN_TAGS, Entity.Instance);
+    }
+
     @Override
     protected Expression<?>[] select() {
-        return SELECT;
+        return columnsOnly ? SELECT_COLUMNS : SELECT;
     }
 
     @Override
@@ -99,14 +129,19 @@ class InstanceQuery extends AbstractQuery {
         String retrieveAETs = results.getString(1);
         String externalRetrieveAET = results.getString(2);
         Availability availability = (Availability) results.get(3);
-        byte[] instAttributes = results.getBinary(4);
         if (!seriesPk.equals(this.seriesPk)) {
             this.seriesAttrs = service.getSeriesService()
                     .getAttributes(seriesPk, queryParam);
             this.seriesPk = seriesPk;
         }
         Attributes attrs = new Attributes(seriesAttrs);
-        Utils.decodeAttributes(attrs, instAttributes);
+        if (columnsOnly) {
+            attrs.setString(Tag.SOPInstanceUID, VR.UI, results.getString(4));
+            attrs.setString(Tag.SOPClassUID, VR.UI, results.getString(5));
+            setString(attrs, Tag.InstanceNumber, VR.IS, results.getString(6));
+        } else {
+            Utils.decodeAttributes(attrs, results.getBinary(4), selection);
+        }
         Utils.setRetrieveAET(attrs, retrieveAETs, externalRetrieveAET);
         Utils.setAvailability(attrs, availability);
         return attrs;
@@ -80,7 +80,7 @@ class PatientQuery extends AbstractQuery {
     @Override
     public Attributes toAttributes(ScrollableResults results) {
         Attributes attrs = new Attributes();
-        Utils.decodeAttributes(attrs, results.getBinary(1));
+        Utils.decodeAttributes(attrs, results.getBinary(1), selection);
         return attrs;
     }
 }
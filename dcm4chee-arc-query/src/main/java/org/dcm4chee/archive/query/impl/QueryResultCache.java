@@ -0,0 +1,367 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2013
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.query.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.dcm4che.data.Attributes;
+import org.dcm4che.data.IDWithIssuer;
+import org.dcm4che.data.Issuer;
+import org.dcm4che.data.Tag;
+import org.dcm4che.data.VR;
+import org.dcm4che.net.service.QueryRetrieveLevel;
+import org.dcm4chee.archive.conf.QueryParam;
+import org.dcm4chee.archive.query.QueryResultCacheStatistics;
+
+/**
+ * LRU cache of the complete matches of queries, keyed by the Query/Retrieve
+ * Level, the Patient IDs, the matching keys and the {@link QueryParam}.
+ * Entries expire after {@link #setTimeToLive(int)} seconds.
+ * 
+ * Entries are invalidated by {@link #invalidate(Attributes, boolean)}, if
+ * one of the cached matches belongs to the Study or Patient of the specified
+ * attributes, or if the attributes may match the keys of the query. Results of queries,
+ * which were executed concurrently to such invalidation, are not added.
+ * 
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ *
+ */
+class QueryResultCache {
+
+    /**
+     * Attributes of stored objects, which are used to decide, if a cached
+     * query result may be affected by storing the object.
+     */
+    static final int[] INVALIDATION_TAGS = {
+        Tag.StudyDate,
+        Tag.AccessionNumber,
+        Tag.PatientID,
+        Tag.StudyInstanceUID
+    };
+
+    static final class Key {
+        private final QueryRetrieveLevel qrLevel;
+        private final IDWithIssuer[] pids;
+        private final Attributes keys;
+        private final QueryParam queryParam;
+        private final boolean columnsOnly;
+        private final int[] selection;
+        private final int hashCode;
+
+        Key(QueryRetrieveLevel qrLevel, IDWithIssuer[] pids, Attributes keys,
+                QueryParam queryParam, boolean columnsOnly, int[] selection) {
+            this.qrLevel = qrLevel;
+            this.pids = pids;
+            this.keys = keys != null ? matchingKeys(keys) : new Attributes(0);
+            this.queryParam = queryParam;
+            this.columnsOnly = columnsOnly;
+            this.selection = selection;
+            this.hashCode = qrLevel.hashCode() * 31 + this.keys.hashCode();
+        }
+
+        /**
+         * Return keys with zero length values do not affect the matches,
+         * except by the selection of decoded attributes, which is compared
+         * separately - or, if built from mapped columns only, they contain
+         * all attributes provided by columns. Sequences are kept, because
+         * their items are matched separately.
+         */
+        private static Attributes matchingKeys(Attributes keys) {
+            Attributes matchingKeys = new Attributes(keys.size());
+            for (int tag : keys.tags())
+                if (keys.containsValue(tag) || keys.getVR(tag) == VR.SQ)
+                    matchingKeys.addSelected(keys, tag);
+            return matchingKeys;
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof Key))
+                return false;
+            Key other = (Key) obj;
+            return qrLevel == other.qrLevel
+                    && columnsOnly == other.columnsOnly
+                    && Arrays.equals(selection, other.selection)
+                    && Arrays.equals(pids, other.pids)
+                    && keys.equals(other.keys)
+                    && equals(queryParam, other.queryParam);
+        }
+
+        private static boolean equals(QueryParam a, QueryParam b) {
+            return a.getFuzzyStr() == b.getFuzzyStr()
+                && a.getAttributeFilters() == b.getAttributeFilters()
+                && a.isCombinedDatetimeMatching() == b.isCombinedDatetimeMatching()
+                && a.isFuzzySemanticMatching() == b.isFuzzySemanticMatching()
+                && a.isMatchUnknown() == b.isMatchUnknown()
+                && a.isShowRejectedInstances() == b.isShowRejectedInstances()
+                && Arrays.equals(a.getAccessControlIDs(), b.getAccessControlIDs())
+                && equals(a.getDefaultIssuerOfPatientID(),
+                        b.getDefaultIssuerOfPatientID())
+                && equals(a.getDefaultIssuerOfAccessionNumber(),
+                        b.getDefaultIssuerOfAccessionNumber());
+        }
+
+        private static boolean equals(Issuer a, Issuer b) {
+            return a == null ? b == null : a.equals(b);
+        }
+
+        /**
+         * Returns {@code false}, if a Study with the specified attributes
+         * cannot match the keys; {@code true} if it may match.
+         */
+        boolean mayMatch(Attributes attrs) {
+            return mayMatchUID(Tag.StudyInstanceUID, attrs)
+                    && mayMatchValue(Tag.PatientID, attrs)
+                    && mayMatchValue(Tag.AccessionNumber, attrs)
+                    && mayMatchDate(Tag.StudyDate, attrs);
+        }
+
+        private boolean mayMatchUID(int tag, Attributes attrs) {
+            String[] uids = keys.getStrings(tag);
+            String uid = attrs.getString(tag, null);
+            if (uids == null || uids.length == 0 || uid == null)
+                return true;
+            for (String s : uids)
+                if (s.equals("*") || s.equals(uid))
+                    return true;
+            return false;
+        }
+
+        private boolean mayMatchValue(int tag, Attributes attrs) {
+            String key = keys.getString(tag, null);
+            String value = attrs.getString(tag, null);
+            return key == null || value == null
+                    || key.indexOf('*') >= 0 || key.indexOf('?') >= 0
+                    || key.equals(value);
+        }
+
+        /**
+         * Compares dates in DA format literally, to avoid any dependency
+         * on time zones.
+         */
+        private boolean mayMatchDate(int tag, Attributes attrs) {
+            String key = keys.getString(tag, null);
+            String value = attrs.getString(tag, null);
+            if (key == null || !isDA(value))
+                return true;
+            int index = key.indexOf('-');
+            String start = index < 0 ? key : key.substring(0, index);
+            String end = index < 0 ? key : key.substring(index + 1);
+            return !(isDA(start) && value.compareTo(start) < 0
+                    || isDA(end) && value.compareTo(end) > 0);
+        }
+
+        private static boolean isDA(String s) {
+            if (s == null || s.length() != 8)
+                return false;
+            for (int i = 0; i < 8; i++)
+                if (!Character.isDigit(s.charAt(i)))
+                    return false;
+            return true;
+        }
+    }
+
+    static final class Entry {
+        private final Key key;
+        private final ArrayList<Attributes> matches = new ArrayList<Attributes>();
+        private final HashSet<String> studyIUIDs = new HashSet<String>();
+        private final HashSet<String> patientIDs = new HashSet<String>();
+        private long expires;
+        private boolean stale;
+
+        Entry(Key key) {
+            this.key = key;
+        }
+
+        List<Attributes> getMatches() {
+            return matches;
+        }
+
+        private void add(Attributes match) {
+            matches.add(match);
+            String studyIUID = match.getString(Tag.StudyInstanceUID, null);
+            if (studyIUID != null)
+                studyIUIDs.add(studyIUID);
+            patientIDs.add(match.getString(Tag.PatientID, ""));
+        }
+
+        private boolean isAffectedBy(Attributes attrs, boolean patient) {
+            return (patient
+                    ? patientIDs.contains(attrs.getString(Tag.PatientID, ""))
+                    : studyIUIDs.contains(
+                            attrs.getString(Tag.StudyInstanceUID, "")))
+                    || key.mayMatch(attrs);
+        }
+    }
+
+    private final LinkedHashMap<Key, Entry> map =
+            new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+    private final HashSet<Entry> loading = new HashSet<Entry>();
+    private int timeToLive;
+    private int maxSize;
+    private int maxMatches;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    public QueryResultCache(int timeToLive, int maxSize, int maxMatches) {
+        this.timeToLive = timeToLive;
+        this.maxSize = maxSize;
+        this.maxMatches = maxMatches;
+    }
+
+    public synchronized boolean isEnabled() {
+        return timeToLive > 0 && maxSize > 0;
+    }
+
+    public synchronized void setTimeToLive(int timeToLive) {
+        this.timeToLive = timeToLive;
+        if (timeToLive <= 0)
+            map.clear();
+    }
+
+    public synchronized void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+        evictEldest();
+    }
+
+    public synchronized void setMaxMatches(int maxMatches) {
+        this.maxMatches = maxMatches;
+    }
+
+    /**
+     * Returns the cached matches of the query or {@code null}, in which case
+     * the caller shall execute the query, pass its matches to
+     * {@link #addMatch(Entry, Attributes)} for an entry obtained by
+     * {@link #load(Key)} and finally call {@link #loaded(Entry, boolean)}.
+     */
+    public synchronized Entry get(Key key) {
+        Entry entry = map.get(key);
+        if (entry != null && entry.expires < System.currentTimeMillis()) {
+            map.remove(key);
+            evictions++;
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry;
+    }
+
+    public synchronized Entry load(Key key) {
+        Entry entry = new Entry(key);
+        loading.add(entry);
+        return entry;
+    }
+
+    /**
+     * Returns {@code false}, if the query has more matches than are cached,
+     * in which case the caller shall not pass further matches.
+     */
+    public synchronized boolean addMatch(Entry entry, Attributes match) {
+        if (entry.stale || entry.matches.size() >= maxMatches) {
+            loading.remove(entry);
+            return false;
+        }
+        entry.add(new Attributes(match));
+        return true;
+    }
+
+    public synchronized void loaded(Entry entry, boolean complete) {
+        if (!loading.remove(entry) || !complete || entry.stale
+                || !isEnabled())
+            return;
+
+        entry.expires = System.currentTimeMillis() + timeToLive * 1000L;
+        map.put(entry.key, entry);
+        evictEldest();
+    }
+
+    private void evictEldest() {
+        for (Iterator<Entry> it = map.values().iterator();
+                map.size() > maxSize && it.hasNext();) {
+            it.next();
+            it.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Evicts entries, which may be affected by storing an object with the
+     * specified attributes, or - if {@code patient} is {@code true} - by the
+     * modification of the Patient with the specified attributes.
+     */
+    public synchronized void invalidate(Attributes attrs, boolean patient) {
+        for (Iterator<Entry> it = map.values().iterator(); it.hasNext();) {
+            if (it.next().isAffectedBy(attrs, patient)) {
+                it.remove();
+                invalidations++;
+            }
+        }
+        for (Entry entry : loading)
+            if (entry.isAffectedBy(attrs, patient))
+                entry.stale = true;
+    }
+
+    public synchronized void clear() {
+        map.clear();
+        for (Entry entry : loading)
+            entry.stale = true;
+    }
+
+    public synchronized QueryResultCacheStatistics getStatistics() {
+        return new QueryResultCacheStatistics(map.size(), maxSize,
+                hits, misses, evictions, invalidations);
+    }
+}
@@ -39,12 +39,15 @@
 package org.dcm4chee.archive.query.impl;
 
 import javax.persistence.EntityManager;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
 
 import org.dcm4che.data.Attributes;
 import org.dcm4che.data.IDWithIssuer;
 import org.dcm4che.net.service.QueryRetrieveLevel;
 import org.dcm4chee.archive.conf.QueryParam;
 import org.dcm4chee.archive.query.Query;
+import org.dcm4chee.archive.query.QueryResultCacheStatistics;
 import org.dcm4chee.archive.query.QueryService;
 import org.dcm4chee.archive.series.SeriesService;
 import org.hibernate.Session;
@@ -52,18 +55,60 @@ import org.hibernate.SessionFactory;
 import org.hibernate.StatelessSession;
 
 /**
+ * The complete matches of Study level queries are cached for a configurable
+ * time, if enabled by {@link #setQueryResultCacheTimeToLive(int)}. Entries
+ * are invalidated immediately and again on completion of the transaction
+ * which stored an object, which may affect the matches.
+ * 
  * @author Gunter Zeilinger <gunterze@gmail.com>
  */
 public class QueryServiceImpl implements QueryService {
 
+    private static final int DEFAULT_MAX_QUERY_RESULT_CACHE_SIZE = 100;
+
+    private static final int DEFAULT_MAX_CACHED_MATCHES = 1000;
+
     private SessionFactory sessionFactory;
 
     private SeriesService seriesService;
 
+    private TransactionSynchronizationRegistry tsr;
+
+    private final QueryResultCache queryResultCache = new QueryResultCache(0,
+            DEFAULT_MAX_QUERY_RESULT_CACHE_SIZE, DEFAULT_MAX_CACHED_MATCHES);
+
     public void setEntityManager(EntityManager em) {
         sessionFactory = em.unwrap(Session.class).getSessionFactory();
     }
 
+    public void setTransactionSynchronizationRegistry(
+            TransactionSynchronizationRegistry tsr) {
+        this.tsr = tsr;
+    }
+
+    /**
+     * @param timeToLive seconds after which cached query results expire,
+     *        0 disables the cache
+     */
+    public void setQueryResultCacheTimeToLive(int timeToLive) {
+        queryResultCache.setTimeToLive(timeToLive);
+    }
+
+    /**
+     * @param maxSize maximal number of cached query results
+     */
+    public void setMaxQueryResultCacheSize(int maxSize) {
+        queryResultCache.setMaxSize(maxSize);
+    }
+
+    /**
+     * @param maxMatches maximal number of matches of a cached query result;
+     *        results of queries with more matches are not cached
+     */
+    public void setMaxCachedMatches(int maxMatches) {
+        queryResultCache.setMaxMatches(maxMatches);
+    }
+
     public SeriesService getSeriesService() {
         return seriesService;
     }
@@ -103,7 +148,14 @@ public class QueryServiceImpl implements QueryService {
     @Override
     public Query createStudyQuery(IDWithIssuer[] pids, Attributes keys,
             QueryParam queryParam) throws Exception {
-        return new StudyQuery(this).init(pids, keys, queryParam);
+        StudyQuery query = new StudyQuery(this);
+        query.init(pids, keys, queryParam);
+        return queryResultCache.isEnabled()
+                ? new CachingQuery(query, queryResultCache,
+                        new QueryResultCache.Key(QueryRetrieveLevel.STUDY,
+                                pids, keys, queryParam, query.isColumnsOnly(),
+                                query.getSelection()))
+                : query;
     }
 
     @Override
@@ -118,4 +170,45 @@ public class QueryServiceImpl implements QueryService {
         return new InstanceQuery(this).init(pids, keys, queryParam);
     }
 
+    @Override
+    public void invalidateStudyQueryResults(Attributes data) {
+        invalidateQueryResults(data, false);
+    }
+
+    @Override
+    public void invalidatePatientQueryResults(Attributes patientAttrs) {
+        invalidateQueryResults(patientAttrs, true);
+    }
+
+    private void invalidateQueryResults(Attributes data,
+            final boolean patient) {
+        if (!queryResultCache.isEnabled())
+            return;
+
+        final Attributes attrs =
+                new Attributes(data, QueryResultCache.INVALIDATION_TAGS);
+        queryResultCache.invalidate(attrs, patient);
+        tsr.registerInterposedSynchronization(new Synchronization() {
+
+            @Override
+            public void beforeCompletion() {
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                queryResultCache.invalidate(attrs, patient);
+            }
+        });
+    }
+
+    @Override
+    public QueryResultCacheStatistics getQueryResultCacheStatistics() {
+        return queryResultCache.getStatistics();
+    }
+
+    @Override
+    public void clearQueryResultCache() {
+        queryResultCache.clear();
+    }
+
 }
@@ -40,6 +40,9 @@ package org.dcm4chee.archive.query.impl;
 
 import org.dcm4che.data.Attributes;
 import org.dcm4che.data.IDWithIssuer;
+import org.dcm4che.data.Tag;
+import org.dcm4che.data.VR;
+import org.dcm4chee.archive.conf.Entity;
 import org.dcm4chee.archive.entity.Availability;
 import org.dcm4chee.archive.entity.query.types.QPatient;
 import org.dcm4chee.archive.entity.query.types.QSeries;
@@ -76,6 +79,46 @@ class SeriesQuery extends AbstractQuery {
         QPatient.patient.encodedAttributes       // (15)
     };
 
+    private static final Expression<?>[] SELECT_COLUMNS = {
+        QStudy.study.pk,                         // (0)
+        QSeries.series.pk,                       // (1)
+        QStudy.study.numberOfSeries,             // (2)
+        QStudy.study.numberOfSeriesA,            // (3)
+        QStudy.study.numberOfInstances,          // (4)
+        QStudy.study.numberOfInstancesA,         // (5)
+        QSeries.series.numberOfInstances,        // (6)
+        QSeries.series.numberOfInstancesA,       // (7)
+        QStudy.study.modalitiesInStudy,          // (8)
+        QStudy.study.sopClassesInStudy,          // (9)
+        QSeries.series.retrieveAETs,             // (10)
+        QSeries.series.externalRetrieveAET,      // (11)
+        QSeries.series.availability,             // (12)
+        QSeries.series.seriesInstanceUID,        // (13)
+        QSeries.series.seriesNumber,             // (14)
+        QSeries.series.modality,                 // (15)
+        QStudy.study.studyInstanceUID,           // (16)
+        QStudy.study.studyDate,                  // (17)
+        QPatient.patient.patientID,              // (18)
+        ISSUER_OF_PATIENT_ID.localNamespaceEntityID,    // (19)
+        ISSUER_OF_PATIENT_ID.universalEntityID,         // (20)
+        ISSUER_OF_PATIENT_ID.universalEntityIDType      // (21)
+    };
+
+    /**
+     * Attributes of Patient, Study and Series, which are provided by
+     * {@link #SELECT_COLUMNS}.
+     */
+    static final int[] COLUMN_TAGS = {
+        Tag.SpecificCharacterSet,
+        Tag.StudyDate,
+        Tag.Modality,
+        Tag.PatientID,
+        Tag.IssuerOfPatientID,
+        Tag.StudyInstanceUID,
+        Tag.SeriesInstanceUID,
+        Tag.SeriesNumber
+    };
+
     private Long studyPk;
     private Attributes studyAttrs;
 
@@ -83,9 +126,15 @@ class SeriesQuery extends AbstractQuery {
         super(qsf);
     }
 
+    @Override
+    protected boolean selectColumnsOnly(Attributes keys) {
+        return coveredByColumns(keys, COLUMN_TAGS,
+                Entity.Patient, Entity.Study, Entity.Series);
+    }
+
     @Override
     protected Expression<?>[] select() {
-        return SELECT;
+        return columnsOnly ? SELECT_COLUMNS : SELECT;
     }
 
     @Override
@@ -94,33 +143,37 @@ class SeriesQuery extends AbstractQuery {
         QueryBuilder.addPatientLevelPredicates(builder, pids, keys, queryParam);
         QueryBuilder.addStudyLevelPredicates(builder, keys, queryParam);
         QueryBuilder.addSeriesLevelPredicates(builder, keys, queryParam);
-        return new HibernateQuery(session)
+        HibernateQuery query = new HibernateQuery(session)
             .from(QSeries.series)
             .innerJoin(QSeries.series.study, QStudy.study)
-            .innerJoin(QStudy.study.patient, QPatient.patient)
-            .where(builder);
+            .innerJoin(QStudy.study.patient, QPatient.patient);
+        if (columnsOnly)
+            query.leftJoin(QPatient.patient.issuerOfPatientID,
+                    ISSUER_OF_PATIENT_ID);
+        return query.where(builder);
     }
 
     @Override
     public Attributes toAttributes(ScrollableResults results) {
         Long studyPk = results.getLong(0);
-        Long seriesPk = results.getLong(1);
         int[] a = {
                 results.getInteger(6),  // series.numberOfInstances
                 results.getInteger(7)}; // series.numberOfInstancesA
         String retrieveAETs = results.getString(10);
         String externalRetrieveAET = results.getString(11);
         Availability availability = (Availability) results.get(12);
-        byte[] seriesAttributes = results.getBinary(13);
         if (!studyPk.equals(this.studyPk)) {
-            this.studyAttrs = toStudyAttributes(studyPk, results);
+            this.studyAttrs = toStudyAttributes(results);
             this.studyPk = studyPk;
         }
         Attributes attrs = new Attributes(studyAttrs);
-        Utils.decodeAttributes(attrs, seriesAttributes);
-        if (a[0] == -1)
-            a = service.getSeriesService()
-                    .calculateNumberOfSeriesRelatedInstances(seriesPk);
+        if (columnsOnly) {
+            attrs.setString(Tag.SeriesInstanceUID, VR.UI, results.getString(13));
+            setString(attrs, Tag.SeriesNumber, VR.IS, results.getString(14));
+            setString(attrs, Tag.Modality, VR.CS, results.getString(15));
+        } else {
+            Utils.decodeAttributes(attrs, results.getBinary(13), selection);
+        }
         int numberOfSeriesRelatedInstances = 
                 queryParam.isShowRejectedInstances() ? a[1] : a[0];
 
@@ -136,7 +189,7 @@ class SeriesQuery extends AbstractQuery {
         return attrs;
     }
 
-    private Attributes toStudyAttributes(Long studyPk, ScrollableResults results) {
+    private Attributes toStudyAttributes(ScrollableResults results) {
         int[] a = {
                 results.getInteger(2),  // study.numberOfSeries
                 results.getInteger(3),  // study.numberOfSeriesA
@@ -144,14 +197,17 @@ class SeriesQuery extends AbstractQuery {
                 results.getInteger(5)}; // study.numberOfInstancesA
         String modalitiesInStudy = results.getString(8);
         String sopClassesInStudy = results.getString(9);
-        byte[] studyAttributes = results.getBinary(14);
-        byte[] patientAttributes = results.getBinary(15);
         Attributes attrs = new Attributes();
-        Utils.decodeAttributes(attrs, patientAttributes);
-        Utils.decodeAttributes(attrs, studyAttributes);
-        if ((a[0] | a[1] | a[2] | a[3]) < 0)
-            a = service.getSeriesService()
-                    .calculateNumberOfStudyRelatedInstances(studyPk);
+        if (columnsOnly) {
+            setPatientIDWithIssuer(attrs, results, 18);
+            attrs.setString(Tag.StudyInstanceUID, VR.UI, results.getString(16));
+            setString(attrs, Tag.StudyDate, VR.DA, results.getString(17));
+        } else {
+            Utils.decodeAttributes(attrs, results.getBinary(15), // patient
+                    selection);
+            Utils.decodeAttributes(attrs, results.getBinary(14), // study
+                    selection);
+        }
 
         boolean showRejectedInstances = queryParam.isShowRejectedInstances();
         Utils.setStudyQueryAttributes(attrs,
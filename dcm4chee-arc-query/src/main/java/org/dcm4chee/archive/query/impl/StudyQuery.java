@@ -40,6 +40,9 @@ package org.dcm4chee.archive.query.impl;
 
 import org.dcm4che.data.Attributes;
 import org.dcm4che.data.IDWithIssuer;
+import org.dcm4che.data.Tag;
+import org.dcm4che.data.VR;
+import org.dcm4chee.archive.conf.Entity;
 import org.dcm4chee.archive.entity.Availability;
 import org.dcm4chee.archive.entity.query.types.QPatient;
 import org.dcm4chee.archive.entity.query.types.QStudy;
@@ -71,13 +74,50 @@ class StudyQuery extends AbstractQuery {
         QPatient.patient.encodedAttributes      // (11)
     };
 
+    private static final Expression<?>[] SELECT_COLUMNS = {
+        QStudy.study.pk,                        // (0)
+        QStudy.study.numberOfSeries,            // (1)
+        QStudy.study.numberOfSeriesA,           // (2)
+        QStudy.study.numberOfInstances,         // (3)
+        QStudy.study.numberOfInstancesA,        // (4)
+        QStudy.study.modalitiesInStudy,         // (5)
+        QStudy.study.sopClassesInStudy,         // (6)
+        QStudy.study.retrieveAETs,              // (7)
+        QStudy.study.externalRetrieveAET,       // (8)
+        QStudy.study.availability,              // (9)
+        QStudy.study.studyInstanceUID,          // (10)
+        QStudy.study.studyDate,                 // (11)
+        QPatient.patient.patientID,             // (12)
+        ISSUER_OF_PATIENT_ID.localNamespaceEntityID,    // (13)
+        ISSUER_OF_PATIENT_ID.universalEntityID,         // (14)
+        ISSUER_OF_PATIENT_ID.universalEntityIDType      // (15)
+    };
+
+    /**
+     * Attributes of Patient and Study, which are provided by
+     * {@link #SELECT_COLUMNS}.
+     */
+    static final int[] COLUMN_TAGS = {
+        Tag.SpecificCharacterSet,
+        Tag.StudyDate,
+        Tag.PatientID,
+        Tag.IssuerOfPatientID,
+        Tag.StudyInstanceUID
+    };
+
     public StudyQuery(QueryServiceImpl qsf) {
         super(qsf);
     }
 
+    @Override
+    protected boolean selectColumnsOnly(Attributes keys) {
+        return coveredByColumns(keys, COLUMN_TAGS,
+                Entity.Patient, Entity.Study);
+    }
+
     @Override
     protected Expression<?>[] select() {
-        return SELECT;
+        return columnsOnly ? SELECT_COLUMNS : SELECT;
     }
 
     @Override
@@ -85,15 +125,17 @@ class StudyQuery extends AbstractQuery {
         BooleanBuilder builder = new BooleanBuilder();
         QueryBuilder.addPatientLevelPredicates(builder, pids, keys, queryParam);
         QueryBuilder.addStudyLevelPredicates(builder, keys, queryParam);
-        return new HibernateQuery(session)
+        HibernateQuery query = new HibernateQuery(session)
             .from(QStudy.study)
-            .innerJoin(QStudy.study.patient, QPatient.patient)
-            .where(builder);
+            .innerJoin(QStudy.study.patient, QPatient.patient);
+        if (columnsOnly)
+            query.leftJoin(QPatient.patient.issuerOfPatientID,
+                    ISSUER_OF_PATIENT_ID);
+        return query.where(builder);
     }
 
     @Override
     public Attributes toAttributes(ScrollableResults results) {
-        Long studyPk = results.getLong(0);
         int[] a = {
                 results.getInteger(1),  // study.numberOfSeries
                 results.getInteger(2),  // study.numberOfSeriesA
@@ -104,14 +146,17 @@ class StudyQuery extends AbstractQuery {
         String retrieveAETs = results.getString(7);
         String externalRetrieveAET = results.getString(8);
         Availability availability = (Availability) results.get(9);
-        byte[] studyAttributes = results.getBinary(10);
-        byte[] patientAttributes = results.getBinary(11);
         Attributes attrs = new Attributes();
-        Utils.decodeAttributes(attrs, patientAttributes);
-        Utils.decodeAttributes(attrs, studyAttributes);
-        if (a[2] == -1)
-            a = service.getSeriesService()
-                    .calculateNumberOfStudyRelatedInstances(studyPk);
+        if (columnsOnly) {
+            setPatientIDWithIssuer(attrs, results, 12);
+            attrs.setString(Tag.StudyInstanceUID, VR.UI, results.getString(10));
+            setString(attrs, Tag.StudyDate, VR.DA, results.getString(11));
+        } else {
+            Utils.decodeAttributes(attrs, results.getBinary(11), // patient
+                    selection);
+            Utils.decodeAttributes(attrs, results.getBinary(10), // study
+                    selection);
+        }
 
         boolean showRejectedInstances = queryParam.isShowRejectedInstances();
         int numberOfStudyRelatedInstances = showRejectedInstances ? a[3] : a[2];
@@ -0,0 +1,174 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2013
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.query.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.dcm4che.data.Attributes;
+import org.dcm4che.data.Tag;
+import org.dcm4che.data.VR;
+import org.dcm4che.net.service.QueryRetrieveLevel;
+import org.dcm4chee.archive.conf.QueryParam;
+import org.junit.Test;
+
+/**
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ *
+ */
+public class QueryResultCacheKeyTest {
+
+    private static final QueryParam QUERY_PARAM = new QueryParam();
+
+    @Test
+    public void testMayMatchWithoutKeys() {
+        QueryResultCache.Key key = key(new Attributes());
+        assertTrue(key.mayMatch(study("1.2.3", "PID", "ACC", "20130101")));
+    }
+
+    @Test
+    public void testMayMatchStudyInstanceUID() {
+        Attributes keys = new Attributes();
+        keys.setString(Tag.StudyInstanceUID, VR.UI, "1.2.3", "1.2.4");
+        QueryResultCache.Key key = key(keys);
+        assertTrue(key.mayMatch(study("1.2.4", null, null, null)));
+        assertFalse(key.mayMatch(study("1.2.5", null, null, null)));
+        assertTrue(key.mayMatch(new Attributes()));
+    }
+
+    @Test
+    public void testMayMatchPatientID() {
+        Attributes keys = new Attributes();
+        keys.setString(Tag.PatientID, VR.LO, "PID");
+        QueryResultCache.Key key = key(keys);
+        assertTrue(key.mayMatch(study(null, "PID", null, null)));
+        assertFalse(key.mayMatch(study(null, "OTHER", null, null)));
+    }
+
+    @Test
+    public void testMayMatchWildcards() {
+        Attributes keys = new Attributes();
+        keys.setString(Tag.PatientID, VR.LO, "P*");
+        keys.setString(Tag.AccessionNumber, VR.SH, "A?C");
+        QueryResultCache.Key key = key(keys);
+        assertTrue(key.mayMatch(study(null, "OTHER", "OTHER", null)));
+    }
+
+    @Test
+    public void testMayMatchAccessionNumber() {
+        Attributes keys = new Attributes();
+        keys.setString(Tag.AccessionNumber, VR.SH, "ACC");
+        QueryResultCache.Key key = key(keys);
+        assertTrue(key.mayMatch(study(null, null, "ACC", null)));
+        assertFalse(key.mayMatch(study(null, null, "OTHER", null)));
+    }
+
+    @Test
+    public void testMayMatchStudyDate() {
+        Attributes keys = new Attributes();
+        keys.setString(Tag.StudyDate, VR.DA, "20130101");
+        QueryResultCache.Key key = key(keys);
+        assertTrue(key.mayMatch(study(null, null, null, "20130101")));
+        assertFalse(key.mayMatch(study(null, null, null, "20130102")));
+    }
+
+    @Test
+    public void testMayMatchStudyDateRange() {
+        Attributes keys = new Attributes();
+        keys.setString(Tag.StudyDate, VR.DA, "20130101-20130131");
+        QueryResultCache.Key key = key(keys);
+        assertTrue(key.mayMatch(study(null, null, null, "20130101")));
+        assertTrue(key.mayMatch(study(null, null, null, "20130131")));
+        assertFalse(key.mayMatch(study(null, null, null, "20121231")));
+        assertFalse(key.mayMatch(study(null, null, null, "20130201")));
+    }
+
+    @Test
+    public void testMayMatchOpenStudyDateRange() {
+        Attributes keys = new Attributes();
+        keys.setString(Tag.StudyDate, VR.DA, "20130101-");
+        QueryResultCache.Key key = key(keys);
+        assertTrue(key.mayMatch(study(null, null, null, "20140101")));
+        assertFalse(key.mayMatch(study(null, null, null, "20121231")));
+
+        keys.setString(Tag.StudyDate, VR.DA, "-20130101");
+        key = key(keys);
+        assertTrue(key.mayMatch(study(null, null, null, "20121231")));
+        assertFalse(key.mayMatch(study(null, null, null, "20130102")));
+    }
+
+    @Test
+    public void testMayMatchInvalidStudyDate() {
+        Attributes keys = new Attributes();
+        keys.setString(Tag.StudyDate, VR.DA, "20130101");
+        QueryResultCache.Key key = key(keys);
+        assertTrue(key.mayMatch(study(null, null, null, "2013")));
+    }
+
+    @Test
+    public void testEmptyReturnKeysDoNotAffectEquality() {
+        Attributes keys = new Attributes();
+        keys.setString(Tag.PatientID, VR.LO, "PID");
+        Attributes keysWithReturnKeys = new Attributes(keys);
+        keysWithReturnKeys.setNull(Tag.PatientName, VR.PN);
+        keysWithReturnKeys.setNull(Tag.StudyDescription, VR.LO);
+        assertEquals(key(keys), key(keysWithReturnKeys));
+        assertEquals(key(keys).hashCode(), key(keysWithReturnKeys).hashCode());
+    }
+
+    private static QueryResultCache.Key key(Attributes keys) {
+        return new QueryResultCache.Key(QueryRetrieveLevel.STUDY, null, keys,
+                QUERY_PARAM, false, null);
+    }
+
+    private static Attributes study(String studyIUID, String pid,
+            String accessionNumber, String studyDate) {
+        Attributes attrs = new Attributes();
+        if (studyIUID != null)
+            attrs.setString(Tag.StudyInstanceUID, VR.UI, studyIUID);
+        if (pid != null)
+            attrs.setString(Tag.PatientID, VR.LO, pid);
+        if (accessionNumber != null)
+            attrs.setString(Tag.AccessionNumber, VR.SH, accessionNumber);
+        if (studyDate != null)
+            attrs.setString(Tag.StudyDate, VR.DA, studyDate);
+        return attrs;
+    }
+}
@@ -64,6 +64,7 @@ import org.dcm4chee.archive.ArchiveService;
 import org.dcm4chee.archive.conf.ArchiveAEExtension;
 import org.dcm4chee.archive.conf.QueryParam;
 import org.dcm4chee.archive.query.common.QueryPatientNamesService;
+import org.dcm4chee.archive.retrieve.InstanceLocators;
 import org.dcm4chee.archive.retrieve.RetrieveService;
 
 /**
@@ -78,6 +79,8 @@ public class CGetSCP extends BasicCGetSCP {
     private ArchiveService archiveService;
     private RetrieveService retrieveService;
     private QueryPatientNamesService queryPatientNamesService;
+    private PrefetchMemory prefetchMemory;
+    private TranscodeCache transcodeCache;
 
     private DicomServiceRegistry registry = null; 
 
@@ -101,6 +104,14 @@ public class CGetSCP extends BasicCGetSCP {
         this.queryPatientNamesService = queryPatientNamesService;
     }
 
+    public void setPrefetchMemory(PrefetchMemory prefetchMemory) {
+        this.prefetchMemory = prefetchMemory;
+    }
+
+    public void setTranscodeCache(TranscodeCache transcodeCache) {
+        this.transcodeCache = transcodeCache;
+    }
+
     public void init() {
         registry = archiveService.getServiceRegistry();
         registry.addDicomService(this);
@@ -143,7 +154,8 @@ public class CGetSCP extends BasicCGetSCP {
                     ? new IDWithIssuer[]{ pid }
                     : IDWithIssuer.EMPTY;
             List<InstanceLocator> matches = 
-                    retrieveService.calculateMatches(pids, keys, queryParam);
+                    new InstanceLocators(retrieveService,
+                            pids, keys, queryParam);
             RetrieveTaskImpl retrieveTask = new RetrieveTaskImpl(
                     C_GET, as, pc, rq, matches, pids,
                     queryPatientNamesService, withoutBulkData);
@@ -152,6 +164,9 @@ public class CGetSCP extends BasicCGetSCP {
             retrieveTask.setSendPendingRSP(aeExt.isSendPendingCGet());
             retrieveTask.setReturnOtherPatientIDs(aeExt.isReturnOtherPatientIDs());
             retrieveTask.setReturnOtherPatientNames(aeExt.isReturnOtherPatientNames());
+            retrieveTask.setTranscodeCache(transcodeCache);
+            retrieveTask.setPrefetch(aeExt.getRetrievePrefetchDepth(),
+                    prefetchMemory);
             return retrieveTask;
         } catch (Exception e) {
             throw new DicomServiceException(Status.UnableToCalculateNumberOfMatches, e);
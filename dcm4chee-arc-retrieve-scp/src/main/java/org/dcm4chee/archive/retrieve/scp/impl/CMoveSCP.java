@@ -55,6 +55,7 @@ import org.dcm4che.net.Association;
 import org.dcm4che.net.IncompatibleConnectionException;
 import org.dcm4che.net.QueryOption;
 import org.dcm4che.net.Status;
+import org.dcm4che.net.pdu.AAssociateRQ;
 import org.dcm4che.net.pdu.ExtendedNegotiation;
 import org.dcm4che.net.pdu.PresentationContext;
 import org.dcm4che.net.service.BasicCMoveSCP;
@@ -65,8 +66,10 @@ import org.dcm4che.net.service.QueryRetrieveLevel;
 import org.dcm4che.net.service.RetrieveTask;
 import org.dcm4chee.archive.ArchiveService;
 import org.dcm4chee.archive.conf.ArchiveAEExtension;
+import org.dcm4chee.archive.conf.ArchiveDeviceExtension;
 import org.dcm4chee.archive.conf.QueryParam;
 import org.dcm4chee.archive.query.common.QueryPatientNamesService;
+import org.dcm4chee.archive.retrieve.InstanceLocators;
 import org.dcm4chee.archive.retrieve.RetrieveService;
 
 /**
@@ -80,6 +83,9 @@ public class CMoveSCP extends BasicCMoveSCP {
     private ArchiveService archiveService;
     private RetrieveService retrieveService;
     private QueryPatientNamesService queryPatientNamesService;
+    private StoreAssociationLimiter storeAssociationLimiter;
+    private PrefetchMemory prefetchMemory;
+    private TranscodeCache transcodeCache;
 
     private DicomServiceRegistry registry = null; 
 
@@ -101,6 +107,19 @@ public class CMoveSCP extends BasicCMoveSCP {
         this.queryPatientNamesService = queryPatientNamesService;
     }
 
+    public void setStoreAssociationLimiter(
+            StoreAssociationLimiter storeAssociationLimiter) {
+        this.storeAssociationLimiter = storeAssociationLimiter;
+    }
+
+    public void setPrefetchMemory(PrefetchMemory prefetchMemory) {
+        this.prefetchMemory = prefetchMemory;
+    }
+
+    public void setTranscodeCache(TranscodeCache transcodeCache) {
+        this.transcodeCache = transcodeCache;
+    }
+
     public void init() {
         registry = archiveService.getServiceRegistry();
         registry.addDicomService(this);
@@ -144,14 +163,23 @@ public class CMoveSCP extends BasicCMoveSCP {
                     ? new IDWithIssuer[]{ pid }
                     : IDWithIssuer.EMPTY;
             List<InstanceLocator> matches =
-                    retrieveService.calculateMatches(pids, keys, queryParam);
+                    new InstanceLocators(retrieveService,
+                            pids, keys, queryParam);
+            final int maxOpsInvoked = aeExt.getMoveMaxOpsInvoked();
             RetrieveTaskImpl retrieveTask = new RetrieveTaskImpl(C_MOVE, as,
                     pc, rq, matches, pids, queryPatientNamesService, false) {
     
                 @Override
                 protected Association getStoreAssociation() throws DicomServiceException {
+                    AAssociateRQ aarq = makeAAssociateRQ();
+                    if (maxOpsInvoked != 1) {
+                        // propose Asynchronous Operations Window, so C-STORE
+                        // RQs are sent without waiting for previous RSPs
+                        aarq.setMaxOpsInvoked(maxOpsInvoked);
+                        aarq.setMaxOpsPerformed(1);
+                    }
                     try {
-                        return as.getApplicationEntity().connect(destAE, makeAAssociateRQ());
+                        return as.getApplicationEntity().connect(destAE, aarq);
                     } catch (IOException e) {
                         throw new DicomServiceException(Status.UnableToPerformSubOperations, e);
                     } catch (InterruptedException e) {
@@ -168,6 +196,22 @@ public class CMoveSCP extends BasicCMoveSCP {
             retrieveTask.setSendPendingRSPInterval(aeExt.getSendPendingCMoveInterval());
             retrieveTask.setReturnOtherPatientIDs(aeExt.isReturnOtherPatientIDs());
             retrieveTask.setReturnOtherPatientNames(aeExt.isReturnOtherPatientNames());
+            retrieveTask.setTranscodeCache(transcodeCache);
+            retrieveTask.setPrefetch(aeExt.getRetrievePrefetchDepth(),
+                    prefetchMemory);
+            int maxAssociations = Math.min(aeExt.getMoveStoreAssociations(),
+                    matches.size());
+            if (maxAssociations > 1) {
+                ArchiveDeviceExtension arcDev = ae.getDevice()
+                        .getDeviceExtension(ArchiveDeviceExtension.class);
+                ParallelCMoveTask parallelTask = new ParallelCMoveTask(
+                        retrieveTask, as, pc, rq, dest,
+                        storeAssociationLimiter, maxAssociations,
+                        arcDev.getMaxStoreAssociationsPerDestination());
+                parallelTask.setSendPendingRSPInterval(
+                        aeExt.getSendPendingCMoveInterval());
+                return parallelTask;
+            }
             return retrieveTask;
         } catch (ConfigurationNotFoundException e) {
             throw new DicomServiceException(Status.MoveDestinationUnknown,
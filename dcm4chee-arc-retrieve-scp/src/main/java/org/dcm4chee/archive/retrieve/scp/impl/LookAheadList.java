@@ -0,0 +1,125 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2013
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.archive.retrieve.scp.impl;
+
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.dcm4che.net.service.InstanceLocator;
+
+/**
+ * Wraps the list of matching instances, so iterators fetch the elements
+ * from the underlying list a number of elements in advance, which are
+ * provided by {@link #ahead()} for prefetching.
+ * 
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ *
+ */
+class LookAheadList extends AbstractList<InstanceLocator> {
+
+    private final List<InstanceLocator> list;
+    private final ArrayDeque<InstanceLocator> ahead =
+            new ArrayDeque<InstanceLocator>();
+    private int depth;
+
+    public LookAheadList(List<InstanceLocator> list) {
+        this.list = list;
+    }
+
+    public void setDepth(int depth) {
+        this.depth = depth;
+    }
+
+    @Override
+    public int size() {
+        return list.size();
+    }
+
+    @Override
+    public InstanceLocator get(int index) {
+        return list.get(index);
+    }
+
+    /**
+     * Returns the elements already fetched from the underlying list by
+     * the last created iterator, but not yet returned by its
+     * {@link Iterator#next()}.
+     */
+    public synchronized List<InstanceLocator> ahead() {
+        return new ArrayList<InstanceLocator>(ahead);
+    }
+
+    @Override
+    public Iterator<InstanceLocator> iterator() {
+        final Iterator<InstanceLocator> it = list.iterator();
+        synchronized (this) {
+            ahead.clear();
+        }
+        return new Iterator<InstanceLocator>() {
+
+            @Override
+            public boolean hasNext() {
+                synchronized (LookAheadList.this) {
+                    return !ahead.isEmpty() || it.hasNext();
+                }
+            }
+
+            @Override
+            public InstanceLocator next() {
+                synchronized (LookAheadList.this) {
+                    while (ahead.size() <= depth && it.hasNext())
+                        ahead.add(it.next());
+                    if (ahead.isEmpty())
+                        throw new NoSuchElementException();
+                    return ahead.poll();
+                }
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
@@ -0,0 +1,353 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2013
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.archive.retrieve.scp.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.dcm4che.data.Attributes;
+import org.dcm4che.data.Tag;
+import org.dcm4che.data.VR;
+import org.dcm4che.net.Association;
+import org.dcm4che.net.Commands;
+import org.dcm4che.net.DataWriter;
+import org.dcm4che.net.Dimse;
+import org.dcm4che.net.DimseRSPHandler;
+import org.dcm4che.net.Status;
+import org.dcm4che.net.pdu.PresentationContext;
+import org.dcm4che.net.service.DicomServiceException;
+import org.dcm4che.net.service.InstanceLocator;
+import org.dcm4che.net.service.RetrieveTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * C-MOVE task, which sends the matching instances over several Store
+ * Associations to the Move Destination in parallel. The instances are
+ * handed out one by one to the Store Associations, so a slower Association
+ * sends less instances. Completed, warning and failed sub-operations of all
+ * Associations are aggregated in the C-MOVE responses.
+ * 
+ * Opening of additional Store Associations, rejected by the Move
+ * Destination, is ignored; only the failure to open the first Store
+ * Association fails the C-MOVE.
+ * 
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ *
+ */
+class ParallelCMoveTask implements RetrieveTask {
+
+    private static final Logger LOG =
+            LoggerFactory.getLogger(ParallelCMoveTask.class);
+
+    private final RetrieveTaskImpl task;
+    private final Association as;
+    private final PresentationContext pc;
+    private final Attributes rq;
+    private final int msgId;
+    private final int priority;
+    private final List<InstanceLocator> matches;
+    private final Iterator<InstanceLocator> iter;
+    private final String destAET;
+    private final StoreAssociationLimiter limiter;
+    private final int maxAssociations;
+    private final int maxAssociationsPerDestination;
+    private int sendPendingRSPInterval;
+    private long lastPendingRSP;
+    private volatile boolean canceled;
+    private int completed;
+    private int warning;
+    private int failed;
+    private final ArrayList<String> failedIUIDs = new ArrayList<String>();
+
+    public ParallelCMoveTask(RetrieveTaskImpl task, Association as,
+            PresentationContext pc, Attributes rq, String destAET,
+            StoreAssociationLimiter limiter, int maxAssociations,
+            int maxAssociationsPerDestination) {
+        this.task = task;
+        this.as = as;
+        this.pc = pc;
+        this.rq = rq;
+        this.msgId = rq.getInt(Tag.MessageID, -1);
+        this.priority = rq.getInt(Tag.Priority, 0);
+        this.matches = task.matches();
+        this.iter = matches.iterator();
+        this.destAET = destAET;
+        this.limiter = limiter;
+        this.maxAssociations = maxAssociations;
+        this.maxAssociationsPerDestination = maxAssociationsPerDestination;
+    }
+
+    public void setSendPendingRSPInterval(int sendPendingRSPInterval) {
+        this.sendPendingRSPInterval = sendPendingRSPInterval;
+    }
+
+    @Override
+    public void onCancelRQ(Association as) {
+        canceled = true;
+    }
+
+    @Override
+    public void run() {
+        as.addCancelRQHandler(msgId, this);
+        try {
+            List<Association> storeAssocs = openStoreAssociations();
+            lastPendingRSP = System.currentTimeMillis();
+            CountDownLatch done = new CountDownLatch(storeAssocs.size());
+            for (int i = 1; i < storeAssocs.size(); i++)
+                as.getApplicationEntity().getDevice().execute(
+                        new Sender(storeAssocs.get(i), done));
+            new Sender(storeAssocs.get(0), done).run();
+            done.await();
+            writeFinalRSP();
+        } catch (DicomServiceException e) {
+            writeRSP(e.mkRSP(Dimse.C_MOVE_RSP.commandField(), msgId), null);
+        } catch (InterruptedException e) {
+            LOG.info("{}: Interrupted while waiting for sub-operations", as);
+            writeRSP(Status.UnableToPerformSubOperations);
+        } finally {
+            as.removeCancelRQHandler(msgId);
+            task.close();
+        }
+    }
+
+    private List<Association> openStoreAssociations()
+            throws DicomServiceException {
+        int n = limiter.acquire(destAET, maxAssociations,
+                maxAssociationsPerDestination);
+        ArrayList<Association> storeAssocs = new ArrayList<Association>(n);
+        try {
+            storeAssocs.add(task.openStoreAssociation());
+            while (storeAssocs.size() < n) {
+                try {
+                    storeAssocs.add(task.openStoreAssociation());
+                } catch (DicomServiceException e) {
+                    LOG.info("{}: Failed to open additional Association to {}: {}",
+                            as, destAET, e.getMessage());
+                    break;
+                }
+            }
+        } finally {
+            limiter.release(destAET, n - storeAssocs.size());
+        }
+        LOG.debug("{}: Opened {} Associations to {}",
+                as, storeAssocs.size(), destAET);
+        return storeAssocs;
+    }
+
+    private InstanceLocator next() {
+        synchronized (iter) {
+            return !canceled && iter.hasNext() ? iter.next() : null;
+        }
+    }
+
+    private final class Sender implements Runnable {
+
+        private final Association storeas;
+        private final CountDownLatch done;
+
+        Sender(Association storeas, CountDownLatch done) {
+            this.storeas = storeas;
+            this.done = done;
+        }
+
+        @Override
+        public void run() {
+            try {
+                InstanceLocator inst;
+                while ((inst = next()) != null)
+                    cstore(storeas, inst);
+                storeas.waitForOutstandingRSP();
+            } catch (InterruptedException e) {
+                LOG.info("{}: Interrupted while waiting for C-STORE RSPs", storeas);
+            } finally {
+                task.release(storeas);
+                try {
+                    storeas.release();
+                } catch (IOException e) {
+                    LOG.info("{}: Failed to release association to {}",
+                            storeas, destAET);
+                }
+                limiter.release(destAET, 1);
+                done.countDown();
+            }
+        }
+    }
+
+    private void cstore(Association storeas, InstanceLocator inst) {
+        String tsuid;
+        DataWriter dataWriter;
+        try {
+            tsuid = RetrieveTaskImpl.selectTransferSyntax(storeas, inst);
+            dataWriter = task.createDataWriter(storeas, inst, tsuid);
+        } catch (Exception e) {
+            LOG.info("{}: Unable to retrieve {}/{} to {}: {}", storeas,
+                    inst.cuid, inst.iuid, destAET, e);
+            onFailed(inst);
+            return;
+        }
+        CStoreRSPHandler rspHandler =
+                new CStoreRSPHandler(storeas.nextMessageID(), inst);
+        try {
+            storeas.cstore(inst.cuid, inst.iuid, priority,
+                    as.getRemoteAET(), msgId, dataWriter, tsuid, rspHandler);
+        } catch (Exception e) {
+            LOG.info("{}: Unable to send {}/{} to {}: {}", storeas,
+                    inst.cuid, inst.iuid, destAET, e);
+            // the handler may be registered already and notified by onClose
+            if (rspHandler.outcome())
+                onFailed(inst);
+        }
+    }
+
+    /**
+     * Accounts the outcome of one C-STORE sub-operation once, even if
+     * sending the request failed after the handler was registered and the
+     * failure is also notified by {@link #onClose}.
+     */
+    private final class CStoreRSPHandler extends DimseRSPHandler {
+
+        private final InstanceLocator inst;
+        private final AtomicBoolean accounted = new AtomicBoolean();
+
+        CStoreRSPHandler(int msgId, InstanceLocator inst) {
+            super(msgId);
+            this.inst = inst;
+        }
+
+        /**
+         * Returns {@code true} for the first outcome of the sub-operation.
+         */
+        boolean outcome() {
+            return accounted.compareAndSet(false, true);
+        }
+
+        @Override
+        public void onDimseRSP(Association storeas, Attributes cmd,
+                Attributes data) {
+            super.onDimseRSP(storeas, cmd, data);
+            if (!outcome())
+                return;
+
+            int storeStatus = cmd.getInt(Tag.Status, -1);
+            if (storeStatus == Status.Success)
+                onCompleted();
+            else if ((storeStatus & 0xF000) == 0xB000)
+                onWarning();
+            else
+                onFailed(inst);
+        }
+
+        @Override
+        public void onClose(Association storeas) {
+            super.onClose(storeas);
+            if (outcome())
+                onFailed(inst);
+        }
+    }
+
+    private synchronized void onCompleted() {
+        completed++;
+        writePendingRSP();
+    }
+
+    private synchronized void onWarning() {
+        warning++;
+        writePendingRSP();
+    }
+
+    private synchronized void onFailed(InstanceLocator inst) {
+        failed++;
+        failedIUIDs.add(inst.iuid);
+        writePendingRSP();
+    }
+
+    private void writePendingRSP() {
+        if (sendPendingRSPInterval <= 0 || canceled)
+            return;
+
+        long now = System.currentTimeMillis();
+        if (now - lastPendingRSP < sendPendingRSPInterval)
+            return;
+
+        lastPendingRSP = now;
+        writeRSP(Status.Pending);
+    }
+
+    private synchronized void writeFinalRSP() {
+        if (canceled)
+            writeRSP(Status.Cancel);
+        else if (failed == 0 && warning == 0)
+            writeRSP(Status.Success);
+        else if (completed == 0 && warning == 0)
+            writeRSP(Status.UnableToPerformSubOperations);
+        else
+            writeRSP(Status.OneOrMoreFailures);
+    }
+
+    private synchronized void writeRSP(int status) {
+        Attributes cmd = Commands.mkCMoveRSP(rq, status);
+        if (status == Status.Pending || status == Status.Cancel)
+            cmd.setInt(Tag.NumberOfRemainingSuboperations, VR.US,
+                    Math.max(0, matches.size() - completed - warning - failed));
+        cmd.setInt(Tag.NumberOfCompletedSuboperations, VR.US, completed);
+        cmd.setInt(Tag.NumberOfFailedSuboperations, VR.US, failed);
+        cmd.setInt(Tag.NumberOfWarningSuboperations, VR.US, warning);
+        Attributes data = null;
+        if (status != Status.Pending && !failedIUIDs.isEmpty()) {
+            data = new Attributes(1);
+            data.setString(Tag.FailedSOPInstanceUIDList, VR.UI,
+                    failedIUIDs.toArray(new String[failedIUIDs.size()]));
+        }
+        writeRSP(cmd, data);
+    }
+
+    private void writeRSP(Attributes cmd, Attributes data) {
+        try {
+            as.writeDimseRSP(pc, cmd, data);
+        } catch (IOException e) {
+            LOG.info("{}: Failed to send C-MOVE RSP: {}", as, e);
+        }
+    }
+}
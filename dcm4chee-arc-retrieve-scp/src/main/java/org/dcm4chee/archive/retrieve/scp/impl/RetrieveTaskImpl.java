@@ -38,8 +38,20 @@
 
 package org.dcm4chee.archive.retrieve.scp.impl;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import javax.xml.transform.Templates;
 
@@ -53,6 +65,7 @@ import org.dcm4che.data.VR;
 import org.dcm4che.imageio.codec.Decompressor;
 import org.dcm4che.io.DicomInputStream;
 import org.dcm4che.io.DicomInputStream.IncludeBulkData;
+import org.dcm4che.io.DicomOutputStream;
 import org.dcm4che.io.SAXTransformer;
 import org.dcm4che.net.ApplicationEntity;
 import org.dcm4che.net.Association;
@@ -60,16 +73,24 @@ import org.dcm4che.net.DataWriter;
 import org.dcm4che.net.DataWriterAdapter;
 import org.dcm4che.net.Device;
 import org.dcm4che.net.Dimse;
+import org.dcm4che.net.PDVOutputStream;
 import org.dcm4che.net.TransferCapability.Role;
 import org.dcm4che.net.pdu.PresentationContext;
 import org.dcm4che.net.service.BasicRetrieveTask;
+import org.dcm4che.net.service.DicomServiceException;
 import org.dcm4che.net.service.InstanceLocator;
 import org.dcm4che.util.SafeClose;
 import org.dcm4che.util.StringUtils;
 import org.dcm4chee.archive.conf.ArchiveAEExtension;
+import org.dcm4chee.archive.conf.ArchiveDeviceExtension;
 import org.dcm4chee.archive.query.common.QueryPatientNamesService;
+import org.dcm4chee.archive.retrieve.ArchiveInstanceLocator;
 
 /**
+ * If a prefetch depth is configured, the next instances are read, patched
+ * and - as far as the memory limit for prefetching permits - encoded in
+ * advance on the device's executor, while the current instance is sent.
+ * 
  * @author Gunter Zeilinger <gunterze@gmail.com>
  * @author Michael Backhaus <michael.backhaus@agfa.com>
  */
@@ -83,12 +104,31 @@ class RetrieveTaskImpl extends BasicRetrieveTask {
     private boolean returnOtherPatientNames;
     private Issuer requestedIssuerOfPatientID;
     private Issuer requestedIssuerOfAccessionNumber;
+    private final LookAheadList matches;
+    private PrefetchMemory prefetchMemory;
+    private Association storeas;
+    private final IdentityHashMap<InstanceLocator, Prefetch> prefetches =
+            new IdentityHashMap<InstanceLocator, Prefetch>();
+    private final IdentityHashMap<Association, Prefetch> served =
+            new IdentityHashMap<Association, Prefetch>();
+    private TranscodeCache transcodeCache;
+    private final List<TranscodeCache.Entry> transcoded =
+            new ArrayList<TranscodeCache.Entry>();
 
     public RetrieveTaskImpl(BasicRetrieveTask.Service service, Association as,
             PresentationContext pc, Attributes rq, List<InstanceLocator> matches,
             IDWithIssuer[] pids, QueryPatientNamesService queryPatientNamesService,
             boolean withoutBulkData) {
+        this(service, as, pc, rq, new LookAheadList(matches), pids,
+                queryPatientNamesService, withoutBulkData);
+    }
+
+    private RetrieveTaskImpl(BasicRetrieveTask.Service service, Association as,
+            PresentationContext pc, Attributes rq, LookAheadList matches,
+            IDWithIssuer[] pids, QueryPatientNamesService queryPatientNamesService,
+            boolean withoutBulkData) {
         super(service, as, pc, rq, matches);
+        this.matches = matches;
         this.pids = pids;
         this.queryPatientNamesService = queryPatientNamesService;
         this.withoutBulkData = withoutBulkData;
@@ -107,8 +147,44 @@ class RetrieveTaskImpl extends BasicRetrieveTask {
         this.returnOtherPatientNames = returnOtherPatientNames;
     }
 
+    /**
+     * @param depth number of instances read ahead, 0 disables prefetching
+     * @param prefetchMemory accounts the memory used for prefetching by all
+     *        retrieves
+     */
+    public void setPrefetch(int depth, PrefetchMemory prefetchMemory) {
+        this.matches.setDepth(depth);
+        this.prefetchMemory = depth > 0 ? prefetchMemory : null;
+    }
+
+    public void setTranscodeCache(TranscodeCache transcodeCache) {
+        this.transcodeCache = transcodeCache;
+    }
+
+    /**
+     * Returns the matching instances, iterated by {@link ParallelCMoveTask}
+     * over all Store Associations, so following instances are prefetched
+     * as on a single Store Association.
+     */
+    List<InstanceLocator> matches() {
+        return matches;
+    }
+
+    /**
+     * Opens a further Store Association, used by {@link ParallelCMoveTask}.
+     */
+    Association openStoreAssociation() throws DicomServiceException {
+        return getStoreAssociation();
+    }
+
     @Override
     protected String selectTransferSyntaxFor(Association storeas, InstanceLocator inst) {
+        this.storeas = storeas;
+        return selectTransferSyntax(storeas, inst);
+    }
+
+    static String selectTransferSyntax(Association storeas,
+            InstanceLocator inst) {
         if (storeas.getTransferSyntaxesFor(inst.cuid).contains(inst.tsuid))
             return inst.tsuid;
         
@@ -118,8 +194,188 @@ class RetrieveTaskImpl extends BasicRetrieveTask {
     @Override
     protected DataWriter createDataWriter(InstanceLocator inst, String tsuid)
             throws IOException {
+        return createDataWriter(storeas, inst, tsuid);
+    }
+
+    /**
+     * Returns the Data Writer for sending {@code inst} over {@code storeas}.
+     * Invoked by {@link ParallelCMoveTask} concurrently for all its Store
+     * Associations, so the prefetched instance served to one Store
+     * Association is kept until the next instance is sent over the same
+     * Store Association and following instances are prefetched in the
+     * Transfer Syntax selected for the requesting Store Association.
+     */
+    DataWriter createDataWriter(Association storeas, InstanceLocator inst,
+            String tsuid) throws IOException {
+        Prefetch prefetch;
+        synchronized (prefetches) {
+            release(served.remove(storeas));
+            prefetch = prefetches.remove(inst);
+        }
+        prefetchAhead(storeas);
+        if (prefetch != null) {
+            if (prefetch.tsuid.equals(tsuid)) {
+                synchronized (prefetches) {
+                    served.put(storeas, prefetch);
+                }
+                return prefetch.get();
+            }
+            prefetch.release();
+        }
+        TranscodeCache.Entry entry = transcode(inst, tsuid);
+        if (entry == null)
+            return readDataWriter(inst, tsuid);
+
+        try {
+            return releaseAfterWrite(
+                    readDataWriter(transcoded(inst, tsuid, entry), tsuid),
+                    entry);
+        } catch (IOException | RuntimeException e) {
+            releaseTranscoded(entry);
+            throw e;
+        }
+    }
+
+    private DataWriter readDataWriter(InstanceLocator inst, String tsuid)
+            throws IOException {
+        Templates tpl = coercionTemplates(inst);
+        if (isPatchable(inst, tsuid, tpl)) {
+            DataWriter writer = createPatchedFileDataWriter(inst);
+            if (writer != null)
+                return writer;
+        }
+        return new DataWriterAdapter(readAttributes(inst, tsuid, tpl));
+    }
+
+    /**
+     * Releases the decompressed copy in the transcode cache, as soon as
+     * the C-STORE RQ was written; copies of C-STOREs, which could not be
+     * sent, are released by {@link #close()}.
+     */
+    private DataWriter releaseAfterWrite(final DataWriter writer,
+            final TranscodeCache.Entry entry) {
+        return new DataWriter() {
+
+            @Override
+            public void writeTo(PDVOutputStream out, String tsuid)
+                    throws IOException {
+                try {
+                    writer.writeTo(out, tsuid);
+                } finally {
+                    releaseTranscoded(entry);
+                }
+            }
+        };
+    }
+
+    /**
+     * Releases the prefetched instance last served to {@code storeas}, after
+     * all instances were sent over {@code storeas}.
+     */
+    void release(Association storeas) {
+        synchronized (prefetches) {
+            release(served.remove(storeas));
+        }
+    }
+
+    private static void release(Prefetch prefetch) {
+        if (prefetch != null)
+            prefetch.release();
+    }
+
+    private void prefetchAhead(Association storeas) {
+        if (prefetchMemory == null || storeas == null)
+            return;
+
+        for (InstanceLocator inst : matches.ahead()) {
+            Prefetch prefetch;
+            synchronized (prefetches) {
+                if (prefetches.containsKey(inst))
+                    continue;
+                prefetch = new Prefetch(inst, selectTransferSyntax(storeas, inst));
+                prefetches.put(inst, prefetch);
+            }
+            as.getApplicationEntity().getDevice().execute(prefetch.future);
+        }
+    }
+
+    /**
+     * Returns the decompressed copy of the stored file from the transcode
+     * cache, if the instance has to be decompressed and the transcode cache
+     * is configured; otherwise returns {@code null}. The copy must be
+     * released by {@link #releaseTranscoded}.
+     */
+    private TranscodeCache.Entry transcode(InstanceLocator inst, String tsuid)
+            throws IOException {
+        if (transcodeCache == null || withoutBulkData
+                || tsuid.equals(inst.tsuid))
+            return null;
+
+        Device device = as.getApplicationEntity().getDevice();
+        TranscodeCache.Entry entry = transcodeCache.get(
+                device.getDeviceExtension(ArchiveDeviceExtension.class),
+                inst, tsuid);
+        if (entry != null)
+            synchronized (transcoded) {
+                transcoded.add(entry);
+            }
+        return entry;
+    }
+
+    /**
+     * Releases the copy once, even if the C-STORE RQ was written and the
+     * retrieve is closed concurrently.
+     */
+    private void releaseTranscoded(TranscodeCache.Entry entry) {
+        synchronized (transcoded) {
+            if (!transcoded.remove(entry))
+                return;
+        }
+        entry.release();
+    }
+
+    /**
+     * Returns the locator of the decompressed copy of the stored file.
+     */
+    private static InstanceLocator transcoded(InstanceLocator inst,
+            String tsuid, TranscodeCache.Entry entry) {
+        String uri = entry.getFile().toURI().toString();
+        if (inst instanceof ArchiveInstanceLocator) {
+            ArchiveInstanceLocator arcInst = (ArchiveInstanceLocator) inst;
+            return new ArchiveInstanceLocator(inst.cuid, inst.iuid, tsuid,
+                    uri, -1L, arcInst.getSeriesAttributes(),
+                    arcInst.getEncodedAttributes());
+        }
+        InstanceLocator copy = new InstanceLocator(inst.cuid, inst.iuid,
+                tsuid, uri);
+        copy.setObject(inst.getObject());
+        return copy;
+    }
+
+    private Templates coercionTemplates(InstanceLocator inst)
+            throws IOException {
+        ApplicationEntity ae = as.getApplicationEntity();
+        ArchiveAEExtension aeExt = ae.getAEExtension(ArchiveAEExtension.class);
+        try {
+            return aeExt.getAttributeCoercionTemplates(
+                    inst.cuid, Dimse.C_STORE_RQ, Role.SCU, as.getRemoteAET());
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    private boolean isPatchable(InstanceLocator inst, String tsuid,
+            Templates tpl) {
+        return tpl == null && !withoutBulkData && tsuid.equals(inst.tsuid)
+                && !tsuid.equals(UID.DeflatedExplicitVRLittleEndian);
+    }
+
+    private Attributes readAttributes(InstanceLocator inst, String tsuid,
+            Templates tpl) throws IOException {
         Attributes attrs;
-        DicomInputStream in = new DicomInputStream(inst.getFile());
+        DicomInputStream in = withoutBulkData
+                ? openAttributesPrecedingPixelData(inst)
+                : new DicomInputStream(inst.getFile());
         try {
             if (withoutBulkData) {
                 in.setIncludeBulkData(IncludeBulkData.NO);
@@ -137,20 +393,310 @@ class RetrieveTaskImpl extends BasicRetrieveTask {
 
         adjustPatientID(attrs);
         adjustAccessionNumber(attrs);
-        ApplicationEntity ae = as.getApplicationEntity();
-        ArchiveAEExtension aeExt = ae.getAEExtension(ArchiveAEExtension.class);
-        try {
-            Templates tpl = aeExt.getAttributeCoercionTemplates(
-                    inst.cuid, Dimse.C_STORE_RQ, Role.SCU, as.getRemoteAET());
-            if (tpl != null)
+        if (tpl != null)
+            try {
                 attrs.update(SAXTransformer.transform(attrs, tpl, false, false), null);
-        } catch (Exception e) {
-            throw new IOException(e);
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+        return attrs;
+    }
+
+    /**
+     * Reads an instance in advance. The encoded data set is kept in memory,
+     * if its estimated size does not exceed the remaining memory for
+     * prefetching, otherwise only the parsed attributes are kept.
+     */
+    private final class Prefetch implements Callable<DataWriter> {
+
+        final InstanceLocator inst;
+        final String tsuid;
+        final FutureTask<DataWriter> future = new FutureTask<DataWriter>(this);
+        private long acquired;
+        private boolean released;
+        private TranscodeCache.Entry entry;
+
+        Prefetch(InstanceLocator inst, String tsuid) {
+            this.inst = inst;
+            this.tsuid = tsuid;
+        }
+
+        @Override
+        public DataWriter call() throws Exception {
+            TranscodeCache.Entry entry = transcode(inst, tsuid);
+            if (entry == null)
+                return read(inst);
+
+            synchronized (this) {
+                if (released) {
+                    releaseTranscoded(entry);
+                    return null;
+                }
+                this.entry = entry;
+            }
+            try {
+                return releaseAfterWrite(
+                        read(transcoded(inst, tsuid, entry)), entry);
+            } catch (Exception e) {
+                releaseTranscoded(entry);
+                throw e;
+            }
+        }
+
+        private DataWriter read(InstanceLocator inst) throws Exception {
+            File file = inst.getFile();
+            Templates tpl = coercionTemplates(inst);
+            if (isPatchable(inst, tsuid, tpl)) {
+                PatchedFileDataWriter writer = createPatchedFileDataWriter(inst);
+                if (writer != null)
+                    return acquire(file.length())
+                            ? buffered(writer.encode(tsuid))
+                            : writer;
+            }
+            Attributes attrs = readAttributes(inst, tsuid, tpl);
+            if (tsuid.equals(UID.DeflatedExplicitVRLittleEndian)
+                    || !acquire(estimateLength(inst, file, attrs)))
+                return new DataWriterAdapter(attrs);
+
+            ByteArrayOutputStream bout = new ByteArrayOutputStream(
+                    (int) Math.min(acquired, Integer.MAX_VALUE));
+            DicomOutputStream dos = new DicomOutputStream(bout, tsuid);
+            dos.writeDataset(null, attrs);
+            dos.flush();
+            return buffered(bout.toByteArray());
+        }
+
+        private long estimateLength(InstanceLocator inst, File file,
+                Attributes attrs) {
+            long length = file.length();
+            if (!tsuid.equals(inst.tsuid))
+                length += (long) attrs.getInt(Tag.Rows, 0)
+                        * attrs.getInt(Tag.Columns, 0)
+                        * attrs.getInt(Tag.SamplesPerPixel, 1)
+                        * ((attrs.getInt(Tag.BitsAllocated, 8) + 7) >> 3)
+                        * attrs.getInt(Tag.NumberOfFrames, 1);
+            return length;
+        }
+
+        private synchronized boolean acquire(long length) {
+            if (released || length > Integer.MAX_VALUE
+                    || !prefetchMemory.tryAcquire(length, maxPrefetchMemory()))
+                return false;
+
+            acquired = length;
+            return true;
+        }
+
+        private synchronized DataWriter buffered(final byte[] data) {
+            if (!released) {
+                prefetchMemory.release(acquired - data.length);
+                acquired = data.length;
+            }
+            return new DataWriter() {
+
+                @Override
+                public void writeTo(PDVOutputStream out, String tsuid)
+                        throws IOException {
+                    out.write(data);
+                }
+            };
+        }
+
+        synchronized void release() {
+            future.cancel(false);
+            released = true;
+            prefetchMemory.release(acquired);
+            acquired = 0;
+            if (entry != null)
+                releaseTranscoded(entry);
+        }
+
+        DataWriter get() throws IOException {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException)
+                    throw (IOException) cause;
+                throw new IOException(cause);
+            }
         }
-        return new DataWriterAdapter(attrs);
     }
 
-    private void adjustPatientID(Attributes attrs) {
+    private long maxPrefetchMemory() {
+        ArchiveDeviceExtension arcDev = as.getApplicationEntity().getDevice()
+                .getDeviceExtension(ArchiveDeviceExtension.class);
+        return arcDev != null ? arcDev.getRetrievePrefetchMemory() : 0L;
+    }
+
+    /**
+     * Only parses the attributes preceding the Pixel Data of the stored file,
+     * which are patched and re-encoded. The Pixel Data and any following
+     * attributes are copied from the file without parsing.
+     * 
+     * Returns {@code null}, if attributes from the database or adjusted
+     * attributes would follow the Pixel Data.
+     */
+    private PatchedFileDataWriter createPatchedFileDataWriter(InstanceLocator inst)
+            throws IOException {
+        Attributes attrs;
+        long pixelDataPosition = pixelDataOffset(inst);
+        DicomInputStream in = openAttributesPrecedingPixelData(inst);
+        try {
+            attrs = in.readDataset(-1, Tag.PixelData);
+            if (in.tag() == Tag.PixelData)
+                pixelDataPosition = in.getTagPosition();
+        } finally {
+            SafeClose.close(in);
+        }
+        attrs.addAll((Attributes) inst.getObject());
+        adjustPatientID(attrs);
+        adjustAccessionNumber(attrs);
+        if (pixelDataPosition != -1L && !precedesPixelData(attrs))
+            return null;
+
+        return new PatchedFileDataWriter(attrs, inst.getFile(),
+                pixelDataPosition);
+    }
+
+    private static long pixelDataOffset(InstanceLocator inst) {
+        return inst instanceof ArchiveInstanceLocator
+                ? ((ArchiveInstanceLocator) inst).getPixelDataOffset()
+                : -1L;
+    }
+
+    /**
+     * Opens the stored file of the instance. If the position of the Pixel
+     * Data was recorded on storage, the returned stream ends before the
+     * Pixel Data element, so no bytes of the Pixel Data are read.
+     */
+    private static DicomInputStream openAttributesPrecedingPixelData(
+            InstanceLocator inst) throws IOException {
+        long pixelDataOffset = pixelDataOffset(inst);
+        if (pixelDataOffset == -1L)
+            return new DicomInputStream(inst.getFile());
+
+        FileInputStream fin = new FileInputStream(inst.getFile());
+        try {
+            return new DicomInputStream(new BufferedInputStream(
+                    new LimitedInputStream(fin, pixelDataOffset)));
+        } catch (IOException e) {
+            SafeClose.close(fin);
+            throw e;
+        }
+    }
+
+    private static final class LimitedInputStream extends FilterInputStream {
+
+        private long remaining;
+
+        LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0)
+                return -1;
+
+            int b = super.read();
+            if (b != -1)
+                remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0)
+                return -1;
+
+            int read = super.read(b, off, (int) Math.min(len, remaining));
+            if (read > 0)
+                remaining -= read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    private static boolean precedesPixelData(Attributes attrs) {
+        int[] tags = attrs.tags();
+        return tags.length == 0
+                || (tags[tags.length - 1] & 0xffffffffL) < Tag.PixelData;
+    }
+
+    private static class PatchedFileDataWriter implements DataWriter {
+
+        private final Attributes attrs;
+        private final File file;
+        private final long pixelDataPosition;
+
+        PatchedFileDataWriter(Attributes attrs, File file,
+                long pixelDataPosition) {
+            this.attrs = attrs;
+            this.file = file;
+            this.pixelDataPosition = pixelDataPosition;
+        }
+
+        @Override
+        public void writeTo(PDVOutputStream out, String tsuid)
+                throws IOException {
+            DicomOutputStream dos = new DicomOutputStream(out, tsuid);
+            dos.writeDataset(null, attrs);
+            if (pixelDataPosition == -1L)
+                return;
+
+            FileInputStream in = new FileInputStream(file);
+            try {
+                in.getChannel().position(pixelDataPosition);
+                out.copyFrom(in);
+            } finally {
+                SafeClose.close(in);
+            }
+        }
+
+        byte[] encode(String tsuid) throws IOException {
+            ByteArrayOutputStream bout =
+                    new ByteArrayOutputStream((int) file.length());
+            DicomOutputStream dos = new DicomOutputStream(bout, tsuid);
+            dos.writeDataset(null, attrs);
+            dos.flush();
+            if (pixelDataPosition == -1L)
+                return bout.toByteArray();
+
+            FileInputStream in = new FileInputStream(file);
+            try {
+                in.getChannel().position(pixelDataPosition);
+                byte[] buf = new byte[8192];
+                int read;
+                while ((read = in.read(buf)) > 0)
+                    bout.write(buf, 0, read);
+            } finally {
+                SafeClose.close(in);
+            }
+            return bout.toByteArray();
+        }
+    }
+
+    private synchronized void adjustPatientID(Attributes attrs) {
         IDWithIssuer pid = IDWithIssuer.fromPatientIDWithIssuer(attrs);
         if (pid == null)
             return;
@@ -235,6 +781,19 @@ class RetrieveTaskImpl extends BasicRetrieveTask {
 
     @Override
     protected void close() {
+        synchronized (prefetches) {
+            for (Prefetch prefetch : served.values())
+                prefetch.release();
+            served.clear();
+            for (Prefetch prefetch : prefetches.values())
+                prefetch.release();
+            prefetches.clear();
+        }
+        synchronized (transcoded) {
+            for (TranscodeCache.Entry entry : transcoded)
+                entry.release();
+            transcoded.clear();
+        }
         super.close();
 //        AuditUtils.logRetrieve(as, insts, failed);
     }
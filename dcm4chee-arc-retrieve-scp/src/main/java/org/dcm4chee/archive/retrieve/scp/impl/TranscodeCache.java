@@ -0,0 +1,438 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2013
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.retrieve.scp.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.io.InterruptedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.dcm4che.data.Attributes;
+import org.dcm4che.data.Fragments;
+import org.dcm4che.data.Tag;
+import org.dcm4che.data.UID;
+import org.dcm4che.data.VR;
+import org.dcm4che.imageio.codec.Decompressor;
+import org.dcm4che.io.DicomInputStream;
+import org.dcm4che.io.DicomInputStream.IncludeBulkData;
+import org.dcm4che.io.DicomOutputStream;
+import org.dcm4che.net.service.InstanceLocator;
+import org.dcm4che.util.SafeClose;
+import org.dcm4chee.archive.conf.ArchiveDeviceExtension;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps decompressed copies of stored files in the configured directory,
+ * keyed by SOP Instance UID, stored file and target Transfer Syntax UID.
+ * The least recently used files are deleted, if the configured maximal size
+ * is exceeded, skipping files in use by running retrieves. A new copy, for
+ * which there is no space left, is only used by the retrieve which
+ * decompressed it. Concurrent requests for the same copy wait for one
+ * decompression.
+ * 
+ * Stored files are never overwritten, so copies of replaced instances are
+ * not found by the key of the new stored file.
+ * 
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ *
+ */
+public class TranscodeCache {
+
+    private static final Logger LOG =
+            LoggerFactory.getLogger(TranscodeCache.class);
+
+    private static final String TMP_SUFFIX = ".tmp";
+
+    public final class Entry {
+
+        private final String name;
+        private final Path path;
+        private final long size;
+        private final long created;
+        private int inUse;
+        private boolean obsolete;
+
+        Entry(String name, Path path, long size, long created) {
+            this.name = name;
+            this.path = path;
+            this.size = size;
+            this.created = created;
+        }
+
+        public File getFile() {
+            return path.toFile();
+        }
+
+        public void release() {
+            TranscodeCache.this.release(this);
+        }
+    }
+
+    private Path dir;
+    private final LinkedHashMap<String, Entry> entries =
+            new LinkedHashMap<String, Entry>(256, 0.75f, true);
+    private final HashMap<String, FutureTask<Entry>> pending =
+            new HashMap<String, FutureTask<Entry>>();
+    private long size;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Returns the cached copy of the stored file of the instance in the
+     * specified Transfer Syntax, decompressing the stored file, if there
+     * is no valid copy. The copy must be released after it was sent.
+     * 
+     * @return the copy or {@code null}, if the cache is not configured or
+     *         not accessible, the stored file does not contain compressed
+     *         Pixel Data or its decompression failed
+     * @throws InterruptedIOException if interrupted while waiting for the
+     *         decompression by another thread
+     */
+    public Entry get(ArchiveDeviceExtension arcDev, InstanceLocator inst,
+            String tsuid) throws IOException {
+        String dirPath = arcDev != null
+                ? arcDev.getTranscodeCacheDirectory()
+                : null;
+        if (dirPath == null || !isCompressed(inst.tsuid))
+            return null;
+
+        long maxSize = arcDev.getTranscodeCacheMaxSize() * 1048576L;
+        File src = inst.getFile();
+        String name = nameOf(inst, tsuid);
+        for (;;) {
+            FutureTask<Entry> task;
+            boolean populate = false;
+            synchronized (this) {
+                Path path;
+                try {
+                    path = setDirectory(dirPath);
+                } catch (IOException e) {
+                    LOG.warn("Failed to access transcode cache {}: {}",
+                            dirPath, e);
+                    return null;
+                }
+                Entry entry = entries.get(name);
+                if (entry != null) {
+                    entry.inUse++;
+                    hits++;
+                    return entry;
+                }
+                task = pending.get(name);
+                if (task == null) {
+                    task = new FutureTask<Entry>(new Populate(
+                            name, path, src, inst.tsuid, tsuid, maxSize));
+                    pending.put(name, task);
+                    populate = true;
+                    misses++;
+                }
+            }
+            if (populate)
+                task.run();
+            Entry entry;
+            try {
+                entry = task.get();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                // the stored file is decompressed on the fly, as without
+                // transcode cache
+                LOG.warn("Failed to decompress {} into transcode cache: {}",
+                        src, e.getCause());
+                return null;
+            }
+            // the copy was already reserved for the decompressing thread
+            if (entry == null || populate)
+                return entry;
+
+            synchronized (this) {
+                // the file of a copy is not deleted, while it is in use
+                if (entries.get(name) == entry || entry.inUse > 0) {
+                    entry.inUse++;
+                    return entry;
+                }
+            }
+            // evicted meanwhile
+        }
+    }
+
+    /**
+     * Returns the key of the copy, which identifies the stored file by a
+     * name based UUID of its URI, usable as file name.
+     */
+    static String nameOf(InstanceLocator inst, String tsuid) {
+        return inst.iuid + '_'
+                + UUID.nameUUIDFromBytes(
+                        inst.uri.getBytes(StandardCharsets.UTF_8))
+                + '_' + tsuid;
+    }
+
+    private static boolean isCompressed(String tsuid) {
+        return !(tsuid.equals(UID.ImplicitVRLittleEndian)
+                || tsuid.equals(UID.ExplicitVRLittleEndian)
+                || tsuid.equals(UID.ExplicitVRBigEndianRetired)
+                || tsuid.equals(UID.DeflatedExplicitVRLittleEndian));
+    }
+
+    private void release(Entry entry) {
+        synchronized (this) {
+            if (--entry.inUse > 0 || !entry.obsolete)
+                return;
+        }
+        delete(Collections.singletonList(entry.path));
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "TranscodeCache[dir=" + dir
+                + ", entries=" + entries.size()
+                + ", size=" + size
+                + ", hits=" + hits
+                + ", misses=" + misses
+                + ", evictions=" + evictions
+                + "]";
+    }
+
+    private Path setDirectory(String dirPath) throws IOException {
+        Path path = Paths.get(dirPath);
+        if (!path.equals(dir)) {
+            entries.clear();
+            size = 0L;
+            Files.createDirectories(path);
+            for (Entry entry : scan(path)) {
+                Entry prev = entries.put(entry.name, entry);
+                if (prev != null) {
+                    size -= prev.size;
+                    Files.deleteIfExists(prev.path);
+                }
+                size += entry.size;
+            }
+            dir = path;
+            LOG.info("Use {}", this);
+        }
+        return path;
+    }
+
+    /**
+     * Returns files left by a previous run, ordered by their last
+     * modification time, and deletes incomplete files.
+     */
+    private List<Entry> scan(Path dir) throws IOException {
+        List<Entry> list = new ArrayList<Entry>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            for (Path path : ds) {
+                String fileName = path.getFileName().toString();
+                int endOfName = fileName.lastIndexOf('-');
+                if (fileName.endsWith(TMP_SUFFIX) || endOfName < 0) {
+                    Files.deleteIfExists(path);
+                    continue;
+                }
+                File file = path.toFile();
+                list.add(new Entry(fileName.substring(0, endOfName), path,
+                        file.length(), file.lastModified()));
+            }
+        }
+        Collections.sort(list, new Comparator<Entry>() {
+
+            @Override
+            public int compare(Entry o1, Entry o2) {
+                return Long.compare(o1.created, o2.created);
+            }
+        });
+        return list;
+    }
+
+    /**
+     * Removes an outdated entry or a new entry, for which there is no space
+     * left. Its file is deleted, when it is no longer in use.
+     */
+    private void discard(Entry entry, List<Path> toDelete) {
+        entries.remove(entry.name);
+        size -= entry.size;
+        if (entry.inUse == 0)
+            toDelete.add(entry.path);
+        else
+            entry.obsolete = true;
+    }
+
+    /**
+     * Adds the copy, reserved for the decompressing thread, and evicts the
+     * least recently used copies, which are not in use. If the copies in use
+     * still exceed the maximal size, the new copy is discarded again, so it
+     * is deleted after it was sent.
+     */
+    synchronized List<Path> add(Entry entry, long maxSize) {
+        pending.remove(entry.name);
+        List<Path> evicted = new ArrayList<Path>();
+        Entry prev = entries.get(entry.name);
+        if (prev != null)
+            discard(prev, evicted);
+        entry.inUse++;
+        entries.put(entry.name, entry);
+        size += entry.size;
+        for (Iterator<Entry> iter = entries.values().iterator();
+                size > maxSize && iter.hasNext();) {
+            Entry e = iter.next();
+            if (e.inUse == 0) {
+                iter.remove();
+                size -= e.size;
+                evictions++;
+                evicted.add(e.path);
+            }
+        }
+        if (size > maxSize)
+            discard(entry, evicted);
+        return evicted;
+    }
+
+    private synchronized void failed(String name) {
+        pending.remove(name);
+    }
+
+    private static void delete(List<Path> paths) {
+        for (Path path : paths)
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                LOG.warn("Failed to delete {}: {}", path, e);
+            }
+    }
+
+    private final class Populate implements Callable<Entry> {
+
+        private final String name;
+        private final Path dir;
+        private final File src;
+        private final String srcTsuid;
+        private final String tsuid;
+        private final long maxSize;
+
+        Populate(String name, Path dir, File src, String srcTsuid,
+                String tsuid, long maxSize) {
+            this.name = name;
+            this.dir = dir;
+            this.src = src;
+            this.srcTsuid = srcTsuid;
+            this.tsuid = tsuid;
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public Entry call() throws Exception {
+            try {
+                Entry entry = decompress();
+                if (entry != null)
+                    delete(add(entry, maxSize));
+                else
+                    failed(name);
+                return entry;
+            } catch (Exception e) {
+                failed(name);
+                throw e;
+            }
+        }
+
+        private Entry decompress() throws IOException {
+            long created = System.currentTimeMillis();
+            Attributes fmi;
+            Attributes attrs;
+            DicomInputStream in = new DicomInputStream(src);
+            try {
+                in.setIncludeBulkData(IncludeBulkData.URI);
+                attrs = in.readDataset(-1, -1);
+                fmi = in.getFileMetaInformation();
+            } finally {
+                SafeClose.close(in);
+            }
+            if (!(attrs.getValue(Tag.PixelData) instanceof Fragments))
+                return null;
+
+            Path tmp = Files.createTempFile(dir, name, TMP_SUFFIX);
+            try {
+                Decompressor.decompress(attrs, srcTsuid);
+                if (fmi == null)
+                    fmi = attrs.createFileMetaInformation(tsuid);
+                else
+                    fmi.setString(Tag.TransferSyntaxUID, VR.UI, tsuid);
+                DicomOutputStream out = new DicomOutputStream(tmp.toFile());
+                try {
+                    out.writeDataset(fmi, attrs);
+                } finally {
+                    SafeClose.close(out);
+                }
+                long length = Files.size(tmp);
+                if (length > maxSize) {
+                    Files.delete(tmp);
+                    return null;
+                }
+                // unique file name, so a replaced copy still in use by
+                // another retrieve is not overwritten
+                Path path = Files.move(tmp,
+                        dir.resolve(name + '-' + Long.toString(created, 36)),
+                        StandardCopyOption.ATOMIC_MOVE);
+                tmp = null;
+                return new Entry(name, path, length, created);
+            } finally {
+                if (tmp != null)
+                    Files.deleteIfExists(tmp);
+            }
+        }
+    }
+}
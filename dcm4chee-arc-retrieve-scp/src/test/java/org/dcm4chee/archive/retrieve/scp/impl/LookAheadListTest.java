@@ -0,0 +1,151 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2013
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.retrieve.scp.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.dcm4che.data.UID;
+import org.dcm4che.net.service.InstanceLocator;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ *
+ */
+public class LookAheadListTest {
+
+    private List<InstanceLocator> insts;
+
+    @Before
+    public void setUp() {
+        insts = new ArrayList<InstanceLocator>();
+        for (int i = 1; i <= 5; i++)
+            insts.add(new InstanceLocator(UID.CTImageStorage, "1.2.3." + i,
+                    UID.ExplicitVRLittleEndian, "file:/" + i));
+    }
+
+    @Test
+    public void testIteratesAllElementsInOrder() {
+        LookAheadList list = new LookAheadList(insts);
+        list.setDepth(2);
+        List<InstanceLocator> result = new ArrayList<InstanceLocator>();
+        for (InstanceLocator inst : list)
+            result.add(inst);
+        assertEquals(insts, result);
+        assertTrue(list.ahead().isEmpty());
+    }
+
+    @Test
+    public void testAhead() {
+        LookAheadList list = new LookAheadList(insts);
+        list.setDepth(2);
+        Iterator<InstanceLocator> it = list.iterator();
+        assertTrue(list.ahead().isEmpty());
+        assertSame(insts.get(0), it.next());
+        assertEquals(insts.subList(1, 3), list.ahead());
+        assertSame(insts.get(1), it.next());
+        assertEquals(insts.subList(2, 4), list.ahead());
+        assertSame(insts.get(2), it.next());
+        assertSame(insts.get(3), it.next());
+        assertEquals(insts.subList(4, 5), list.ahead());
+        assertSame(insts.get(4), it.next());
+        assertTrue(list.ahead().isEmpty());
+        assertFalse(it.hasNext());
+    }
+
+    @Test
+    public void testWithoutDepth() {
+        LookAheadList list = new LookAheadList(insts);
+        Iterator<InstanceLocator> it = list.iterator();
+        assertSame(insts.get(0), it.next());
+        assertTrue(list.ahead().isEmpty());
+    }
+
+    @Test
+    public void testDepthExceedsSize() {
+        LookAheadList list = new LookAheadList(insts);
+        list.setDepth(10);
+        Iterator<InstanceLocator> it = list.iterator();
+        assertSame(insts.get(0), it.next());
+        assertEquals(insts.subList(1, 5), list.ahead());
+    }
+
+    @Test
+    public void testNewIteratorClearsAhead() {
+        LookAheadList list = new LookAheadList(insts);
+        list.setDepth(2);
+        list.iterator().next();
+        Iterator<InstanceLocator> it = list.iterator();
+        assertTrue(list.ahead().isEmpty());
+        assertSame(insts.get(0), it.next());
+    }
+
+    @Test
+    public void testSizeAndGet() {
+        LookAheadList list = new LookAheadList(insts);
+        assertEquals(5, list.size());
+        assertSame(insts.get(3), list.get(3));
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void testNextOnEmptyList() {
+        new LookAheadList(Collections.<InstanceLocator>emptyList())
+            .iterator().next();
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testRemove() {
+        LookAheadList list = new LookAheadList(
+                new ArrayList<InstanceLocator>(Arrays.asList(insts.get(0))));
+        Iterator<InstanceLocator> it = list.iterator();
+        it.next();
+        it.remove();
+    }
+}
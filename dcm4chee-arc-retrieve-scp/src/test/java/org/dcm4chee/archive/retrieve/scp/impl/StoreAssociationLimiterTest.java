@@ -0,0 +1,116 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2013
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.retrieve.scp.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+/**
+ * Tests the limitation of the Store Associations opened in parallel by
+ * {@link ParallelCMoveTask}s to one Move Destination.
+ * 
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ *
+ */
+public class StoreAssociationLimiterTest {
+
+    private static final String AET = "STORESCP";
+
+    @Test
+    public void testGrantsRequestedIfUnlimited() {
+        StoreAssociationLimiter limiter = new StoreAssociationLimiter();
+        assertEquals(4, limiter.acquire(AET, 4, 0));
+        assertEquals(4, limiter.acquire(AET, 4, 0));
+    }
+
+    @Test
+    public void testGrantsRemainingAndAtLeastOne() {
+        StoreAssociationLimiter limiter = new StoreAssociationLimiter();
+        assertEquals(3, limiter.acquire(AET, 3, 4));
+        assertEquals(1, limiter.acquire(AET, 3, 4));
+        assertEquals(1, limiter.acquire(AET, 3, 4));
+        assertEquals(4, limiter.acquire("OTHER", 4, 4));
+    }
+
+    @Test
+    public void testReleaseFreesAssociations() {
+        StoreAssociationLimiter limiter = new StoreAssociationLimiter();
+        assertEquals(4, limiter.acquire(AET, 4, 4));
+        limiter.release(AET, 1);
+        assertEquals(1, limiter.acquire(AET, 4, 4));
+        limiter.release(AET, 4);
+        limiter.release(AET, 1);
+        assertEquals(4, limiter.acquire(AET, 4, 4));
+    }
+
+    @Test
+    public void testReleaseOfUnusedAssociations() {
+        StoreAssociationLimiter limiter = new StoreAssociationLimiter();
+        int n = limiter.acquire(AET, 4, 4);
+        // only 2 of the granted Associations could be opened
+        limiter.release(AET, n - 2);
+        assertEquals(2, limiter.acquire(AET, 4, 4));
+    }
+
+    @Test
+    public void testConcurrentSenders() throws Exception {
+        final StoreAssociationLimiter limiter = new StoreAssociationLimiter();
+        final CountDownLatch done = new CountDownLatch(8);
+        for (int i = 0; i < 8; i++)
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 1000; j++) {
+                            int n = limiter.acquire(AET, 2, 4);
+                            for (int k = 0; k < n; k++)
+                                limiter.release(AET, 1);
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        done.await();
+        assertEquals(4, limiter.acquire(AET, 4, 4));
+    }
+}
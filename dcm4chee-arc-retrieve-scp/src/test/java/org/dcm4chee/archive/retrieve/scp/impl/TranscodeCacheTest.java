@@ -0,0 +1,168 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2013
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.retrieve.scp.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.dcm4che.data.UID;
+import org.dcm4che.net.service.InstanceLocator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ *
+ */
+public class TranscodeCacheTest {
+
+    private static final long MAX_SIZE = 25L;
+
+    private Path dir;
+    private TranscodeCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("transcode");
+        cache = new TranscodeCache();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            for (Path path : ds)
+                Files.delete(path);
+        }
+        Files.delete(dir);
+    }
+
+    @Test
+    public void testNameOfIdentifiesStoredFile() {
+        InstanceLocator inst = locator("file:/fs1/a");
+        assertEquals(TranscodeCache.nameOf(inst, UID.ExplicitVRLittleEndian),
+                TranscodeCache.nameOf(locator("file:/fs1/a"),
+                        UID.ExplicitVRLittleEndian));
+        assertNotEquals(TranscodeCache.nameOf(inst, UID.ExplicitVRLittleEndian),
+                TranscodeCache.nameOf(locator("file:/fs1/a-"),
+                        UID.ExplicitVRLittleEndian));
+        assertNotEquals(TranscodeCache.nameOf(inst, UID.ExplicitVRLittleEndian),
+                TranscodeCache.nameOf(inst, UID.ImplicitVRLittleEndian));
+        assertFalse(TranscodeCache.nameOf(inst, UID.ExplicitVRLittleEndian)
+                .contains("/"));
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsedEntryNotInUse() throws IOException {
+        TranscodeCache.Entry e1 = entry("1");
+        TranscodeCache.Entry e2 = entry("2");
+        TranscodeCache.Entry e3 = entry("3");
+        assertEquals(Collections.emptyList(), cache.add(e1, MAX_SIZE));
+        e1.release();
+        assertEquals(Collections.emptyList(), cache.add(e2, MAX_SIZE));
+        e2.release();
+        assertEquals(Arrays.asList(e1.getFile().toPath()),
+                cache.add(e3, MAX_SIZE));
+        assertEquals(20L, cache.getSize());
+    }
+
+    @Test
+    public void testKeepsEntriesInUse() throws IOException {
+        TranscodeCache.Entry e1 = entry("1");
+        TranscodeCache.Entry e2 = entry("2");
+        TranscodeCache.Entry e3 = entry("3");
+        cache.add(e1, MAX_SIZE);
+        cache.add(e2, MAX_SIZE);
+        e2.release();
+        assertEquals(Arrays.asList(e2.getFile().toPath()),
+                cache.add(e3, MAX_SIZE));
+        assertEquals(20L, cache.getSize());
+        assertTrue(e1.getFile().exists());
+    }
+
+    @Test
+    public void testDiscardsNewEntryIfAllEntriesInUse() throws IOException {
+        TranscodeCache.Entry e1 = entry("1");
+        TranscodeCache.Entry e2 = entry("2");
+        TranscodeCache.Entry e3 = entry("3");
+        cache.add(e1, MAX_SIZE);
+        cache.add(e2, MAX_SIZE);
+        assertEquals(Collections.emptyList(), cache.add(e3, MAX_SIZE));
+        assertEquals(20L, cache.getSize());
+        assertTrue(e3.getFile().exists());
+        e3.release();
+        assertFalse(e3.getFile().exists());
+        e1.release();
+        assertTrue(e1.getFile().exists());
+    }
+
+    @Test
+    public void testReplacedEntryDeletedAfterRelease() throws IOException {
+        TranscodeCache.Entry e1 = entry("1");
+        TranscodeCache.Entry e1b = cache.new Entry("1",
+                Files.write(dir.resolve("1-b"), new byte[10]), 10L, 0L);
+        cache.add(e1, MAX_SIZE);
+        assertEquals(Collections.emptyList(), cache.add(e1b, MAX_SIZE));
+        assertEquals(10L, cache.getSize());
+        assertTrue(e1.getFile().exists());
+        e1.release();
+        assertFalse(e1.getFile().exists());
+        e1b.release();
+        assertTrue(e1b.getFile().exists());
+    }
+
+    private TranscodeCache.Entry entry(String name) throws IOException {
+        Path path = Files.write(dir.resolve(name + "-a"), new byte[10]);
+        return cache.new Entry(name, path, 10L, 0L);
+    }
+
+    private static InstanceLocator locator(String uri) {
+        return new InstanceLocator(UID.CTImageStorage, "1.2.3",
+                UID.JPEGLossless, uri);
+    }
+}
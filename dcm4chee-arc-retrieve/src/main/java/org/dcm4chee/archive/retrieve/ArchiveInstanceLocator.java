@@ -0,0 +1,121 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2013
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.retrieve;
+
+import org.dcm4che.data.Attributes;
+import org.dcm4che.net.service.InstanceLocator;
+import org.dcm4chee.archive.entity.Utils;
+
+/**
+ * {@link InstanceLocator} of an instance stored by the archive, which also
+ * provides the position of the Pixel Data element in the stored file.
+ * The attributes of the instance from the database are only decoded on
+ * access by {@link #getObject()}, so locators held by a retrieve task keep
+ * the compact encoded form.
+ * 
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ *
+ */
+public class ArchiveInstanceLocator extends InstanceLocator {
+
+    private static final long serialVersionUID = -4412738364592374281L;
+
+    private final long pixelDataOffset;
+
+    private final Attributes seriesAttrs;
+
+    private final byte[] encodedAttributes;
+
+    public ArchiveInstanceLocator(String cuid, String iuid, String tsuid,
+            String uri, long pixelDataOffset) {
+        this(cuid, iuid, tsuid, uri, pixelDataOffset, null, null);
+    }
+
+    public ArchiveInstanceLocator(String cuid, String iuid, String tsuid,
+            String uri, long pixelDataOffset, Attributes seriesAttrs,
+            byte[] encodedAttributes) {
+        super(cuid, iuid, tsuid, uri);
+        this.pixelDataOffset = pixelDataOffset;
+        this.seriesAttrs = seriesAttrs;
+        this.encodedAttributes = encodedAttributes;
+    }
+
+    /**
+     * Returns the object set by {@link #setObject(Object)} or - if none was
+     * set - the attributes of the Patient, Study, Series and Instance from
+     * the database, decoded on each invocation. Callers needing the
+     * attributes several times shall keep the returned object instead of
+     * invoking this method repeatedly.
+     */
+    @Override
+    public Object getObject() {
+        Object object = super.getObject();
+        if (object != null || encodedAttributes == null)
+            return object;
+
+        Attributes attrs = new Attributes(seriesAttrs);
+        Utils.decodeAttributes(attrs, encodedAttributes);
+        return attrs;
+    }
+
+    /**
+     * Returns the attributes of the Patient, Study and Series from the
+     * database or {@code null}.
+     */
+    public Attributes getSeriesAttributes() {
+        return seriesAttrs;
+    }
+
+    /**
+     * Returns the encoded attributes of the Instance from the database or
+     * {@code null}.
+     */
+    public byte[] getEncodedAttributes() {
+        return encodedAttributes;
+    }
+
+    /**
+     * Returns the position of the Pixel Data element in the stored file or
+     * -1, if unknown or the file does not contain Pixel Data.
+     */
+    public long getPixelDataOffset() {
+        return pixelDataOffset;
+    }
+
+}
@@ -0,0 +1,192 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2013
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.retrieve;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.dcm4che.data.UID;
+import org.dcm4chee.archive.entity.PixelDataIndex;
+
+/**
+ * Stored file of an instance, from which single frames are read by
+ * positioned reads - or memory mapped, if large - using the position of
+ * the frames recorded on storage, without parsing or loading the Pixel
+ * Data. For files stored without index, the file is scanned for the
+ * positions of the frames, skipping the values of the Pixel Data, on first
+ * access by each locator; the scanned index is not persisted. Frames of
+ * files in Deflated Explicit VR Little Endian cannot be located.
+ * 
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ *
+ */
+public class FrameLocator {
+
+    /**
+     * Frames stored in one piece of at least this size are memory mapped.
+     */
+    public static final int MAP_THRESHOLD = 1024 * 1024;
+
+    private final String sopInstanceUID;
+    private final String transferSyntaxUID;
+    private final Path path;
+    private PixelDataIndex index;
+
+    public FrameLocator(String sopInstanceUID, String transferSyntaxUID,
+            Path path, PixelDataIndex index) {
+        this.sopInstanceUID = sopInstanceUID;
+        this.transferSyntaxUID = transferSyntaxUID;
+        this.path = path;
+        this.index = index;
+    }
+
+    public String getSOPInstanceUID() {
+        return sopInstanceUID;
+    }
+
+    public String getTransferSyntaxUID() {
+        return transferSyntaxUID;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public int getNumberOfFrames() throws IOException {
+        return index().getNumberOfFrames();
+    }
+
+    private PixelDataIndex index() throws IOException {
+        if (index == null) {
+            if (UID.DeflatedExplicitVRLittleEndian.equals(transferSyntaxUID))
+                throw new IOException("Cannot locate frames in deflated "
+                        + path + " of " + sopInstanceUID);
+            index = PixelDataIndex.scan(path.toFile());
+            if (index == null)
+                throw new IOException(
+                        "No Pixel Data in " + path + " of " + sopInstanceUID);
+        }
+        if (!index.isFrameIndexed())
+            throw new IOException("Cannot locate frames in " + path
+                    + " of " + sopInstanceUID);
+        return index;
+    }
+
+    /**
+     * Reads the specified frames. The returned buffers are ready for being
+     * read; frames of encapsulated Pixel Data consisting of several
+     * fragments are returned as concatenation of the fragment values.
+     * 
+     * @param frameNumbers numbers of the frames, starting with 1
+     * @throws IllegalArgumentException if a frame number exceeds the
+     *         number of frames
+     */
+    public ByteBuffer[] readFrames(int... frameNumbers) throws IOException {
+        PixelDataIndex index = index();
+        for (int frameNumber : frameNumbers)
+            if (frameNumber < 1 || frameNumber > index.getNumberOfFrames())
+                throw new IllegalArgumentException("Frame #" + frameNumber
+                        + " out of range [1.." + index.getNumberOfFrames()
+                        + "] of " + sopInstanceUID);
+
+        ByteBuffer[] frames = new ByteBuffer[frameNumbers.length];
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            for (int i = 0; i < frameNumbers.length; i++)
+                frames[i] = readFrame(channel, index, frameNumbers[i] - 1);
+        } finally {
+            channel.close();
+        }
+        return frames;
+    }
+
+    private static ByteBuffer readFrame(FileChannel channel,
+            PixelDataIndex index, int frame) throws IOException {
+        if (!index.isEncapsulated())
+            return read(channel, index.getFramePosition(frame),
+                    index.getFrameLength());
+
+        int first = index.getFirstItemOfFrame(frame);
+        int end = index.getEndItemOfFrame(frame);
+        if (end - first == 1)
+            return read(channel, index.getItemPosition(first),
+                    index.getItemLength(first));
+
+        int length = 0;
+        for (int item = first; item < end; item++)
+            length += index.getItemLength(item);
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        for (int item = first; item < end; item++)
+            readFully(channel, buf, index.getItemPosition(item),
+                    index.getItemLength(item));
+        buf.flip();
+        return buf;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position,
+            int length) throws IOException {
+        if (length >= MAP_THRESHOLD)
+            return channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        readFully(channel, buf, position, length);
+        buf.flip();
+        return buf;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf,
+            long position, int length) throws IOException {
+        int limit = buf.limit();
+        buf.limit(buf.position() + length);
+        try {
+            while (buf.hasRemaining()) {
+                int read = channel.read(buf, position);
+                if (read < 0)
+                    throw new EOFException();
+                position += read;
+            }
+        } finally {
+            buf.limit(limit);
+        }
+    }
+}
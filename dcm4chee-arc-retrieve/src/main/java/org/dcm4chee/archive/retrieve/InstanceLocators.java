@@ -0,0 +1,132 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2013
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.retrieve;
+
+import java.util.AbstractList;
+import java.util.Collections;
+import java.util.List;
+
+import org.dcm4che.data.Attributes;
+import org.dcm4che.data.IDWithIssuer;
+import org.dcm4che.net.service.InstanceLocator;
+import org.dcm4chee.archive.conf.QueryParam;
+
+/**
+ * List of instances matching a retrieve request, which are fetched from
+ * the {@link RetrieveService} in windows of limited size, while the list
+ * is iterated. The size of the list is initialized by a count of the
+ * matching instances, and reduced, if less instances are found.
+ * 
+ * Intended for sequential access; random access to preceding elements
+ * fetches the instances again from the first window.
+ * 
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ *
+ */
+public class InstanceLocators extends AbstractList<InstanceLocator> {
+
+    public static final int DEFAULT_WINDOW_SIZE = 500;
+
+    private final RetrieveService service;
+    private final IDWithIssuer[] pids;
+    private final Attributes keys;
+    private final QueryParam queryParam;
+    private final int windowSize;
+    private int size;
+    private List<MatchedInstance> window = Collections.emptyList();
+    private int windowStart;
+    private long lastPk;
+
+    public InstanceLocators(RetrieveService service, IDWithIssuer[] pids,
+            Attributes keys, QueryParam queryParam) {
+        this(service, pids, keys, queryParam, DEFAULT_WINDOW_SIZE);
+    }
+
+    public InstanceLocators(RetrieveService service, IDWithIssuer[] pids,
+            Attributes keys, QueryParam queryParam, int windowSize) {
+        this.service = service;
+        this.pids = pids;
+        this.keys = keys;
+        this.queryParam = queryParam;
+        this.windowSize = windowSize;
+        this.size = service.countMatches(pids, keys, queryParam);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public InstanceLocator get(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException(
+                    "Index: " + index + ", Size: " + size);
+
+        if (index < windowStart) {
+            window = Collections.emptyList();
+            windowStart = 0;
+            lastPk = 0L;
+        }
+        while (index >= windowStart + window.size())
+            if (!nextWindow())
+                throw new IndexOutOfBoundsException(
+                        "Index: " + index + ", Size: " + size);
+
+        InstanceLocator locator =
+                window.get(index - windowStart).toInstanceLocator();
+        // fetch next window in advance, so hasNext() of iterators considers
+        // a reduced size of the list
+        if (index + 1 == windowStart + window.size() && index + 1 < size)
+            nextWindow();
+        return locator;
+    }
+
+    private boolean nextWindow() {
+        windowStart += window.size();
+        window = service.calculateMatches(pids, keys, queryParam,
+                lastPk, windowSize);
+        if (window.isEmpty()) {
+            size = windowStart;
+            return false;
+        }
+        lastPk = window.get(window.size() - 1).getPk();
+        return true;
+    }
+}
@@ -51,7 +51,29 @@ import org.dcm4chee.archive.conf.QueryParam;
  */
 public interface RetrieveService {
 
+    /**
+     * Returns all matching instances. Use {@link InstanceLocators} to
+     * iterate over large numbers of matches.
+     */
     List<InstanceLocator> calculateMatches(IDWithIssuer[] pids,
             Attributes keys, QueryParam queryParam);
 
+    int countMatches(IDWithIssuer[] pids, Attributes keys,
+            QueryParam queryParam);
+
+    /**
+     * Returns up to {@code maxResults} matching instances with a primary key
+     * greater than {@code afterPk}, ordered by their primary key.
+     */
+    List<MatchedInstance> calculateMatches(IDWithIssuer[] pids,
+            Attributes keys, QueryParam queryParam, long afterPk,
+            int maxResults);
+
+    /**
+     * Returns the stored file of the instance for reading selected frames,
+     * or {@code null}, if there is no file of the instance on a file system
+     * of this archive. Reading the frames does not need a transaction.
+     */
+    FrameLocator locateFrames(String sopInstanceUID);
+
 }
@@ -38,6 +38,10 @@
 
 package org.dcm4chee.archive.retrieve.impl;
 
+import java.io.File;
+import java.net.URI;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -49,7 +53,7 @@ import org.dcm4che.data.Tag;
 import org.dcm4che.net.service.InstanceLocator;
 import org.dcm4chee.archive.conf.QueryParam;
 import org.dcm4chee.archive.entity.Availability;
-import org.dcm4chee.archive.entity.Utils;
+import org.dcm4chee.archive.entity.PixelDataIndex;
 import org.dcm4chee.archive.entity.query.types.QFileRef;
 import org.dcm4chee.archive.entity.query.types.QFileSystem;
 import org.dcm4chee.archive.entity.query.types.QInstance;
@@ -57,6 +61,9 @@ import org.dcm4chee.archive.entity.query.types.QPatient;
 import org.dcm4chee.archive.entity.query.types.QSeries;
 import org.dcm4chee.archive.entity.query.types.QStudy;
 import org.dcm4chee.archive.query.common.QueryBuilder;
+import org.dcm4chee.archive.retrieve.FrameLocator;
+import org.dcm4chee.archive.retrieve.InstanceLocators;
+import org.dcm4chee.archive.retrieve.MatchedInstance;
 import org.dcm4chee.archive.retrieve.RetrieveService;
 import org.dcm4chee.archive.series.SeriesService;
 import org.hibernate.Session;
@@ -86,20 +93,37 @@ public class RetrieveServiceImpl implements RetrieveService {
     @Override
     public List<InstanceLocator> calculateMatches(IDWithIssuer[] pids,
             Attributes keys, QueryParam queryParam) {
-        BooleanBuilder builder = new BooleanBuilder();
-        builder.and(QueryBuilder.pids(pids, false));
-        builder.and(QueryBuilder.uids(QStudy.study.studyInstanceUID,
-                keys.getStrings(Tag.StudyInstanceUID), false));
-        builder.and(QueryBuilder.uids(QSeries.series.seriesInstanceUID,
-                keys.getStrings(Tag.SeriesInstanceUID), false));
-        builder.and(QueryBuilder.uids(QInstance.instance.sopInstanceUID,
-                keys.getStrings(Tag.SOPInstanceUID), false));
-        builder.and(QInstance.instance.replaced.isFalse());
-        builder.and(QInstance.instance.availability.loe(
-                queryParam.isShowRejectedInstances()
-                    ? Availability.OFFLINE
-                    : Availability.REJECTED_FOR_QUALITY_REASONS));
-        return locate(new HibernateQuery(session)
+        List<InstanceLocator> locators = new ArrayList<InstanceLocator>();
+        List<MatchedInstance> matches;
+        long lastPk = 0L;
+        while (!(matches = calculateMatches(pids, keys, queryParam,
+                lastPk, InstanceLocators.DEFAULT_WINDOW_SIZE)).isEmpty()) {
+            for (MatchedInstance match : matches)
+                locators.add(match.toInstanceLocator());
+            lastPk = matches.get(matches.size() - 1).getPk();
+        }
+        return locators;
+    }
+
+    @Override
+    public int countMatches(IDWithIssuer[] pids, Attributes keys,
+            QueryParam queryParam) {
+        return (int) new HibernateQuery(session)
+            .from(QInstance.instance)
+            .innerJoin(QInstance.instance.series, QSeries.series)
+            .innerJoin(QSeries.series.study, QStudy.study)
+            .innerJoin(QStudy.study.patient, QPatient.patient)
+            .where(createPredicate(pids, keys, queryParam))
+            .count();
+    }
+
+    @Override
+    public List<MatchedInstance> calculateMatches(IDWithIssuer[] pids,
+            Attributes keys, QueryParam queryParam, long afterPk,
+            int maxResults) {
+        BooleanBuilder builder = createPredicate(pids, keys, queryParam);
+        builder.and(QInstance.instance.pk.gt(afterPk));
+        return match(new HibernateQuery(session)
             .from(QInstance.instance)
             .leftJoin(QInstance.instance.fileRefs, QFileRef.fileRef)
             .leftJoin(QFileRef.fileRef.fileSystem, QFileSystem.fileSystem)
@@ -107,6 +131,8 @@ public class RetrieveServiceImpl implements RetrieveService {
             .innerJoin(QSeries.series.study, QStudy.study)
             .innerJoin(QStudy.study.patient, QPatient.patient)
             .where(builder)
+            .orderBy(QInstance.instance.pk.asc())
+            .limit(maxResults)
             .list(
                 QFileRef.fileRef.transferSyntaxUID,
                 QFileRef.fileRef.filePath,
@@ -117,11 +143,58 @@ public class RetrieveServiceImpl implements RetrieveService {
                 QInstance.instance.sopInstanceUID,
                 QInstance.instance.retrieveAETs,
                 QInstance.instance.externalRetrieveAET,
-                QInstance.instance.encodedAttributes));
+                QInstance.instance.encodedAttributes,
+                QFileRef.fileRef.pixelDataOffset));
+    }
+
+    @Override
+    public FrameLocator locateFrames(String sopInstanceUID) {
+        Tuple tuple = new HibernateQuery(session)
+            .from(QFileRef.fileRef)
+            .innerJoin(QFileRef.fileRef.instance, QInstance.instance)
+            .innerJoin(QFileRef.fileRef.fileSystem, QFileSystem.fileSystem)
+            .where(QInstance.instance.sopInstanceUID.eq(sopInstanceUID),
+                    QInstance.instance.replaced.isFalse())
+            .orderBy(QFileRef.fileRef.pk.asc())
+            .limit(1)
+            .uniqueResult(
+                QFileSystem.fileSystem.uri,
+                QFileRef.fileRef.filePath,
+                QFileRef.fileRef.transferSyntaxUID,
+                QFileRef.fileRef.pixelDataIndex);
+        if (tuple == null)
+            return null;
+
+        Path path = Paths.get(URI.create(tuple.get(0, String.class)))
+                .resolve(tuple.get(1, String.class)
+                        .replace('/', File.separatorChar));
+        return new FrameLocator(sopInstanceUID,
+                tuple.get(2, String.class),
+                path,
+                PixelDataIndex.decode(tuple.get(3, byte[].class)));
+    }
+
+    private static BooleanBuilder createPredicate(IDWithIssuer[] pids,
+            Attributes keys, QueryParam queryParam) {
+        BooleanBuilder builder = new BooleanBuilder();
+        builder.and(QueryBuilder.pids(pids, false));
+        builder.and(QueryBuilder.uids(QStudy.study.studyInstanceUID,
+                keys.getStrings(Tag.StudyInstanceUID), false));
+        builder.and(QueryBuilder.uids(QSeries.series.seriesInstanceUID,
+                keys.getStrings(Tag.SeriesInstanceUID), false));
+        builder.and(QueryBuilder.uids(QInstance.instance.sopInstanceUID,
+                keys.getStrings(Tag.SOPInstanceUID), false));
+        builder.and(QInstance.instance.replaced.isFalse());
+        builder.and(QInstance.instance.availability.loe(
+                queryParam.isShowRejectedInstances()
+                    ? Availability.OFFLINE
+                    : Availability.REJECTED_FOR_QUALITY_REASONS));
+        return builder;
     }
 
-    private List<InstanceLocator> locate(List<Tuple> tuples) {
-        List<InstanceLocator> locators = new ArrayList<InstanceLocator>(tuples.size());
+    private List<MatchedInstance> match(List<Tuple> tuples) {
+        List<MatchedInstance> matches =
+                new ArrayList<MatchedInstance>(tuples.size());
         long instPk = -1;
         long seriesPk = -1;
         Attributes seriesAttrs = null;
@@ -141,12 +214,14 @@ public class RetrieveServiceImpl implements RetrieveService {
                 String retrieveAETs = tuple.get(7, String.class);
                 String externalRetrieveAET = tuple.get(8, String.class);
                 String uri;
-                Attributes attrs;
+                byte[] instAttrs;
+                long pixelDataOffset = -1L;
                 if (fsuri != null) {
                     uri = fsuri + '/' + filePath;
-                    byte[] instAttrs = tuple.get(9, byte[].class);
-                    attrs = new Attributes(seriesAttrs);
-                    Utils.decodeAttributes(attrs, instAttrs);
+                    instAttrs = tuple.get(9, byte[].class);
+                    Long offset = tuple.get(10, Long.class);
+                    if (offset != null)
+                        pixelDataOffset = offset.longValue();
                 } else {
                     StringBuilder sb = new StringBuilder();
                     sb.append("aet:");
@@ -159,12 +234,13 @@ public class RetrieveServiceImpl implements RetrieveService {
                         sb.append(externalRetrieveAET);
                     }
                     uri = sb.toString();
-                    attrs = null;
+                    instAttrs = null;
                 }
-                locators.add(new InstanceLocator(cuid, iuid, tsuid, uri).setObject(attrs));
+                matches.add(new MatchedInstance(nextInstPk, cuid, iuid, tsuid,
+                        uri, seriesAttrs, instAttrs, pixelDataOffset));
                 instPk = nextInstPk;
             }
         }
-        return locators ;
+        return matches;
     }
 }
@@ -0,0 +1,201 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2013
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.retrieve;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+import org.dcm4che.data.Attributes;
+import org.dcm4che.data.Fragments;
+import org.dcm4che.data.Tag;
+import org.dcm4che.data.UID;
+import org.dcm4che.data.VR;
+import org.dcm4che.io.DicomOutputStream;
+import org.dcm4chee.archive.entity.PixelDataIndex;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ *
+ */
+public class FrameLocatorTest {
+
+    private static final byte[] FRAG1 = { 1, 1, 1, 1 };
+    private static final byte[] FRAG2 = { 2, 2, 2, 2, 2, 2 };
+    private static final byte[] FRAG3 = { 3, 3 };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReadNativeFrames() throws IOException {
+        Attributes attrs = image(3);
+        attrs.setBytes(Tag.PixelData, VR.OB,
+                new byte[] { 1, 1, 2, 2, 3, 3 });
+        FrameLocator locator = locator(attrs, UID.ExplicitVRLittleEndian);
+
+        assertEquals(3, locator.getNumberOfFrames());
+        ByteBuffer[] frames = locator.readFrames(3, 1);
+        assertArrayEquals(new byte[] { 3, 3 }, bytes(frames[0]));
+        assertArrayEquals(new byte[] { 1, 1 }, bytes(frames[1]));
+    }
+
+    @Test
+    public void testReadFramesOfSeveralFragments() throws IOException {
+        Attributes attrs = image(2);
+        Fragments frags = attrs.newFragments(Tag.PixelData, VR.OB, 4);
+        // frame 1 = FRAG1 + FRAG2, frame 2 = FRAG3
+        frags.add(offsetTable(0, 8 + FRAG1.length + 8 + FRAG2.length));
+        frags.add(FRAG1);
+        frags.add(FRAG2);
+        frags.add(FRAG3);
+        FrameLocator locator = locator(attrs, UID.JPEGBaseline1);
+
+        ByteBuffer[] frames = locator.readFrames(1, 2);
+        assertArrayEquals(new byte[] { 1, 1, 1, 1, 2, 2, 2, 2, 2, 2 },
+                bytes(frames[0]));
+        assertArrayEquals(FRAG3, bytes(frames[1]));
+    }
+
+    @Test
+    public void testScansFileStoredWithoutIndex() throws IOException {
+        Attributes attrs = image(2);
+        Fragments frags = attrs.newFragments(Tag.PixelData, VR.OB, 3);
+        frags.add(new byte[0]);
+        frags.add(FRAG1);
+        frags.add(FRAG2);
+        File file = write(attrs, UID.JPEGBaseline1);
+        FrameLocator locator = new FrameLocator("1.2.3.4",
+                UID.JPEGBaseline1, file.toPath(), null);
+
+        assertEquals(2, locator.getNumberOfFrames());
+        assertArrayEquals(FRAG2, bytes(locator.readFrames(2)[0]));
+    }
+
+    @Test
+    public void testMapsLargeFrames() throws IOException {
+        byte[] pixelData = new byte[FrameLocator.MAP_THRESHOLD];
+        pixelData[pixelData.length - 1] = 7;
+        Attributes attrs = image(1);
+        attrs.setBytes(Tag.PixelData, VR.OB, pixelData);
+        FrameLocator locator = locator(attrs, UID.ExplicitVRLittleEndian);
+
+        ByteBuffer frame = locator.readFrames(1)[0];
+        assertTrue(frame instanceof MappedByteBuffer);
+        assertArrayEquals(pixelData, bytes(frame));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFrameNumberOutOfRange() throws IOException {
+        Attributes attrs = image(2);
+        attrs.setBytes(Tag.PixelData, VR.OB, new byte[] { 1, 2, 3, 4 });
+        locator(attrs, UID.ExplicitVRLittleEndian).readFrames(3);
+    }
+
+    @Test(expected = IOException.class)
+    public void testFramesNotIndexed() throws IOException {
+        Attributes attrs = image(2);
+        Fragments frags = attrs.newFragments(Tag.PixelData, VR.OB, 4);
+        frags.add(new byte[0]);
+        frags.add(FRAG1);
+        frags.add(FRAG2);
+        frags.add(FRAG3);
+        locator(attrs, UID.JPEGBaseline1).readFrames(1);
+    }
+
+    @Test(expected = IOException.class)
+    public void testDeflated() throws IOException {
+        Attributes attrs = image(1);
+        attrs.setBytes(Tag.PixelData, VR.OB, new byte[] { 1, 2, 3, 4 });
+        File file = write(attrs, UID.DeflatedExplicitVRLittleEndian);
+        new FrameLocator("1.2.3.4", UID.DeflatedExplicitVRLittleEndian,
+                file.toPath(), null).getNumberOfFrames();
+    }
+
+    private FrameLocator locator(Attributes attrs, String tsuid)
+            throws IOException {
+        File file = write(attrs, tsuid);
+        return new FrameLocator("1.2.3.4", tsuid, file.toPath(),
+                PixelDataIndex.scan(file));
+    }
+
+    private static Attributes image(int numberOfFrames) {
+        Attributes attrs = new Attributes();
+        attrs.setString(Tag.SOPClassUID, VR.UI, UID.CTImageStorage);
+        attrs.setString(Tag.SOPInstanceUID, VR.UI, "1.2.3.4");
+        attrs.setInt(Tag.NumberOfFrames, VR.IS, numberOfFrames);
+        return attrs;
+    }
+
+    private File write(Attributes attrs, String tsuid) throws IOException {
+        File file = folder.newFile();
+        DicomOutputStream out = new DicomOutputStream(file);
+        try {
+            out.writeDataset(attrs.createFileMetaInformation(tsuid), attrs);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static byte[] offsetTable(int... offsets) {
+        byte[] b = new byte[offsets.length * 4];
+        for (int i = 0; i < offsets.length; i++) {
+            b[i * 4] = (byte) offsets[i];
+            b[i * 4 + 1] = (byte) (offsets[i] >> 8);
+            b[i * 4 + 2] = (byte) (offsets[i] >> 16);
+            b[i * 4 + 3] = (byte) (offsets[i] >> 24);
+        }
+        return b;
+    }
+
+    private static byte[] bytes(ByteBuffer buf) {
+        byte[] b = new byte[buf.remaining()];
+        buf.get(b);
+        return b;
+    }
+}
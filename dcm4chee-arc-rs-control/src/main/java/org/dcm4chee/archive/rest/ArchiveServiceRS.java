@@ -40,9 +40,15 @@ package org.dcm4chee.archive.rest;
 
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
 
 import org.dcm4che.net.DeviceService;
 import org.dcm4chee.archive.ArchiveService;
+import org.dcm4chee.archive.AssociationPool;
+import org.dcm4chee.archive.compress.CompressionService;
+import org.dcm4chee.archive.compress.CompressionStatistics;
+import org.dcm4chee.archive.query.QueryService;
+import org.dcm4chee.archive.series.SeriesService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -57,9 +63,33 @@ public class ArchiveServiceRS
     
     private ArchiveService archiveService = null;
 
+    private CompressionService compressionService = null;
+
+    private SeriesService seriesService = null;
+
+    private AssociationPool associationPool = null;
+
+    private QueryService queryService = null;
+
     public void setArchiveService(ArchiveService archiveService) {
         this.archiveService = archiveService;
     }
+
+    public void setCompressionService(CompressionService compressionService) {
+        this.compressionService = compressionService;
+    }
+
+    public void setSeriesService(SeriesService seriesService) {
+        this.seriesService = seriesService;
+    }
+
+    public void setAssociationPool(AssociationPool associationPool) {
+        this.associationPool = associationPool;
+    }
+
+    public void setQueryService(QueryService queryService) {
+        this.queryService = queryService;
+    }
     
     @GET
     @Path("/start")
@@ -92,5 +122,40 @@ public class ArchiveServiceRS
     {
         LOG.info("ArchiveServiceRS:reloading");
         archiveService.reload();
-    }    
+    }
+
+    @GET
+    @Path("/compression")
+    @Produces("text/plain")
+    public String compressionStatistics()
+    {
+        StringBuilder sb = new StringBuilder();
+        for (CompressionStatistics stat : compressionService.getStatistics())
+            sb.append(stat).append('\n');
+        return sb.toString();
+    }
+
+    @GET
+    @Path("/series-attributes-cache")
+    @Produces("text/plain")
+    public String seriesAttributesCacheStatistics()
+    {
+        return seriesService.getAttributesCacheStatistics() + "\n";
+    }
+
+    @GET
+    @Path("/association-pool")
+    @Produces("text/plain")
+    public String associationPoolStatistics()
+    {
+        return associationPool.getStatistics() + "\n";
+    }
+
+    @GET
+    @Path("/query-result-cache")
+    @Produces("text/plain")
+    public String queryResultCacheStatistics()
+    {
+        return queryService.getQueryResultCacheStatistics() + "\n";
+    }
 }
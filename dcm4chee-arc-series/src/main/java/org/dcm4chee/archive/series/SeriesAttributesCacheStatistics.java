@@ -0,0 +1,116 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2013
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.archive.series;
+
+/**
+ * Snapshot of the usage of the cache of Patient, Study and Series
+ * Attributes maintained by {@link SeriesService}.
+ * 
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ *
+ */
+public class SeriesAttributesCacheStatistics {
+
+    private final int size;
+    private final long encodedLength;
+    private final long maxEncodedLength;
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final long invalidations;
+
+    public SeriesAttributesCacheStatistics(int size, long encodedLength,
+            long maxEncodedLength, long hits, long misses, long evictions,
+            long invalidations) {
+        this.size = size;
+        this.encodedLength = encodedLength;
+        this.maxEncodedLength = maxEncodedLength;
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.invalidations = invalidations;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public long getEncodedLength() {
+        return encodedLength;
+    }
+
+    public long getMaxEncodedLength() {
+        return maxEncodedLength;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public long getInvalidations() {
+        return invalidations;
+    }
+
+    public double getHitRate() {
+        long requests = hits + misses;
+        return requests > 0 ? (double) hits / requests : 0.;
+    }
+
+    @Override
+    public String toString() {
+        return "SeriesAttributesCache[size=" + size
+                + ", encodedLength=" + encodedLength
+                + ", maxEncodedLength=" + maxEncodedLength
+                + ", hits=" + hits
+                + ", misses=" + misses
+                + ", hitRate=" + String.format("%.3f", getHitRate())
+                + ", evictions=" + evictions
+                + ", invalidations=" + invalidations
+                + "]";
+    }
+}
@@ -38,6 +38,9 @@
 
 package org.dcm4chee.archive.series;
 
+import java.util.Date;
+import java.util.List;
+
 import org.dcm4che.data.Attributes;
 import org.dcm4chee.archive.conf.QueryParam;
 
@@ -47,12 +50,63 @@ import org.dcm4chee.archive.conf.QueryParam;
  */
 public interface SeriesService {
 
+    /**
+     * Returns a copy of the merged Attributes of the Patient, Study and
+     * Series, which may be modified by the caller.
+     */
     Attributes getAttributes(Long seriesPk);
 
     Attributes getAttributes(Long seriesPk, QueryParam queryParam);
 
+    /**
+     * Counts the instances of the Series and updates its number of instances,
+     * if they were not changed concurrently in the meantime. Invoked by
+     * the reconciliation of the incrementally maintained numbers of
+     * instances, but not on queries.
+     */
     int[] calculateNumberOfSeriesRelatedInstances(Long seriesPk);
 
+    /**
+     * Counts the series and instances of the Study and updates its number of
+     * series and instances, if they were not changed concurrently in the
+     * meantime.
+     */
     int[] calculateNumberOfStudyRelatedInstances(Long studyPk);
 
+    /**
+     * Returns primary keys of Series greater than {@code afterPk}; if
+     * {@code updatedAfter} is not {@code null}, only of Series with a
+     * negative number of instances or updated since {@code updatedAfter}.
+     */
+    List<Long> findSeriesPks(long afterPk, Date updatedAfter, int limit);
+
+    /**
+     * Returns primary keys of Studies greater than {@code afterPk}; if
+     * {@code updatedAfter} is not {@code null}, only of Studies with a
+     * negative number of series or instances or updated since
+     * {@code updatedAfter}.
+     */
+    List<Long> findStudyPks(long afterPk, Date updatedAfter, int limit);
+
+    /**
+     * Evicts the cached Attributes of the Series, on modification of the
+     * Series Attributes by the current transaction.
+     */
+    void invalidateSeriesAttributes(Long seriesPk);
+
+    void invalidateStudyAttributes(long studyPk);
+
+    void invalidatePatientAttributes(long patientPk);
+
+    /**
+     * Returns a number which is incremented on each invalidation of cached
+     * Series, Study or Patient Attributes on this node, so other caches of
+     * these Attributes can detect modifications without querying them.
+     */
+    long getAttributesGeneration();
+
+    SeriesAttributesCacheStatistics getAttributesCacheStatistics();
+
+    void clearAttributesCache();
+
 }
@@ -0,0 +1,176 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2013
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.archive.series.impl;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.dcm4che.data.Attributes;
+import org.dcm4chee.archive.series.SeriesAttributesCacheStatistics;
+
+/**
+ * LRU cache of the decoded and merged Attributes of Patient, Study and
+ * Series by Series pk. Bounded by the total length of the encoded Attributes
+ * from which the cached entries were decoded.
+ * 
+ * A value is only added, if no entry was invalidated since the value was
+ * loaded from the database, as indicated by {@link #generation()}, so a
+ * concurrent update cannot be shadowed by stale Attributes.
+ * 
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ *
+ */
+class SeriesAttributesCache {
+
+    private static final class Entry {
+        final long studyPk;
+        final long patientPk;
+        final int encodedLength;
+        final Attributes attrs;
+
+        Entry(long studyPk, long patientPk, int encodedLength,
+                Attributes attrs) {
+            this.studyPk = studyPk;
+            this.patientPk = patientPk;
+            this.encodedLength = encodedLength;
+            this.attrs = attrs;
+        }
+    }
+
+    private final LinkedHashMap<Long, Entry> map =
+            new LinkedHashMap<Long, Entry>(16, 0.75f, true);
+    private long maxEncodedLength;
+    private long encodedLength;
+    private long generation;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    public SeriesAttributesCache(long maxEncodedLength) {
+        this.maxEncodedLength = maxEncodedLength;
+    }
+
+    public synchronized void setMaxEncodedLength(long maxEncodedLength) {
+        this.maxEncodedLength = maxEncodedLength;
+        evictEldest();
+    }
+
+    public synchronized long generation() {
+        return generation;
+    }
+
+    public synchronized Attributes get(Long seriesPk) {
+        Entry entry = map.get(seriesPk);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.attrs;
+    }
+
+    public synchronized void put(Long seriesPk, long studyPk, long patientPk,
+            int encodedLength, Attributes attrs, long generation) {
+        if (this.generation != generation
+                || maxEncodedLength <= 0 || encodedLength > maxEncodedLength)
+            return;
+
+        Entry prev = map.put(seriesPk,
+                new Entry(studyPk, patientPk, encodedLength, attrs));
+        if (prev != null)
+            this.encodedLength -= prev.encodedLength;
+        this.encodedLength += encodedLength;
+        evictEldest();
+    }
+
+    private void evictEldest() {
+        for (Iterator<Entry> it = map.values().iterator();
+                encodedLength > maxEncodedLength && it.hasNext();) {
+            encodedLength -= it.next().encodedLength;
+            it.remove();
+            evictions++;
+        }
+    }
+
+    public synchronized void invalidateSeries(Long seriesPk) {
+        generation++;
+        Entry entry = map.remove(seriesPk);
+        if (entry != null) {
+            encodedLength -= entry.encodedLength;
+            invalidations++;
+        }
+    }
+
+    public synchronized void invalidateStudy(long studyPk) {
+        generation++;
+        for (Iterator<Entry> it = map.values().iterator(); it.hasNext();) {
+            Entry entry = it.next();
+            if (entry.studyPk == studyPk)
+                remove(it, entry);
+        }
+    }
+
+    public synchronized void invalidatePatient(long patientPk) {
+        generation++;
+        for (Iterator<Entry> it = map.values().iterator(); it.hasNext();) {
+            Entry entry = it.next();
+            if (entry.patientPk == patientPk)
+                remove(it, entry);
+        }
+    }
+
+    private void remove(Iterator<Entry> it, Entry entry) {
+        it.remove();
+        encodedLength -= entry.encodedLength;
+        invalidations++;
+    }
+
+    public synchronized void clear() {
+        generation++;
+        map.clear();
+        encodedLength = 0;
+    }
+
+    public synchronized SeriesAttributesCacheStatistics getStatistics() {
+        return new SeriesAttributesCacheStatistics(map.size(), encodedLength,
+                maxEncodedLength, hits, misses, evictions, invalidations);
+    }
+}
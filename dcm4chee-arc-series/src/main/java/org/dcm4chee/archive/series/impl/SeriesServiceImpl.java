@@ -37,7 +37,13 @@
  * ***** END LICENSE BLOCK ***** */
 package org.dcm4chee.archive.series.impl;
 
+import java.util.Date;
+import java.util.List;
+
 import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
 
 import org.dcm4che.data.Attributes;
 import org.dcm4chee.archive.conf.QueryParam;
@@ -47,15 +53,28 @@ import org.dcm4chee.archive.entity.PatientStudySeriesAttributes;
 import org.dcm4chee.archive.entity.QueryPatientStudySeriesAttributes;
 import org.dcm4chee.archive.entity.Series;
 import org.dcm4chee.archive.entity.Study;
+import org.dcm4chee.archive.series.SeriesAttributesCacheStatistics;
 import org.dcm4chee.archive.series.SeriesService;
 
 /**
+ * The decoded Attributes of Patient, Study and Series are cached by Series pk,
+ * shared by retrieve and query. Entries are invalidated immediately and again
+ * on completion of the transaction which modified the Attributes; there are
+ * no entries added by a transaction which invalidated entries before.
+ * 
  * @author Gunter Zeilinger <gunterze@gmail.com>
  *
  */
 public class SeriesServiceImpl implements SeriesService{
 
+    private static final long DEFAULT_MAX_CACHE_SIZE = 16 * 1024 * 1024;
+
+    private static final Object INVALIDATED = new Object();
+
     private EntityManager em;
+    private TransactionSynchronizationRegistry tsr;
+    private final SeriesAttributesCache cache =
+            new SeriesAttributesCache(DEFAULT_MAX_CACHE_SIZE);
 
     public EntityManager getEntityManager() {
         return em;
@@ -65,34 +84,138 @@ public class SeriesServiceImpl implements SeriesService{
         this.em = em;
     }
 
+    public void setTransactionSynchronizationRegistry(
+            TransactionSynchronizationRegistry tsr) {
+        this.tsr = tsr;
+    }
+
+    /**
+     * @param maxCacheSize maximal total length of the encoded Attributes
+     *        from which the cached Attributes were decoded, 0 disables the cache
+     */
+    public void setMaxCacheSize(long maxCacheSize) {
+        cache.setMaxEncodedLength(maxCacheSize);
+    }
+
     @Override
     public Attributes getAttributes(Long seriesPk) {
+        Attributes cached = cache.get(seriesPk);
+        if (cached != null)
+            return new Attributes(cached);
+
+        long generation = cache.generation();
         PatientStudySeriesAttributes result = (PatientStudySeriesAttributes)
                 getEntityManager().createNamedQuery(Series.PATIENT_STUDY_SERIES_ATTRIBUTES)
                   .setParameter(1, seriesPk)
                   .getSingleResult();
-        return result.getAttributes();
+        Attributes attrs = result.getAttributes();
+        cache(seriesPk, result, new Attributes(attrs), generation);
+        return attrs;
     }
 
     @Override
     public Attributes getAttributes(Long seriesPk, QueryParam queryParam) {
+        Attributes cached = cache.get(seriesPk);
+        if (cached != null) {
+            QueryPatientStudySeriesAttributes result = (QueryPatientStudySeriesAttributes)
+                    getEntityManager().createNamedQuery(Series.QUERY_ATTRIBUTES)
+                      .setParameter(1, seriesPk)
+                      .getSingleResult();
+            Attributes attrs = new Attributes(cached);
+            result.setQueryAttributes(attrs, queryParam.isShowRejectedInstances());
+            return attrs;
+        }
+
+        long generation = cache.generation();
         QueryPatientStudySeriesAttributes result = (QueryPatientStudySeriesAttributes)
                 getEntityManager().createNamedQuery(Series.QUERY_PATIENT_STUDY_SERIES_ATTRIBUTES)
                   .setParameter(1, seriesPk)
                   .getSingleResult();
         Attributes attrs = result.getAttributes();
-        if (result.isNumberOfSeriesRelatedInstancesInitialized())
-            result.initNumberOfSeriesRelatedInstances(
-                    calculateNumberOfSeriesRelatedInstances(seriesPk));
-        if (result.isNumberOfStudyRelatedInstancesInitialized())
-            result.initNumberOfStudyRelatedInstances(
-                    calculateNumberOfStudyRelatedInstances(result.getStudyPk()));
+        cache(seriesPk, result, new Attributes(attrs), generation);
         result.setQueryAttributes(attrs, queryParam.isShowRejectedInstances());
         return attrs;
     }
 
+    private void cache(Long seriesPk, PatientStudySeriesAttributes result,
+            Attributes attrs, long generation) {
+        if (tsr.getResource(INVALIDATED) == null)
+            cache.put(seriesPk, result.getStudyPk(), result.getPatientPk(),
+                    result.getEncodedLength(), attrs, generation);
+    }
+
+    @Override
+    public void invalidateSeriesAttributes(final Long seriesPk) {
+        cache.invalidateSeries(seriesPk);
+        invalidateOnCompletion(new Runnable() {
+
+            @Override
+            public void run() {
+                cache.invalidateSeries(seriesPk);
+            }
+        });
+    }
+
+    @Override
+    public void invalidateStudyAttributes(final long studyPk) {
+        cache.invalidateStudy(studyPk);
+        invalidateOnCompletion(new Runnable() {
+
+            @Override
+            public void run() {
+                cache.invalidateStudy(studyPk);
+            }
+        });
+    }
+
+    @Override
+    public void invalidatePatientAttributes(final long patientPk) {
+        cache.invalidatePatient(patientPk);
+        invalidateOnCompletion(new Runnable() {
+
+            @Override
+            public void run() {
+                cache.invalidatePatient(patientPk);
+            }
+        });
+    }
+
+    private void invalidateOnCompletion(final Runnable invalidate) {
+        tsr.putResource(INVALIDATED, Boolean.TRUE);
+        tsr.registerInterposedSynchronization(new Synchronization() {
+
+            @Override
+            public void beforeCompletion() {
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                invalidate.run();
+            }
+        });
+    }
+
+    @Override
+    public long getAttributesGeneration() {
+        return cache.generation();
+    }
+
+    @Override
+    public SeriesAttributesCacheStatistics getAttributesCacheStatistics() {
+        return cache.getStatistics();
+    }
+
+    @Override
+    public void clearAttributesCache() {
+        cache.clear();
+    }
+
     @Override
     public int[] calculateNumberOfSeriesRelatedInstances(Long seriesPk) {
+        Object[] prev = (Object[]) getEntityManager()
+                .createNamedQuery(Series.NUMBER_OF_INSTANCES)
+                .setParameter(1, seriesPk)
+                .getSingleResult();
         int num = getEntityManager().createNamedQuery(Instance.NUMBER_OF_SERIES_RELATED_INSTANCES, Long.class)
                 .setParameter(1, seriesPk)
                 .setParameter(2, Availability.OFFLINE)
@@ -105,12 +228,18 @@ public class SeriesServiceImpl implements SeriesService{
             .setParameter(1, num)
             .setParameter(2, numA)
             .setParameter(3, seriesPk)
+            .setParameter(4, prev[0])
+            .setParameter(5, prev[1])
             .executeUpdate();
         return new int[] { num, numA };
     }
 
     @Override
     public int[] calculateNumberOfStudyRelatedInstances(Long studyPk) {
+        Object[] prev = (Object[]) getEntityManager()
+                .createNamedQuery(Study.NUMBER_OF_INSTANCES)
+                .setParameter(1, studyPk)
+                .getSingleResult();
         int numSeries = getEntityManager().createNamedQuery(Series.NUMBER_OF_SERIES, Long.class)
                 .setParameter(1, studyPk)
                 .setParameter(2, Availability.OFFLINE)
@@ -135,8 +264,36 @@ public class SeriesServiceImpl implements SeriesService{
             .setParameter(3, numInstances)
             .setParameter(4, numInstancesA)
             .setParameter(5, studyPk)
+            .setParameter(6, prev[0])
+            .setParameter(7, prev[1])
+            .setParameter(8, prev[2])
+            .setParameter(9, prev[3])
             .executeUpdate();
         return new int[] { numSeries, numSeriesA, numInstances, numInstancesA };
     }
 
+    @Override
+    public List<Long> findSeriesPks(long afterPk, Date updatedAfter,
+            int limit) {
+        return findPks(Series.PKS, Series.PKS_TO_RECONCILE,
+                afterPk, updatedAfter, limit);
+    }
+
+    @Override
+    public List<Long> findStudyPks(long afterPk, Date updatedAfter,
+            int limit) {
+        return findPks(Study.PKS, Study.PKS_TO_RECONCILE,
+                afterPk, updatedAfter, limit);
+    }
+
+    private List<Long> findPks(String all, String toReconcile,
+            long afterPk, Date updatedAfter, int limit) {
+        TypedQuery<Long> query = getEntityManager().createNamedQuery(
+                updatedAfter != null ? toReconcile : all, Long.class)
+                .setParameter(1, afterPk);
+        if (updatedAfter != null)
+            query.setParameter(2, updatedAfter);
+        return query.setMaxResults(limit).getResultList();
+    }
+
 }
@@ -0,0 +1,181 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2013
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.series.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.dcm4che.data.Attributes;
+import org.dcm4che.data.Tag;
+import org.dcm4che.data.VR;
+import org.dcm4chee.archive.entity.PatientStudySeriesAttributes;
+import org.dcm4chee.archive.entity.Utils;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ *
+ */
+public class SeriesServiceImplTest {
+
+    private static final Long SERIES_PK = 1L;
+    private static final long STUDY_PK = 2L;
+    private static final long PATIENT_PK = 3L;
+
+    private SeriesServiceImpl service;
+    private int loads;
+    private final Map<Object, Object> resources = new HashMap<Object, Object>();
+    private final List<Synchronization> syncs =
+            new ArrayList<Synchronization>();
+
+    @Before
+    public void setUp() {
+        service = new SeriesServiceImpl();
+        service.setEntityManager(proxy(EntityManager.class,
+                new InvocationHandler() {
+
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) {
+                        if (method.getName().equals("createNamedQuery"))
+                            return query();
+                        throw new UnsupportedOperationException(
+                                method.getName());
+                    }
+                }));
+        service.setTransactionSynchronizationRegistry(
+                proxy(TransactionSynchronizationRegistry.class,
+                        new InvocationHandler() {
+
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) {
+                        String name = method.getName();
+                        if (name.equals("getResource"))
+                            return resources.get(args[0]);
+                        if (name.equals("putResource"))
+                            resources.put(args[0], args[1]);
+                        else if (name.equals(
+                                "registerInterposedSynchronization"))
+                            syncs.add((Synchronization) args[0]);
+                        else
+                            throw new UnsupportedOperationException(name);
+                        return null;
+                    }
+                }));
+    }
+
+    @Test
+    public void testReturnsCopyOfCachedAttributes() {
+        Attributes attrs1 = service.getAttributes(SERIES_PK);
+        attrs1.setString(Tag.PatientName, VR.PN, "Modified");
+        Attributes attrs2 = service.getAttributes(SERIES_PK);
+        Attributes attrs3 = service.getAttributes(SERIES_PK);
+        assertEquals(1, loads);
+        assertEquals("Test^Patient", attrs2.getString(Tag.PatientName));
+        assertNotSame(attrs2, attrs3);
+        assertEquals(attrs2, attrs3);
+    }
+
+    @Test
+    public void testReloadsAfterInvalidation() {
+        service.getAttributes(SERIES_PK);
+        long generation = service.getAttributesGeneration();
+        service.invalidatePatientAttributes(PATIENT_PK);
+        assertTrue(service.getAttributesGeneration() > generation);
+        service.getAttributes(SERIES_PK);
+        assertEquals(2, loads);
+        for (Synchronization sync : syncs)
+            sync.afterCompletion(0);
+        resources.clear();
+        service.getAttributes(SERIES_PK);
+        service.getAttributes(SERIES_PK);
+        assertEquals(3, loads);
+    }
+
+    private Query query() {
+        return proxy(Query.class, new InvocationHandler() {
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("setParameter"))
+                    return proxy;
+                if (method.getName().equals("getSingleResult")) {
+                    loads++;
+                    return result();
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    private static PatientStudySeriesAttributes result() {
+        Attributes patient = new Attributes();
+        patient.setString(Tag.PatientName, VR.PN, "Test^Patient");
+        Attributes study = new Attributes();
+        study.setString(Tag.StudyInstanceUID, VR.UI, "1.2.3");
+        Attributes series = new Attributes();
+        series.setString(Tag.SeriesInstanceUID, VR.UI, "1.2.3.4");
+        return new PatientStudySeriesAttributes(STUDY_PK, PATIENT_PK,
+                Utils.encodeAttributes(series),
+                Utils.encodeAttributes(study),
+                Utils.encodeAttributes(patient));
+    }
+
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(
+                SeriesServiceImplTest.class.getClassLoader(),
+                new Class<?>[] { type }, handler));
+    }
+}
@@ -66,6 +66,7 @@ import org.dcm4che.net.service.DicomService;
 import org.dcm4che.net.service.DicomServiceException;
 import org.dcm4che.net.service.DicomServiceRegistry;
 import org.dcm4chee.archive.ArchiveService;
+import org.dcm4chee.archive.AssociationPool;
 import org.dcm4chee.archive.conf.ArchiveAEExtension;
 import org.dcm4chee.archive.jms.JmsService;
 import org.dcm4chee.archive.jms.MessageCreator;
@@ -83,6 +84,7 @@ public class StgCmtSCP extends DicomService implements MessageListener {
     private StgCmtService stgCmtService;
 
     private ArchiveService archiveService; 
+    private AssociationPool associationPool;
 
     private JmsService jmsService; 
 
@@ -100,6 +102,10 @@ public class StgCmtSCP extends DicomService implements MessageListener {
         this.archiveService = archiveService;
     }
 
+    public void setAssociationPool(AssociationPool associationPool) {
+        this.associationPool = associationPool;
+    }
+
     public void setStgCmtService(StgCmtService stgCmtService) {
         this.stgCmtService = stgCmtService;
     }
@@ -202,18 +208,19 @@ public class StgCmtSCP extends DicomService implements MessageListener {
         try {
             ApplicationEntity remoteAE = archiveService
                     .findApplicationEntity(remoteAET);
-            Association as = localAE.connect(remoteAE, aarq);
-            DimseRSP neventReport = as.neventReport(
-                    UID.StorageCommitmentPushModelSOPClass,
-                    UID.StorageCommitmentPushModelSOPInstance,
-                    eventTypeId(eventInfo),
-                    eventInfo, null);
-            neventReport.next();
+            Association as = associationPool.acquire(localAE, remoteAE, aarq);
             try {
-                as.release();
-            } catch (IOException e) {
-                LOG.info("{}: Failed to release association to {}", as, remoteAET);
+                DimseRSP neventReport = as.neventReport(
+                        UID.StorageCommitmentPushModelSOPClass,
+                        UID.StorageCommitmentPushModelSOPInstance,
+                        eventTypeId(eventInfo),
+                        eventInfo, null);
+                neventReport.next();
+            } catch (Exception e) {
+                associationPool.discard(as);
+                throw e;
             }
+            associationPool.release(as);
         } catch (Exception e) {
             ArchiveAEExtension aeExt = localAE.getAEExtension(ArchiveAEExtension.class);
             if (aeExt != null && retries < aeExt.getStorageCommitmentMaxRetries()) {
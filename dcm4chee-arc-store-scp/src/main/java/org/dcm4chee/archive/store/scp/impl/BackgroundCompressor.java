@@ -0,0 +1,279 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2013
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.store.scp.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageListener;
+import javax.jms.Queue;
+import javax.jms.Session;
+
+import org.dcm4che.data.Attributes;
+import org.dcm4che.data.BulkData;
+import org.dcm4che.data.Tag;
+import org.dcm4che.imageio.codec.CompressionRule;
+import org.dcm4che.io.DicomInputStream;
+import org.dcm4che.io.DicomInputStream.IncludeBulkData;
+import org.dcm4che.net.ApplicationEntity;
+import org.dcm4che.util.TagUtils;
+import org.dcm4chee.archive.conf.ArchiveAEExtension;
+import org.dcm4chee.archive.conf.ArchiveDeviceExtension;
+import org.dcm4chee.archive.entity.FileRef;
+import org.dcm4chee.archive.jms.JmsService;
+import org.dcm4chee.archive.jms.MessageCreator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compresses received objects after the C-STORE response was returned.
+ * 
+ * Compression jobs are queued by JMS and processed by a configurable
+ * number of workers, each consuming messages by its own transacted JMS
+ * session, so the message of a failed job is redelivered by the JMS
+ * provider. A worker writes the compressed file and replaces file path,
+ * transfer syntax, size and digest of the {@code FileRef} in one update.
+ * Because retrieves may still read the uncompressed file, it is deleted
+ * by a further message, delivered after a configurable delay.
+ * 
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ *
+ */
+class BackgroundCompressor {
+
+    private static final Logger LOG =
+            LoggerFactory.getLogger(BackgroundCompressor.class);
+
+    private final CStoreSCP scp;
+    private final JmsService jmsService;
+    private final ArrayList<Session> sessions = new ArrayList<Session>();
+    private Queue compressionQueue;
+
+    public BackgroundCompressor(CStoreSCP scp, JmsService jmsService) {
+        this.scp = scp;
+        this.jmsService = jmsService;
+    }
+
+    public void start(int workers) throws JMSException {
+        for (int i = 0; i < workers; i++) {
+            Session session = jmsService.getConnection()
+                    .createSession(true, Session.SESSION_TRANSACTED);
+            sessions.add(session);
+            if (compressionQueue == null)
+                compressionQueue = session.createQueue("compressionQueue");
+            session.createConsumer(compressionQueue)
+                    .setMessageListener(new Worker(session));
+        }
+    }
+
+    public void stop() throws JMSException {
+        for (Session session : sessions)
+            session.close();
+        sessions.clear();
+    }
+
+    public void schedule(final String localAET, final String sourceAET,
+            final FileRef fileRef) {
+        try {
+            jmsService.sendMessage(compressionQueue, new MessageCreator() {
+
+                @Override
+                public Message createMessage(Session session)
+                        throws JMSException {
+                    Message msg = session.createMessage();
+                    msg.setStringProperty("LocalAET", localAET);
+                    msg.setStringProperty("SourceAET", sourceAET);
+                    msg.setLongProperty("FileRefPk", fileRef.getPk());
+                    msg.setStringProperty("FileSystemURI",
+                            fileRef.getFileSystem().getURI());
+                    msg.setStringProperty("FilePath", fileRef.getFilePath());
+                    return msg;
+                }},
+                0);
+        } catch (JMSException e) {
+            LOG.warn("Failed to schedule compression of {}: {}", fileRef, e);
+        }
+    }
+
+    private void scheduleDeletion(final Path path, int delay) {
+        try {
+            jmsService.sendMessage(compressionQueue, new MessageCreator() {
+
+                @Override
+                public Message createMessage(Session session)
+                        throws JMSException {
+                    Message msg = session.createMessage();
+                    msg.setStringProperty("DeleteFileURI",
+                            path.toUri().toString());
+                    return msg;
+                }},
+                delay * 1000L);
+        } catch (JMSException e) {
+            LOG.warn("Failed to schedule deletion of {}: {}", path, e);
+        }
+    }
+
+    private class Worker implements MessageListener {
+
+        private final Session session;
+
+        Worker(Session session) {
+            this.session = session;
+        }
+
+        @Override
+        public void onMessage(Message msg) {
+            try {
+                process(msg);
+                session.commit();
+            } catch (Throwable th) {
+                LOG.warn("Failed to process " + msg + " - rollback", th);
+                try {
+                    session.rollback();
+                } catch (JMSException e) {
+                    LOG.warn("Failed to rollback {}: {}", msg, e);
+                }
+            }
+        }
+    }
+
+    private void process(Message msg) throws Exception {
+        String deleteFileURI = msg.getStringProperty("DeleteFileURI");
+        if (deleteFileURI != null) {
+            Files.deleteIfExists(Paths.get(new URI(deleteFileURI)));
+            return;
+        }
+        String localAET = msg.getStringProperty("LocalAET");
+        String sourceAET = msg.getStringProperty("SourceAET");
+        long fileRefPk = msg.getLongProperty("FileRefPk");
+        Path fsPath = Paths.get(new URI(msg.getStringProperty("FileSystemURI")));
+        String filePath = msg.getStringProperty("FilePath");
+        ApplicationEntity ae = scp.getArchiveService().getDevice()
+                .getApplicationEntity(localAET);
+        ArchiveAEExtension aeExt = ae != null
+                ? ae.getAEExtension(ArchiveAEExtension.class)
+                : null;
+        if (aeExt == null) {
+            LOG.warn("Failed to compress {} - no such local AE: {}",
+                    filePath, localAET);
+            return;
+        }
+        Path src = fsPath.resolve(filePath.replace('/', File.separatorChar));
+        if (!Files.exists(src)) {
+            LOG.info("Skip compression of {} - file was already replaced",
+                    src);
+            return;
+        }
+        Attributes fmi;
+        Attributes attrs;
+        try (DicomInputStream din = new DicomInputStream(src.toFile())) {
+            din.setIncludeBulkData(IncludeBulkData.URI);
+            attrs = din.readDataset(-1, -1);
+            fmi = din.getFileMetaInformation();
+        }
+        if (!(attrs.getValue(Tag.PixelData) instanceof BulkData))
+            return;
+
+        CompressionRule compressionRule = aeExt.getCompressionRules()
+                .findCompressionRule(sourceAET, attrs);
+        if (compressionRule == null)
+            return;
+
+        String algorithm = aeExt.getDigestAlgorithm();
+        MessageDigest digest = algorithm != null
+                ? MessageDigest.getInstance(algorithm)
+                : null;
+        Path dest = createFile(src.resolveSibling(
+                src.getFileName().toString() + '-'));
+        try {
+            scp.getCompressionService().compress(compressionRule,
+                    src.toFile(), dest.toFile(), digest, fmi, attrs);
+            if (scp.getStoreService().replaceFile(fileRefPk, filePath,
+                    fsPath.relativize(dest).toString()
+                        .replace(File.separatorChar, '/'),
+                    fmi.getString(Tag.TransferSyntaxUID),
+                    Files.size(dest),
+                    digest != null
+                        ? TagUtils.toHexString(digest.digest())
+                        : null,
+                    StoreInstance.scanPixelData(dest.toFile()))) {
+                dest = null;
+                ArchiveDeviceExtension arcDev = ae.getDevice()
+                        .getDeviceExtension(ArchiveDeviceExtension.class);
+                scheduleDeletion(src, arcDev != null
+                        ? arcDev.getUncompressedFileDeletionDelay()
+                        : 0);
+            } else {
+                LOG.info("Discard compressed {} - file reference was modified",
+                        src);
+            }
+        } finally {
+            if (dest != null)
+                deleteFile(dest);
+        }
+    }
+
+    private static Path createFile(Path path) throws IOException {
+        for (;;) {
+            try {
+                return Files.createFile(path);
+            } catch (FileAlreadyExistsException e) {
+                path = path.resolveSibling(
+                        path.getFileName().toString() + '-');
+            }
+        }
+    }
+
+    private static void deleteFile(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            LOG.warn("Failed to delete {}: {}", path, e);
+        }
+    }
+}
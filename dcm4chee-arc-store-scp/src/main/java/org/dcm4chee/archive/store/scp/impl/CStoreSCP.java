@@ -40,14 +40,23 @@ package org.dcm4chee.archive.store.scp.impl;
 
 import java.io.IOException;
 
+import javax.jms.JMSException;
+
 import org.dcm4che.data.Attributes;
 import org.dcm4che.net.Association;
+import org.dcm4che.net.Commands;
+import org.dcm4che.net.Dimse;
 import org.dcm4che.net.PDVInputStream;
+import org.dcm4che.net.Status;
 import org.dcm4che.net.pdu.PresentationContext;
 import org.dcm4che.net.service.BasicCStoreSCP;
 import org.dcm4che.net.service.DicomServiceRegistry;
 import org.dcm4chee.archive.ArchiveService;
 import org.dcm4chee.archive.compress.CompressionService;
+import org.dcm4chee.archive.conf.ArchiveAEExtension;
+import org.dcm4chee.archive.conf.ArchiveDeviceExtension;
+import org.dcm4chee.archive.jms.JmsService;
+import org.dcm4chee.archive.series.SeriesService;
 import org.dcm4chee.archive.store.StoreService;
 
 /**
@@ -59,7 +68,13 @@ public class CStoreSCP extends BasicCStoreSCP {
     private ArchiveService archiveService;
     private StoreService storeService;
     private CompressionService compressionService;
+    private JmsService jmsService;
+    private SeriesService seriesService;
     private DicomServiceRegistry registry = null; 
+    private FileSystemSelector fileSystemSelector;
+    private BackgroundCompressor backgroundCompressor;
+    private InstanceCountReconciler instanceCountReconciler;
+    private EncodedAttributesMigrator encodedAttributesMigrator;
     
     public CStoreSCP() {
         super("*");
@@ -89,16 +104,104 @@ public class CStoreSCP extends BasicCStoreSCP {
         this.compressionService = compressionService;
     }
 
-    public void init() {
+    public void setJmsService(JmsService jmsService) {
+        this.jmsService = jmsService;
+    }
+
+    public void setSeriesService(SeriesService seriesService) {
+        this.seriesService = seriesService;
+    }
+
+    public FileSystemSelector getFileSystemSelector() {
+        return fileSystemSelector;
+    }
+
+    public BackgroundCompressor getBackgroundCompressor() {
+        return backgroundCompressor;
+    }
+
+    public void init() throws JMSException {
         registry = archiveService.getServiceRegistry();
         registry.addDicomService(this);
+        fileSystemSelector = new FileSystemSelector(storeService,
+                archiveService.getDevice());
+        fileSystemSelector.start();
+        ArchiveDeviceExtension arcDev = archiveService.getDevice()
+                .getDeviceExtension(ArchiveDeviceExtension.class);
+        if (arcDev != null) {
+            compressionService.setMaxConcurrentCompressions(
+                    arcDev.getMaxConcurrentCompressions());
+            compressionService.setMaxWaitingCompressions(
+                    arcDev.getMaxWaitingCompressions());
+        }
+        backgroundCompressor = new BackgroundCompressor(this, jmsService);
+        backgroundCompressor.start(arcDev != null
+                ? arcDev.getBackgroundCompressionWorkers()
+                : 1);
+        instanceCountReconciler = new InstanceCountReconciler(seriesService,
+                storeService, archiveService.getDevice());
+        instanceCountReconciler.start();
+        encodedAttributesMigrator = new EncodedAttributesMigrator(storeService,
+                archiveService.getDevice());
+        encodedAttributesMigrator.start();
     }
 
-    public void destroy() {
+    public void destroy() throws JMSException {
         if (registry != null) {
             registry.removeDicomService(this);
             registry = null;
         }
+        if (fileSystemSelector != null)
+            fileSystemSelector.stop();
+        if (backgroundCompressor != null) {
+            backgroundCompressor.stop();
+            backgroundCompressor = null;
+        }
+        if (instanceCountReconciler != null) {
+            instanceCountReconciler.stop();
+            instanceCountReconciler = null;
+        }
+        if (encodedAttributesMigrator != null) {
+            encodedAttributesMigrator.stop();
+            encodedAttributesMigrator = null;
+        }
+    }
+
+    @Override
+    public void onDimseRQ(Association as, PresentationContext pc, Dimse dimse,
+            Attributes rq, PDVInputStream data) throws IOException {
+        ArchiveAEExtension aeExt = as.getApplicationEntity()
+                .getAEExtension(ArchiveAEExtension.class);
+        if (dimse != Dimse.C_STORE_RQ || aeExt == null
+                || aeExt.getStoreBatchSize() <= 1) {
+            super.onDimseRQ(as, pc, dimse, rq, data);
+            return;
+        }
+
+        Attributes rsp = Commands.mkCStoreRSP(rq, Status.Success);
+        StoreInstance store = new StoreInstance(this, as, pc, rq);
+        try {
+            store.spool(data);
+            store.processFile();
+            storeCommitter(as, aeExt).add(store, rsp);
+            store = null;
+        } finally {
+            if (store != null)
+                store.close();
+        }
+    }
+
+    private StoreCommitter storeCommitter(Association as,
+            ArchiveAEExtension aeExt) {
+        StoreCommitter committer = (StoreCommitter)
+                as.getProperty(StoreCommitter.class.getName());
+        if (committer == null) {
+            committer = new StoreCommitter(storeService,
+                    archiveService.getDevice(),
+                    aeExt.getStoreBatchSize(), aeExt.getStoreBatchDelay());
+            as.setProperty(StoreCommitter.class.getName(), committer);
+        }
+        return committer;
     }
 
     @Override
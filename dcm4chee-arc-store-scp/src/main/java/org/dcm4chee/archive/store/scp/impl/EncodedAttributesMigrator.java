@@ -0,0 +1,194 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2013
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.store.scp.impl;
+
+import java.util.UUID;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.dcm4che.net.Device;
+import org.dcm4chee.archive.conf.ArchiveDeviceExtension;
+import org.dcm4chee.archive.conf.Entity;
+import org.dcm4chee.archive.store.StoreService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Rewrites the encoded attributes of Patients, Studies, Series and
+ * Instances, which are not yet in the format configured by the Attribute
+ * Filter of the entity, in the configured interval, so attributes encoded
+ * in the legacy format or with a previous compression setting are
+ * converted in the background. Each batch of entities is rewritten in its
+ * own transaction; entities updated concurrently are left untouched until
+ * the next run. Only the node holding the task lock runs the migration.
+ * Once a run finds no entity left to rewrite, the migration is not
+ * rescheduled until the next start.
+ * 
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ *
+ */
+class EncodedAttributesMigrator implements Runnable {
+
+    private static final Logger LOG =
+            LoggerFactory.getLogger(EncodedAttributesMigrator.class);
+
+    private static final String TASK = "EncodedAttributesMigration";
+
+    /**
+     * Seconds the task lock is held without renewal, which happens before
+     * each batch.
+     */
+    private static final int LOCK_TIMEOUT = 300;
+
+    private static final int BATCH_SIZE = 100;
+
+    private static final Entity[] ENTITIES = {
+        Entity.Patient,
+        Entity.Study,
+        Entity.Series,
+        Entity.Instance
+    };
+
+    private final StoreService storeService;
+    private final Device device;
+    private final String owner = UUID.randomUUID().toString();
+    private ScheduledFuture<?> scheduled;
+    private volatile boolean stopped;
+
+    public EncodedAttributesMigrator(StoreService storeService, Device device) {
+        this.storeService = storeService;
+        this.device = device;
+    }
+
+    public synchronized void start() {
+        stopped = false;
+        schedule();
+    }
+
+    public synchronized void stop() {
+        stopped = true;
+        if (scheduled != null) {
+            scheduled.cancel(false);
+            scheduled = null;
+        }
+    }
+
+    private synchronized void schedule() {
+        ArchiveDeviceExtension arcDev = arcDev();
+        int interval = arcDev != null
+                ? arcDev.getEncodedAttributesMigrationInterval()
+                : 0;
+        if (stopped || interval <= 0)
+            return;
+
+        scheduled = device.schedule(this, interval, TimeUnit.SECONDS);
+    }
+
+    private ArchiveDeviceExtension arcDev() {
+        return device.getDeviceExtension(ArchiveDeviceExtension.class);
+    }
+
+    @Override
+    public void run() {
+        boolean completed = false;
+        try {
+            if (!claimLock()) {
+                LOG.debug("Migration of encoded attributes runs on other node");
+                return;
+            }
+            LOG.info("Start migration of encoded attributes");
+            int batches = 0;
+            for (Entity entity : ENTITIES)
+                batches += migrate(entity);
+            completed = batches == 0 && !stopped;
+            LOG.info(completed
+                    ? "All encoded attributes are in the configured format"
+                    : "Finished migration of encoded attributes");
+        } catch (Exception e) {
+            LOG.warn("Migration of encoded attributes failed:", e);
+        } finally {
+            releaseLock();
+            if (!completed)
+                schedule();
+        }
+    }
+
+    private boolean claimLock() {
+        try {
+            return storeService.claimTaskLock(TASK, owner, LOCK_TIMEOUT);
+        } catch (Exception e) {
+            // concurrent creation of the lock by another node
+            LOG.debug("Failed to claim lock of {}:", TASK, e);
+            return false;
+        }
+    }
+
+    private void releaseLock() {
+        try {
+            storeService.releaseTaskLock(TASK, owner);
+        } catch (Exception e) {
+            LOG.warn("Failed to release lock of {}:", TASK, e);
+        }
+    }
+
+    /**
+     * Returns the number of batches with entities not yet in the configured
+     * format.
+     */
+    private int migrate(Entity entity) {
+        ArchiveDeviceExtension arcDev = arcDev();
+        if (arcDev == null)
+            return 0;
+
+        boolean compress =
+                arcDev.getAttributeFilter(entity).isCompressEncodedAttributes();
+        int batches = 0;
+        long lastPk = 0L;
+        while (!stopped && lastPk != -1L) {
+            if (!storeService.claimTaskLock(TASK, owner, LOCK_TIMEOUT))
+                throw new IllegalStateException("Lost lock of " + TASK);
+            lastPk = storeService.migrateEncodedAttributes(
+                    entity, compress, lastPk, BATCH_SIZE);
+            if (lastPk != -1L)
+                batches++;
+        }
+        LOG.debug("Finished migration of encoded attributes of {}", entity);
+        return batches;
+    }
+}
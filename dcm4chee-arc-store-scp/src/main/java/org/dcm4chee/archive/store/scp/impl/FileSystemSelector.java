@@ -0,0 +1,267 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2013
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.store.scp.impl;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dcm4che.net.Device;
+import org.dcm4che.net.Status;
+import org.dcm4che.net.service.DicomServiceException;
+import org.dcm4chee.archive.conf.ArchiveAEExtension;
+import org.dcm4chee.archive.conf.ArchiveDeviceExtension;
+import org.dcm4chee.archive.conf.FileSystemSelectionPolicy;
+import org.dcm4chee.archive.entity.FileSystem;
+import org.dcm4chee.archive.store.StoreService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Distributes received objects over the writeable file systems of a file
+ * system group, according to the configured selection policy.
+ * 
+ * The writeable file systems of each group and their free space are
+ * kept in memory and refreshed by a task scheduled on the device in the
+ * configured check interval, so {@link #select} does not access the
+ * file systems or the database, except on the first selection for a
+ * group. File systems whose used space exceeds the configured high water
+ * mark, are switched to read-only, activating their next file system.
+ * 
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ *
+ */
+class FileSystemSelector implements Runnable {
+
+    private static final Logger LOG =
+            LoggerFactory.getLogger(FileSystemSelector.class);
+
+    private final StoreService storeService;
+    private final Device device;
+    private final HashMap<String, Group> groups = new HashMap<String, Group>();
+    private ScheduledFuture<?> scheduled;
+    private volatile boolean stopped;
+
+    public FileSystemSelector(StoreService storeService, Device device) {
+        this.storeService = storeService;
+        this.device = device;
+    }
+
+    public FileSystem select(ArchiveAEExtension aeExt)
+            throws DicomServiceException {
+        String groupID = aeExt.getFileSystemGroupID();
+        Group group;
+        synchronized (groups) {
+            group = groups.get(groupID);
+            if (group == null)
+                groups.put(groupID, group = new Group(groupID));
+        }
+        return group.select(aeExt);
+    }
+
+    public synchronized void start() {
+        stopped = false;
+        schedule();
+    }
+
+    public synchronized void stop() {
+        stopped = true;
+        if (scheduled != null) {
+            scheduled.cancel(false);
+            scheduled = null;
+        }
+    }
+
+    private synchronized void schedule() {
+        int interval = checkInterval();
+        if (stopped || interval <= 0)
+            return;
+
+        scheduled = device.schedule(this, interval, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void run() {
+        try {
+            ArrayList<Group> list;
+            synchronized (groups) {
+                list = new ArrayList<Group>(groups.values());
+            }
+            for (Group group : list) {
+                if (stopped)
+                    break;
+                try {
+                    group.check();
+                } catch (Exception e) {
+                    LOG.warn("Failed to check file systems of group {}: {}",
+                            group.groupID, e);
+                }
+            }
+        } finally {
+            schedule();
+        }
+    }
+
+    private int checkInterval() {
+        ArchiveDeviceExtension arcDev =
+                device.getDeviceExtension(ArchiveDeviceExtension.class);
+        return arcDev != null ? arcDev.getFileSystemCheckInterval() : 60;
+    }
+
+    private static class FileSystemInfo {
+        final FileSystem fs;
+        volatile long usableSpace;
+        volatile long totalSpace;
+
+        FileSystemInfo(FileSystem fs) {
+            this.fs = fs;
+        }
+
+        void check() throws IOException {
+            FileStore store = Files.getFileStore(fs.getPath());
+            usableSpace = store.getUsableSpace();
+            totalSpace = store.getTotalSpace();
+        }
+
+        boolean exceeds(int highWaterMark) {
+            return highWaterMark > 0 && totalSpace > 0
+                    && (totalSpace - usableSpace) * 100 >= totalSpace * highWaterMark;
+        }
+    }
+
+    private class Group {
+        final String groupID;
+        final AtomicInteger next = new AtomicInteger();
+        volatile List<FileSystemInfo> fileSystems =
+                Collections.emptyList();
+        volatile int highWaterMark;
+
+        Group(String groupID) {
+            this.groupID = groupID;
+        }
+
+        FileSystem select(ArchiveAEExtension aeExt)
+                throws DicomServiceException {
+            List<FileSystemInfo> list = fileSystems;
+            if (list.isEmpty())
+                list = load(aeExt);
+
+            FileSystemSelectionPolicy policy =
+                    aeExt.getFileSystemSelectionPolicy();
+            if (policy == FileSystemSelectionPolicy.FREE_SPACE) {
+                long total = 0;
+                for (FileSystemInfo info : list)
+                    total += info.usableSpace;
+                if (total > 0) {
+                    long r = (long) (ThreadLocalRandom.current().nextDouble()
+                            * total);
+                    for (FileSystemInfo info : list)
+                        if ((r -= info.usableSpace) < 0)
+                            return info.fs;
+                }
+            }
+            return list.get((next.getAndIncrement() & Integer.MAX_VALUE)
+                    % list.size()).fs;
+        }
+
+        synchronized List<FileSystemInfo> load(ArchiveAEExtension aeExt)
+                throws DicomServiceException {
+            if (fileSystems.isEmpty()) {
+                highWaterMark = aeExt.getFileSystemHighWaterMark();
+                update(storeService.selectStorageFileSystems(groupID,
+                        aeExt.getInitFileSystemURI()));
+                if (fileSystems.isEmpty())
+                    throw new DicomServiceException(Status.OutOfResources,
+                            "No writeable File System in File System Group "
+                                    + groupID);
+            }
+            return fileSystems;
+        }
+
+        synchronized void check() throws DicomServiceException {
+            if (fileSystems.isEmpty())
+                return;
+
+            try {
+                update(storeService.selectStorageFileSystems(groupID, null));
+            } catch (DicomServiceException e) {
+                fileSystems = Collections.emptyList();
+                throw e;
+            }
+        }
+
+        private void update(List<FileSystem> fsList) {
+            int highWaterMark = this.highWaterMark;
+            ArrayList<FileSystemInfo> list =
+                    new ArrayList<FileSystemInfo>(fsList.size());
+            while (!fsList.isEmpty()) {
+                List<FileSystem> switched = null;
+                for (FileSystem fs : fsList) {
+                    FileSystemInfo info = new FileSystemInfo(fs);
+                    try {
+                        info.check();
+                    } catch (IOException e) {
+                        LOG.warn("Failed to determine free space of {}: {}",
+                                fs, e);
+                    }
+                    if (info.exceeds(highWaterMark)) {
+                        LOG.info("Used space of {} exceeds {}%",
+                                fs, highWaterMark);
+                        switched = storeService.switchStorageFileSystem(fs);
+                        break;
+                    }
+                    list.add(info);
+                }
+                if (switched == null)
+                    break;
+                list.clear();
+                fsList = switched;
+            }
+            fileSystems = list;
+        }
+    }
+}
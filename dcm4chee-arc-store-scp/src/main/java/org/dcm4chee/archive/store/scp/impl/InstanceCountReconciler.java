@@ -0,0 +1,218 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2013
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.store.scp.impl;
+
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.dcm4che.net.Device;
+import org.dcm4chee.archive.conf.ArchiveDeviceExtension;
+import org.dcm4chee.archive.series.SeriesService;
+import org.dcm4chee.archive.store.StoreService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Recalculates the number of instances of Series and Studies in the
+ * configured interval, correcting drifts of the incrementally maintained
+ * values. Each Series and Study is recalculated in its own transaction;
+ * values changed concurrently by storage are left untouched until the
+ * next run. Only the node holding the task lock runs the reconciliation.
+ * 
+ * The first run after start reconciles all Series and Studies; subsequent
+ * runs only those with negative values - which are not maintained
+ * incrementally - or which were updated since the start of the previous
+ * run. The first run is only started after one interval, so starting the
+ * archive does not trigger a scan of all Series and Studies.
+ * 
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ *
+ */
+class InstanceCountReconciler implements Runnable {
+
+    private static final Logger LOG =
+            LoggerFactory.getLogger(InstanceCountReconciler.class);
+
+    private static final String TASK = "NumberOfInstancesReconciliation";
+
+    /**
+     * Seconds the task lock is held without renewal, which happens before
+     * each batch.
+     */
+    private static final int LOCK_TIMEOUT = 300;
+
+    private static final int BATCH_SIZE = 100;
+
+    private final SeriesService seriesService;
+    private final StoreService storeService;
+    private final Device device;
+    private final String owner = UUID.randomUUID().toString();
+    private ScheduledFuture<?> scheduled;
+    private volatile boolean stopped;
+    private Date lastRun;
+
+    public InstanceCountReconciler(SeriesService seriesService,
+            StoreService storeService, Device device) {
+        this.seriesService = seriesService;
+        this.storeService = storeService;
+        this.device = device;
+    }
+
+    public synchronized void start() {
+        stopped = false;
+        schedule();
+    }
+
+    public synchronized void stop() {
+        stopped = true;
+        if (scheduled != null) {
+            scheduled.cancel(false);
+            scheduled = null;
+        }
+    }
+
+    private synchronized void schedule() {
+        int interval = interval();
+        if (stopped || interval <= 0)
+            return;
+
+        scheduled = device.schedule(this, interval, TimeUnit.SECONDS);
+    }
+
+    private int interval() {
+        ArchiveDeviceExtension arcDev =
+                device.getDeviceExtension(ArchiveDeviceExtension.class);
+        return arcDev != null
+                ? arcDev.getNumberOfInstancesReconciliationInterval()
+                : 0;
+    }
+
+    @Override
+    public void run() {
+        try {
+            if (!claimLock()) {
+                LOG.debug("Reconciliation of number of instances runs on "
+                        + "other node");
+                return;
+            }
+            Date started = new Date();
+            if (lastRun == null)
+                LOG.info("Start reconciliation of number of instances of "
+                        + "all series and studies");
+            else
+                LOG.info("Start reconciliation of number of instances of "
+                        + "series and studies updated since {}", lastRun);
+            int series = reconcileSeries(lastRun);
+            int studies = reconcileStudies(lastRun);
+            if (!stopped)
+                lastRun = started;
+            LOG.info("Finished reconciliation of number of instances of "
+                    + "{} series and {} studies", series, studies);
+        } catch (Exception e) {
+            LOG.warn("Reconciliation of number of instances failed:", e);
+        } finally {
+            releaseLock();
+            schedule();
+        }
+    }
+
+    private boolean claimLock() {
+        try {
+            return storeService.claimTaskLock(TASK, owner, LOCK_TIMEOUT);
+        } catch (Exception e) {
+            // concurrent creation of the lock by another node
+            LOG.debug("Failed to claim lock of {}:", TASK, e);
+            return false;
+        }
+    }
+
+    private void renewLock() {
+        if (!storeService.claimTaskLock(TASK, owner, LOCK_TIMEOUT))
+            throw new IllegalStateException("Lost lock of " + TASK);
+    }
+
+    private void releaseLock() {
+        try {
+            storeService.releaseTaskLock(TASK, owner);
+        } catch (Exception e) {
+            LOG.warn("Failed to release lock of {}:", TASK, e);
+        }
+    }
+
+    private int reconcileSeries(Date updatedAfter) {
+        int count = 0;
+        List<Long> pks;
+        long lastPk = 0L;
+        while (!stopped) {
+            renewLock();
+            pks = seriesService.findSeriesPks(lastPk, updatedAfter,
+                    BATCH_SIZE);
+            if (pks.isEmpty())
+                break;
+            for (Long pk : pks) {
+                seriesService.calculateNumberOfSeriesRelatedInstances(pk);
+                lastPk = pk;
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private int reconcileStudies(Date updatedAfter) {
+        int count = 0;
+        List<Long> pks;
+        long lastPk = 0L;
+        while (!stopped) {
+            renewLock();
+            pks = seriesService.findStudyPks(lastPk, updatedAfter,
+                    BATCH_SIZE);
+            if (pks.isEmpty())
+                break;
+            for (Long pk : pks) {
+                seriesService.calculateNumberOfStudyRelatedInstances(pk);
+                lastPk = pk;
+                count++;
+            }
+        }
+        return count;
+    }
+}
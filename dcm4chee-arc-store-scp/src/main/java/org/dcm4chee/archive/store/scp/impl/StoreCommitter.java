@@ -0,0 +1,224 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2013
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.store.scp.impl;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.dcm4che.data.Attributes;
+import org.dcm4che.net.Device;
+import org.dcm4che.net.Status;
+import org.dcm4che.net.service.DicomServiceException;
+import org.dcm4chee.archive.store.StoreItem;
+import org.dcm4chee.archive.store.StoreService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persists objects received by one association in batches of several
+ * objects in one transaction and returns the C-STORE responses after the
+ * commit.
+ * 
+ * Objects received while a batch is committed are collected for the
+ * next batch, limited by the configured batch size; further objects are
+ * only accepted after the commit, so the association is blocked, if the
+ * database cannot keep up with the received objects. If a batch delay is
+ * configured, the first object of a batch waits up to that delay for
+ * further objects.
+ * 
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ *
+ */
+class StoreCommitter {
+
+    /**
+     * Received object, which is persisted by the committer.
+     */
+    interface Job {
+
+        /**
+         * Creates the item to persist the received object.
+         * 
+         * @see StoreInstance#createStoreItem(boolean)
+         */
+        StoreItem createStoreItem(boolean copyAttributes);
+
+        /**
+         * Discards cached entities, which may refer to entities of a
+         * rolled back transaction.
+         */
+        void invalidateSeriesCache();
+
+        /**
+         * Returns the C-STORE response for the persisted or failed item
+         * and releases the resources of the received object.
+         */
+        void complete(StoreItem item, Attributes rsp);
+    }
+
+    private static final Logger LOG =
+            LoggerFactory.getLogger(StoreCommitter.class);
+
+    private final StoreService storeService;
+    private final Device device;
+    private final int batchSize;
+    private final int batchDelay;
+    private final ArrayList<Entry> queue = new ArrayList<Entry>();
+    private boolean running;
+
+    private final Runnable commitTask = new Runnable() {
+
+        @Override
+        public void run() {
+            commitAll();
+        }
+    };
+
+    private final Runnable triggerTask = new Runnable() {
+
+        @Override
+        public void run() {
+            trigger();
+        }
+    };
+
+    public StoreCommitter(StoreService storeService, Device device,
+            int batchSize, int batchDelay) {
+        this.storeService = storeService;
+        this.device = device;
+        this.batchSize = Math.max(batchSize, 1);
+        this.batchDelay = batchDelay;
+    }
+
+    /**
+     * Queues the received object for the next batch. Blocks while the
+     * next batch is already complete.
+     */
+    public synchronized void add(Job job, Attributes rsp)
+            throws InterruptedIOException {
+        try {
+            while (queue.size() >= batchSize)
+                wait();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        queue.add(new Entry(job, rsp));
+        if (running)
+            return;
+
+        if (batchDelay <= 0 || queue.size() >= batchSize)
+            start();
+        else if (queue.size() == 1)
+            device.schedule(triggerTask, batchDelay, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void trigger() {
+        if (!running && !queue.isEmpty())
+            start();
+    }
+
+    private void start() {
+        running = true;
+        device.execute(commitTask);
+    }
+
+    private void commitAll() {
+        for (;;) {
+            List<Entry> batch;
+            synchronized (this) {
+                if (queue.isEmpty()) {
+                    running = false;
+                    return;
+                }
+                batch = new ArrayList<Entry>(queue);
+                queue.clear();
+                notifyAll();
+            }
+            commit(batch);
+        }
+    }
+
+    private void commit(List<Entry> batch) {
+        ArrayList<StoreItem> items = new ArrayList<StoreItem>(batch.size());
+        for (Entry entry : batch)
+            items.add(entry.item);
+        try {
+            storeService.store(items);
+        } catch (RuntimeException e) {
+            LOG.info("Failed to store {} objects in one transaction - "
+                    + "store them separately: {}", batch.size(), e);
+            for (Entry entry : batch)
+                entry.job.invalidateSeriesCache();
+            for (Entry entry : batch)
+                entry.storeSeparately();
+        }
+        for (Entry entry : batch)
+            entry.job.complete(entry.item, entry.rsp);
+    }
+
+    private class Entry {
+        final Job job;
+        final Attributes rsp;
+        StoreItem item;
+
+        Entry(Job job, Attributes rsp) {
+            this.job = job;
+            this.rsp = rsp;
+            // coerce a copy of the received attributes, so the original
+            // attributes are still unmodified, if the batch is rolled back
+            this.item = job.createStoreItem(true);
+        }
+
+        void storeSeparately() {
+            item = job.createStoreItem(false);
+            try {
+                item.setStored(storeService.store(item));
+            } catch (DicomServiceException e) {
+                job.invalidateSeriesCache();
+                item.setException(e);
+            } catch (RuntimeException e) {
+                job.invalidateSeriesCache();
+                item.setException(
+                        new DicomServiceException(Status.ProcessingFailure, e));
+            }
+        }
+    }
+}
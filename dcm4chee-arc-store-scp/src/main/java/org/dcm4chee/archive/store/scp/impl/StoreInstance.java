@@ -39,10 +39,15 @@
 package org.dcm4chee.archive.store.scp.impl;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -54,6 +59,7 @@ import org.dcm4che.data.Attributes;
 import org.dcm4che.data.BulkData;
 import org.dcm4che.data.Tag;
 import org.dcm4che.data.UID;
+import org.dcm4che.data.VR;
 import org.dcm4che.imageio.codec.CompressionRule;
 import org.dcm4che.io.DicomInputStream;
 import org.dcm4che.io.DicomOutputStream;
@@ -67,22 +73,35 @@ import org.dcm4che.net.service.DicomServiceException;
 import org.dcm4che.util.AttributesFormat;
 import org.dcm4che.util.TagUtils;
 import org.dcm4chee.archive.conf.ArchiveAEExtension;
+import org.dcm4chee.archive.conf.CompressionSaturationPolicy;
 import org.dcm4chee.archive.entity.FileRef;
 import org.dcm4chee.archive.entity.FileSystem;
+import org.dcm4chee.archive.entity.PixelDataIndex;
+import org.dcm4chee.archive.store.SeriesCache;
+import org.dcm4chee.archive.store.StoreItem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * @author Gunter Zeilinger <gunterze@gmail.com>
  *
  */
-class StoreInstance implements Closeable {
+class StoreInstance implements Closeable, StoreCommitter.Job {
+
+    private static final Logger LOG =
+            LoggerFactory.getLogger(StoreInstance.class);
+
+    private static final int MAX_ERROR_COMMENT_LENGTH = 64;
 
     private final CStoreSCP scp;
     private final Association as;
+    private final PresentationContext pc;
     private final ApplicationEntity ae;
     private final ArchiveAEExtension aeExt;
     private final MessageDigest digest;
     private final FileSystem fs;
     private final Path fsPath;
+    private final SeriesCache seriesCache;
     private final String sourceAET;
     private final String cuid;
     private final String iuid;
@@ -93,6 +112,8 @@ class StoreInstance implements Closeable {
     private String fileDigest;
     private Attributes attrs;
     private Path storePath;
+    private PixelDataIndex pixelDataIndex;
+    private boolean compressInBackground;
 
     public StoreInstance(CStoreSCP scp, Association as, PresentationContext pc,
             Attributes rq) throws DicomServiceException {
@@ -103,11 +124,13 @@ class StoreInstance implements Closeable {
         this.fmi = as.createFileMetaInformation(iuid, cuid, tsuid);
         this.scp = scp;
         this.as = as;
+        this.pc = pc;
         this.ae = as.getApplicationEntity();
         this.aeExt = aeExtensionOf();
         this.digest = messageDigestOf();
         this.fs = selectStorageFileSystem();
         this.fsPath = fs.getPath();
+        this.seriesCache = seriesCache();
     }
 
     private ArchiveAEExtension aeExtensionOf()
@@ -135,14 +158,16 @@ class StoreInstance implements Closeable {
     }
 
     private FileSystem selectStorageFileSystem() throws DicomServiceException {
-        FileSystem fs = (FileSystem) as.getProperty(FileSystem.class.getName());
-        if (fs == null) {
-            fs = scp.getStoreService().selectStorageFileSystem(
-                    aeExt.getFileSystemGroupID(),
-                    aeExt.getInitFileSystemURI());
-            as.setProperty(FileSystem.class.getName(), fs);
+        return scp.getFileSystemSelector().select(aeExt);
+    }
+
+    private SeriesCache seriesCache() {
+        SeriesCache cache = (SeriesCache) as.getProperty(SeriesCache.class.getName());
+        if (cache == null) {
+            cache = new SeriesCache();
+            as.setProperty(SeriesCache.class.getName(), cache);
         }
-        return fs;
+        return cache;
     }
 
     private Path createSpoolPath() throws IOException {
@@ -158,30 +183,48 @@ class StoreInstance implements Closeable {
     public void spool(PDVInputStream data) throws IOException {
         spoolPath = createSpoolPath();
         spoolFile = spoolPath.toFile();
-        try (DicomOutputStream out = digest == null
-                ? new DicomOutputStream(spoolFile)
-                : new DicomOutputStream(
-                        new BufferedOutputStream(
-                                new DigestOutputStream(
-                                        new FileOutputStream(spoolFile), digest)),
-                            UID.ExplicitVRLittleEndian)) {
-            out.writeFileMetaInformation(fmi);
+        byte[] fmiBytes = fileMetaInformationBytes();
+        try (OutputStream out = digest == null
+                ? new BufferedOutputStream(new FileOutputStream(spoolFile))
+                : new BufferedOutputStream(
+                        new DigestOutputStream(
+                                new FileOutputStream(spoolFile), digest))) {
+            out.write(fmiBytes);
+            attrs = parse(new SequenceInputStream(
+                    new ByteArrayInputStream(fmiBytes),
+                    new TeeInputStream(data, out)));
             data.copyTo(out);
-            if (digest != null) {
-                fileDigest = TagUtils.toHexString(digest.digest());
-                digest.reset();
-            }
         }
+        if (digest != null) {
+            fileDigest = TagUtils.toHexString(digest.digest());
+            digest.reset();
+        }
+    }
+
+    private byte[] fileMetaInformationBytes() throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(512);
+        try (DicomOutputStream out =
+                new DicomOutputStream(bout, UID.ExplicitVRLittleEndian)) {
+            out.writeFileMetaInformation(fmi);
+        }
+        return bout.toByteArray();
+    }
+
+    /**
+     * Parses the received data set while it is written to the spool file,
+     * so stream positions match offsets in the spool file and bulk data
+     * can be referenced by URI without reading the spool file again.
+     */
+    private Attributes parse(InputStream in) throws IOException {
+        DicomInputStream din = new DicomInputStream(in);
+        din.setURI(spoolFile.toURI().toString());
+        din.setIncludeBulkData(IncludeBulkData.URI);
+        return din.readDataset(-1, -1);
     }
 
     public void process(Attributes rsp) throws DicomServiceException {
         try {
-            this.attrs = parse();
-            this.storePath = createStorePath();
-            if (!compress()) {
-                storePath = move(spoolPath, storePath);
-                spoolPath = null;
-            }
+            storeFile();
             updateDB();
         } catch (DicomServiceException e) {
             throw e;
@@ -190,10 +233,32 @@ class StoreInstance implements Closeable {
         } 
     }
 
-    private Attributes parse() throws IOException {
-        try (DicomInputStream in = new DicomInputStream(spoolFile)) {
-            in.setIncludeBulkData(IncludeBulkData.URI);
-            return in.readDataset(-1, -1);
+    public void processFile() throws DicomServiceException {
+        try {
+            storeFile();
+        } catch (DicomServiceException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new DicomServiceException(Status.ProcessingFailure, e);
+        } 
+    }
+
+    private void storeFile() throws IOException {
+        this.storePath = createStorePath();
+        if (!compress()) {
+            storePath = move(spoolPath, storePath);
+            spoolPath = null;
+        }
+        if (attrs.contains(Tag.PixelData))
+            pixelDataIndex = scanPixelData(storePath.toFile());
+    }
+
+    static PixelDataIndex scanPixelData(File file) {
+        try {
+            return PixelDataIndex.scan(file);
+        } catch (IOException e) {
+            LOG.info("Failed to index Pixel Data of {}: {}", file, e);
+            return null;
         }
     }
 
@@ -222,12 +287,28 @@ class StoreInstance implements Closeable {
                 .findCompressionRule(sourceAET, attrs);
         if (compressionRule == null)
             return false;
-        
+
+        if (aeExt.isBackgroundCompression()) {
+            compressInBackground = true;
+            return false;
+        }
+
+        CompressionSaturationPolicy saturationPolicy =
+                aeExt.getCompressionSaturationPolicy();
         try {
             storePath = createFile(storePath);
-            scp.getCompressionService()
-                    .compress(compressionRule, spoolFile,
-                            storePath.toFile(), digest, fmi, attrs);
+            if (saturationPolicy == CompressionSaturationPolicy.BLOCK) {
+                scp.getCompressionService()
+                        .compress(compressionRule, spoolFile,
+                                storePath.toFile(), digest, fmi, attrs);
+            } else if (!scp.getCompressionService()
+                        .tryCompress(compressionRule, spoolFile,
+                                storePath.toFile(), digest, fmi, attrs)) {
+                Files.delete(storePath);
+                compressInBackground =
+                        saturationPolicy == CompressionSaturationPolicy.DEFER;
+                return false;
+            }
             if (digest != null) {
                 fileDigest = TagUtils.toHexString(digest.digest());
             }
@@ -267,6 +348,23 @@ class StoreInstance implements Closeable {
     }
 
     private void updateDB() throws DicomServiceException {
+        StoreItem item = createStoreItem(false);
+        try {
+            item.setStored(scp.getStoreService().store(item));
+        } catch (DicomServiceException | RuntimeException e) {
+            invalidateSeriesCache();
+            throw e;
+        }
+        stored(item);
+    }
+
+    /**
+     * Creates the item to persist the received object. Its attributes are
+     * coerced by the Store Service, so a copy of the received attributes
+     * shall be used, if the object may be stored again on failure.
+     */
+    @Override
+    public StoreItem createStoreItem(boolean copyAttributes) {
         File file = storePath.toFile();
         FileRef fileRef = new FileRef(
                 fs,
@@ -274,10 +372,51 @@ class StoreInstance implements Closeable {
                 fmi.getString(Tag.TransferSyntaxUID),
                 file.length(), 
                 fileDigest);
-        Attributes modified = new Attributes();
-        if (scp.getStoreService().store(aeExt.getStoreParam(), 
-                sourceAET, attrs, fileRef, modified)) {
-            storePath = null;
+        fileRef.setPixelDataIndex(pixelDataIndex);
+        return new StoreItem(aeExt.getStoreParam(), sourceAET,
+                copyAttributes ? new Attributes(attrs) : attrs, fileRef,
+                seriesCache);
+    }
+
+    /**
+     * Discards cached Series of this association, which may refer to
+     * entities of a rolled back transaction.
+     */
+    @Override
+    public void invalidateSeriesCache() {
+        seriesCache.clear();
+    }
+
+    public void stored(StoreItem item) {
+        if (!item.isStored())
+            return;
+
+        storePath = null;
+        if (compressInBackground)
+            scp.getBackgroundCompressor().schedule(
+                    as.getLocalAET(), sourceAET, item.getFileRef());
+    }
+
+    @Override
+    public void complete(StoreItem item, Attributes rsp) {
+        DicomServiceException e = item.getException();
+        if (e != null) {
+            LOG.info("{}: Failed to store object: {}", as, e);
+            rsp.setInt(Tag.Status, VR.US, e.getStatus());
+            String msg = e.getMessage();
+            if (msg != null)
+                rsp.setString(Tag.ErrorComment, VR.LO,
+                        msg.length() > MAX_ERROR_COMMENT_LENGTH
+                            ? msg.substring(0, MAX_ERROR_COMMENT_LENGTH)
+                            : msg);
+        } else {
+            stored(item);
+        }
+        as.tryWriteDimseRSP(pc, rsp, null);
+        try {
+            close();
+        } catch (IOException ex) {
+            LOG.warn("{}: Failed to delete temporary file: {}", as, ex);
         }
     }
 
@@ -0,0 +1,303 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2013
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.store.scp.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.dcm4che.data.Attributes;
+import org.dcm4che.data.Tag;
+import org.dcm4che.data.VR;
+import org.dcm4che.net.Device;
+import org.dcm4che.net.Status;
+import org.dcm4che.net.service.DicomServiceException;
+import org.dcm4chee.archive.store.StoreItem;
+import org.dcm4chee.archive.store.StoreService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ *
+ */
+public class StoreCommitterTest {
+
+    private static final String FAIL = "FAIL";
+
+    private ExecutorService executor;
+    private ScheduledExecutorService scheduledExecutor;
+    private Device device;
+    private TestStoreService storeService;
+    private StoreService proxy;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newCachedThreadPool();
+        scheduledExecutor = Executors.newSingleThreadScheduledExecutor();
+        device = new Device("test");
+        device.setExecutor(executor);
+        device.setScheduledExecutor(scheduledExecutor);
+        storeService = new TestStoreService();
+        proxy = storeService.proxy();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        scheduledExecutor.shutdownNow();
+    }
+
+    @Test
+    public void testBlocksWhileNextBatchIsComplete() throws Exception {
+        StoreCommitter committer =
+                new StoreCommitter(proxy, device, 3, 0);
+        CountDownLatch done = new CountDownLatch(5);
+        storeService.block();
+        committer.add(new TestJob("1", done), rsp());
+        storeService.awaitBlocked();
+        committer.add(new TestJob("2", done), rsp());
+        committer.add(new TestJob("3", done), rsp());
+        committer.add(new TestJob("4", done), rsp());
+        Thread adder = add(committer, new TestJob("5", done));
+        adder.join(200);
+        assertTrue("add of 5th object shall block", adder.isAlive());
+
+        storeService.unblock();
+        adder.join(5000);
+        assertFalse(adder.isAlive());
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(1, 3, 1), storeService.batchSizes());
+    }
+
+    @Test
+    public void testCollectsObjectsForBatchDelay() throws Exception {
+        StoreCommitter committer =
+                new StoreCommitter(proxy, device, 10, 100);
+        CountDownLatch done = new CountDownLatch(2);
+        committer.add(new TestJob("1", done), rsp());
+        committer.add(new TestJob("2", done), rsp());
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList(2), storeService.batchSizes());
+    }
+
+    @Test
+    public void testStoresFailedBatchSeparately() throws Exception {
+        StoreCommitter committer =
+                new StoreCommitter(proxy, device, 3, 10000);
+        CountDownLatch done = new CountDownLatch(3);
+        TestJob job1 = new TestJob("1", done);
+        TestJob job2 = new TestJob(FAIL, done);
+        TestJob job3 = new TestJob("3", done);
+        committer.add(job1, job1.rsp);
+        committer.add(job2, job2.rsp);
+        committer.add(job3, job3.rsp);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        assertEquals(Status.Success, job1.rsp.getInt(Tag.Status, -1));
+        assertEquals(Status.ProcessingFailure, job2.rsp.getInt(Tag.Status, -1));
+        assertEquals(Status.Success, job3.rsp.getInt(Tag.Status, -1));
+        assertTrue(job1.completed.isStored());
+        assertFalse(job2.completed.isStored());
+        assertTrue(job3.completed.isStored());
+        assertTrue(job1.invalidated > 0);
+        assertTrue(job2.invalidated > 0);
+        assertTrue(job3.invalidated > 0);
+        // the separately stored items are created from the original
+        // attributes, not from the coerced copies of the failed batch
+        assertEquals(Arrays.asList(false, false, false),
+                storeService.separatelyStoredCoerced());
+    }
+
+    private static Attributes rsp() {
+        Attributes rsp = new Attributes();
+        rsp.setInt(Tag.Status, VR.US, Status.Success);
+        return rsp;
+    }
+
+    private static Thread add(final StoreCommitter committer,
+            final TestJob job) {
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    committer.add(job, job.rsp);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        t.start();
+        return t;
+    }
+
+    private static class TestJob implements StoreCommitter.Job {
+        final Attributes attrs = new Attributes();
+        final Attributes rsp = rsp();
+        final CountDownLatch done;
+        int invalidated;
+        StoreItem completed;
+
+        TestJob(String iuid, CountDownLatch done) {
+            attrs.setString(Tag.SOPInstanceUID, VR.UI, iuid);
+            this.done = done;
+        }
+
+        @Override
+        public StoreItem createStoreItem(boolean copyAttributes) {
+            return new StoreItem(null, "SOURCE",
+                    copyAttributes ? new Attributes(attrs) : attrs,
+                    null, null);
+        }
+
+        @Override
+        public synchronized void invalidateSeriesCache() {
+            invalidated++;
+        }
+
+        @Override
+        public void complete(StoreItem item, Attributes rsp) {
+            DicomServiceException e = item.getException();
+            if (e != null)
+                rsp.setInt(Tag.Status, VR.US, e.getStatus());
+            completed = item;
+            done.countDown();
+        }
+    }
+
+    /**
+     * Implements {@link StoreService#store(List)} and
+     * {@link StoreService#store(StoreItem)} by a dynamic proxy.
+     */
+    private static class TestStoreService implements InvocationHandler {
+        private final List<Integer> batchSizes = new ArrayList<Integer>();
+        private final List<Boolean> separatelyStoredCoerced =
+                new ArrayList<Boolean>();
+        private CountDownLatch blocked;
+        private CountDownLatch unblock;
+
+        StoreService proxy() {
+            return (StoreService) Proxy.newProxyInstance(
+                    StoreService.class.getClassLoader(),
+                    new Class<?>[] { StoreService.class }, this);
+        }
+
+        synchronized List<Integer> batchSizes() {
+            return new ArrayList<Integer>(batchSizes);
+        }
+
+        synchronized List<Boolean> separatelyStoredCoerced() {
+            return new ArrayList<Boolean>(separatelyStoredCoerced);
+        }
+
+        void block() {
+            blocked = new CountDownLatch(1);
+            unblock = new CountDownLatch(1);
+        }
+
+        void awaitBlocked() throws InterruptedException {
+            assertTrue(blocked.await(5, TimeUnit.SECONDS));
+        }
+
+        void unblock() {
+            unblock.countDown();
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args)
+                throws Throwable {
+            if (!method.getName().equals("store"))
+                throw new UnsupportedOperationException(method.getName());
+
+            if (args[0] instanceof List) {
+                storeBatch((List<StoreItem>) args[0]);
+                return null;
+            }
+            return store((StoreItem) args[0]);
+        }
+
+        private void storeBatch(List<StoreItem> items)
+                throws InterruptedException {
+            synchronized (this) {
+                batchSizes.add(items.size());
+            }
+            if (unblock != null && blocked.getCount() > 0) {
+                blocked.countDown();
+                unblock.await();
+            }
+            for (StoreItem item : items) {
+                item.getAttributes().setString(Tag.StudyDate, VR.DA, "20130101");
+                if (isFail(item))
+                    throw new RuntimeException("Failed to store batch");
+            }
+            for (StoreItem item : items)
+                item.setStored(true);
+        }
+
+        private boolean store(StoreItem item) throws DicomServiceException {
+            synchronized (this) {
+                separatelyStoredCoerced.add(
+                        item.getAttributes().contains(Tag.StudyDate));
+            }
+            if (isFail(item))
+                throw new DicomServiceException(Status.ProcessingFailure);
+            return true;
+        }
+
+        private static boolean isFail(StoreItem item) {
+            return FAIL.equals(
+                    item.getAttributes().getString(Tag.SOPInstanceUID));
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2013
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.store;
+
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.dcm4che.data.Attributes;
+import org.dcm4chee.archive.entity.Availability;
+
+/**
+ * Series, Study and Patient attributes of objects received on one
+ * association, keyed by Series Instance UID, to skip the lookup and the
+ * merge of these entities for subsequent objects of the same Series.
+ * 
+ * Entries are only valid as long as the transactions which created them
+ * were committed; the cache must be cleared if a transaction fails.
+ * Because Patient, Study and Series may also be changed by other
+ * associations, HL7 updates or merges - on this or on other nodes - an
+ * entry shall only be reused, if the update times of Series, Study and
+ * Patient did not change since the entry was created, see
+ * {@link Entry#isUpToDate}. To avoid querying the update times for each
+ * object, they are only revalidated if cached Series, Study or Patient
+ * Attributes were invalidated on this node since the entry was created or
+ * last revalidated - as indicated by a different generation - or if the
+ * revalidation interval, which bounds the staleness of entries on changes
+ * on other nodes, elapsed.
+ * 
+ * The cache is accessed by the association thread and by the thread which
+ * commits the received objects, so all methods are synchronized.
+ * 
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ *
+ */
+public class SeriesCache {
+
+    private static final int DEFAULT_MAX_SIZE = 10;
+    private static final long DEFAULT_REVALIDATION_INTERVAL = 10000L;
+
+    private final LinkedHashMap<String, Entry> entries;
+    private final long revalidationInterval;
+
+    public SeriesCache() {
+        this(DEFAULT_MAX_SIZE, DEFAULT_REVALIDATION_INTERVAL);
+    }
+
+    /**
+     * @param maxSize maximal number of cached Series
+     * @param revalidationInterval maximal time in ms an entry is reused
+     *        without revalidation of the update times
+     */
+    public SeriesCache(final int maxSize, long revalidationInterval) {
+        this.revalidationInterval = revalidationInterval;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    public synchronized Entry get(String seriesIUID) {
+        return entries.get(seriesIUID);
+    }
+
+    public synchronized void put(String seriesIUID, Entry entry) {
+        entries.put(seriesIUID, entry);
+    }
+
+    public synchronized void remove(String seriesIUID) {
+        entries.remove(seriesIUID);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns {@code true} if the update times of the entry shall be
+     * revalidated, because the generation of cached Series, Study or Patient
+     * Attributes changed or the revalidation interval elapsed since the
+     * entry was created or last revalidated.
+     */
+    public boolean needsRevalidation(Entry entry, long generation) {
+        return entry.needsRevalidation(generation,
+                System.currentTimeMillis() - revalidationInterval);
+    }
+
+    public void revalidated(Entry entry, long generation) {
+        entry.validated(generation, System.currentTimeMillis());
+    }
+
+    public static class Entry {
+
+        private final long seriesPk;
+        private final long studyPk;
+        private final long seriesUpdatedTime;
+        private final long studyUpdatedTime;
+        private final long patientUpdatedTime;
+        private final Availability availability;
+        private final Attributes patientAttrs;
+        private final Attributes studyAttrs;
+        private final Attributes seriesAttrs;
+        private final Attributes mergedPatientAttrs;
+        private final Attributes mergedStudyAttrs;
+        private final Attributes mergedSeriesAttrs;
+        private final HashSet<String> sopClassUIDs = new HashSet<String>();
+        private long generation;
+        private long validated;
+
+        /**
+         * @param seriesPk primary key of the Series
+         * @param studyPk primary key of the Study
+         * @param seriesUpdatedTime update time of the Series
+         * @param studyUpdatedTime update time of the Study
+         * @param patientUpdatedTime update time of the Patient
+         * @param availability availability merged into Series and Study
+         * @param patientAttrs stored Patient attributes
+         * @param studyAttrs stored Study attributes
+         * @param seriesAttrs stored Series attributes
+         * @param mergedPatientAttrs received Patient attributes merged into
+         *        the stored Patient attributes
+         * @param mergedStudyAttrs received Study attributes merged into
+         *        the stored Study attributes
+         * @param mergedSeriesAttrs received Series attributes merged into
+         *        the stored Series attributes
+         * @param generation generation of cached Series, Study and Patient
+         *        Attributes before the entities were loaded
+         */
+        public Entry(long seriesPk, long studyPk, Date seriesUpdatedTime,
+                Date studyUpdatedTime, Date patientUpdatedTime,
+                Availability availability,
+                Attributes patientAttrs, Attributes studyAttrs,
+                Attributes seriesAttrs, Attributes mergedPatientAttrs,
+                Attributes mergedStudyAttrs, Attributes mergedSeriesAttrs,
+                long generation) {
+            this.seriesPk = seriesPk;
+            this.studyPk = studyPk;
+            this.seriesUpdatedTime = seriesUpdatedTime.getTime();
+            this.studyUpdatedTime = studyUpdatedTime.getTime();
+            this.patientUpdatedTime = patientUpdatedTime.getTime();
+            this.availability = availability;
+            this.patientAttrs = patientAttrs;
+            this.studyAttrs = studyAttrs;
+            this.seriesAttrs = seriesAttrs;
+            this.mergedPatientAttrs = mergedPatientAttrs;
+            this.mergedStudyAttrs = mergedStudyAttrs;
+            this.mergedSeriesAttrs = mergedSeriesAttrs;
+            this.generation = generation;
+            this.validated = System.currentTimeMillis();
+        }
+
+        public long getSeriesPk() {
+            return seriesPk;
+        }
+
+        public long getStudyPk() {
+            return studyPk;
+        }
+
+        public Attributes getPatientAttributes() {
+            return patientAttrs;
+        }
+
+        public Attributes getStudyAttributes() {
+            return studyAttrs;
+        }
+
+        public Attributes getSeriesAttributes() {
+            return seriesAttrs;
+        }
+
+        /**
+         * Returns {@code true} if Series, Study and Patient were not updated
+         * since this entry was created.
+         */
+        public boolean isUpToDate(Date seriesUpdatedTime,
+                Date studyUpdatedTime, Date patientUpdatedTime) {
+            return this.seriesUpdatedTime == seriesUpdatedTime.getTime()
+                    && this.studyUpdatedTime == studyUpdatedTime.getTime()
+                    && this.patientUpdatedTime == patientUpdatedTime.getTime();
+        }
+
+        synchronized boolean needsRevalidation(long generation,
+                long validatedBefore) {
+            return this.generation != generation
+                    || this.validated <= validatedBefore;
+        }
+
+        synchronized void validated(long generation, long validated) {
+            this.generation = generation;
+            this.validated = validated;
+        }
+
+        public void addSOPClassUID(String cuid) {
+            sopClassUIDs.add(cuid);
+        }
+
+        public void addSOPClassUIDs(Entry other) {
+            sopClassUIDs.addAll(other.sopClassUIDs);
+        }
+
+        /**
+         * Returns {@code true} if merging the received attributes into the
+         * stored Patient, Study and Series would not change them.
+         */
+        public boolean matches(Availability availability, String cuid,
+                Attributes patientAttrs, Attributes studyAttrs,
+                Attributes seriesAttrs) {
+            return this.availability == availability
+                    && sopClassUIDs.contains(cuid)
+                    && mergedSeriesAttrs.equals(seriesAttrs)
+                    && mergedStudyAttrs.equals(studyAttrs)
+                    && mergedPatientAttrs.equals(patientAttrs);
+        }
+    }
+}
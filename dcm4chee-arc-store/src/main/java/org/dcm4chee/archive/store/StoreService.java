@@ -38,11 +38,12 @@
 
 package org.dcm4chee.archive.store;
 
-import org.dcm4che.data.Attributes;
+import java.util.List;
+
 import org.dcm4che.net.service.DicomServiceException;
-import org.dcm4chee.archive.conf.StoreParam;
-import org.dcm4chee.archive.entity.FileRef;
+import org.dcm4chee.archive.conf.Entity;
 import org.dcm4chee.archive.entity.FileSystem;
+import org.dcm4chee.archive.entity.PixelDataIndex;
 
 /**
  * @author Gunter Zeilinger <gunterze@gmail.com>
@@ -50,11 +51,72 @@ import org.dcm4chee.archive.entity.FileSystem;
  */
 public interface StoreService {
 
-    FileSystem selectStorageFileSystem(String groupID, String defaultURI)
-            throws DicomServiceException;
+    /**
+     * Returns writeable file systems of the specified group. If there is
+     * no file system with status {@code RW}, the first file system with
+     * status {@code Rw} is switched to {@code RW}; if the group is empty,
+     * a file system with {@code defaultURI} is created.
+     */
+    List<FileSystem> selectStorageFileSystems(String groupID,
+            String defaultURI) throws DicomServiceException;
+
+    /**
+     * Switches the specified file system to read-only and its next file
+     * system to {@code RW}.
+     * 
+     * @return the remaining writeable file systems of its group
+     */
+    List<FileSystem> switchStorageFileSystem(FileSystem fs);
+
+    boolean store(StoreItem item) throws DicomServiceException;
+
+    /**
+     * Persists received objects in one transaction. The failure of any
+     * object rolls back the whole batch by a {@code RuntimeException}, so
+     * no partial changes of the failed object - including its contribution
+     * to the number of instances of Series and Study - are committed; the
+     * caller is expected to store the objects separately.
+     */
+    void store(List<StoreItem> items);
+
+    /**
+     * Replaces the file referenced by the {@code FileRef} with the specified
+     * primary key, if it still references {@code filePath}.
+     * {@code pixelDataIndex} may be {@code null}, if the new file does not
+     * contain Pixel Data or it could not be indexed.
+     * 
+     * @return {@code true} if the {@code FileRef} was updated
+     */
+    boolean replaceFile(long fileRefPk, String filePath, String newFilePath,
+            String transferSyntaxUID, long fileSize, String digest,
+            PixelDataIndex pixelDataIndex);
+
+    /**
+     * Rewrites the encoded attributes of up to {@code limit} entities of the
+     * specified type with primary keys greater than {@code afterPk}, which
+     * are not yet in the current format, compressed or uncompressed.
+     * Entities updated concurrently are skipped.
+     * Only supports {@link Entity#Patient}, {@link Entity#Study},
+     * {@link Entity#Series} and {@link Entity#Instance}.
+     * 
+     * @return the primary key of the last inspected entity or {@code -1},
+     *         if there are no more entities to rewrite
+     */
+    long migrateEncodedAttributes(Entity entity, boolean compress,
+            long afterPk, int limit);
+
+    /**
+     * Claims the lock of the specified task for {@code owner} - or renews
+     * it, if already held by {@code owner} - until {@code timeout} seconds
+     * from now.
+     * 
+     * @return {@code true}, if the lock is held by {@code owner}
+     */
+    boolean claimTaskLock(String task, String owner, int timeout);
 
-    boolean store(StoreParam storeParams, String sourceAET, Attributes attrs,
-            FileRef fileRef, Attributes modified) throws DicomServiceException;
+    /**
+     * Releases the lock of the specified task, if held by {@code owner}.
+     */
+    void releaseTaskLock(String task, String owner);
 
-    
 }
@@ -0,0 +1,135 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2013
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.store.impl;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.persistence.EntityManager;
+
+import org.dcm4chee.archive.entity.Availability;
+import org.dcm4chee.archive.entity.Series;
+import org.dcm4chee.archive.entity.Study;
+
+/**
+ * Collects changes of the number of instances of Series and Studies within
+ * one transaction and applies them by bulk increments. Series and Studies
+ * are updated in the order of their primary keys to avoid deadlocks between
+ * concurrent transactions.
+ * 
+ * Numbers of instances with negative values are not yet calculated and
+ * remain untouched until the reconciliation calculates them.
+ * 
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ *
+ */
+class InstanceCounts {
+
+    private static final class Delta {
+        final long studyPk;
+        int num;
+        int numA;
+
+        Delta(long studyPk) {
+            this.studyPk = studyPk;
+        }
+    }
+
+    private final TreeMap<Long, Delta> series = new TreeMap<Long, Delta>();
+
+    public void add(long seriesPk, long studyPk, Availability availability,
+            int delta) {
+        Delta d = series.get(seriesPk);
+        if (d == null)
+            series.put(seriesPk, d = new Delta(studyPk));
+        if (availability.available())
+            d.num += delta;
+        if (availability.compareTo(
+                Availability.REJECTED_FOR_QUALITY_REASONS) <= 0)
+            d.numA += delta;
+    }
+
+    public void apply(EntityManager em) {
+        TreeMap<Long, int[]> studies = new TreeMap<Long, int[]>();
+        for (Map.Entry<Long, Delta> entry : series.entrySet()) {
+            Long seriesPk = entry.getKey();
+            Delta d = entry.getValue();
+            if (d.num == 0 && d.numA == 0)
+                continue;
+
+            int[] studyDelta = studies.get(d.studyPk);
+            if (studyDelta == null)
+                studies.put(d.studyPk, studyDelta = new int[4]);
+            studyDelta[2] += d.num;
+            studyDelta[3] += d.numA;
+            if (em.createNamedQuery(Series.INCREMENT_NUMBER_OF_INSTANCES)
+                    .setParameter(1, d.num)
+                    .setParameter(2, d.numA)
+                    .setParameter(3, seriesPk)
+                    .executeUpdate() == 0)
+                continue;
+
+            Object[] num = (Object[]) em
+                    .createNamedQuery(Series.NUMBER_OF_INSTANCES)
+                    .setParameter(1, seriesPk)
+                    .getSingleResult();
+            studyDelta[0] += seriesDelta((Integer) num[0], d.num);
+            studyDelta[1] += seriesDelta((Integer) num[1], d.numA);
+        }
+        for (Map.Entry<Long, int[]> entry : studies.entrySet()) {
+            int[] d = entry.getValue();
+            if ((d[0] | d[1] | d[2] | d[3]) != 0)
+                em.createNamedQuery(Study.INCREMENT_NUMBER_OF_INSTANCES)
+                    .setParameter(1, d[0])
+                    .setParameter(2, d[1])
+                    .setParameter(3, d[2])
+                    .setParameter(4, d[3])
+                    .setParameter(5, entry.getKey())
+                    .executeUpdate();
+        }
+        series.clear();
+    }
+
+    private static int seriesDelta(int after, int delta) {
+        int before = after - delta;
+        return before == 0 && after > 0 ? 1
+             : before > 0 && after == 0 ? -1
+             : 0;
+    }
+}
@@ -47,7 +47,6 @@ import java.util.List;
 import javax.persistence.EntityManager;
 import javax.persistence.NoResultException;
 import javax.persistence.PersistenceException;
-import javax.persistence.TypedQuery;
 
 import org.dcm4che.data.Attributes;
 import org.dcm4che.data.IDWithIssuer;
@@ -73,13 +72,20 @@ import org.dcm4chee.archive.entity.FileSystemStatus;
 import org.dcm4chee.archive.entity.Instance;
 import org.dcm4chee.archive.entity.Issuer;
 import org.dcm4chee.archive.entity.Patient;
+import org.dcm4chee.archive.entity.PixelDataIndex;
 import org.dcm4chee.archive.entity.ScheduledProcedureStep;
 import org.dcm4chee.archive.entity.Series;
 import org.dcm4chee.archive.entity.Study;
+import org.dcm4chee.archive.entity.TaskLock;
+import org.dcm4chee.archive.entity.Utils;
 import org.dcm4chee.archive.entity.VerifyingObserver;
 import org.dcm4chee.archive.issuer.IssuerService;
 import org.dcm4chee.archive.patient.PatientService;
+import org.dcm4chee.archive.query.QueryService;
 import org.dcm4chee.archive.request.RequestService;
+import org.dcm4chee.archive.series.SeriesService;
+import org.dcm4chee.archive.store.SeriesCache;
+import org.dcm4chee.archive.store.StoreItem;
 import org.dcm4chee.archive.store.StoreService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -97,6 +103,8 @@ public class StoreServiceImpl implements StoreService {
     private IssuerService issuerService;
     private RequestService requestService;
     private CodeService codeService;
+    private SeriesService seriesService;
+    private QueryService queryService;
 
     public void setEntityManager(EntityManager em) {
         this.em = em;
@@ -118,33 +126,67 @@ public class StoreServiceImpl implements StoreService {
         this.requestService = requestService;
     }
 
+    public void setSeriesService(SeriesService seriesService) {
+        this.seriesService = seriesService;
+    }
+
+    public void setQueryService(QueryService queryService) {
+        this.queryService = queryService;
+    }
+
     @Override
-    public FileSystem selectStorageFileSystem(String groupID, String defaultURI)
-        throws DicomServiceException {
-        TypedQuery<FileSystem> selectCurFileSystem =
+    public List<FileSystem> selectStorageFileSystems(String groupID,
+            String defaultURI) throws DicomServiceException {
+        List<FileSystem> curFileSystems = writeableFileSystems(groupID);
+        if (!curFileSystems.isEmpty())
+            return curFileSystems;
+
+        if (defaultURI != null && em.createNamedQuery(
+                    FileSystem.FIND_BY_GROUP_ID, FileSystem.class)
+                .setParameter(1, groupID)
+                .setMaxResults(1)
+                .getResultList().isEmpty()) {
+            return Collections.singletonList(
+                    initFileSystem(em, groupID, defaultURI));
+        }
+        throw new DicomServiceException(Status.OutOfResources,
+                "No writeable File System in File System Group " + groupID);
+    }
+
+    @Override
+    public List<FileSystem> switchStorageFileSystem(FileSystem fs) {
+        FileSystem fullFS = em.find(FileSystem.class, fs.getPk());
+        if (fullFS.getStatus() == FileSystemStatus.RW) {
+            fullFS.setStatus(FileSystemStatus.RO);
+            FileSystem nextFS = fullFS.getNextFileSystem();
+            if (nextFS != null && nextFS.getStatus() == FileSystemStatus.Rw)
+                nextFS.setStatus(FileSystemStatus.RW);
+            em.flush();
+            LOG.info("Switched {} to read-only, next: {}", fullFS, nextFS);
+        }
+        return writeableFileSystems(fullFS.getGroupID());
+    }
+
+    private List<FileSystem> writeableFileSystems(String groupID) {
+        List<FileSystem> curFileSystems =
                 em.createNamedQuery(FileSystem.FIND_BY_GROUP_ID_AND_STATUS, FileSystem.class)
                 .setParameter(1, groupID)
-                .setParameter(2, FileSystemStatus.RW);
-        try {
-            return selectCurFileSystem.getSingleResult();
-        } catch (NoResultException e) {
-            List<FileSystem> resultList = 
-                    em.createNamedQuery(FileSystem.FIND_BY_GROUP_ID, FileSystem.class)
-                        .setParameter(1, groupID)
-                        .getResultList();
-            for (FileSystem fs : resultList) {
-                if (fs.getStatus() == FileSystemStatus.Rw) {
-                    fs.setStatus(FileSystemStatus.RW);
-                    em.flush();
-                    return fs;
-                }
-            }
-            if (resultList.isEmpty() && defaultURI != null) {
-                return initFileSystem(em, groupID, defaultURI);
-            }
-            throw new DicomServiceException(Status.OutOfResources,
-                    "No writeable File System in File System Group " + groupID);
+                .setParameter(2, FileSystemStatus.RW)
+                .getResultList();
+        if (!curFileSystems.isEmpty())
+            return curFileSystems;
+
+        List<FileSystem> resultList = 
+                em.createNamedQuery(FileSystem.FIND_BY_GROUP_ID_AND_STATUS, FileSystem.class)
+                    .setParameter(1, groupID)
+                    .setParameter(2, FileSystemStatus.Rw)
+                    .setMaxResults(1)
+                    .getResultList();
+        for (FileSystem fs : resultList) {
+            fs.setStatus(FileSystemStatus.RW);
+            em.flush();
         }
+        return resultList;
     }
 
     private FileSystem initFileSystem(EntityManager em, String groupID,
@@ -164,53 +206,13 @@ public class StoreServiceImpl implements StoreService {
     }
 
     @Override
-    public boolean store(StoreParam storeParam, String sourceAET,
-            Attributes data, FileRef fileRef, Attributes modified)
-                    throws DicomServiceException {
+    public boolean store(StoreItem item) throws DicomServiceException {
         try {
-            Availability availability = fileRef.getFileSystem().getAvailability();
-            Instance inst;
-            try {
-                inst = findInstance(em, data.getString(Tag.SOPInstanceUID, null));
-                StoreDuplicate.Action storeDuplicate =
-                        storeDuplicate(storeParam.getStoreDuplicates(), inst, fileRef);
-                switch (inst.getAvailability()) {
-                case REJECTED_FOR_QUALITY_REASONS_REJECTION_NOTE:
-                case REJECTED_FOR_PATIENT_SAFETY_REASONS_REJECTION_NOTE:
-                case INCORRECT_MODALITY_WORKLIST_ENTRY_REJECTION_NOTE:
-                case DATA_RETENTION_PERIOD_EXPIRED_REJECTION_NOTE:
-                    throw new DicomServiceException(Status.CannotUnderstand,
-                            "subsequent occurrence of rejection note");
-                case REJECTED_FOR_QUALITY_REASONS:
-                case REJECTED_FOR_PATIENT_SAFETY_REASONS:
-                case INCORRECT_MODALITY_WORKLIST_ENTRY:
-                    throw new DicomServiceException(Status.CannotUnderstand,
-                            "subsequent occurrence of rejected instance");
-                case DATA_RETENTION_PERIOD_EXPIRED:
-                    storeDuplicate = StoreDuplicate.Action.REPLACE;
-                default:
-                    break;
-                }
-                switch (storeDuplicate) {
-                case IGNORE:
-                    coerceAttributes(inst, data, modified);
-                    return false;
-                case STORE:
-                    updateInstance(storeParam, inst, data, modified);
-                    coerceAttributes(inst.getSeries(), data, modified);
-                    break;
-                case REPLACE:
-                    inst.setReplaced(true);
-                    inst = newInstance(em, storeParam, sourceAET, data,
-                            availability, modified);
-                    break;
-                }
-            } catch (NoResultException e) {
-                inst = newInstance(em, storeParam, sourceAET, data,
-                        availability, modified);
-            }
-            fileRef.setInstance(inst);
-            em.persist(fileRef);
+            InstanceCounts counts = new InstanceCounts();
+            boolean stored = storeInstance(item, counts);
+            counts.apply(em);
+            if (!stored)
+                return false;
             em.flush();
             return true;
         } catch (DicomServiceException e) {
@@ -220,6 +222,185 @@ public class StoreServiceImpl implements StoreService {
         }
     }
 
+    @Override
+    public void store(List<StoreItem> items) {
+        InstanceCounts counts = new InstanceCounts();
+        for (StoreItem item : items) {
+            try {
+                item.setStored(storeInstance(item, counts));
+            } catch (DicomServiceException e) {
+                throw new RuntimeException("Failed to store "
+                        + item.getAttributes().getString(Tag.SOPInstanceUID)
+                        + " in batch", e);
+            }
+        }
+        counts.apply(em);
+        em.flush();
+    }
+
+    @Override
+    public boolean replaceFile(long fileRefPk, String filePath,
+            String newFilePath, String transferSyntaxUID, long fileSize,
+            String digest, PixelDataIndex pixelDataIndex) {
+        return em.createNamedQuery(FileRef.REPLACE_FILE)
+                .setParameter(1, newFilePath)
+                .setParameter(2, transferSyntaxUID)
+                .setParameter(3, fileSize)
+                .setParameter(4, digest)
+                .setParameter(5, fileRefPk)
+                .setParameter(6, filePath)
+                .setParameter(7, pixelDataIndex != null
+                        ? pixelDataIndex.getPixelDataPosition()
+                        : null)
+                .setParameter(8, pixelDataIndex != null
+                        ? pixelDataIndex.encode()
+                        : null)
+                .executeUpdate() > 0;
+    }
+
+    @Override
+    public long migrateEncodedAttributes(Entity entity, boolean compress,
+            long afterPk, int limit) {
+        String select, update;
+        switch (entity) {
+        case Patient:
+            select = Patient.ENCODED_ATTRIBUTES;
+            update = Patient.UPDATE_ENCODED_ATTRIBUTES;
+            break;
+        case Study:
+            select = Study.ENCODED_ATTRIBUTES;
+            update = Study.UPDATE_ENCODED_ATTRIBUTES;
+            break;
+        case Series:
+            select = Series.ENCODED_ATTRIBUTES;
+            update = Series.UPDATE_ENCODED_ATTRIBUTES;
+            break;
+        case Instance:
+            select = Instance.ENCODED_ATTRIBUTES;
+            update = Instance.UPDATE_ENCODED_ATTRIBUTES;
+            break;
+        default:
+            throw new IllegalArgumentException("entity: " + entity);
+        }
+        int format = compress
+                ? Utils.DEFLATED_EXPLICIT_VR_LE_FORMAT
+                : Utils.EXPLICIT_VR_LE_FORMAT;
+        List<Object[]> rows = em.createNamedQuery(select, Object[].class)
+                .setParameter(1, afterPk)
+                .setParameter(2, format)
+                .setMaxResults(limit)
+                .getResultList();
+        if (rows.isEmpty())
+            return -1L;
+
+        for (Object[] row : rows) {
+            byte[] b = (byte[]) row[2];
+            byte[] encoded = Utils.reencodeAttributes(b, compress);
+            em.createNamedQuery(update)
+                .setParameter(1, encoded != null ? encoded : b)
+                .setParameter(2, row[0])
+                .setParameter(3, row[1])
+                .setParameter(4, format)
+                .executeUpdate();
+        }
+        return (Long) rows.get(rows.size() - 1)[0];
+    }
+
+    @Override
+    public boolean claimTaskLock(String task, String owner, int timeout) {
+        long now = System.currentTimeMillis();
+        Date expirationTime = new Date(now + timeout * 1000L);
+        if (em.createNamedQuery(TaskLock.CLAIM)
+                .setParameter(1, task)
+                .setParameter(2, owner)
+                .setParameter(3, expirationTime)
+                .setParameter(4, new Date(now))
+                .executeUpdate() > 0)
+            return true;
+
+        if (em.find(TaskLock.class, task) != null)
+            return false;
+
+        em.persist(new TaskLock(task, owner, expirationTime));
+        em.flush();
+        return true;
+    }
+
+    @Override
+    public void releaseTaskLock(String task, String owner) {
+        em.createNamedQuery(TaskLock.RELEASE)
+            .setParameter(1, task)
+            .setParameter(2, owner)
+            .executeUpdate();
+    }
+
+    private boolean storeInstance(StoreItem item, InstanceCounts counts)
+            throws DicomServiceException {
+        StoreParam storeParam = item.getStoreParam();
+        String sourceAET = item.getSourceAET();
+        Attributes data = item.getAttributes();
+        FileRef fileRef = item.getFileRef();
+        Attributes modified = item.getModified();
+        SeriesCache seriesCache = item.getSeriesCache();
+        Availability availability = fileRef.getFileSystem().getAvailability();
+        Instance inst;
+        try {
+            inst = findInstance(em, data.getString(Tag.SOPInstanceUID, null));
+            StoreDuplicate.Action storeDuplicate =
+                    storeDuplicate(storeParam.getStoreDuplicates(), inst, fileRef);
+            switch (inst.getAvailability()) {
+            case REJECTED_FOR_QUALITY_REASONS_REJECTION_NOTE:
+            case REJECTED_FOR_PATIENT_SAFETY_REASONS_REJECTION_NOTE:
+            case INCORRECT_MODALITY_WORKLIST_ENTRY_REJECTION_NOTE:
+            case DATA_RETENTION_PERIOD_EXPIRED_REJECTION_NOTE:
+                invalidate(seriesCache, inst);
+                throw new DicomServiceException(Status.CannotUnderstand,
+                        "subsequent occurrence of rejection note");
+            case REJECTED_FOR_QUALITY_REASONS:
+            case REJECTED_FOR_PATIENT_SAFETY_REASONS:
+            case INCORRECT_MODALITY_WORKLIST_ENTRY:
+                invalidate(seriesCache, inst);
+                throw new DicomServiceException(Status.CannotUnderstand,
+                        "subsequent occurrence of rejected instance");
+            case DATA_RETENTION_PERIOD_EXPIRED:
+                storeDuplicate = StoreDuplicate.Action.REPLACE;
+            default:
+                break;
+            }
+            switch (storeDuplicate) {
+            case IGNORE:
+                coerceAttributes(inst, data, modified);
+                return false;
+            case STORE:
+                updateInstance(storeParam, inst, data, modified);
+                coerceAttributes(inst.getSeries(), data, modified);
+                break;
+            case REPLACE:
+                invalidate(seriesCache, inst);
+                inst.setReplaced(true);
+                Series replacedSeries = inst.getSeries();
+                counts.add(replacedSeries.getPk(),
+                        replacedSeries.getStudy().getPk(),
+                        inst.getAvailability(), -1);
+                inst = newInstance(em, storeParam, sourceAET, data,
+                        availability, modified, seriesCache, counts);
+                break;
+            }
+        } catch (NoResultException e) {
+            inst = newInstance(em, storeParam, sourceAET, data,
+                    availability, modified, seriesCache, counts);
+        }
+        fileRef.setInstance(inst);
+        em.persist(fileRef);
+        queryService.invalidateStudyQueryResults(data);
+        return true;
+    }
+
+    private static void invalidate(SeriesCache seriesCache, Instance inst) {
+        if (seriesCache != null)
+            seriesCache.remove(inst.getSeries().getSeriesInstanceUID());
+    }
+
     private StoreDuplicate.Action storeDuplicate(
             List<StoreDuplicate> storeDuplicates,
             Instance inst, FileRef newFileRef)
@@ -270,18 +451,31 @@ public class StoreServiceImpl implements StoreService {
 
     private Instance newInstance(EntityManager em, StoreParam storeParam,
             String sourceAET, Attributes data, Availability availability,
-            Attributes modified) throws DicomServiceException {
+            Attributes modified, SeriesCache seriesCache,
+            InstanceCounts counts) throws DicomServiceException {
 //        Availability rnAvailability =
 //                storeParam.getRejectionNoteAvailability(data);
 //        if (rnAvailability != null) {
 //            processRejectionNote(data, rnAvailability);
 //        }
-        Series series = findOrCreateSeries(em, storeParam, sourceAET, data,
-                availability);
+        Series series;
+        long seriesPk, studyPk;
+        if (seriesCache != null) {
+            series = findOrCreateSeries(em, storeParam, sourceAET, data,
+                        availability, modified, seriesCache);
+            SeriesCache.Entry cached =
+                    seriesCache.get(data.getString(Tag.SeriesInstanceUID));
+            seriesPk = cached.getSeriesPk();
+            studyPk = cached.getStudyPk();
+        } else {
+            series = findOrCreateSeries(em, storeParam, sourceAET, data,
+                        availability, modified);
+            seriesPk = series.getPk();
+            studyPk = series.getStudy().getPk();
+        }
 //        Availability availability = rnAvailability != null
 //                    ? Availability.availabilityOfRejectedObject(rnAvailability)
 //                    : fsAvailability;
-        coerceAttributes(series, data, modified);
         if (!modified.isEmpty() && storeParam.isStoreOriginalAttributes()) {
             Attributes item = new Attributes(4);
             Sequence origAttrsSeq =
@@ -308,9 +502,97 @@ public class StoreServiceImpl implements StoreService {
                 storeParam.getAttributeFilter(Entity.Instance),
                 storeParam.getFuzzyStr());
         em.persist(inst);
+        counts.add(seriesPk, studyPk, availability, 1);
         return inst;
     }
 
+    private Series findOrCreateSeries(EntityManager em, StoreParam storeParam,
+            String sourceAET, Attributes data, Availability availability,
+            Attributes modified) throws DicomServiceException {
+        Series series = findOrCreateSeries(em, storeParam, sourceAET, data,
+                availability);
+        coerceAttributes(series, data, modified);
+        return series;
+    }
+
+    /**
+     * Skips the lookup and the merge of Series, Study and Patient, if the
+     * received attributes equal the attributes received with a previous
+     * object of the same Series on this association and Series, Study and
+     * Patient were not updated meanwhile, without loading the Series, Study
+     * and Patient entities.
+     */
+    private Series findOrCreateSeries(EntityManager em, StoreParam storeParam,
+            String sourceAET, Attributes data, Availability availability,
+            Attributes modified, SeriesCache seriesCache)
+                    throws DicomServiceException {
+        String seriesIUID = data.getString(Tag.SeriesInstanceUID);
+        String cuid = data.getString(Tag.SOPClassUID, null);
+        Attributes patientAttrs = selectAttributes(storeParam, Entity.Patient, data);
+        Attributes studyAttrs = selectAttributes(storeParam, Entity.Study, data);
+        Attributes seriesAttrs = selectAttributes(storeParam, Entity.Series, data);
+        long generation = seriesService.getAttributesGeneration();
+        SeriesCache.Entry cached = seriesCache.get(seriesIUID);
+        if (cached != null && cached.matches(availability, cuid,
+                patientAttrs, studyAttrs, seriesAttrs)
+                && isUpToDate(em, seriesCache, cached, generation)) {
+            data.update(cached.getPatientAttributes(), modified);
+            data.update(cached.getStudyAttributes(), modified);
+            data.update(cached.getSeriesAttributes(), modified);
+            return em.getReference(Series.class, cached.getSeriesPk());
+        }
+        seriesCache.remove(seriesIUID);
+        Series series = findOrCreateSeries(em, storeParam, sourceAET, data,
+                availability);
+        Study study = series.getStudy();
+        Patient patient = study.getPatient();
+        SeriesCache.Entry prev = cached;
+        cached = new SeriesCache.Entry(series.getPk(), study.getPk(),
+                series.getUpdatedTime(),
+                study.getUpdatedTime(),
+                patient.getUpdatedTime(),
+                availability,
+                patient.getAttributes(),
+                study.getAttributes(),
+                series.getAttributes(),
+                patientAttrs, studyAttrs, seriesAttrs, generation);
+        if (prev != null)
+            cached.addSOPClassUIDs(prev);
+        cached.addSOPClassUID(cuid);
+        coerceAttributes(series, data, modified);
+        seriesCache.put(seriesIUID, cached);
+        return series;
+    }
+
+    private static boolean isUpToDate(EntityManager em,
+            SeriesCache seriesCache, SeriesCache.Entry cached,
+            long generation) {
+        if (!seriesCache.needsRevalidation(cached, generation))
+            return true;
+
+        Object[] updatedTimes;
+        try {
+            updatedTimes = (Object[]) em
+                    .createNamedQuery(Series.UPDATED_TIMES)
+                    .setParameter(1, cached.getSeriesPk())
+                    .getSingleResult();
+        } catch (NoResultException e) {
+            return false;
+        }
+        if (!cached.isUpToDate((Date) updatedTimes[0],
+                (Date) updatedTimes[1], (Date) updatedTimes[2]))
+            return false;
+
+        seriesCache.revalidated(cached, generation);
+        return true;
+    }
+
+    private static Attributes selectAttributes(StoreParam storeParam,
+            Entity entity, Attributes data) {
+        return new Attributes(data,
+                storeParam.getAttributeFilter(entity).getSelection());
+    }
+
     private Series findOrCreateSeries(EntityManager em, StoreParam storeParam,
             String sourceAET, Attributes data, Availability availability)
                     throws DicomServiceException {
@@ -386,6 +668,8 @@ public class StoreServiceImpl implements StoreService {
                 }
             }
             patient.setAttributes(patientAttrs, filter, storeParam.getFuzzyStr());
+            seriesService.invalidatePatientAttributes(patient.getPk());
+            queryService.invalidatePatientQueryResults(patientAttrs);
         }
     }
 
@@ -394,11 +678,11 @@ public class StoreServiceImpl implements StoreService {
         series.retainRetrieveAETs(storeParam.getRetrieveAETs());
         series.retainExternalRetrieveAET(storeParam.getExternalRetrieveAET());
         series.floorAvailability(availability);
-        series.resetNumberOfInstances();
         Attributes seriesAttrs = series.getAttributes();
         AttributeFilter seriesFilter = storeParam.getAttributeFilter(Entity.Series);
         if (seriesAttrs.mergeSelected(data, seriesFilter.getSelection())) {
             series.setAttributes(seriesAttrs, seriesFilter, storeParam.getFuzzyStr());
+            seriesService.invalidateSeriesAttributes(series.getPk());
         }
     }
 
@@ -415,6 +699,8 @@ public class StoreServiceImpl implements StoreService {
                     storeParam.getAttributeFilter(Entity.Patient),
                     storeParam.getFuzzyStr(),
                     data, true, true);
+            seriesService.invalidatePatientAttributes(patient.getPk());
+            queryService.invalidatePatientQueryResults(patient.getAttributes());
             study.setPatient(patient);
             study.setProcedureCodes(codeList(data, Tag.ProcedureCodeSequence));
             study.setIssuerOfAccessionNumber(issuer(
@@ -439,11 +725,11 @@ public class StoreServiceImpl implements StoreService {
         study.retainRetrieveAETs(storeParam.getRetrieveAETs());
         study.retainExternalRetrieveAET(storeParam.getExternalRetrieveAET());
         study.floorAvailability(availability);
-        study.resetNumberOfInstances();
         AttributeFilter studyFilter = storeParam.getAttributeFilter(Entity.Study);
         Attributes studyAttrs = study.getAttributes();
         if (studyAttrs.mergeSelected(data, studyFilter.getSelection())) {
             study.setAttributes(studyAttrs, studyFilter, storeParam.getFuzzyStr());
+            seriesService.invalidateStudyAttributes(study.getPk());
         }
     }
 
@@ -0,0 +1,172 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2013
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.dcm4che.data.Attributes;
+import org.dcm4che.data.Tag;
+import org.dcm4che.data.VR;
+import org.dcm4chee.archive.entity.Availability;
+import org.junit.Test;
+
+/**
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ *
+ */
+public class SeriesCacheTest {
+
+    private static final long HOUR = 3600000L;
+    private static final Date UPDATED = new Date(1000000L);
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        SeriesCache cache = new SeriesCache(2, HOUR);
+        SeriesCache.Entry e1 = entry(1, 0);
+        SeriesCache.Entry e2 = entry(2, 0);
+        cache.put("1", e1);
+        cache.put("2", e2);
+        assertSame(e1, cache.get("1"));
+        cache.put("3", entry(3, 0));
+        assertEquals(2, cache.size());
+        assertSame(e1, cache.get("1"));
+        assertNull(cache.get("2"));
+    }
+
+    @Test
+    public void testRevalidatesOnGenerationChange() {
+        SeriesCache cache = new SeriesCache(10, HOUR);
+        SeriesCache.Entry entry = entry(1, 5);
+        assertFalse(cache.needsRevalidation(entry, 5));
+        assertTrue(cache.needsRevalidation(entry, 6));
+        cache.revalidated(entry, 6);
+        assertFalse(cache.needsRevalidation(entry, 6));
+    }
+
+    @Test
+    public void testRevalidatesAfterInterval() throws Exception {
+        SeriesCache cache = new SeriesCache(10, 0);
+        SeriesCache.Entry entry = entry(1, 0);
+        Thread.sleep(1);
+        assertTrue(cache.needsRevalidation(entry, 0));
+    }
+
+    @Test
+    public void testIsUpToDate() {
+        SeriesCache.Entry entry = entry(1, 0);
+        assertTrue(entry.isUpToDate(UPDATED, UPDATED, UPDATED));
+        assertFalse(entry.isUpToDate(UPDATED, UPDATED,
+                new Date(UPDATED.getTime() + 1)));
+    }
+
+    @Test
+    public void testMatches() {
+        SeriesCache.Entry entry = entry(1, 0);
+        entry.addSOPClassUID("1.2.3");
+        Attributes pat = attrs(Tag.PatientID, VR.LO, "P1");
+        Attributes study = attrs(Tag.StudyID, VR.SH, "S1");
+        Attributes series = attrs(Tag.SeriesNumber, VR.IS, "1");
+        assertTrue(entry.matches(Availability.ONLINE, "1.2.3",
+                pat, study, series));
+        assertFalse(entry.matches(Availability.ONLINE, "1.2.4",
+                pat, study, series));
+        assertFalse(entry.matches(Availability.NEARLINE, "1.2.3",
+                pat, study, series));
+        assertFalse(entry.matches(Availability.ONLINE, "1.2.3",
+                attrs(Tag.PatientID, VR.LO, "P2"), study, series));
+    }
+
+    @Test
+    public void testConcurrentAccess() throws Exception {
+        final SeriesCache cache = new SeriesCache(5, HOUR);
+        final AtomicReference<Throwable> failure =
+                new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread() {
+
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 10000; i++) {
+                            String iuid = Integer.toString(i % 20);
+                            cache.put(iuid, entry(i, 0));
+                            cache.get(Integer.toString((i + 7) % 20));
+                            if (i % 100 == 0)
+                                cache.remove(iuid);
+                        }
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertNull(failure.get());
+        assertTrue(cache.size() <= 5);
+    }
+
+    private static SeriesCache.Entry entry(long seriesPk, long generation) {
+        return new SeriesCache.Entry(seriesPk, 1L, UPDATED, UPDATED, UPDATED,
+                Availability.ONLINE,
+                new Attributes(), new Attributes(), new Attributes(),
+                attrs(Tag.PatientID, VR.LO, "P1"),
+                attrs(Tag.StudyID, VR.SH, "S1"),
+                attrs(Tag.SeriesNumber, VR.IS, "1"),
+                generation);
+    }
+
+    private static Attributes attrs(int tag, VR vr, String value) {
+        Attributes attrs = new Attributes(1);
+        attrs.setString(tag, vr, value);
+        return attrs;
+    }
+}
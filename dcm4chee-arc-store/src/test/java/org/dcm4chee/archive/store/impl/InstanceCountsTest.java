@@ -0,0 +1,205 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2013
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.store.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+
+import org.dcm4chee.archive.entity.Availability;
+import org.dcm4chee.archive.entity.Series;
+import org.dcm4chee.archive.entity.Study;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ *
+ */
+public class InstanceCountsTest {
+
+    private final Map<Long, int[]> series = new HashMap<Long, int[]>();
+    private final Map<Long, int[]> studies = new HashMap<Long, int[]>();
+    private final List<Long> seriesUpdates = new ArrayList<Long>();
+    private EntityManager em;
+
+    @Before
+    public void setUp() {
+        em = proxy(EntityManager.class, new InvocationHandler() {
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("createNamedQuery"))
+                    return query((String) args[0]);
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    @Test
+    public void testIncrementsSeriesAndStudy() {
+        series.put(1L, new int[] { 0, 0 });
+        series.put(2L, new int[] { 3, 3 });
+        studies.put(10L, new int[] { 1, 1, 3, 3 });
+        InstanceCounts counts = new InstanceCounts();
+        counts.add(2L, 10L, Availability.ONLINE, 1);
+        counts.add(1L, 10L, Availability.ONLINE, 1);
+        counts.add(1L, 10L, Availability.ONLINE, 1);
+        counts.apply(em);
+        assertArrayEquals(new int[] { 2, 2 }, series.get(1L));
+        assertArrayEquals(new int[] { 4, 4 }, series.get(2L));
+        assertArrayEquals(new int[] { 2, 2, 6, 6 }, studies.get(10L));
+    }
+
+    @Test
+    public void testUpdatesSeriesInOrderOfPks() {
+        series.put(1L, new int[] { 0, 0 });
+        series.put(2L, new int[] { 0, 0 });
+        series.put(3L, new int[] { 0, 0 });
+        studies.put(10L, new int[4]);
+        studies.put(20L, new int[4]);
+        InstanceCounts counts = new InstanceCounts();
+        counts.add(3L, 10L, Availability.ONLINE, 1);
+        counts.add(1L, 20L, Availability.ONLINE, 1);
+        counts.add(2L, 10L, Availability.ONLINE, 1);
+        counts.apply(em);
+        assertEquals(3, seriesUpdates.size());
+        assertEquals(Long.valueOf(1L), seriesUpdates.get(0));
+        assertEquals(Long.valueOf(2L), seriesUpdates.get(1));
+        assertEquals(Long.valueOf(3L), seriesUpdates.get(2));
+        assertArrayEquals(new int[] { 2, 2, 2, 2 }, studies.get(10L));
+        assertArrayEquals(new int[] { 1, 1, 1, 1 }, studies.get(20L));
+    }
+
+    @Test
+    public void testCountsRejectedForQualityReasonsOnlyInNumA() {
+        series.put(1L, new int[] { 1, 1 });
+        studies.put(10L, new int[] { 1, 1, 1, 1 });
+        InstanceCounts counts = new InstanceCounts();
+        counts.add(1L, 10L, Availability.ONLINE, -1);
+        counts.add(1L, 10L, Availability.REJECTED_FOR_QUALITY_REASONS, 1);
+        counts.apply(em);
+        assertArrayEquals(new int[] { 0, 1 }, series.get(1L));
+        assertArrayEquals(new int[] { 0, 1, 0, 1 }, studies.get(10L));
+    }
+
+    @Test
+    public void testLeavesNotCalculatedNumbersUntouched() {
+        series.put(1L, new int[] { -1, -1 });
+        studies.put(10L, new int[] { -1, -1, -1, -1 });
+        InstanceCounts counts = new InstanceCounts();
+        counts.add(1L, 10L, Availability.ONLINE, 1);
+        counts.apply(em);
+        assertArrayEquals(new int[] { -1, -1 }, series.get(1L));
+        assertArrayEquals(new int[] { -1, -1, -1, -1 }, studies.get(10L));
+    }
+
+    @Test
+    public void testSkipsZeroDelta() {
+        series.put(1L, new int[] { 1, 1 });
+        studies.put(10L, new int[] { 1, 1, 1, 1 });
+        InstanceCounts counts = new InstanceCounts();
+        counts.add(1L, 10L, Availability.ONLINE, 1);
+        counts.add(1L, 10L, Availability.ONLINE, -1);
+        counts.apply(em);
+        assertTrue(seriesUpdates.isEmpty());
+        assertArrayEquals(new int[] { 1, 1, 1, 1 }, studies.get(10L));
+    }
+
+    private Query query(final String name) {
+        final Map<Integer, Object> params = new HashMap<Integer, Object>();
+        return proxy(Query.class, new InvocationHandler() {
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String methodName = method.getName();
+                if (methodName.equals("setParameter")) {
+                    params.put((Integer) args[0], args[1]);
+                    return proxy;
+                }
+                if (methodName.equals("executeUpdate"))
+                    return executeUpdate(name, params);
+                if (methodName.equals("getSingleResult")
+                        && name.equals(Series.NUMBER_OF_INSTANCES)) {
+                    int[] num = series.get(params.get(1));
+                    return new Object[] { num[0], num[1] };
+                }
+                throw new UnsupportedOperationException(methodName);
+            }
+        });
+    }
+
+    private int executeUpdate(String name, Map<Integer, Object> params) {
+        if (name.equals(Series.INCREMENT_NUMBER_OF_INSTANCES)) {
+            Long pk = (Long) params.get(3);
+            seriesUpdates.add(pk);
+            return increment(series.get(pk), params, 1);
+        }
+        if (name.equals(Study.INCREMENT_NUMBER_OF_INSTANCES))
+            return increment(studies.get(params.get(5)), params, 1);
+        throw new UnsupportedOperationException(name);
+    }
+
+    private static int increment(int[] num, Map<Integer, Object> params,
+            int firstParam) {
+        for (int n : num)
+            if (n < 0)
+                return 0;
+        for (int i = 0; i < num.length; i++)
+            num[i] += (Integer) params.get(firstParam + i);
+        return 1;
+    }
+
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(
+                InstanceCountsTest.class.getClassLoader(),
+                new Class<?>[] { type }, handler));
+    }
+}